@@ -0,0 +1,448 @@
+package org.apache.lucene.index;
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.apache.lucene.index.MergePolicy.OneMerge;
+
+/**
+ * A serial merge scheduler (merges run in the thread that triggers them, as
+ * with {@link SerialMergeScheduler}) that can cap the I/O bandwidth of merges
+ * and hold them back while searches are suffering.
+ * <br>
+ * The bandwidth cap only applies to an {@link IndexWriter} opened on a
+ * {@link proj.zoie.api.impl.util.MergeThrottledDirectory} wrapping the index
+ * directory: reads and writes done by a merge through that directory are each
+ * paced to {@link #getMaxMBPerSec()}, or {@link #getPeakMBPerSec()} during the
+ * peak hours. A rate of 0 means unlimited.
+ * <br>
+ * Merges are paused (between I/O chunks) by {@link #pauseMerges(long)}, e.g. on
+ * a search SLA violation. The merges run for a flush, i.e. by a single
+ * {@link #merge(IndexWriter)} call, are never held back for more than
+ * {@link #getMaxPausePerFlushMillis()} in total, however many they are, so that
+ * segments can not pile up forever.
+ */
+public class ZoieMergeScheduler extends MergeScheduler
+{
+  private static final Logger log = Logger.getLogger(ZoieMergeScheduler.class);
+
+  public static final long DEFAULT_MAX_PAUSE_PER_FLUSH_MILLIS = 30000L;
+
+  private volatile double _maxMBPerSec = 0.0d;
+  private volatile double _peakMBPerSec = 0.0d;
+  private volatile int _peakStartHour = -1;
+  private volatile int _peakEndHour = -1;
+  private volatile long _maxPausePerFlushMillis = DEFAULT_MAX_PAUSE_PER_FLUSH_MILLIS;
+
+  private final Object _pauseLock = new Object();
+  private long _pausedUntil = 0L;
+  private long _flushPausedMillis = 0L;
+
+  private final RateLimiter _writeLimiter = new RateLimiter();
+  private final RateLimiter _readLimiter = new RateLimiter();
+
+  private volatile Thread _mergeThread = null;
+  private volatile int _backlog = 0;
+  private volatile long _backlogBytes = 0L;
+
+  private volatile int _currentHour = -1;
+  private volatile long _hourCheckedAt = 0L;
+
+  private final AtomicLong _numMerges = new AtomicLong(0);
+  private final AtomicLong _mergeTimeMillis = new AtomicLong(0);
+  private final AtomicLong _bytesWritten = new AtomicLong(0);
+  private final AtomicLong _bytesRead = new AtomicLong(0);
+  private final AtomicLong _throttledMillis = new AtomicLong(0);
+  private final AtomicLong _pausedMillis = new AtomicLong(0);
+
+  @Override
+  synchronized public void merge(IndexWriter writer) throws CorruptIndexException, IOException
+  {
+    _mergeThread = Thread.currentThread();
+    synchronized (_pauseLock)
+    {
+      _flushPausedMillis = 0L; // the pause budget is shared by all the merges of this call
+    }
+    try
+    {
+      while (true)
+      {
+        List<OneMerge> merges = new ArrayList<OneMerge>();
+        long bytes = 0L;
+        OneMerge merge;
+        while ((merge = writer.getNextMerge()) != null)
+        {
+          merges.add(merge);
+          bytes += sizeInBytes(merge);
+        }
+        if (merges.isEmpty()) break;
+
+        _backlog = merges.size();
+        _backlogBytes = bytes;
+
+        // every merge taken from the writer has to be run, else the writer waits for it forever
+        IOException ioe = null;
+        RuntimeException re = null;
+        for (OneMerge oneMerge : merges)
+        {
+          long size = sizeInBytes(oneMerge);
+          long start = System.currentTimeMillis();
+          try
+          {
+            writer.merge(oneMerge);
+          }
+          catch (IOException e)
+          {
+            if (ioe == null) ioe = e;
+          }
+          catch (RuntimeException e)
+          {
+            if (re == null) re = e;
+          }
+          finally
+          {
+            long took = System.currentTimeMillis() - start;
+            _numMerges.incrementAndGet();
+            _mergeTimeMillis.addAndGet(took);
+            _backlog--;
+            _backlogBytes -= size;
+            if (log.isDebugEnabled())
+            {
+              log.debug("merged " + oneMerge.segString(writer.getDirectory()) + " in " + took + "ms");
+            }
+          }
+        }
+        if (ioe != null) throw ioe;
+        if (re != null) throw re;
+      }
+    }
+    finally
+    {
+      _backlog = 0;
+      _backlogBytes = 0L;
+      _mergeThread = null;
+    }
+  }
+
+  private static long sizeInBytes(OneMerge merge) throws IOException
+  {
+    long size = 0L;
+    SegmentInfos segments = merge.segments;
+    for (int i = 0; i < segments.size(); i++)
+    {
+      size += segments.info(i).sizeInBytes();
+    }
+    return size;
+  }
+
+  /**
+   * The scheduler is shared by the successive writers of an index, closing a
+   * writer only releases a paused merge.
+   */
+  @Override
+  public void close()
+  {
+    resumeMerges();
+  }
+
+  /**
+   * @return whether the calling thread is running a merge of this scheduler
+   */
+  public boolean isMergeThread()
+  {
+    return _mergeThread == Thread.currentThread();
+  }
+
+  /**
+   * Accounts for bytes written by a merge, blocking while merges are paused or
+   * to keep under the bandwidth cap.
+   */
+  public void pauseForWrite(long bytes)
+  {
+    _bytesWritten.addAndGet(bytes);
+    waitWhilePaused();
+    throttle(_writeLimiter, bytes);
+  }
+
+  /**
+   * Accounts for bytes read by a merge, blocking while merges are paused or
+   * to keep under the bandwidth cap.
+   */
+  public void pauseForRead(long bytes)
+  {
+    _bytesRead.addAndGet(bytes);
+    waitWhilePaused();
+    throttle(_readLimiter, bytes);
+  }
+
+  private void throttle(RateLimiter limiter, long bytes)
+  {
+    double mbPerSec = getEffectiveMBPerSec();
+    if (mbPerSec <= 0.0d) return;
+    long sleptMillis = limiter.pause(bytes, mbPerSec);
+    if (sleptMillis > 0)
+    {
+      _throttledMillis.addAndGet(sleptMillis);
+    }
+  }
+
+  private void waitWhilePaused()
+  {
+    synchronized (_pauseLock)
+    {
+      long now = System.currentTimeMillis();
+      while (now < _pausedUntil && _flushPausedMillis < _maxPausePerFlushMillis)
+      {
+        long wait = Math.min(_pausedUntil - now, _maxPausePerFlushMillis - _flushPausedMillis);
+        try
+        {
+          _pauseLock.wait(wait);
+        }
+        catch (InterruptedException e)
+        {
+          Thread.currentThread().interrupt();
+          return;
+        }
+        long waited = System.currentTimeMillis() - now;
+        _flushPausedMillis += waited;
+        _pausedMillis.addAndGet(waited);
+        now += waited;
+      }
+    }
+  }
+
+  /**
+   * Holds back running and upcoming merges for the given time, extending the
+   * current pause if there is one.
+   */
+  public void pauseMerges(long millis)
+  {
+    if (millis <= 0) return;
+    synchronized (_pauseLock)
+    {
+      _pausedUntil = Math.max(_pausedUntil, System.currentTimeMillis() + millis);
+    }
+  }
+
+  public void resumeMerges()
+  {
+    synchronized (_pauseLock)
+    {
+      _pausedUntil = 0L;
+      _pauseLock.notifyAll();
+    }
+  }
+
+  public boolean isMergePaused()
+  {
+    synchronized (_pauseLock)
+    {
+      return System.currentTimeMillis() < _pausedUntil;
+    }
+  }
+
+  /**
+   * @return the bandwidth cap in effect now, 0 if unlimited
+   */
+  public double getEffectiveMBPerSec()
+  {
+    if (_peakMBPerSec > 0.0d && isPeakHour())
+    {
+      return _peakMBPerSec;
+    }
+    return _maxMBPerSec;
+  }
+
+  private boolean isPeakHour()
+  {
+    int start = _peakStartHour;
+    int end = _peakEndHour;
+    if (start < 0 || end < 0 || start == end) return false;
+    long now = System.currentTimeMillis();
+    if (now - _hourCheckedAt > 10000L)
+    {
+      _currentHour = Calendar.getInstance().get(Calendar.HOUR_OF_DAY);
+      _hourCheckedAt = now;
+    }
+    int hour = _currentHour;
+    return (start < end) ? (hour >= start && hour < end) : (hour >= start || hour < end);
+  }
+
+  /**
+   * @param maxMBPerSec merge read and write bandwidth cap, each, 0 for unlimited
+   */
+  public void setMaxMBPerSec(double maxMBPerSec)
+  {
+    _maxMBPerSec = Math.max(0.0d, maxMBPerSec);
+  }
+
+  public double getMaxMBPerSec()
+  {
+    return _maxMBPerSec;
+  }
+
+  /**
+   * @param peakMBPerSec bandwidth cap during the peak hours, 0 to use {@link #getMaxMBPerSec()}
+   */
+  public void setPeakMBPerSec(double peakMBPerSec)
+  {
+    _peakMBPerSec = Math.max(0.0d, peakMBPerSec);
+  }
+
+  public double getPeakMBPerSec()
+  {
+    return _peakMBPerSec;
+  }
+
+  /**
+   * Sets the peak hours as [startHour, endHour) of the local day; the window may
+   * wrap around midnight. Negative hours disable the peak window.
+   */
+  public void setPeakHours(int startHour, int endHour)
+  {
+    if (startHour > 23 || endHour > 23)
+    {
+      log.warn("peak hours have to be in [0, 23]. Ignoring " + startHour + "-" + endHour);
+      return;
+    }
+    _peakStartHour = startHour;
+    _peakEndHour = endHour;
+    _hourCheckedAt = 0L;
+  }
+
+  public int getPeakStartHour()
+  {
+    return _peakStartHour;
+  }
+
+  public int getPeakEndHour()
+  {
+    return _peakEndHour;
+  }
+
+  public void setMaxPausePerFlushMillis(long maxPausePerFlushMillis)
+  {
+    _maxPausePerFlushMillis = Math.max(0L, maxPausePerFlushMillis);
+  }
+
+  public long getMaxPausePerFlushMillis()
+  {
+    return _maxPausePerFlushMillis;
+  }
+
+  /**
+   * @return number of merges run
+   */
+  public long getNumMerges()
+  {
+    return _numMerges.get();
+  }
+
+  /**
+   * @return total time spent in merges in milliseconds, including throttling and pauses
+   */
+  public long getMergeTimeMillis()
+  {
+    return _mergeTimeMillis.get();
+  }
+
+  public long getBytesWritten()
+  {
+    return _bytesWritten.get();
+  }
+
+  public long getBytesRead()
+  {
+    return _bytesRead.get();
+  }
+
+  /**
+   * @return average bytes written per second of merge time, in MB
+   */
+  public double getThroughputMBPerSec()
+  {
+    long millis = _mergeTimeMillis.get();
+    if (millis <= 0) return 0.0d;
+    return ((double) _bytesWritten.get() / (1024 * 1024)) / ((double) millis / 1000);
+  }
+
+  public long getThrottledMillis()
+  {
+    return _throttledMillis.get();
+  }
+
+  public long getPausedMillis()
+  {
+    return _pausedMillis.get();
+  }
+
+  /**
+   * @return number of merges taken from the writer and not finished yet
+   */
+  public int getBacklog()
+  {
+    return _backlog;
+  }
+
+  /**
+   * @return size in bytes of the segments of the merges not finished yet
+   */
+  public long getBacklogBytes()
+  {
+    return _backlogBytes;
+  }
+
+  public String toString()
+  {
+    return "ZoieMergeScheduler maxMBPerSec: " + _maxMBPerSec + ", peakMBPerSec: " + _peakMBPerSec + ", peakHours: "
+        + _peakStartHour + "-" + _peakEndHour + ", merges: " + getNumMerges() + ", bytesWritten: " + getBytesWritten()
+        + ", bytesRead: " + getBytesRead() + ", throttled: " + getThrottledMillis() + "ms, paused: " + getPausedMillis() + "ms";
+  }
+
+  /**
+   * Paces a stream of bytes to a rate by sleeping once it runs ahead of it.
+   */
+  private static final class RateLimiter
+  {
+    private long _lastNS = 0L;
+
+    synchronized long pause(long bytes, double mbPerSec)
+    {
+      double nsPerByte = 1000000000.0d / (mbPerSec * 1024 * 1024);
+      long now = System.nanoTime();
+      long target = Math.max(_lastNS, now) + (long) (bytes * nsPerByte);
+      _lastNS = target;
+      long waitNS = target - now;
+      if (waitNS <= 0) return 0L;
+      long waitMillis = waitNS / 1000000;
+      try
+      {
+        Thread.sleep(waitMillis, (int) (waitNS % 1000000));
+      }
+      catch (InterruptedException e)
+      {
+        Thread.currentThread().interrupt();
+      }
+      return waitMillis;
+    }
+  }
+}
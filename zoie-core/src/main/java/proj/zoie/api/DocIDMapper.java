@@ -83,6 +83,24 @@ public interface DocIDMapper<T>
     {
       return new DocIDArray(size);
     }
+
+    /**
+     * Maps a batch of UIDs with {@link DocIDMapper#getDocIDArray(long[])},
+     * or one by one if the mapper does not return DocIDArrays.
+     * @return the docids, {@link DocIDMapper#NOT_FOUND} for the UIDs not
+     *         found; to be closed once read
+     */
+    public static DocIDArray getDocIDArray(DocIDMapper<?> mapper, long[] uids)
+    {
+      Object ret = mapper.getDocIDArray(uids);
+      if (ret instanceof DocIDArray) return (DocIDArray) ret;
+      DocIDArray docids = newInstance(uids.length);
+      for (int i = 0; i < uids.length; i++)
+      {
+        docids.docids[i] = mapper.getDocID(uids[i]);
+      }
+      return docids;
+    }
     public void close()
     {
       memMgr.release(docids);
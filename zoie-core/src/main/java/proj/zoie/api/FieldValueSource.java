@@ -0,0 +1,36 @@
+package proj.zoie.api;
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+/**
+ * Per-UID field values kept by the indexing side, from which a segment reader
+ * builds its per-doc value arrays without walking the terms of the segment.
+ * @see ZoieIndexReader#getLongFieldValues(String)
+ */
+public interface FieldValueSource
+{
+  /**
+   * @return whether the values of the field are kept
+   */
+  boolean hasField(String field);
+
+  /**
+   * @param uids the UIDs of the docs of a segment
+   * @return the value of the field for each of the UIDs, 0 if none, null if
+   *         the values of the field are not kept
+   */
+  long[] getLongValues(String field, long[] uids);
+}
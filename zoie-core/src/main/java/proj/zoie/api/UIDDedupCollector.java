@@ -0,0 +1,186 @@
+package proj.zoie.api;
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.Scorer;
+
+/**
+ * Collector that drops, at query time, the docs superseded by a fresher reader,
+ * so that readers obtained without their deletes marked, e.g. from
+ * {@link proj.zoie.impl.indexing.internal.SearchIndexManager#getIndexReaders(boolean)},
+ * give the same hits as marked ones. The readers are searched through a
+ * MultiReader over the list, freshest first. A doc is dropped when:
+ * <ul>
+ * <li>its UID is found in a fresher reader of the list, or</li>
+ * <li>it was marked deleted by a fresher index at indexing time, see
+ * {@link ZoieSegmentReader#getMarkedDelDocIds()}, which covers UIDs deleted
+ * without a new version. The marks are taken when the collector is created,
+ * right after the readers are obtained.</li>
+ * </ul>
+ * The marks are walked along with the docs when they are collected in order;
+ * the UID of a doc is only looked up in the fresher readers whose UID range
+ * holds it.
+ */
+public class UIDDedupCollector extends Collector
+{
+  private final Collector _collector;
+  private final ZoieIndexReader<?>[] _readers;
+  private final int[] _starts;
+  private final long[] _minUIDs;
+  private final long[] _maxUIDs;
+  private final Map<IndexReader, int[]> _marks = new IdentityHashMap<IndexReader, int[]>();
+
+  private ZoieIndexReader<?> _currentReader = null;
+  private int _currentReaderIndex = 0;
+  private int[] _markedDelDocIds = null;
+  private int _markPos = 0;
+  private int _lastDoc = -1;
+  private int _numDuplicates = 0;
+
+  /**
+   * @param collector the collector of the remaining docs
+   * @param readers the readers searched, freshest first, as returned by
+   *          {@link IndexReaderFactory#getIndexReaders()}
+   */
+  public UIDDedupCollector(Collector collector, List<? extends ZoieIndexReader<?>> readers)
+  {
+    _collector = collector;
+    _readers = readers.toArray(new ZoieIndexReader<?>[readers.size()]);
+    _starts = new int[_readers.length];
+    _minUIDs = new long[_readers.length];
+    _maxUIDs = new long[_readers.length];
+    int start = 0;
+    for (int i = 0; i < _readers.length; ++i)
+    {
+      _starts[i] = start;
+      start += _readers[i].maxDoc();
+      ZoieIndexReader<?>[] subReaders = _readers[i].getSequentialSubReaders();
+      if (subReaders == null)
+      {
+        subReaders = new ZoieIndexReader<?>[] { _readers[i] };
+      }
+      // the range of a multi reader is the one of its segments
+      _minUIDs[i] = Long.MAX_VALUE;
+      _maxUIDs[i] = Long.MIN_VALUE;
+      for (ZoieIndexReader<?> subReader : subReaders)
+      {
+        _minUIDs[i] = Math.min(_minUIDs[i], subReader.getMinUID());
+        _maxUIDs[i] = Math.max(_maxUIDs[i], subReader.getMaxUID());
+        addMarks(subReader);
+      }
+    }
+  }
+
+  private void addMarks(ZoieIndexReader<?> reader)
+  {
+    if (reader instanceof ZoieSegmentReader<?>)
+    {
+      int[] marks = ((ZoieSegmentReader<?>) reader).getMarkedDelDocIds();
+      if (marks != null && marks.length > 0) _marks.put(reader, marks);
+    }
+  }
+
+  @Override
+  public void setScorer(Scorer scorer) throws IOException
+  {
+    _collector.setScorer(scorer);
+  }
+
+  @Override
+  public void setNextReader(IndexReader reader, int docBase) throws IOException
+  {
+    _collector.setNextReader(reader, docBase);
+    _currentReaderIndex = readerIndex(docBase);
+    _currentReader = (reader instanceof ZoieIndexReader<?>) ? (ZoieIndexReader<?>) reader : null;
+    _markedDelDocIds = _marks.get(reader);
+    _markPos = 0;
+    _lastDoc = -1;
+  }
+
+  @Override
+  public void collect(int doc) throws IOException
+  {
+    if (isSuperseded(doc))
+    {
+      _numDuplicates++;
+      return;
+    }
+    _collector.collect(doc);
+  }
+
+  @Override
+  public boolean acceptsDocsOutOfOrder()
+  {
+    return _collector.acceptsDocsOutOfOrder();
+  }
+
+  /**
+   * @return the number of docs dropped so far
+   */
+  public int getNumDuplicates()
+  {
+    return _numDuplicates;
+  }
+
+  private boolean isSuperseded(int doc)
+  {
+    int[] marked = _markedDelDocIds;
+    if (marked != null)
+    {
+      if (doc > _lastDoc)
+      {
+        while (_markPos < marked.length && marked[_markPos] < doc) ++_markPos;
+        _lastDoc = doc;
+        if (_markPos < marked.length && marked[_markPos] == doc) return true;
+      }
+      else if (Arrays.binarySearch(marked, doc) >= 0) return true; // out of order
+    }
+    if (_currentReaderIndex == 0 || _currentReader == null) return false;
+
+    long uid = _currentReader.getUID(doc);
+    if (uid == ZoieIndexReader.DELETED_UID) return true;
+    for (int i = 0; i < _currentReaderIndex; ++i)
+    {
+      if (uid < _minUIDs[i] || uid > _maxUIDs[i]) continue;
+      DocIDMapper<?> mapper = _readers[i].getDocIDMaper();
+      if (mapper != null && mapper.getDocID(uid) != DocIDMapper.NOT_FOUND) return true;
+    }
+    return false;
+  }
+
+  /**
+   * @return the index of the reader the segment starting at docBase belongs to
+   */
+  private int readerIndex(int docBase)
+  {
+    int idx = Arrays.binarySearch(_starts, docBase);
+    if (idx < 0) return -idx - 2;
+    // empty readers share their start with the next one
+    while (idx + 1 < _starts.length && _starts[idx + 1] == docBase)
+    {
+      idx++;
+    }
+    return idx;
+  }
+}
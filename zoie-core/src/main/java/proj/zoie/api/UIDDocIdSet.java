@@ -15,14 +15,14 @@ package proj.zoie.api;
  * See the License for the specific language governing permissions and
  * limitations under the License.
  */
-import it.unimi.dsi.fastutil.ints.IntRBTreeSet;
-
 import java.io.IOException;
 import java.util.Arrays;
 
 import org.apache.lucene.search.DocIdSet;
 import org.apache.lucene.search.DocIdSetIterator;
 
+import proj.zoie.api.DocIDMapper.DocIDArray;
+
 public class UIDDocIdSet extends DocIdSet {
     private final int[] _sorted;
     
@@ -37,19 +37,32 @@ public class UIDDocIdSet extends DocIdSet {
     
     public static int[] mapUID(long[] uidArray,DocIDMapper mapper)
 	{
-		IntRBTreeSet idSet = new IntRBTreeSet();
-		for (long uid : uidArray)
-		{
-		  if (uid != ZoieIndexReader.DELETED_UID)
-		  {
-		    int docid = mapper.getDocID(uid);
-		    if (docid!=DocIDMapper.NOT_FOUND)
-		    {
-		      idSet.add(docid);
-	        }
-	      }
-		}
-	    return idSet.toIntArray();
+      DocIDArray docidArray = DocIDArray.getDocIDArray(mapper, uidArray);
+      int[] docids = docidArray.docids;
+      int[] mapped = new int[uidArray.length];
+      int count = 0;
+      for (int i = 0; i < uidArray.length; ++i)
+      {
+        if (docids[i] != DocIDMapper.NOT_FOUND)
+        {
+          mapped[count++] = docids[i];
+        }
+      }
+      docidArray.close();
+      // sorted and without duplicates
+      Arrays.sort(mapped, 0, count);
+      int size = 0;
+      for (int i = 0; i < count; ++i)
+      {
+        if (size == 0 || mapped[i] != mapped[size - 1])
+        {
+          mapped[size++] = mapped[i];
+        }
+      }
+      if (size == mapped.length) return mapped;
+      int[] ret = new int[size];
+      System.arraycopy(mapped, 0, ret, 0, size);
+      return ret;
 	}
     
 	@Override
@@ -0,0 +1,265 @@
+package proj.zoie.api;
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.PayloadAttribute;
+import org.apache.lucene.analysis.tokenattributes.TermAttribute;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Payload;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermPositions;
+
+/**
+ * Per-document values kept in columns, for the few small fields needed for
+ * every hit (ids, timestamps, titles...) without loading the stored document.
+ * <br>
+ * A value is indexed, like the UID, as the payload of the term named after its
+ * column in the {@link #COLUMN_FIELD} field, so that it follows the doc
+ * through merges. The column of a segment is loaded in one pass the first time
+ * it is asked for, into a long[] for the long columns and into one byte[] with
+ * the offsets of the docs for the var-length ones, and is shared by all the
+ * copies of the segment reader.
+ * <br>
+ * The values are added to the document built by the
+ * {@link proj.zoie.api.indexing.ZoieIndexable}, see
+ * {@link #addLong(Document, String, long)}, and read with
+ * {@link ZoieIndexReader#getLongValue(String, int, long)} and
+ * {@link ZoieIndexReader#getBytesValue(String, int)} by docid, or the
+ * ByUID variants.
+ */
+public final class ZoieDocValues
+{
+  public static final String COLUMN_FIELD = "_COL";
+
+  private ZoieDocValues()
+  {
+  }
+
+  public static void addLong(Document doc, String column, long value)
+  {
+    addBytes(doc, column, longToBytes(value));
+  }
+
+  public static void addString(Document doc, String column, String value)
+  {
+    addBytes(doc, column, toUTF8(value));
+  }
+
+  /**
+   * @param value the value, at most one per column and doc
+   */
+  public static void addBytes(Document doc, String column, byte[] value)
+  {
+    Field field = new Field(COLUMN_FIELD, new ColumnTokenStream(column, value));
+    field.setOmitNorms(true);
+    doc.add(field);
+  }
+
+  static class ColumnTokenStream extends TokenStream
+  {
+    private boolean returnToken = true;
+
+    ColumnTokenStream(String column, byte[] value)
+    {
+      PayloadAttribute payloadAttr = (PayloadAttribute) addAttribute(PayloadAttribute.class);
+      payloadAttr.setPayload(new Payload(value));
+      TermAttribute termAttr = (TermAttribute) addAttribute(TermAttribute.class);
+      termAttr.setTermBuffer(column);
+    }
+
+    @Override
+    public boolean incrementToken() throws IOException
+    {
+      if (returnToken)
+      {
+        returnToken = false;
+        return true;
+      }
+      return false;
+    }
+  }
+
+  /**
+   * Fixed-width column of a segment.
+   */
+  public static final class LongColumn
+  {
+    private final long[] _values;
+    private final boolean[] _hasValue;
+
+    LongColumn(long[] values, boolean[] hasValue)
+    {
+      _values = values;
+      _hasValue = hasValue;
+    }
+
+    public long get(int docid, long missing)
+    {
+      return _hasValue[docid] ? _values[docid] : missing;
+    }
+
+    public boolean hasValue(int docid)
+    {
+      return _hasValue[docid];
+    }
+  }
+
+  /**
+   * Var-length column of a segment: the value of doc i is
+   * data[offsets[i]] to data[offsets[i + 1]], null if the doc has no value.
+   */
+  public static final class BytesColumn
+  {
+    private final byte[] _data;
+    private final int[] _offsets;
+    private final boolean[] _hasValue;
+
+    BytesColumn(byte[] data, int[] offsets, boolean[] hasValue)
+    {
+      _data = data;
+      _offsets = offsets;
+      _hasValue = hasValue;
+    }
+
+    public byte[] get(int docid)
+    {
+      if (!_hasValue[docid]) return null;
+      int start = _offsets[docid];
+      byte[] value = new byte[_offsets[docid + 1] - start];
+      System.arraycopy(_data, start, value, 0, value.length);
+      return value;
+    }
+
+    public int getLength(int docid)
+    {
+      return _offsets[docid + 1] - _offsets[docid];
+    }
+  }
+
+  static LongColumn loadLongColumn(IndexReader reader, String column) throws IOException
+  {
+    int maxDoc = reader.maxDoc();
+    long[] values = new long[maxDoc];
+    boolean[] hasValue = new boolean[maxDoc];
+    byte[] buffer = new byte[8];
+    TermPositions tp = reader.termPositions(new Term(COLUMN_FIELD, column));
+    try
+    {
+      while (tp.next())
+      {
+        int doc = tp.doc();
+        tp.nextPosition();
+        if (tp.getPayloadLength() != 8) continue; // not a long
+        tp.getPayload(buffer, 0);
+        values[doc] = bytesToLong(buffer);
+        hasValue[doc] = true;
+      }
+    } finally
+    {
+      tp.close();
+    }
+    return new LongColumn(values, hasValue);
+  }
+
+  static BytesColumn loadBytesColumn(IndexReader reader, String column) throws IOException
+  {
+    int maxDoc = reader.maxDoc();
+    int[] offsets = new int[maxDoc + 1];
+    boolean[] hasValue = new boolean[maxDoc];
+    byte[] data = new byte[1024];
+    int length = 0;
+    int idx = 0;
+    TermPositions tp = reader.termPositions(new Term(COLUMN_FIELD, column));
+    try
+    {
+      while (tp.next())
+      {
+        int doc = tp.doc();
+        while (idx <= doc) offsets[idx++] = length; // docs without value are empty
+        tp.nextPosition();
+        int len = tp.getPayloadLength();
+        if (length + len > data.length)
+        {
+          byte[] newData = new byte[Math.max(data.length * 2, length + len)];
+          System.arraycopy(data, 0, newData, 0, length);
+          data = newData;
+        }
+        tp.getPayload(data, length);
+        length += len;
+        hasValue[doc] = true;
+      }
+    } finally
+    {
+      tp.close();
+    }
+    while (idx <= maxDoc) offsets[idx++] = length;
+    if (data.length > length)
+    {
+      byte[] trimmed = new byte[length];
+      System.arraycopy(data, 0, trimmed, 0, length);
+      data = trimmed;
+    }
+    return new BytesColumn(data, offsets, hasValue);
+  }
+
+  static byte[] longToBytes(long value)
+  {
+    byte[] buffer = new byte[8];
+    for (int i = 0; i < 8; ++i)
+    {
+      buffer[i] = (byte) (value >> (8 * i));
+    }
+    return buffer;
+  }
+
+  static long bytesToLong(byte[] bytes)
+  {
+    long value = 0L;
+    for (int i = 7; i >= 0; --i)
+    {
+      value = (value << 8) | (bytes[i] & 0xFF);
+    }
+    return value;
+  }
+
+  static byte[] toUTF8(String value)
+  {
+    try
+    {
+      return value.getBytes("UTF-8");
+    } catch (UnsupportedEncodingException e)
+    {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  static String fromUTF8(byte[] bytes)
+  {
+    try
+    {
+      return bytes == null ? null : new String(bytes, "UTF-8");
+    } catch (UnsupportedEncodingException e)
+    {
+      throw new IllegalStateException(e);
+    }
+  }
+}
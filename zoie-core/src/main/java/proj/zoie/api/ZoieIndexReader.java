@@ -44,6 +44,28 @@ public abstract class ZoieIndexReader<R extends IndexReader> extends FilterIndex
 	{
 	  zoieRefCounter.incrementAndGet();
 	}
+	/**
+	 * Increments the zoie reference count unless it already dropped to 0, i.e. the
+	 * reader has been released.
+	 * @return true if the reference was taken
+	 */
+	public boolean tryIncZoieRef()
+	{
+	  while (true)
+	  {
+	    long refCount = zoieRefCounter.get();
+	    if (refCount <= 0) return false;
+	    if (zoieRefCounter.compareAndSet(refCount, refCount + 1)) return true;
+	  }
+	}
+	/**
+	 * @return whether the zoie reference count dropped to 0, the underlying
+	 * reader being then released
+	 */
+	public boolean isZoieReleased()
+	{
+	  return zoieRefCounter.get() <= 0;
+	}
 	public void decZoieRef()
 	{
 	  long refCount = zoieRefCounter.decrementAndGet();
@@ -273,6 +295,62 @@ public abstract class ZoieIndexReader<R extends IndexReader> extends FilterIndex
 
 	abstract public long getUID(int docid);
 	
+	/**
+	 * @return the value of the doc in the long column, or missing
+	 * @see ZoieDocValues
+	 */
+	abstract public long getLongValue(String column, int docid, long missing) throws IOException;
+	
+	/**
+	 * @return the value of the doc in the column, null if it has none
+	 * @see ZoieDocValues
+	 */
+	abstract public byte[] getBytesValue(String column, int docid) throws IOException;
+	
+	/**
+	 * @return the value of the field for each doc, parsed as a long like
+	 *         {@link org.apache.lucene.search.FieldCache#getLongs(IndexReader, String)}.
+	 *         from the indexed terms of the field, stored or not. The array of a
+	 *         segment is built once; for RAM segments it is built from the terms
+	 *         recorded at indexing time when the field is one of the RAM long
+	 *         fields of the system and is indexed untokenized.
+	 */
+	abstract public long[] getLongFieldValues(String field) throws IOException;
+	
+	public String getStringValue(String column, int docid) throws IOException
+	{
+	  return ZoieDocValues.fromUTF8(getBytesValue(column, docid));
+	}
+	
+	/**
+	 * @return the value of the doc with the UID, or missing if there is no
+	 *         such doc in this reader
+	 */
+	public long getLongValueByUID(String column, long uid, long missing) throws IOException
+	{
+	  int docid = findDocID(uid);
+	  return docid < 0 ? missing : getLongValue(column, docid, missing);
+	}
+	
+	public byte[] getBytesValueByUID(String column, long uid) throws IOException
+	{
+	  int docid = findDocID(uid);
+	  return docid < 0 ? null : getBytesValue(column, docid);
+	}
+	
+	public String getStringValueByUID(String column, long uid) throws IOException
+	{
+	  return ZoieDocValues.fromUTF8(getBytesValueByUID(column, uid));
+	}
+	
+	private int findDocID(long uid)
+	{
+	  DocIDMapper mapper = _docIDMapper;
+	  if (mapper == null) return -1;
+	  int docid = mapper.getDocID(uid);
+	  return (docid == DocIDMapper.NOT_FOUND || isDeleted(docid)) ? -1 : docid;
+	}
+	
 	public DocIDMapper getDocIDMaper(){
 		return _docIDMapper;
 	}
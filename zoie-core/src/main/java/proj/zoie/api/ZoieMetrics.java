@@ -0,0 +1,264 @@
+package proj.zoie.api;
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import proj.zoie.api.impl.util.LatencyHistogram;
+
+/**
+ * Latency histograms of the stages of the indexing pipeline and of reader
+ * acquisition, and the number of reader lists not returned yet. The stages are
+ * timed with {@link System#nanoTime()}:
+ * <pre>
+ * long start = System.nanoTime();
+ * ...
+ * metrics.record(ZoieMetrics.Stage.RAM_WRITE, start);
+ * </pre>
+ * The metrics are exported by the zoie-metrics MBean and pushed every
+ * {@link #getReportIntervalMillis()} to the {@link ZoieMetricsSink}s added.
+ */
+public class ZoieMetrics
+{
+  private static final Logger log = Logger.getLogger(ZoieMetrics.class);
+
+  public static enum Stage
+  {
+    /** time the oldest event of a batch waited in the AsyncDataConsumer buffer */
+    QUEUE_WAIT,
+    /** interpretation of a batch of events into indexables */
+    INTERPRET,
+    /** writing a batch of documents to the RAM index */
+    RAM_WRITE,
+    /** writing a batch of documents to the disk index */
+    DISK_WRITE,
+    /** marking the deletes of a batch on the other indexes */
+    DELETE_MARK,
+    /** reopening the reader of an index after a write */
+    READER_REOPEN,
+    /** flushing a RAM index to the disk index, reader reopen included */
+    DISK_FLUSH,
+    /** from the arrival of the oldest event of a batch until the batch is consumed by the indexer; searchable then with realtime indexing */
+    EVENT_TO_SEARCHABLE,
+    /** getIndexReaders calls */
+    READER_ACQUIRE
+  }
+
+  public static final long DEFAULT_REPORT_INTERVAL_MILLIS = 60000L;
+
+  private final Map<Stage, LatencyHistogram> _histograms = new EnumMap<Stage, LatencyHistogram>(Stage.class);
+  private final AtomicLong _outstandingReaderLists = new AtomicLong(0);
+  private final List<ZoieMetricsSink> _sinks = new CopyOnWriteArrayList<ZoieMetricsSink>();
+  private volatile boolean _enabled = true;
+  private volatile long _reportIntervalMillis = DEFAULT_REPORT_INTERVAL_MILLIS;
+  private Timer _reporter = null;
+
+  public ZoieMetrics()
+  {
+    for (Stage stage : Stage.values())
+    {
+      _histograms.put(stage, new LatencyHistogram());
+    }
+  }
+
+  /**
+   * Records the time elapsed since startNanos, a {@link System#nanoTime()}.
+   */
+  public void record(Stage stage, long startNanos)
+  {
+    if (_enabled)
+    {
+      _histograms.get(stage).recordSince(startNanos);
+    }
+  }
+
+  public void recordNanos(Stage stage, long nanos)
+  {
+    if (_enabled)
+    {
+      _histograms.get(stage).record(nanos / 1000L);
+    }
+  }
+
+  public LatencyHistogram getHistogram(Stage stage)
+  {
+    return _histograms.get(stage);
+  }
+
+  public void readersAcquired()
+  {
+    _outstandingReaderLists.incrementAndGet();
+  }
+
+  public void readersReturned()
+  {
+    _outstandingReaderLists.decrementAndGet();
+  }
+
+  /**
+   * @return the number of reader lists acquired and not returned yet; a
+   *         number growing with the query count means readers are leaked
+   */
+  public long getOutstandingReaderLists()
+  {
+    return _outstandingReaderLists.get();
+  }
+
+  public boolean isEnabled()
+  {
+    return _enabled;
+  }
+
+  public void setEnabled(boolean enabled)
+  {
+    _enabled = enabled;
+  }
+
+  public void reset()
+  {
+    for (LatencyHistogram histogram : _histograms.values())
+    {
+      histogram.reset();
+    }
+  }
+
+  public Report getReport()
+  {
+    Map<Stage, LatencyHistogram.Snapshot> snapshots = new EnumMap<Stage, LatencyHistogram.Snapshot>(Stage.class);
+    for (Map.Entry<Stage, LatencyHistogram> entry : _histograms.entrySet())
+    {
+      snapshots.put(entry.getKey(), entry.getValue().snapshot());
+    }
+    return new Report(System.currentTimeMillis(), snapshots, _outstandingReaderLists.get());
+  }
+
+  public long getReportIntervalMillis()
+  {
+    return _reportIntervalMillis;
+  }
+
+  /**
+   * @param reportIntervalMillis how often the sinks get a report, effective
+   *          for the sinks added afterwards
+   */
+  public void setReportIntervalMillis(long reportIntervalMillis)
+  {
+    _reportIntervalMillis = Math.max(1L, reportIntervalMillis);
+  }
+
+  public synchronized void addSink(ZoieMetricsSink sink)
+  {
+    _sinks.add(sink);
+    if (_reporter == null)
+    {
+      _reporter = new Timer("zoie-metrics-reporter", true);
+      _reporter.schedule(new TimerTask()
+      {
+        @Override
+        public void run()
+        {
+          publish();
+        }
+      }, _reportIntervalMillis, _reportIntervalMillis);
+    }
+  }
+
+  public synchronized void removeSink(ZoieMetricsSink sink)
+  {
+    _sinks.remove(sink);
+  }
+
+  /**
+   * Sends a report to the sinks now.
+   */
+  public void publish()
+  {
+    if (_sinks.isEmpty()) return;
+    Report report = getReport();
+    for (ZoieMetricsSink sink : _sinks)
+    {
+      try
+      {
+        sink.report(report);
+      }
+      catch (Exception e)
+      {
+        log.error("metrics sink " + sink + " failed: " + e.getMessage(), e);
+      }
+    }
+  }
+
+  /**
+   * Stops reporting to the sinks.
+   */
+  public synchronized void shutdown()
+  {
+    if (_reporter != null)
+    {
+      _reporter.cancel();
+      _reporter = null;
+    }
+  }
+
+  public static class Report
+  {
+    private final long _time;
+    private final Map<Stage, LatencyHistogram.Snapshot> _snapshots;
+    private final long _outstandingReaderLists;
+
+    private Report(long time, Map<Stage, LatencyHistogram.Snapshot> snapshots, long outstandingReaderLists)
+    {
+      _time = time;
+      _snapshots = snapshots;
+      _outstandingReaderLists = outstandingReaderLists;
+    }
+
+    public long getTime()
+    {
+      return _time;
+    }
+
+    public LatencyHistogram.Snapshot getSnapshot(Stage stage)
+    {
+      return _snapshots.get(stage);
+    }
+
+    public long getOutstandingReaderLists()
+    {
+      return _outstandingReaderLists;
+    }
+
+    @Override
+    public String toString()
+    {
+      StringBuilder buf = new StringBuilder();
+      for (Map.Entry<Stage, LatencyHistogram.Snapshot> entry : _snapshots.entrySet())
+      {
+        buf.append(entry.getKey()).append(": ").append(entry.getValue()).append('\n');
+      }
+      buf.append("outstanding reader lists: ").append(_outstandingReaderLists);
+      return buf.toString();
+    }
+  }
+}
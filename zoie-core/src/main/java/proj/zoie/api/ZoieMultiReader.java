@@ -107,6 +107,36 @@ public class ZoieMultiReader<R extends IndexReader> extends ZoieIndexReader<R>
 		return subReader.getUID(docid-_starts[idx]);
 	}
 	
+	@Override
+	public long getLongValue(String column, int docid, long missing) throws IOException
+	{
+		int idx = readerIndex(docid);
+		return _subZoieReaders.get(idx).getLongValue(column, docid-_starts[idx], missing);
+	}
+	
+	@Override
+	public byte[] getBytesValue(String column, int docid) throws IOException
+	{
+		int idx = readerIndex(docid);
+		return _subZoieReaders.get(idx).getBytesValue(column, docid-_starts[idx]);
+	}
+	
+	/**
+	 * @return the values of the segments put together; better use the ones
+	 *         of the segments, which are cached
+	 */
+	@Override
+	public long[] getLongFieldValues(String field) throws IOException
+	{
+		long[] values = new long[maxDoc()];
+		for (int i = 0; i < _subZoieReaders.size(); ++i)
+		{
+			long[] subValues = _subZoieReaders.get(i).getLongFieldValues(field);
+			System.arraycopy(subValues, 0, values, _starts[i], subValues.length);
+		}
+		return values;
+	}
+	
     @Override
     public long getMinUID()
     {
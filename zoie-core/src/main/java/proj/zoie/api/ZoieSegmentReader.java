@@ -16,13 +16,13 @@ package proj.zoie.api;
  * limitations under the License.
  */
 import it.unimi.dsi.fastutil.ints.IntRBTreeSet;
-import it.unimi.dsi.fastutil.longs.LongIterator;
 import it.unimi.dsi.fastutil.longs.LongSet;
 
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.lucene.analysis.TokenStream;
 import org.apache.lucene.analysis.tokenattributes.PayloadAttribute;
@@ -35,7 +35,9 @@ import org.apache.lucene.index.SegmentReader;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.index.TermDocs;
 import org.apache.lucene.index.TermPositions;
+import org.apache.lucene.search.FieldCache;
 
+import proj.zoie.api.DocIDMapper.DocIDArray;
 import proj.zoie.api.impl.util.ArrayDocIdSet;
 import proj.zoie.api.indexing.AbstractZoieIndexable;
 import proj.zoie.api.indexing.IndexReaderDecorator;
@@ -49,14 +51,35 @@ public class ZoieSegmentReader<R extends IndexReader> extends ZoieIndexReader<R>
     private long[] _uidArray;
     private IntRBTreeSet _delDocIdSet = new IntRBTreeSet();
     private int[] _currentDelDocIds;
+    // loaded columns, shared by the copies
+    private ConcurrentHashMap<String,ZoieDocValues.LongColumn> _longColumns = new ConcurrentHashMap<String,ZoieDocValues.LongColumn>();
+    private ConcurrentHashMap<String,ZoieDocValues.BytesColumn> _bytesColumns = new ConcurrentHashMap<String,ZoieDocValues.BytesColumn>();
+    private ConcurrentHashMap<String,long[]> _longFieldValues = new ConcurrentHashMap<String,long[]>();
+    private volatile FieldValueSource _fieldValueSource = null;
     
     static class UIDTokenStream extends TokenStream {
         private boolean returnToken = false;
 
+        private final byte[] buffer = new byte[8];
         private PayloadAttribute payloadAttr;
         private TermAttribute termAttr;
+        UIDTokenStream() {
+          payloadAttr = (PayloadAttribute)addAttribute(PayloadAttribute.class);
+          payloadAttr.setPayload(new Payload(buffer));
+          termAttr = (TermAttribute)addAttribute(TermAttribute.class);
+          termAttr.setTermBuffer(termVal);
+        }
+
         UIDTokenStream(long uid) {
-          byte[] buffer = new byte[8];
+          this();
+          setUID(uid);
+        }
+
+        /**
+         * Makes the stream return the single UID token again, with the given
+         * UID as payload. The payload bytes are copied by the indexer.
+         */
+        void setUID(long uid) {
           buffer[0] = (byte) (uid);
           buffer[1] = (byte) (uid >> 8);
           buffer[2] = (byte) (uid >> 16);
@@ -65,10 +88,6 @@ public class ZoieSegmentReader<R extends IndexReader> extends ZoieIndexReader<R>
           buffer[5] = (byte) (uid >> 40);
           buffer[6] = (byte) (uid >> 48);
           buffer[7] = (byte) (uid >> 56);
-          payloadAttr = (PayloadAttribute)addAttribute(PayloadAttribute.class);
-          payloadAttr.setPayload(new Payload(buffer));
-          termAttr = (TermAttribute)addAttribute(TermAttribute.class);
-          termAttr.setTermBuffer(termVal);
           returnToken = true;
         }
 
@@ -83,12 +102,43 @@ public class ZoieSegmentReader<R extends IndexReader> extends ZoieIndexReader<R>
 		}  
     }
 
+    /**
+     * UID field of the thread, see {@link #getReusableUIDField(long)}
+     */
+    private static final class ReusableUIDField {
+        final UIDTokenStream stream = new UIDTokenStream();
+        final Field field = new Field(ZoieSegmentReader.UID_TERM.field(), stream);
+        ReusableUIDField() {
+          field.setOmitNorms(true);
+        }
+    }
+
+    private static final ThreadLocal<ReusableUIDField> reusableUIDField = new ThreadLocal<ReusableUIDField>() {
+        @Override
+        protected ReusableUIDField initialValue() {
+          return new ReusableUIDField();
+        }
+    };
+
 	public static void fillDocumentID(Document doc,long id){
 	  Field uidField = new Field(ZoieSegmentReader.UID_TERM.field(), new UIDTokenStream(id));
 	  uidField.setOmitNorms(true);
       doc.add(uidField); 
 	}
 
+	/**
+	 * Allocation-free alternative to {@link #fillDocumentID(Document, long)} for
+	 * a doc added to the index right away: the field is the calling thread's
+	 * own and is reset by the next call on the thread, so it must be added to
+	 * the doc just before the doc is indexed and removed right after.
+	 * @return the UID field of the calling thread, set to the UID
+	 */
+	public static Field getReusableUIDField(long id){
+	  ReusableUIDField uidField = reusableUIDField.get();
+	  uidField.stream.setUID(id);
+	  return uidField.field;
+	}
+
 	public ZoieSegmentReader(IndexReader in, IndexReaderDecorator<R> decorator)
 			throws IOException {
 		super(in,decorator);
@@ -107,6 +157,10 @@ public class ZoieSegmentReader<R extends IndexReader> extends ZoieIndexReader<R>
 		_noDedup = copyFrom._noDedup;
 		_docIDMapper = copyFrom._docIDMapper;
 		_delDocIdSet = copyFrom._delDocIdSet;
+		_longColumns = copyFrom._longColumns;
+		_bytesColumns = copyFrom._bytesColumns;
+		_longFieldValues = copyFrom._longFieldValues;
+		_fieldValueSource = copyFrom._fieldValueSource;
 		
 		if (copyFrom._decorator == null){
 			_decoratedReader = null;
@@ -132,6 +186,10 @@ public class ZoieSegmentReader<R extends IndexReader> extends ZoieIndexReader<R>
     _docIDMapper = copyFrom._docIDMapper;
     _delDocIdSet = copyFrom._delDocIdSet;
     _currentDelDocIds = copyFrom._currentDelDocIds;
+    _longColumns = copyFrom._longColumns;
+    _bytesColumns = copyFrom._bytesColumns;
+    _longFieldValues = copyFrom._longFieldValues;
+    _fieldValueSource = copyFrom._fieldValueSource;
 
     if (copyFrom._decorator == null)
     {
@@ -146,30 +204,41 @@ public class ZoieSegmentReader<R extends IndexReader> extends ZoieIndexReader<R>
 	public void markDeletes(LongSet delDocs, LongSet deletedUIDs)
 	{
       DocIDMapper idMapper = getDocIDMaper();
-      LongIterator iter = delDocs.iterator();
       IntRBTreeSet delDocIdSet = _delDocIdSet;
+      long[] uids = delDocs.toLongArray();
+      DocIDArray docidArray = DocIDArray.getDocIDArray(idMapper, uids);
+      int[] docids = docidArray.docids;
 
-      while(iter.hasNext())
+      for (int i = 0; i < uids.length; ++i)
       {
-        long uid = iter.nextLong();
-        if (ZoieIndexReader.DELETED_UID != uid)
+        if (docids[i] != DocIDMapper.NOT_FOUND && ZoieIndexReader.DELETED_UID != uids[i])
         {
-          int docid = idMapper.getDocID(uid);
-          if(docid != DocIDMapper.NOT_FOUND)
-          {
-            delDocIdSet.add(docid);
-            deletedUIDs.add(uid);
-          }
+          delDocIdSet.add(docids[i]);
+          deletedUIDs.add(uids[i]);
         }
-      }	  
+      }
+      docidArray.close();
 	}
 	
 	@Override
 	public void commitDeletes()
 	{
+	  // docs are only ever added to the marked set, same size means no change
+	  int[] current = _currentDelDocIds;
+	  if (current != null && current.length == _delDocIdSet.size()) return;
 	  _currentDelDocIds = _delDocIdSet.toIntArray();
 	}
 	
+	/**
+	 * @return the docs marked deleted by fresher indexes as of the last
+	 *         {@link #commitDeletes()}, whether {@link #setDelDocIds()} applied
+	 *         them to this reader or not
+	 */
+	public int[] getMarkedDelDocIds()
+	{
+	  return _currentDelDocIds;
+	}
+	
 	public void setDelDocIds()
 	{
 	  _delDocIds = _currentDelDocIds;
@@ -237,6 +306,57 @@ public class ZoieSegmentReader<R extends IndexReader> extends ZoieIndexReader<R>
 		return _uidArray[docid];
 	}
 
+	@Override
+	public long getLongValue(String column, int docid, long missing) throws IOException
+	{
+		ZoieDocValues.LongColumn col = _longColumns.get(column);
+		if (col == null){
+			// concurrent first calls may both load it, the first one loaded is kept
+			_longColumns.putIfAbsent(column, ZoieDocValues.loadLongColumn(in, column));
+			col = _longColumns.get(column);
+		}
+		return col.get(docid, missing);
+	}
+	
+	@Override
+	public byte[] getBytesValue(String column, int docid) throws IOException
+	{
+		ZoieDocValues.BytesColumn col = _bytesColumns.get(column);
+		if (col == null){
+			_bytesColumns.putIfAbsent(column, ZoieDocValues.loadBytesColumn(in, column));
+			col = _bytesColumns.get(column);
+		}
+		return col.get(docid);
+	}
+	
+	@Override
+	public long[] getLongFieldValues(String field) throws IOException
+	{
+		long[] values = _longFieldValues.get(field);
+		if (values == null){
+			FieldValueSource source = _fieldValueSource;
+			if (source != null && source.hasField(field)){
+				values = source.getLongValues(field, _uidArray);
+			}
+			if (values == null){
+				values = FieldCache.DEFAULT.getLongs(in, field);
+			}
+			_longFieldValues.putIfAbsent(field, values);
+			values = _longFieldValues.get(field);
+		}
+		return values;
+	}
+	
+	/**
+	 * @param source where to take the field values of the docs from instead of
+	 *          the terms of the segment, which must have all the UIDs of the
+	 *          segment
+	 */
+	public void setFieldValueSource(FieldValueSource source)
+	{
+		_fieldValueSource = source;
+	}
+	
 	public long[] getUIDArray()
 	{
 		return _uidArray;
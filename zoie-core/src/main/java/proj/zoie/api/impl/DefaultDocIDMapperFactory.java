@@ -30,6 +30,59 @@ public class DefaultDocIDMapperFactory implements DocIDMapperFactory {
 		
 	}
 	
+	/**
+	 * Maps the UIDs one segment at a time, the newest first, so that the
+	 * lookups of a batch stay within the arrays of one segment mapper; each
+	 * segment only looks up the UIDs not found in the newer ones.
+	 */
+	static DocIDArray getDocIDArray(DocIDMapper[] mappers, int[] starts, long[] uids)
+	{
+	  DocIDArray ret = DocIDArray.newInstance(uids.length);
+	  int[] docids = ret.docids;
+	  int[] pending = new int[uids.length]; // indexes of the UIDs not found yet
+	  for (int j = 0; j < pending.length; j++) pending[j] = j;
+	  int numPending = pending.length;
+	  for (int i = mappers.length - 1; i >= 0 && numPending > 0; --i)
+	  {
+	    DocIDMapper mapper = mappers[i];
+	    int start = starts[i];
+	    int n = 0;
+	    for (int k = 0; k < numPending; k++)
+	    {
+	      int j = pending[k];
+	      int docid = mapper.quickGetDocID(uids[j]);
+	      if (docid != DocIDMapper.NOT_FOUND) docids[j] = docid + start;
+	      else pending[n++] = j;
+	    }
+	    numPending = n;
+	  }
+	  return ret;
+	}
+
+	static DocIDArray getDocIDArray(DocIDMapper[] mappers, int[] starts, int[] uids)
+	{
+	  DocIDArray ret = DocIDArray.newInstance(uids.length);
+	  int[] docids = ret.docids;
+	  int[] pending = new int[uids.length]; // indexes of the UIDs not found yet
+	  for (int j = 0; j < pending.length; j++) pending[j] = j;
+	  int numPending = pending.length;
+	  for (int i = mappers.length - 1; i >= 0 && numPending > 0; --i)
+	  {
+	    DocIDMapper mapper = mappers[i];
+	    int start = starts[i];
+	    int n = 0;
+	    for (int k = 0; k < numPending; k++)
+	    {
+	      int j = pending[k];
+	      int docid = mapper.quickGetDocID(uids[j]);
+	      if (docid != DocIDMapper.NOT_FOUND) docids[j] = docid + start;
+	      else pending[n++] = j;
+	    }
+	    numPending = n;
+	  }
+	  return ret;
+	}
+	
 	public static final class DefaultDocIDMapper implements DocIDMapper<DocIDArray>
 	{
 	  private final int bound;
@@ -54,36 +107,12 @@ public class DefaultDocIDMapperFactory implements DocIDMapperFactory {
 
     public DocIDArray getDocIDArray(long[] uids)
     {
-      DocIDArray ret = DocIDArray.newInstance(uids.length);
-      int [] docids = ret.docids;
-      for(int j=0; j< uids.length; j++)
-      {
-        for (int i = bound; i >= 0; --i){
-          int docid = mappers[i].quickGetDocID(uids[j]);
-          if (docid!=DocIDMapper.NOT_FOUND) {
-            docids[j] = docid+starts[i];
-            break;
-          }
-        }
-      }
-      return ret;
+      return DefaultDocIDMapperFactory.getDocIDArray(mappers, starts, uids);
     }
 
     public DocIDArray getDocIDArray(int[] uids)
     {
-      DocIDArray ret = DocIDArray.newInstance(uids.length);
-      int [] docids = ret.docids;
-      for(int j=0; j< uids.length; j++)
-      {
-        for (int i = bound; i >= 0; --i){
-          int docid = mappers[i].quickGetDocID(uids[j]);
-          if (docid!=DocIDMapper.NOT_FOUND) {
-            docids[j] = docid+starts[i];
-            break;
-          }
-        }
-      }
-      return ret;
+      return DefaultDocIDMapperFactory.getDocIDArray(mappers, starts, uids);
     }
 
 	  public int quickGetDocID(long uid)
@@ -182,6 +182,8 @@ public class InRangeDocIDMapperFactory implements DocIDMapperFactory
       int[] docids = ret.docids;
       for (int j = 0; j < uids.length; j++)
       {
+        if (uids[j] < _partiStart || uids[j] >= maxbdd)
+          continue;
         int mapped = uidArray[(int) (uids[j] - _partiStart)];
         if (mapped != DocIDMapper.NOT_FOUND)
         {
@@ -199,6 +201,8 @@ public class InRangeDocIDMapperFactory implements DocIDMapperFactory
       int[] docids = ret.docids;
       for (int j = 0; j < uids.length; j++)
       {
+        if (uids[j] < _partiStart || uids[j] >= maxbdd)
+          continue;
         int mapped = uidArray[(int) (uids[j] - _partiStart)];
         if (mapped != DocIDMapper.NOT_FOUND)
         {
@@ -286,10 +290,10 @@ public class InRangeDocIDMapperFactory implements DocIDMapperFactory
       int[] docids = ret.docids;
       for (int j = 0; j < uids.length; j++)
       {
-        int idx = (int) (uids[j] - _partiStart);
-        if (idx < uidArray.length)
+        long idx = uids[j] - _partiStart;
+        if (idx >= 0 && idx < uidArray.length)
         {
-          docids[j] = uidArray[idx];
+          docids[j] = uidArray[(int) idx];
         }
       }
       return ret;
@@ -301,10 +305,10 @@ public class InRangeDocIDMapperFactory implements DocIDMapperFactory
       int[] docids = ret.docids;
       for (int j = 0; j < uids.length; j++)
       {
-        int idx = (int) (uids[j] - _partiStart);
-        if (idx < uidArray.length)
+        long idx = uids[j] - _partiStart;
+        if (idx >= 0 && idx < uidArray.length)
         {
-          docids[j] = uidArray[idx];
+          docids[j] = uidArray[(int) idx];
         }
       }
       return ret;
@@ -385,40 +389,12 @@ public class InRangeDocIDMapperFactory implements DocIDMapperFactory
 
     public DocIDArray getDocIDArray(long[] uids)
     {
-      DocIDArray ret = DocIDArray.newInstance(uids.length);
-      int[] docids = ret.docids;
-      for (int j = 0; j < uids.length; j++)
-      {
-        for (int i = bound; i >= 0; --i)
-        {
-          int docid = mappers[i].quickGetDocID(uids[j]);
-          if (docid != DocIDMapper.NOT_FOUND)
-          {
-            docids[j] = docid + starts[i];
-            break;
-          }
-        }
-      }
-      return ret;
+      return DefaultDocIDMapperFactory.getDocIDArray(mappers, starts, uids);
     }
 
     public DocIDArray getDocIDArray(int[] uids)
     {
-      DocIDArray ret = DocIDArray.newInstance(uids.length);
-      int[] docids = ret.docids;
-      for (int j = 0; j < uids.length; j++)
-      {
-        for (int i = bound; i >= 0; --i)
-        {
-          int docid = mappers[i].quickGetDocID(uids[j]);
-          if (docid != DocIDMapper.NOT_FOUND)
-          {
-            docids[j] = docid + starts[i];
-            break;
-          }
-        }
-      }
-      return ret;
+      return DefaultDocIDMapperFactory.getDocIDArray(mappers, starts, uids);
     }
 
     public int quickGetDocID(long uid)
@@ -0,0 +1,503 @@
+package proj.zoie.api.impl;
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+import proj.zoie.api.DocIDMapper;
+import proj.zoie.api.DocIDMapperFactory;
+import proj.zoie.api.ZoieIndexReader;
+import proj.zoie.api.ZoieMultiReader;
+import proj.zoie.api.ZoieSegmentReader;
+import proj.zoie.api.DocIDMapper.DocIDArray;
+
+/**
+ * {@link InRangeDocIDMapperFactory} for UIDs spread over several dense ranges,
+ * e.g. <code>(shard &lt;&lt; 40) | localId</code>. The UIDs falling in a range
+ * are mapped by direct arrays of {@link #PAGE_SIZE} docids, allocated only for
+ * the pages holding UIDs, the others by a hash map.
+ * <br>
+ * The ranges are either given or detected for each reader from the min and
+ * max UIDs of its segments: the segments at least minDensity full are merged
+ * into ranges while the merged ranges stay that full, the UIDs of the sparser
+ * segments go to the ranges of the others or to the hash map.
+ * <br>
+ * Like {@link InRangeDocIDMapperFactory}, readers of at most
+ * ramCountThreshold docs use a {@link DocIDMapperImpl} per segment.
+ */
+public class MultiRangeDocIDMapperFactory implements DocIDMapperFactory
+{
+  private static final Logger log = Logger.getLogger(MultiRangeDocIDMapperFactory.class);
+  public static final int PAGE_BITS = 12;
+  public static final int PAGE_SIZE = 1 << PAGE_BITS;
+  private static final int PAGE_MASK = PAGE_SIZE - 1;
+  private static final int DEFAULT_RAM_COUNT_THRESHOLD = 100000;
+  public static final double DEFAULT_MIN_DENSITY = 0.25d;
+
+  /**
+   * the given ranges, null if detected
+   */
+  private final long[] _rangeStarts;
+  private final int[] _rangeCounts;
+  private final double _minDensity;
+  private final int _ramCountThreshold;
+
+  public MultiRangeDocIDMapperFactory()
+  {
+    this(DEFAULT_MIN_DENSITY, DEFAULT_RAM_COUNT_THRESHOLD);
+  }
+
+  /**
+   * @param minDensity the min ratio of UIDs to range size of the detected ranges
+   * @param ramCountThreshold the max number of docs of the readers mapped
+   *          without ranges
+   */
+  public MultiRangeDocIDMapperFactory(double minDensity, int ramCountThreshold)
+  {
+    if (minDensity <= 0.0d || minDensity > 1.0d)
+    {
+      throw new IllegalArgumentException("invalid density: " + minDensity);
+    }
+    _rangeStarts = null;
+    _rangeCounts = null;
+    _minDensity = minDensity;
+    _ramCountThreshold = ramCountThreshold;
+  }
+
+  /**
+   * @param rangeStarts the start UID of each range
+   * @param rangeCounts the number of UIDs of each range
+   * @param ramCountThreshold the max number of docs of the readers mapped
+   *          without ranges
+   */
+  public MultiRangeDocIDMapperFactory(long[] rangeStarts, int[] rangeCounts, int ramCountThreshold)
+  {
+    if (rangeStarts.length != rangeCounts.length)
+    {
+      throw new IllegalArgumentException("got " + rangeStarts.length + " range starts for " + rangeCounts.length + " counts");
+    }
+    Range[] ranges = new Range[rangeStarts.length];
+    for (int i = 0; i < ranges.length; ++i)
+    {
+      if (rangeStarts[i] < 0 || rangeCounts[i] < 0)
+      {
+        throw new IllegalArgumentException("invalid range: [" + rangeStarts[i] + "," + rangeCounts[i] + "]");
+      }
+      ranges[i] = new Range(rangeStarts[i], rangeStarts[i] + rangeCounts[i] - 1, rangeCounts[i]);
+    }
+    Arrays.sort(ranges, RANGE_COMPARATOR);
+    _rangeStarts = new long[ranges.length];
+    _rangeCounts = new int[ranges.length];
+    for (int i = 0; i < ranges.length; ++i)
+    {
+      if (i > 0 && ranges[i].min <= ranges[i - 1].max)
+      {
+        throw new IllegalArgumentException("overlapping ranges starting at " + ranges[i - 1].min + " and " + ranges[i].min);
+      }
+      _rangeStarts[i] = ranges[i].min;
+      _rangeCounts[i] = (int) ranges[i].count;
+    }
+    _minDensity = DEFAULT_MIN_DENSITY;
+    _ramCountThreshold = ramCountThreshold;
+  }
+
+  public DocIDMapper<DocIDArray> getDocIDMapper(ZoieMultiReader<?> reader)
+  {
+    final ZoieSegmentReader<?>[] subreaders = (ZoieSegmentReader<?>[]) (reader.getSequentialSubReaders());
+    final int[] starts = reader.getStarts();
+
+    if (reader.maxDoc() <= _ramCountThreshold)
+    { // small ram index
+      for (int i = 0; i < subreaders.length; ++i)
+      {
+        ZoieSegmentReader<?> subReader = subreaders[i];
+        DocIDMapper mapper = subReader.getDocIDMaper();
+        if (mapper == null)
+        {
+          mapper = new DocIDMapperImpl(subReader.getUIDArray());
+        }
+        subReader.setDocIDMapper(mapper);
+      }
+      return new InRangeDocIDMapperFactory.DocIDMapperSmall(subreaders, starts);
+    }
+
+    PagedDocIDs docids = new PagedDocIDs(_rangeStarts == null ? detectRanges(subreaders) : givenRanges());
+    for (int i = 0; i < subreaders.length; ++i)
+    {
+      long[] uidArray = subreaders[i].getUIDArray();
+      int start = starts[i];
+      for (int k = 0; k < uidArray.length; ++k)
+      {
+        long uid = uidArray[k];
+        if (uid != ZoieIndexReader.DELETED_UID)
+        {
+          docids.put(uid, k + start);
+        }
+      }
+    }
+    if (log.isDebugEnabled())
+    {
+      log.debug(docids);
+    }
+    for (int i = 0; i < subreaders.length; ++i)
+    {
+      subreaders[i].setDocIDMapper(new DocIDMapperSub(subreaders[i], docids, starts[i]));
+    }
+    return new DocIDMapperGlobal(docids, subreaders, starts);
+  }
+
+  private Range[] givenRanges()
+  {
+    Range[] ranges = new Range[_rangeStarts.length];
+    for (int i = 0; i < ranges.length; ++i)
+    {
+      ranges[i] = new Range(_rangeStarts[i], _rangeStarts[i] + _rangeCounts[i] - 1, _rangeCounts[i]);
+    }
+    return ranges;
+  }
+
+  private Range[] detectRanges(ZoieSegmentReader<?>[] subreaders)
+  {
+    List<Range> segments = new ArrayList<Range>(subreaders.length);
+    for (ZoieSegmentReader<?> subreader : subreaders)
+    {
+      long min = Long.MAX_VALUE;
+      long max = Long.MIN_VALUE;
+      long count = 0;
+      for (long uid : subreader.getUIDArray())
+      {
+        if (uid == ZoieIndexReader.DELETED_UID) continue;
+        if (uid < min) min = uid;
+        if (uid > max) max = uid;
+        count++;
+      }
+      if (count > 0)
+      {
+        Range segment = new Range(min, max, count);
+        if (segment.isDense(_minDensity))
+        {
+          segments.add(segment);
+        }
+      }
+    }
+    Collections.sort(segments, RANGE_COMPARATOR);
+
+    List<Range> ranges = new ArrayList<Range>();
+    Range current = null;
+    for (Range segment : segments)
+    {
+      if (current != null)
+      {
+        Range merged = new Range(current.min, Math.max(current.max, segment.max), current.count + segment.count);
+        if (segment.min <= current.max || merged.isDense(_minDensity))
+        {
+          current = merged;
+          continue;
+        }
+        ranges.add(current);
+      }
+      current = segment;
+    }
+    if (current != null)
+    {
+      ranges.add(current);
+    }
+    return ranges.toArray(new Range[ranges.size()]);
+  }
+
+  private static final class Range
+  {
+    final long min;
+    final long max; // inclusive
+    final long count;
+
+    Range(long min, long max, long count)
+    {
+      this.min = min;
+      this.max = max;
+      this.count = count;
+    }
+
+    boolean isDense(double minDensity)
+    {
+      long size = max - min + 1;
+      // the pages of a range are indexed by an int
+      return size > 0 && (size >>> PAGE_BITS) < Integer.MAX_VALUE && count >= minDensity * size;
+    }
+  }
+
+  private static final Comparator<Range> RANGE_COMPARATOR = new Comparator<Range>()
+  {
+    public int compare(Range r1, Range r2)
+    {
+      return r1.min < r2.min ? -1 : (r1.min == r2.min ? 0 : 1);
+    }
+  };
+
+  /**
+   * The global docids of the UIDs of a reader.
+   */
+  public static final class PagedDocIDs
+  {
+    private final long[] _mins;
+    private final long[] _maxs;
+    private final int[][][] _pages;
+    private final Long2IntOpenHashMap _outliers;
+    private int _numPages = 0;
+
+    PagedDocIDs(Range[] ranges)
+    {
+      _mins = new long[ranges.length];
+      _maxs = new long[ranges.length];
+      _pages = new int[ranges.length][][];
+      for (int i = 0; i < ranges.length; ++i)
+      {
+        _mins[i] = ranges[i].min;
+        _maxs[i] = ranges[i].max;
+        _pages[i] = new int[(int) ((ranges[i].max - ranges[i].min) >>> PAGE_BITS) + 1][];
+      }
+      _outliers = new Long2IntOpenHashMap();
+      _outliers.defaultReturnValue(DocIDMapper.NOT_FOUND);
+    }
+
+    /**
+     * @return the index of the range of the UID, -1 if none
+     */
+    private int rangeIndex(long uid)
+    {
+      int lo = 0;
+      int hi = _mins.length - 1;
+      while (lo <= hi)
+      {
+        int mid = (lo + hi) >>> 1;
+        if (uid < _mins[mid]) hi = mid - 1;
+        else if (uid > _maxs[mid]) lo = mid + 1;
+        else return mid;
+      }
+      return -1;
+    }
+
+    void put(long uid, int docid)
+    {
+      int r = rangeIndex(uid);
+      if (r < 0)
+      {
+        _outliers.put(uid, docid);
+        return;
+      }
+      long offset = uid - _mins[r];
+      int pageIdx = (int) (offset >>> PAGE_BITS);
+      int[] page = _pages[r][pageIdx];
+      if (page == null)
+      {
+        page = new int[PAGE_SIZE];
+        Arrays.fill(page, DocIDMapper.NOT_FOUND);
+        _pages[r][pageIdx] = page;
+        _numPages++;
+      }
+      page[(int) offset & PAGE_MASK] = docid;
+    }
+
+    /**
+     * @return the global docid of the UID, {@link DocIDMapper#NOT_FOUND} if
+     *         none
+     */
+    public int get(long uid)
+    {
+      int r = rangeIndex(uid);
+      if (r < 0)
+      {
+        return _outliers.get(uid);
+      }
+      long offset = uid - _mins[r];
+      int[] page = _pages[r][(int) (offset >>> PAGE_BITS)];
+      return page == null ? DocIDMapper.NOT_FOUND : page[(int) offset & PAGE_MASK];
+    }
+
+    public int getNumRanges()
+    {
+      return _mins.length;
+    }
+
+    public int getNumPages()
+    {
+      return _numPages;
+    }
+
+    public int getNumOutliers()
+    {
+      return _outliers.size();
+    }
+
+    @Override
+    public String toString()
+    {
+      return "ranges: " + _mins.length + ", pages: " + _numPages + ", outliers: " + _outliers.size();
+    }
+  }
+
+  public static final class DocIDMapperSub implements DocIDMapper<DocIDArray>
+  {
+    private final ZoieSegmentReader<?> _subReader;
+    private final PagedDocIDs _docids;
+    /**
+     * the global DOCID of the first DOC in this subreader
+     */
+    private final int _start;
+    private final int _end;
+
+    DocIDMapperSub(ZoieSegmentReader<?> subReader, PagedDocIDs docids, int start)
+    {
+      _subReader = subReader;
+      _docids = docids;
+      _start = start;
+      _end = start + subReader.maxDoc();
+    }
+
+    public int getDocID(long uid)
+    {
+      int mapped = _docids.get(uid);
+      return (mapped >= _start && mapped < _end) ? mapped - _start : DocIDMapper.NOT_FOUND;
+    }
+
+    public int quickGetDocID(long uid)
+    {
+      return getDocID(uid);
+    }
+
+    public DocIDArray getDocIDArray(long[] uids)
+    {
+      DocIDArray ret = DocIDArray.newInstance(uids.length);
+      int[] docids = ret.docids;
+      for (int j = 0; j < uids.length; j++)
+      {
+        docids[j] = getDocID(uids[j]);
+      }
+      return ret;
+    }
+
+    public DocIDArray getDocIDArray(int[] uids)
+    {
+      DocIDArray ret = DocIDArray.newInstance(uids.length);
+      int[] docids = ret.docids;
+      for (int j = 0; j < uids.length; j++)
+      {
+        docids[j] = getDocID(uids[j]);
+      }
+      return ret;
+    }
+
+    public int getReaderIndex(long uid)
+    {
+      return 0;
+    }
+
+    public int[] getStarts()
+    {
+      return new int[]{0};
+    }
+
+    public ZoieIndexReader<?>[] getSubReaders()
+    {
+      return new ZoieIndexReader<?>[]{_subReader};
+    }
+  }
+
+  public static final class DocIDMapperGlobal implements DocIDMapper<DocIDArray>
+  {
+    private final PagedDocIDs _docids;
+    private final ZoieSegmentReader<?>[] _subreaders;
+    private final int[] _starts;
+
+    DocIDMapperGlobal(PagedDocIDs docids, ZoieSegmentReader<?>[] subreaders, int[] starts)
+    {
+      _docids = docids;
+      _subreaders = subreaders;
+      _starts = starts;
+    }
+
+    public int getDocID(long uid)
+    {
+      return _docids.get(uid);
+    }
+
+    public int quickGetDocID(long uid)
+    {
+      return _docids.get(uid);
+    }
+
+    public DocIDArray getDocIDArray(long[] uids)
+    {
+      DocIDArray ret = DocIDArray.newInstance(uids.length);
+      int[] docids = ret.docids;
+      for (int j = 0; j < uids.length; j++)
+      {
+        docids[j] = _docids.get(uids[j]);
+      }
+      return ret;
+    }
+
+    public DocIDArray getDocIDArray(int[] uids)
+    {
+      DocIDArray ret = DocIDArray.newInstance(uids.length);
+      int[] docids = ret.docids;
+      for (int j = 0; j < uids.length; j++)
+      {
+        docids[j] = _docids.get(uids[j]);
+      }
+      return ret;
+    }
+
+    public int getReaderIndex(long uid)
+    {
+      int docid = _docids.get(uid);
+      if (docid == DocIDMapper.NOT_FOUND) return -1;
+      // the last sub-reader starting at or before the docid
+      int lo = 0;
+      int hi = _subreaders.length - 1;
+      while (lo < hi)
+      {
+        int mid = (lo + hi + 1) >>> 1;
+        if (_starts[mid] <= docid) lo = mid;
+        else hi = mid - 1;
+      }
+      return lo;
+    }
+
+    public int[] getStarts()
+    {
+      return _starts;
+    }
+
+    public ZoieIndexReader<?>[] getSubReaders()
+    {
+      return _subreaders;
+    }
+
+    public PagedDocIDs getPagedDocIDs()
+    {
+      return _docids;
+    }
+  }
+}
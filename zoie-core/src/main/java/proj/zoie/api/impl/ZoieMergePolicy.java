@@ -18,6 +18,7 @@ package proj.zoie.api.impl;
  */
 import java.io.IOException;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.log4j.Logger;
 import org.apache.lucene.index.CorruptIndexException;
@@ -39,8 +40,13 @@ public class ZoieMergePolicy extends LogByteSizeMergePolicy
   public static final int DEFAULT_NUM_LARGE_SEGMENTS = 6;
   public static final int DEFAULT_NUM_SMALL_SEGMENTS = 7;
   public static final int DEFAULT_MERGE_FACTOR = 6;
+  public static final float DEFAULT_MIN_MERGE_DELETE_RATIO = 0.1f;
 
   private boolean _partialExpunge = false;
+  private boolean _deleteAwareMerge = false;
+  private float _minMergeDeleteRatio = DEFAULT_MIN_MERGE_DELETE_RATIO;
+  private MergeStats _mergeStats = null;
+  private int _optimizeTargetSegments = 0;
   private int _numLargeSegments = DEFAULT_NUM_LARGE_SEGMENTS;
   private int _maxSmallSegments = DEFAULT_NUM_SMALL_SEGMENTS; // default merge factor plus 1.
   private int _maxSegments = _numLargeSegments + _maxSmallSegments;
@@ -60,9 +66,25 @@ public class ZoieMergePolicy extends LogByteSizeMergePolicy
       setPartialExpunge(params._doPartialExpunge);
       setUseCompoundFile(params._useCompoundFile);
       setMaxMergeDocs(params._maxMergeDocs);
+      setDeleteAwareMerge(params._deleteAwareMerge);
+      setMinMergeDeleteRatio(params._minMergeDeleteRatio);
+      setOptimizeTargetSegments(params._optimizeTargetSegments);
     }
   }
 
+  /**
+   * @param stats the collector the selected merges are reported to. Optional.
+   */
+  public void setMergeStats(MergeStats stats)
+  {
+    _mergeStats = stats;
+  }
+
+  public MergeStats getMergeStats()
+  {
+    return _mergeStats;
+  }
+
   protected long size(SegmentInfo info) throws IOException
   {
     long byteSize = info.sizeInBytes();
@@ -80,6 +102,51 @@ public class ZoieMergePolicy extends LogByteSizeMergePolicy
     return _partialExpunge;
   }
 
+  /**
+   * In delete-aware mode, segments carrying deletes are rewritten when doing so
+   * reclaims the most dead bytes per byte written, see {@link #findMerges(SegmentInfos)}.
+   */
+  public void setDeleteAwareMerge(boolean deleteAwareMerge)
+  {
+    _deleteAwareMerge = deleteAwareMerge;
+  }
+
+  public boolean isDeleteAwareMerge()
+  {
+    return _deleteAwareMerge;
+  }
+
+  /**
+   * @param minMergeDeleteRatio the minimum ratio of deleted docs a delete-aware
+   *          merge has to reclaim to be worth the rewrite
+   */
+  public void setMinMergeDeleteRatio(float minMergeDeleteRatio)
+  {
+    _minMergeDeleteRatio = minMergeDeleteRatio;
+  }
+
+  public float getMinMergeDeleteRatio()
+  {
+    return _minMergeDeleteRatio;
+  }
+
+  /**
+   * @param optimizeTargetSegments when positive, {@link #findMerges(SegmentInfos)}
+   *          steps an index with more segments down to this number. A step
+   *          removes at most mergeFactor segments with a balanced merge of
+   *          the newest twice as many, so that it rewrites a bounded part of
+   *          the index. 0 to disable.
+   */
+  public void setOptimizeTargetSegments(int optimizeTargetSegments)
+  {
+    _optimizeTargetSegments = optimizeTargetSegments;
+  }
+
+  public int getOptimizeTargetSegments()
+  {
+    return _optimizeTargetSegments;
+  }
+
   public void setNumLargeSegments(int numLargeSegments)
   {
     if (numLargeSegments < 2)
@@ -198,7 +265,7 @@ public class ZoieMergePolicy extends LogByteSizeMergePolicy
           if (last > 1 || !isOptimized(writer, infos.info(0)))
           {
             spec = new MergeSpecification();
-            spec.add(new OneMerge(infos.range(0, last), useCompoundFile));
+            spec.add(newMerge(infos, 0, last, "optimize"));
           }
         }
         else if (last > maxNumSegments)
@@ -217,7 +284,6 @@ public class ZoieMergePolicy extends LogByteSizeMergePolicy
     if (infoLen <= maxNumSegments) return null;
 
     MergeSpecification spec = new MergeSpecification();
-    boolean useCompoundFile = getUseCompoundFile();
 
     // use Viterbi algorithm to find the best segmentation.
     // we will try to minimize the size variance of resulting segments.
@@ -258,35 +324,34 @@ public class ZoieMergePolicy extends LogByteSizeMergePolicy
     int mergeEnd = infoLen;
     int prev = maxMergeSegments - 1;
     int expungeCandidate = -1;
-    int maxDelCount = 0;
+    double maxExpungeScore = 0.0d;
     for(int i = maxNumSegments - 1; i >= 0; i--)
     {
       prev = backLink[i][prev];
       int mergeStart = i + prev;
       if((mergeEnd - mergeStart) > 1)
       {
-        spec.add(new OneMerge(infos.range(mergeStart, mergeEnd), useCompoundFile));
+        spec.add(newMerge(infos, mergeStart, mergeEnd, "balance"));
       }
       else
       {
-        if(partialExpunge)
+        if(partialExpunge || _deleteAwareMerge)
         {
-          SegmentInfo info = infos.info(mergeStart);
-          int delCount = info.getDelCount();
-          if(delCount > maxDelCount)
+          double score = expungeScore(infos.info(mergeStart));
+          if(score > maxExpungeScore)
           {
             expungeCandidate = mergeStart;
-            maxDelCount = delCount;
+            maxExpungeScore = score;
           }
         }
       }
       mergeEnd = mergeStart;
     }
 
-    if(partialExpunge && maxDelCount > 0)
+    if(maxExpungeScore > 0.0d)
     {
       // expunge deletes
-      spec.add(new OneMerge(infos.range(expungeCandidate, expungeCandidate + 1), useCompoundFile));
+      spec.add(newMerge(infos, expungeCandidate, expungeCandidate + 1, (_deleteAwareMerge ? "reclaim" : "expunge")));
     }
 
     return spec;
@@ -343,6 +408,7 @@ public class ZoieMergePolicy extends LogByteSizeMergePolicy
     {
       SegmentInfos smallSegments = infos.range(numLargeSegs, numSegs);
       spec = super.findMergesToExpungeDeletes(smallSegments);
+      recordLogMerges(spec);
     }
 
     if(spec == null) spec = new MergeSpecification();
@@ -351,7 +417,7 @@ public class ZoieMergePolicy extends LogByteSizeMergePolicy
       SegmentInfo info = infos.info(i);
       if(info.hasDeletions())
       {
-        spec.add(new OneMerge(infos.range(i, i + 1), getUseCompoundFile()));        
+        spec.add(newMerge(infos, i, i + 1, "expungeDeletes"));
       }
     }
     return spec;
@@ -364,6 +430,14 @@ public class ZoieMergePolicy extends LogByteSizeMergePolicy
    *  {@link LogByteSizeMergePolicy} to small segments.
    *  Small segments are merged and promoted to a large segment
    *  when the total size reaches the average size of large segments.
+   *  <br>
+   *  In delete-aware mode ({@link #setDeleteAwareMerge(boolean)}) it also
+   *  picks the rewrite that reclaims the most deleted bytes per byte written:
+   *  a single large segment, or a run of at most mergeFactor small segments
+   *  when the small segments need no other merge. A candidate has to
+   *  reclaim at least {@link #getMinMergeDeleteRatio()} of its size.
+   *  This holds as well while there are no more segments than
+   *  {@link #setNumLargeSegments}.
    */
   @Override
   public MergeSpecification findMerges(SegmentInfos infos) throws IOException
@@ -371,7 +445,26 @@ public class ZoieMergePolicy extends LogByteSizeMergePolicy
     final int numSegs = infos.size();
     final int numLargeSegs = _numLargeSegments;
 
-    if(numSegs <= numLargeSegs) return null;
+    if(_optimizeTargetSegments > 0 && numSegs > _optimizeTargetSegments)
+    {
+      // an incremental optimize step: only the newest segments are merged,
+      // two into one on average, so a step never rewrites the whole index
+      int excess = Math.min(numSegs - _optimizeTargetSegments, getMergeFactor());
+      int stepSegs = Math.min(numSegs, 2 * excess);
+      SegmentInfos stepSegments = infos.range(numSegs - stepSegs, numSegs);
+      return findBalancedMerges(stepSegments, stepSegs, stepSegs - excess, _partialExpunge);
+    }
+
+    if(numSegs <= numLargeSegs)
+    {
+      // no small segments yet, the large ones may still be worth a rewrite
+      if(!_deleteAwareMerge) return null;
+      ReclaimCandidate reclaim = findReclaimCandidate(infos, 0, numSegs, 1);
+      if(reclaim == null) return null;
+      MergeSpecification spec = new MergeSpecification();
+      spec.add(newMerge(infos, reclaim._start, reclaim._end, "reclaim"));
+      return spec;
+    }
 
     long totalLargeSegSize = 0;
     long totalSmallSegSize = 0;
@@ -400,7 +493,7 @@ public class ZoieMergePolicy extends LogByteSizeMergePolicy
       {
         MergeSpecification spec = findBalancedMerges(infos, numLargeSegs, (numLargeSegs - 1), _partialExpunge);
         if(spec == null) spec = new MergeSpecification(); // should not happen
-        spec.add(new OneMerge(infos.range(numLargeSegs, numSegs), getUseCompoundFile()));
+        spec.add(newMerge(infos, numLargeSegs, numSegs, "promote"));
         return spec;
       }
       else
@@ -420,7 +513,12 @@ public class ZoieMergePolicy extends LogByteSizeMergePolicy
         if(size(info) < sizeThreshold) break;
         startSeg++;
       }
-      spec.add(new OneMerge(infos.range(startSeg, numSegs), getUseCompoundFile()));
+      spec.add(newMerge(infos, startSeg, numSegs, "small"));
+      if(_deleteAwareMerge)
+      {
+        ReclaimCandidate reclaim = findReclaimCandidate(infos, 0, numLargeSegs, 1);
+        if(reclaim != null) spec.add(newMerge(infos, reclaim._start, reclaim._end, "reclaim"));
+      }
       return spec;
     }
     else
@@ -428,8 +526,27 @@ public class ZoieMergePolicy extends LogByteSizeMergePolicy
       // apply the log merge policy to small segments.
       SegmentInfos smallSegments = infos.range(numLargeSegs, numSegs);
       MergeSpecification spec = super.findMerges(smallSegments);
+      recordLogMerges(spec);
 
-      if(_partialExpunge)
+      if(_deleteAwareMerge)
+      {
+        ReclaimCandidate reclaim = findReclaimCandidate(infos, 0, numLargeSegs, 1);
+        if(spec == null)
+        {
+          // small segments are left alone by the log merge policy, they may be rewritten too
+          ReclaimCandidate smallReclaim = findReclaimCandidate(infos, numLargeSegs, numSegs, getMergeFactor());
+          if(reclaim == null || (smallReclaim != null && smallReclaim._score > reclaim._score))
+          {
+            reclaim = smallReclaim;
+          }
+        }
+        if(reclaim != null)
+        {
+          if(spec == null) spec = new MergeSpecification();
+          spec.add(newMerge(infos, reclaim._start, reclaim._end, "reclaim"));
+        }
+      }
+      else if(_partialExpunge)
       {
         OneMerge expunge  = findOneSegmentToExpunge(infos, numLargeSegs);
         if(expunge != null)
@@ -459,11 +576,207 @@ public class ZoieMergePolicy extends LogByteSizeMergePolicy
     }
     if(maxDelCount > 0)
     {
-      return new OneMerge(infos.range(expungeCandidate, expungeCandidate + 1), getUseCompoundFile());
+      return newMerge(infos, expungeCandidate, expungeCandidate + 1, "expunge");
     }
     return null;
   }
 
+  /**
+   * @return the score used to pick the single segment to expunge: the delete count,
+   *         or in delete-aware mode the dead bytes reclaimed per byte rewritten
+   */
+  private double expungeScore(SegmentInfo info) throws IOException
+  {
+    if(!_deleteAwareMerge) return info.getDelCount();
+    long liveBytes = size(info);
+    long deadBytes = info.sizeInBytes() - liveBytes;
+    if(deadBytes <= 0 || deadBytes < _minMergeDeleteRatio * (liveBytes + deadBytes)) return 0.0d;
+    return (double)deadBytes / (double)Math.max(1L, liveBytes);
+  }
+
+  /**
+   * Finds the run of at most maxWindow adjacent segments within [from, to) whose
+   * rewrite reclaims the most deleted bytes per live byte written.
+   * @return the best candidate or null if no run reclaims enough
+   */
+  private ReclaimCandidate findReclaimCandidate(SegmentInfos infos, int from, int to, int maxWindow) throws IOException
+  {
+    int len = to - from;
+    if(len <= 0) return null;
+    long[] liveBytes = new long[len];
+    long[] deadBytes = new long[len];
+    for(int i = 0; i < len; i++)
+    {
+      SegmentInfo info = infos.info(from + i);
+      liveBytes[i] = size(info);
+      deadBytes[i] = info.sizeInBytes() - liveBytes[i];
+    }
+
+    ReclaimCandidate best = null;
+    for(int i = 0; i < len; i++)
+    {
+      long live = 0;
+      long dead = 0;
+      for(int j = i; j < len && (j - i) < maxWindow; j++)
+      {
+        live += liveBytes[j];
+        dead += deadBytes[j];
+        if(dead <= 0 || dead < _minMergeDeleteRatio * (live + dead)) continue;
+        double score = (double)dead / (double)Math.max(1L, live);
+        if(best == null || score > best._score || (score == best._score && live < best._liveBytes))
+        {
+          best = new ReclaimCandidate(from + i, from + j + 1, live, score);
+        }
+      }
+    }
+    return best;
+  }
+
+  private static final class ReclaimCandidate
+  {
+    final int _start;
+    final int _end;
+    final long _liveBytes;
+    final double _score;
+
+    ReclaimCandidate(int start, int end, long liveBytes, double score)
+    {
+      _start = start;
+      _end = end;
+      _liveBytes = liveBytes;
+      _score = score;
+    }
+  }
+
+  /**
+   * Creates the merge of segments [start, end) and reports it to the log and the merge stats.
+   */
+  private OneMerge newMerge(SegmentInfos infos, int start, int end, String reason) throws IOException
+  {
+    int docCount = 0;
+    int delCount = 0;
+    long bytes = 0;
+    long liveBytes = 0;
+    for(int i = start; i < end; i++)
+    {
+      SegmentInfo info = infos.info(i);
+      docCount += info.docCount;
+      delCount += info.getDelCount();
+      bytes += info.sizeInBytes();
+      liveBytes += size(info);
+    }
+    MergeStats stats = _mergeStats;
+    if(stats != null)
+    {
+      stats.record(reason, (end - start), docCount, delCount, liveBytes, bytes - liveBytes);
+      if(log.isInfoEnabled()) log.info("merge selected: " + stats.getLastMergeSelected());
+    }
+    else if(log.isDebugEnabled())
+    {
+      log.debug("merge selected: " + reason + " segments: " + (end - start) + " docs: " + docCount + " deleted: " + delCount
+          + " bytesToRewrite: " + liveBytes + " bytesReclaimed: " + (bytes - liveBytes));
+    }
+    return new OneMerge(infos.range(start, end), getUseCompoundFile());
+  }
+
+  private void recordLogMerges(MergeSpecification spec)
+  {
+    MergeStats stats = _mergeStats;
+    if(stats != null && spec != null && !spec.merges.isEmpty())
+    {
+      stats.recordLogMerges(spec.merges.size());
+    }
+  }
+
+  /**
+   * Accumulates statistics about the merges selected by the merge policies of an index.
+   * A selected merge may still be dropped by the writer, e.g. when its segments are
+   * already merging; the merges actually run are counted by the merge scheduler.
+   * Merges picked by the underlying {@link LogByteSizeMergePolicy} for small segments
+   * are only counted.
+   */
+  public static class MergeStats
+  {
+    private final AtomicLong _numMergesSelected = new AtomicLong(0);
+    private final AtomicLong _numReclaimMergesSelected = new AtomicLong(0);
+    private final AtomicLong _numLogMergesSelected = new AtomicLong(0);
+    private final AtomicLong _bytesToRewrite = new AtomicLong(0);
+    private final AtomicLong _bytesReclaimed = new AtomicLong(0);
+    private volatile String _lastMerge = null;
+
+    void record(String reason, int numSegments, int docCount, int delCount, long liveBytes, long deadBytes)
+    {
+      _numMergesSelected.incrementAndGet();
+      if("reclaim".equals(reason)) _numReclaimMergesSelected.incrementAndGet();
+      _bytesToRewrite.addAndGet(liveBytes);
+      _bytesReclaimed.addAndGet(deadBytes);
+      float delRatio = (docCount <= 0 ? 0.0f : (float)delCount / (float)docCount);
+      _lastMerge = reason + " segments: " + numSegments + " docs: " + docCount + " deleted: " + delCount
+          + " delRatio: " + delRatio + " bytesToRewrite: " + liveBytes + " bytesReclaimed: " + deadBytes;
+    }
+
+    void recordLogMerges(int count)
+    {
+      _numMergesSelected.addAndGet(count);
+      _numLogMergesSelected.addAndGet(count);
+    }
+
+    /**
+     * @return total number of merges selected
+     */
+    public long getNumMergesSelected()
+    {
+      return _numMergesSelected.get();
+    }
+
+    /**
+     * @return number of merges selected only to reclaim deleted docs
+     */
+    public long getNumReclaimMergesSelected()
+    {
+      return _numReclaimMergesSelected.get();
+    }
+
+    /**
+     * @return number of small segment merges selected by the log merge policy
+     */
+    public long getNumLogMergesSelected()
+    {
+      return _numLogMergesSelected.get();
+    }
+
+    /**
+     * @return estimated live bytes rewritten by the selected merges
+     */
+    public long getSelectedBytesToRewrite()
+    {
+      return _bytesToRewrite.get();
+    }
+
+    /**
+     * @return estimated bytes of deleted docs dropped by the selected merges
+     */
+    public long getSelectedBytesReclaimed()
+    {
+      return _bytesReclaimed.get();
+    }
+
+    /**
+     * @return description of the last selected merge
+     */
+    public String getLastMergeSelected()
+    {
+      return _lastMerge;
+    }
+
+    public String toString()
+    {
+      return "merges selected: " + getNumMergesSelected() + ", reclaim merges: " + getNumReclaimMergesSelected()
+          + ", log merges: " + getNumLogMergesSelected() + ", bytesToRewrite: " + getSelectedBytesToRewrite()
+          + ", bytesReclaimed: " + getSelectedBytesReclaimed();
+    }
+  }
+
 
   public static class MergePolicyParams
   {
@@ -474,6 +787,9 @@ public class ZoieMergePolicy extends LogByteSizeMergePolicy
     private int _mergeFactor;
     private boolean _useCompoundFile;
     private int _maxMergeDocs;
+    private boolean _deleteAwareMerge;
+    private float _minMergeDeleteRatio;
+    private int _optimizeTargetSegments;
 
     public MergePolicyParams()
     {
@@ -483,6 +799,9 @@ public class ZoieMergePolicy extends LogByteSizeMergePolicy
       _maxSmallSegments = DEFAULT_NUM_SMALL_SEGMENTS;//2 * LogMergePolicy.DEFAULT_MERGE_FACTOR;
       _mergeFactor = DEFAULT_MERGE_FACTOR;//LogMergePolicy.DEFAULT_MERGE_FACTOR;
       _maxMergeDocs = LogMergePolicy.DEFAULT_MAX_MERGE_DOCS;
+      _deleteAwareMerge = false;
+      _minMergeDeleteRatio = DEFAULT_MIN_MERGE_DELETE_RATIO;
+      _optimizeTargetSegments = 0;
     }
     public String toString()
     {
@@ -493,6 +812,9 @@ public class ZoieMergePolicy extends LogByteSizeMergePolicy
       sb.append(", maxSmallSegments: ").append(_maxSmallSegments);
       sb.append(", mergeFactor: ").append(_mergeFactor);
       sb.append(", maxMergeDocs: ").append(_maxMergeDocs);
+      sb.append(", deleteAwareMerge: ").append(_deleteAwareMerge);
+      sb.append(", minMergeDeleteRatio: ").append(_minMergeDeleteRatio);
+      sb.append(", optimizeTargetSegments: ").append(_optimizeTargetSegments);
       return sb.toString();
     }
 
@@ -540,6 +862,17 @@ public class ZoieMergePolicy extends LogByteSizeMergePolicy
       return _doPartialExpunge;
     }
 
+    public synchronized void setOptimizeTargetSegments(int optimizeTargetSegments)
+    {
+      _optimizeTargetSegments = Math.max(0, optimizeTargetSegments);
+      log.info(this.toString());
+    }
+
+    public synchronized int getOptimizeTargetSegments()
+    {
+      return _optimizeTargetSegments;
+    }
+
     public synchronized void setMergeFactor(int mergeFactor)
     {
       if (mergeFactor<2)
@@ -582,5 +915,32 @@ public class ZoieMergePolicy extends LogByteSizeMergePolicy
     {
       return _useCompoundFile;
     }
+
+    public synchronized void setDeleteAwareMerge(boolean deleteAwareMerge)
+    {
+      _deleteAwareMerge = deleteAwareMerge;
+      log.info(this.toString());
+    }
+
+    public synchronized boolean isDeleteAwareMerge()
+    {
+      return _deleteAwareMerge;
+    }
+
+    public synchronized void setMinMergeDeleteRatio(float minMergeDeleteRatio)
+    {
+      if (minMergeDeleteRatio < 0.0f || minMergeDeleteRatio > 1.0f)
+      {
+        log.warn("minMergeDeleteRatio has to be in [0, 1]. Override " + minMergeDeleteRatio + " with " + DEFAULT_MIN_MERGE_DELETE_RATIO);
+        minMergeDeleteRatio = DEFAULT_MIN_MERGE_DELETE_RATIO;
+      }
+      _minMergeDeleteRatio = minMergeDeleteRatio;
+      log.info(this.toString());
+    }
+
+    public synchronized float getMinMergeDeleteRatio()
+    {
+      return _minMergeDeleteRatio;
+    }
   }
 }
@@ -0,0 +1,170 @@
+package proj.zoie.api.impl.util;
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import java.util.Random;
+
+/**
+ * Bloom filter whose bits for a key all fall in one 512 bit block, a cache
+ * line, so that a probe costs at most one cache miss. Within the block, the
+ * bits of a key are set in two of its eight words, taken from a table of
+ * precomputed masks, so that a probe is two multiplies, four loads and two
+ * mask tests, with no loop nor branch per bit. The filter is sized for a
+ * number of keys and a false positive probability, and is meant to be
+ * rebuilt larger by its owner once more keys were added, see
+ * {@link #isFull()}.
+ * <br>
+ * Adds are not thread-safe; probes may run concurrently with each other.
+ */
+public final class BlockedBloomFilter
+{
+  private static final int BLOCK_LONGS = 8;
+  private static final int BLOCK_BITS = BLOCK_LONGS * 64;
+  private static final int MAX_HASHES = 16;
+  private static final double LN2 = Math.log(2.0d);
+  private static final long GOLDEN = 0x9E3779B97F4A7C15L;
+  private static final long MIXER = 0xC4CEB9FE1A85EC53L;
+  private static final int PATTERN_BITS = 10;
+  private static final int PATTERN_MASK = (1 << PATTERN_BITS) - 1;
+  /**
+   * PATTERNS[n] are words with n bits set
+   */
+  private static final long[][] PATTERNS = new long[MAX_HASHES / 2 + 1][];
+  static
+  {
+    Random rand = new Random(0x5eed);
+    for (int n = 0; n < PATTERNS.length; ++n)
+    {
+      long[] patterns = new long[1 << PATTERN_BITS];
+      for (int i = 0; i < patterns.length; ++i)
+      {
+        while (Long.bitCount(patterns[i]) < n)
+        {
+          patterns[i] |= 1L << rand.nextInt(64);
+        }
+      }
+      PATTERNS[n] = patterns;
+    }
+  }
+
+  private final double _fpp;
+  private final int _numHashes;
+  private final long[] _patterns1; // masks of the first word
+  private final long[] _patterns2; // masks of the second word
+  private final int _capacity;
+  private final long[] _blocks;
+  private final int _blockShift;
+  private int _numKeys = 0;
+
+  /**
+   * @param capacity the number of keys the filter is sized for
+   * @param fpp the false positive probability at capacity, in (0, 1)
+   */
+  public BlockedBloomFilter(int capacity, double fpp)
+  {
+    if (fpp <= 0.0d || fpp >= 1.0d)
+    {
+      throw new IllegalArgumentException("invalid false positive probability: " + fpp);
+    }
+    _fpp = fpp;
+    // blocking makes the bits of a block unevenly loaded, 20% more bits than
+    // an unblocked filter keep the false positive rate near the one asked for
+    double bitsPerKey = 1.2d * -Math.log(fpp) / (LN2 * LN2);
+    _numHashes = Math.max(2, Math.min(MAX_HASHES, (int) Math.round(bitsPerKey * LN2 / 1.2d)));
+    _patterns1 = PATTERNS[(_numHashes + 1) / 2];
+    _patterns2 = PATTERNS[_numHashes / 2];
+    _capacity = Math.max(1, capacity);
+    long numBlocks = Math.max(2L, (long) Math.ceil(_capacity * bitsPerKey / BLOCK_BITS));
+    int blockBits = Math.min(26, 64 - Long.numberOfLeadingZeros(numBlocks - 1));
+    _blocks = new long[(1 << blockBits) * BLOCK_LONGS];
+    _blockShift = 64 - blockBits;
+  }
+
+  /**
+   * @return a filter with the same false positive probability, sized for the
+   *         given number of keys
+   */
+  public BlockedBloomFilter newFilter(int capacity)
+  {
+    return new BlockedBloomFilter(capacity, _fpp);
+  }
+
+  public void add(long key)
+  {
+    final long m = key * GOLDEN;
+    final long h = key * MIXER;
+    final int base = ((int) (m >>> _blockShift)) * BLOCK_LONGS;
+    final int words = (int) (m >>> (_blockShift - 6));
+    _blocks[base + (words & 7)] |= _patterns1[(int) (h >>> (64 - PATTERN_BITS))];
+    _blocks[base + ((words >>> 3) & 7)] |= _patterns2[(int) (h >>> (64 - 2 * PATTERN_BITS)) & PATTERN_MASK];
+    _numKeys++;
+  }
+
+  /**
+   * @return false if the key was never added
+   */
+  public boolean mightContain(long key)
+  {
+    final long[] blocks = _blocks;
+    final long m = key * GOLDEN;
+    final long h = key * MIXER;
+    final int base = ((int) (m >>> _blockShift)) * BLOCK_LONGS;
+    final int words = (int) (m >>> (_blockShift - 6));
+    final long mask1 = _patterns1[(int) (h >>> (64 - PATTERN_BITS))];
+    final long mask2 = _patterns2[(int) (h >>> (64 - 2 * PATTERN_BITS)) & PATTERN_MASK];
+    return (((blocks[base + (words & 7)] & mask1) ^ mask1) | ((blocks[base + ((words >>> 3) & 7)] & mask2) ^ mask2)) == 0;
+  }
+
+  /**
+   * @return whether more keys than the capacity were added, the false
+   *         positive probability then being above the one asked for
+   */
+  public boolean isFull()
+  {
+    return _numKeys > _capacity;
+  }
+
+  public int getCapacity()
+  {
+    return _capacity;
+  }
+
+  public int getNumHashes()
+  {
+    return _numHashes;
+  }
+
+  /**
+   * @return the size of the filter in bytes
+   */
+  public long getSizeInBytes()
+  {
+    return _blocks.length * 8L;
+  }
+
+  /**
+   * The murmur3 finalizer.
+   */
+  public static long hash(long key)
+  {
+    key ^= key >>> 33;
+    key *= 0xff51afd7ed558ccdL;
+    key ^= key >>> 33;
+    key *= 0xc4ceb9fe1a85ec53L;
+    key ^= key >>> 33;
+    return key;
+  }
+}
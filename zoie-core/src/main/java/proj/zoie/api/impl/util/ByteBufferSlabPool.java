@@ -0,0 +1,123 @@
+package proj.zoie.api.impl.util;
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of fixed size direct {@link ByteBuffer} slabs. Slabs released back to
+ * the pool are handed out again by {@link #get()}, so the off-heap memory of a
+ * discarded RAM index is reused by the next one instead of being reallocated.
+ * At most <code>maxPooledBytes</code> worth of slabs are retained; anything
+ * beyond that is left to the garbage collector.
+ */
+public class ByteBufferSlabPool
+{
+  public static final int DEFAULT_SLAB_SIZE = 64 * 1024;
+  public static final long DEFAULT_MAX_POOLED_BYTES = 64L * 1024L * 1024L;
+
+  private final int _slabSize;
+  private final long _maxPooledBytes;
+  private final ConcurrentLinkedQueue<ByteBuffer> _freeSlabs = new ConcurrentLinkedQueue<ByteBuffer>();
+  private final AtomicLong _pooledBytes = new AtomicLong(0);
+  private final AtomicLong _allocatedBytes = new AtomicLong(0);
+  private final AtomicLong _reuseCount = new AtomicLong(0);
+
+  public ByteBufferSlabPool()
+  {
+    this(DEFAULT_SLAB_SIZE, DEFAULT_MAX_POOLED_BYTES);
+  }
+
+  /**
+   * @param slabSize size in bytes of every slab handed out by this pool
+   * @param maxPooledBytes maximum number of bytes kept in the pool for reuse
+   */
+  public ByteBufferSlabPool(int slabSize, long maxPooledBytes)
+  {
+    if (slabSize <= 0)
+      throw new IllegalArgumentException("slabSize must be positive: " + slabSize);
+    _slabSize = slabSize;
+    _maxPooledBytes = Math.max(0L, maxPooledBytes);
+  }
+
+  public int getSlabSize()
+  {
+    return _slabSize;
+  }
+
+  /**
+   * @return a cleared slab, either recycled from the pool or newly allocated
+   */
+  public ByteBuffer get()
+  {
+    ByteBuffer slab = _freeSlabs.poll();
+    if (slab != null)
+    {
+      _pooledBytes.addAndGet(-_slabSize);
+      _reuseCount.incrementAndGet();
+      slab.clear();
+      return slab;
+    }
+    _allocatedBytes.addAndGet(_slabSize);
+    return ByteBuffer.allocateDirect(_slabSize);
+  }
+
+  /**
+   * Returns a slab to the pool. The caller must not touch the slab afterwards.
+   */
+  public void release(ByteBuffer slab)
+  {
+    if (slab == null || slab.capacity() != _slabSize) return;
+    if (_pooledBytes.addAndGet(_slabSize) > _maxPooledBytes)
+    {
+      _pooledBytes.addAndGet(-_slabSize);
+      _allocatedBytes.addAndGet(-_slabSize);
+      return;
+    }
+    _freeSlabs.offer(slab);
+  }
+
+  /**
+   * @return bytes currently idle in the pool
+   */
+  public long getPooledBytes()
+  {
+    return _pooledBytes.get();
+  }
+
+  /**
+   * @return bytes of direct memory allocated by this pool and not yet given up to GC
+   */
+  public long getAllocatedBytes()
+  {
+    return _allocatedBytes.get();
+  }
+
+  /**
+   * @return number of times a slab was recycled instead of allocated
+   */
+  public long getReuseCount()
+  {
+    return _reuseCount.get();
+  }
+
+  public String toString()
+  {
+    return "ByteBufferSlabPool slabSize: " + _slabSize + " maxPooledBytes: " + _maxPooledBytes;
+  }
+}
@@ -0,0 +1,434 @@
+package proj.zoie.api.impl.util;
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.store.SingleInstanceLockFactory;
+
+/**
+ * An in-memory Lucene {@link Directory} whose files live in direct (off-heap)
+ * {@link ByteBuffer} slabs taken from a {@link ByteBufferSlabPool}.
+ * <br>
+ * Each file is reference counted: the directory holds one reference and every
+ * input opened through {@link #openInput(String)} holds another (clones share
+ * the reference of the input they were cloned from, as Lucene does not close
+ * clones). The slabs of a file go back to the pool only after the file has been
+ * deleted (or the directory closed) and all of its inputs have been closed, so
+ * readers still holding a discarded RAM index keep working until they are
+ * released.
+ */
+public class DirectByteBufferDirectory extends Directory
+{
+  private final ByteBufferSlabPool _pool;
+  private final int _slabSize;
+  private final Map<String, SlabFile> _fileMap = new ConcurrentHashMap<String, SlabFile>();
+
+  public DirectByteBufferDirectory(ByteBufferSlabPool pool)
+  {
+    _pool = pool;
+    _slabSize = pool.getSlabSize();
+    setLockFactory(new SingleInstanceLockFactory());
+  }
+
+  private SlabFile getFile(String name) throws IOException
+  {
+    ensureOpen();
+    SlabFile file = _fileMap.get(name);
+    if (file == null)
+      throw new FileNotFoundException(name);
+    return file;
+  }
+
+  @Override
+  public String[] listAll() throws IOException
+  {
+    ensureOpen();
+    return _fileMap.keySet().toArray(new String[0]);
+  }
+
+  @Override
+  public boolean fileExists(String name) throws IOException
+  {
+    ensureOpen();
+    return _fileMap.containsKey(name);
+  }
+
+  @Override
+  public long fileModified(String name) throws IOException
+  {
+    return getFile(name).getLastModified();
+  }
+
+  @Override
+  public void touchFile(String name) throws IOException
+  {
+    getFile(name).setLastModified(System.currentTimeMillis());
+  }
+
+  @Override
+  public void deleteFile(String name) throws IOException
+  {
+    ensureOpen();
+    SlabFile file = _fileMap.remove(name);
+    if (file == null)
+      throw new FileNotFoundException(name);
+    file.decRef();
+  }
+
+  @Override
+  public long fileLength(String name) throws IOException
+  {
+    return getFile(name).getLength();
+  }
+
+  @Override
+  public IndexOutput createOutput(String name) throws IOException
+  {
+    ensureOpen();
+    SlabFile file = new SlabFile();
+    SlabFile old = _fileMap.put(name, file);
+    if (old != null)
+    {
+      old.decRef();
+    }
+    return new SlabOutput(file);
+  }
+
+  @Override
+  public IndexInput openInput(String name) throws IOException
+  {
+    SlabFile file = getFile(name);
+    if (!file.incRef())
+      throw new FileNotFoundException(name);
+    return new SlabInput(file);
+  }
+
+  /**
+   * Drops the directory's reference to all files. Slabs of files that still
+   * have open inputs are recycled when those inputs are closed.
+   */
+  @Override
+  public void close()
+  {
+    isOpen = false;
+    for (String name : new ArrayList<String>(_fileMap.keySet()))
+    {
+      SlabFile file = _fileMap.remove(name);
+      if (file != null)
+      {
+        file.decRef();
+      }
+    }
+  }
+
+  /**
+   * @return number of bytes of slab memory held by the files of this directory
+   */
+  public long sizeInBytes()
+  {
+    long size = 0;
+    for (SlabFile file : _fileMap.values())
+    {
+      size += (long) file.numSlabs() * _slabSize;
+    }
+    return size;
+  }
+
+  private final class SlabFile
+  {
+    private final ArrayList<ByteBuffer> _slabs = new ArrayList<ByteBuffer>();
+    private volatile long _length = 0;
+    private volatile long _lastModified = System.currentTimeMillis();
+    private int _refCount = 1;
+
+    synchronized ByteBuffer addSlab()
+    {
+      ByteBuffer slab = _pool.get();
+      _slabs.add(slab);
+      return slab;
+    }
+
+    synchronized ByteBuffer getSlab(int idx)
+    {
+      return _slabs.get(idx);
+    }
+
+    synchronized int numSlabs()
+    {
+      return _slabs.size();
+    }
+
+    long getLength()
+    {
+      return _length;
+    }
+
+    void setLength(long length)
+    {
+      _length = length;
+    }
+
+    long getLastModified()
+    {
+      return _lastModified;
+    }
+
+    void setLastModified(long lastModified)
+    {
+      _lastModified = lastModified;
+    }
+
+    synchronized boolean incRef()
+    {
+      if (_refCount <= 0) return false;
+      _refCount++;
+      return true;
+    }
+
+    synchronized void decRef()
+    {
+      if (--_refCount == 0)
+      {
+        for (ByteBuffer slab : _slabs)
+        {
+          _pool.release(slab);
+        }
+        _slabs.clear();
+      }
+    }
+  }
+
+  private final class SlabOutput extends IndexOutput
+  {
+    private final SlabFile _file;
+    private ByteBuffer _current = null;
+    private int _slabIndex = -1;
+
+    SlabOutput(SlabFile file)
+    {
+      _file = file;
+    }
+
+    private void switchSlab(int idx)
+    {
+      while (idx >= _file.numSlabs())
+      {
+        _file.addSlab();
+      }
+      _current = _file.getSlab(idx);
+      _slabIndex = idx;
+    }
+
+    @Override
+    public void writeByte(byte b) throws IOException
+    {
+      if (_current == null || !_current.hasRemaining())
+      {
+        switchSlab(_slabIndex + 1);
+        _current.position(0);
+      }
+      _current.put(b);
+    }
+
+    @Override
+    public void writeBytes(byte[] b, int offset, int len) throws IOException
+    {
+      while (len > 0)
+      {
+        if (_current == null || !_current.hasRemaining())
+        {
+          switchSlab(_slabIndex + 1);
+          _current.position(0);
+        }
+        int n = Math.min(len, _current.remaining());
+        _current.put(b, offset, n);
+        offset += n;
+        len -= n;
+      }
+    }
+
+    private void setFileLength()
+    {
+      long pointer = getFilePointer();
+      if (pointer > _file.getLength())
+      {
+        _file.setLength(pointer);
+      }
+    }
+
+    @Override
+    public void flush() throws IOException
+    {
+      _file.setLastModified(System.currentTimeMillis());
+      setFileLength();
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+      flush();
+    }
+
+    @Override
+    public long getFilePointer()
+    {
+      return _current == null ? 0L : (long) _slabIndex * _slabSize + _current.position();
+    }
+
+    @Override
+    public void seek(long pos) throws IOException
+    {
+      setFileLength();
+      int idx = (int) (pos / _slabSize);
+      int off = (int) (pos % _slabSize);
+      if (off == 0 && idx > 0)
+      {
+        // stay at the end of the previous slab, the next write moves on
+        idx--;
+        off = _slabSize;
+      }
+      if (pos == 0 && _file.numSlabs() == 0)
+      {
+        _current = null;
+        _slabIndex = -1;
+        return;
+      }
+      switchSlab(idx);
+      _current.position(off);
+    }
+
+    @Override
+    public long length() throws IOException
+    {
+      setFileLength();
+      return _file.getLength();
+    }
+  }
+
+  private final class SlabInput extends IndexInput
+  {
+    private final SlabFile _file;
+    private final long _length;
+    private ByteBuffer _current = null;
+    private int _slabIndex = -1;
+    private boolean _isClone = false;
+    private boolean _closed = false;
+
+    SlabInput(SlabFile file)
+    {
+      _file = file;
+      _length = file.getLength();
+    }
+
+    private void switchSlab(int idx) throws IOException
+    {
+      long start = (long) idx * _slabSize;
+      if (start >= _length)
+        throw new IOException("read past EOF");
+      ByteBuffer slab = _file.getSlab(idx).duplicate();
+      slab.clear();
+      slab.limit((int) Math.min(_slabSize, _length - start));
+      _current = slab;
+      _slabIndex = idx;
+    }
+
+    @Override
+    public byte readByte() throws IOException
+    {
+      if (_current == null || !_current.hasRemaining())
+      {
+        switchSlab(_slabIndex + 1);
+      }
+      return _current.get();
+    }
+
+    @Override
+    public void readBytes(byte[] b, int offset, int len) throws IOException
+    {
+      while (len > 0)
+      {
+        if (_current == null || !_current.hasRemaining())
+        {
+          switchSlab(_slabIndex + 1);
+        }
+        int n = Math.min(len, _current.remaining());
+        _current.get(b, offset, n);
+        offset += n;
+        len -= n;
+      }
+    }
+
+    @Override
+    public long getFilePointer()
+    {
+      return _current == null ? 0L : (long) _slabIndex * _slabSize + _current.position();
+    }
+
+    @Override
+    public void seek(long pos) throws IOException
+    {
+      if (pos > _length)
+        throw new IOException("seek past EOF: " + pos + " > " + _length);
+      int idx = (int) (pos / _slabSize);
+      int off = (int) (pos % _slabSize);
+      if (off == 0 && idx > 0)
+      {
+        idx--;
+        off = _slabSize;
+      }
+      if (pos == 0)
+      {
+        _current = null;
+        _slabIndex = -1;
+        return;
+      }
+      switchSlab(idx);
+      _current.position(off);
+    }
+
+    @Override
+    public long length()
+    {
+      return _length;
+    }
+
+    @Override
+    public Object clone()
+    {
+      SlabInput clone = (SlabInput) super.clone();
+      clone._current = (_current == null ? null : _current.duplicate());
+      clone._isClone = true;
+      return clone;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+      if (_isClone || _closed) return;
+      _closed = true;
+      _file.decRef();
+    }
+  }
+}
@@ -28,9 +28,11 @@ import java.util.Iterator;
  * The hash table size and the hash function are tuned for fast calculation of hash values.
  * The underlying IntSet should not be updated while this accelerator is in use.
  * 
+ * @deprecated use {@link IntBloomSet}, which needs no rebuild on changes
  * @author ymatsuda
  *
  */
+@Deprecated
 public class IntSetAccelerator implements IntSet
 {
   private final long[] _filter;
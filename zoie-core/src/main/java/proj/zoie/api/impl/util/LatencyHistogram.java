@@ -0,0 +1,174 @@
+package proj.zoie.api.impl.util;
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of latencies in microseconds, HDR style: the values below
+ * 64 have a bucket each, larger values fall in one of 32 buckets per power of
+ * two, so a percentile is reported within about 3% of the recorded value.
+ * Values above {@link #MAX_VALUE} (about 12 days) are recorded as MAX_VALUE.
+ * <br>
+ * Recording is a few atomic increments and never allocates, so it can be done
+ * on the indexing and search paths.
+ */
+public class LatencyHistogram
+{
+  private static final int SUB_BUCKET_BITS = 5;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  public static final long MAX_VALUE = (1L << 40) - 1;
+  private static final int NUM_BUCKETS = bucketIndex(MAX_VALUE) + 1;
+
+  private final AtomicLongArray _counts = new AtomicLongArray(NUM_BUCKETS);
+  private final AtomicLong _count = new AtomicLong(0);
+  private final AtomicLong _total = new AtomicLong(0);
+  private final AtomicLong _max = new AtomicLong(0);
+
+  /**
+   * @param micros the latency in microseconds
+   */
+  public void record(long micros)
+  {
+    if (micros < 0) micros = 0;
+    else if (micros > MAX_VALUE) micros = MAX_VALUE;
+    _counts.incrementAndGet(bucketIndex(micros));
+    _count.incrementAndGet();
+    _total.addAndGet(micros);
+    long max;
+    while (micros > (max = _max.get()))
+    {
+      if (_max.compareAndSet(max, micros)) break;
+    }
+  }
+
+  /**
+   * Records the time elapsed since startNanos, a {@link System#nanoTime()}.
+   */
+  public void recordSince(long startNanos)
+  {
+    record((System.nanoTime() - startNanos) / 1000L);
+  }
+
+  public long getCount()
+  {
+    return _count.get();
+  }
+
+  public void reset()
+  {
+    for (int i = 0; i < NUM_BUCKETS; ++i)
+    {
+      _counts.set(i, 0L);
+    }
+    _count.set(0L);
+    _total.set(0L);
+    _max.set(0L);
+  }
+
+  /**
+   * @return a copy of the histogram; recordings done while copying may be
+   *         partially included
+   */
+  public Snapshot snapshot()
+  {
+    long[] counts = new long[NUM_BUCKETS];
+    long count = 0;
+    for (int i = 0; i < NUM_BUCKETS; ++i)
+    {
+      counts[i] = _counts.get(i);
+      count += counts[i];
+    }
+    return new Snapshot(counts, count, _total.get(), _max.get());
+  }
+
+  static int bucketIndex(long value)
+  {
+    if (value < (SUB_BUCKETS << 1)) return (int) value;
+    int shift = (63 - Long.numberOfLeadingZeros(value)) - SUB_BUCKET_BITS;
+    return (shift << SUB_BUCKET_BITS) + (int) (value >>> shift);
+  }
+
+  /**
+   * @return the highest value falling in the bucket
+   */
+  static long bucketUpperBound(int index)
+  {
+    if (index < (SUB_BUCKETS << 1)) return index;
+    int shift = (index >>> SUB_BUCKET_BITS) - 1;
+    long mantissa = (index & (SUB_BUCKETS - 1)) + SUB_BUCKETS;
+    return ((mantissa + 1) << shift) - 1;
+  }
+
+  public static class Snapshot
+  {
+    private final long[] _counts;
+    private final long _count;
+    private final long _total;
+    private final long _max;
+
+    private Snapshot(long[] counts, long count, long total, long max)
+    {
+      _counts = counts;
+      _count = count;
+      _total = total;
+      _max = max;
+    }
+
+    public long getCount()
+    {
+      return _count;
+    }
+
+    public long getMax()
+    {
+      return _max;
+    }
+
+    public double getMean()
+    {
+      return _count == 0 ? 0.0d : (double) _total / (double) _count;
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return the value, in microseconds, at or below which the given
+     *         percentage of the recorded values fall
+     */
+    public long getValueAtPercentile(double percentile)
+    {
+      if (_count == 0) return 0L;
+      long rank = (long) Math.ceil(Math.min(100.0d, Math.max(0.0d, percentile)) / 100.0d * _count);
+      rank = Math.max(1L, rank);
+      long seen = 0;
+      for (int i = 0; i < _counts.length; ++i)
+      {
+        seen += _counts[i];
+        if (seen >= rank) return Math.min(bucketUpperBound(i), _max);
+      }
+      return _max;
+    }
+
+    @Override
+    public String toString()
+    {
+      return "count: " + _count + ", mean: " + (long) getMean() + "us, p50: " + getValueAtPercentile(50)
+          + "us, p99: " + getValueAtPercentile(99) + "us, p99.9: " + getValueAtPercentile(99.9)
+          + "us, max: " + _max + "us";
+    }
+  }
+}
@@ -0,0 +1,196 @@
+package proj.zoie.api.impl.util;
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import it.unimi.dsi.fastutil.longs.AbstractLongIterator;
+import it.unimi.dsi.fastutil.longs.AbstractLongSet;
+import it.unimi.dsi.fastutil.longs.LongCollection;
+import it.unimi.dsi.fastutil.longs.LongIterator;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/**
+ * LongSet of a linear probing table of primitives behind a
+ * {@link BlockedBloomFilter}, for sets mostly probed for absent keys, such as
+ * delete sets: a miss usually costs one cache miss in the filter instead of
+ * one in the table. Keys can be added at any time, the filter is rebuilt
+ * twice as large whenever it holds more keys than it was sized for.
+ * Removes are not supported.
+ * <br>
+ * Not thread-safe: probes may run concurrently with each other, not with adds.
+ * Replaces {@link LongSetAccelerator}, which had to be rebuilt on every change.
+ */
+public class LongBloomSet extends AbstractLongSet
+{
+  public static final double DEFAULT_FPP = 0.01d;
+
+  private BlockedBloomFilter _filter;
+  private long[] _keys; // 0 marks a free slot
+  private int _mask;
+  private boolean _containsZero = false;
+  private int _size = 0;
+
+  public LongBloomSet()
+  {
+    this(16, DEFAULT_FPP);
+  }
+
+  /**
+   * @param expectedSize the expected number of keys
+   * @param fpp the false positive probability of the filter
+   */
+  public LongBloomSet(int expectedSize, double fpp)
+  {
+    expectedSize = Math.max(expectedSize, 4);
+    _filter = new BlockedBloomFilter(expectedSize, fpp);
+    int tableSize = Integer.highestOneBit(expectedSize) << 2; // at most half full
+    _keys = new long[tableSize];
+    _mask = tableSize - 1;
+  }
+
+  public LongBloomSet(LongCollection c, double fpp)
+  {
+    this(c.size(), fpp);
+    LongIterator iter = c.iterator();
+    while (iter.hasNext())
+    {
+      add(iter.nextLong());
+    }
+  }
+
+  @Override
+  public boolean contains(long key)
+  {
+    if (!_filter.mightContain(key)) return false;
+    if (key == 0) return _containsZero;
+    final long[] keys = _keys;
+    final int mask = _mask;
+    int slot = (int) BlockedBloomFilter.hash(key) & mask;
+    long k;
+    while ((k = keys[slot]) != 0)
+    {
+      if (k == key) return true;
+      slot = (slot + 1) & mask;
+    }
+    return false;
+  }
+
+  @Override
+  public boolean add(long key)
+  {
+    if (key == 0)
+    {
+      if (_containsZero) return false;
+      _containsZero = true;
+    }
+    else
+    {
+      int slot = (int) BlockedBloomFilter.hash(key) & _mask;
+      long k;
+      while ((k = _keys[slot]) != 0)
+      {
+        if (k == key) return false;
+        slot = (slot + 1) & _mask;
+      }
+      _keys[slot] = key;
+      if ((_size + 1) * 2 > _keys.length)
+      {
+        rehash(_keys.length << 1);
+      }
+    }
+    _size++;
+    _filter.add(key);
+    if (_filter.isFull())
+    {
+      rebuildFilter(_filter.getCapacity() * 2);
+    }
+    return true;
+  }
+
+  private void rehash(int tableSize)
+  {
+    long[] keys = new long[tableSize];
+    int mask = tableSize - 1;
+    for (long key : _keys)
+    {
+      if (key == 0) continue;
+      int slot = (int) BlockedBloomFilter.hash(key) & mask;
+      while (keys[slot] != 0)
+      {
+        slot = (slot + 1) & mask;
+      }
+      keys[slot] = key;
+    }
+    _keys = keys;
+    _mask = mask;
+  }
+
+  private void rebuildFilter(int capacity)
+  {
+    BlockedBloomFilter filter = _filter.newFilter(capacity);
+    if (_containsZero) filter.add(0);
+    for (long key : _keys)
+    {
+      if (key != 0) filter.add(key);
+    }
+    _filter = filter;
+  }
+
+  @Override
+  public int size()
+  {
+    return _size;
+  }
+
+  @Override
+  public void clear()
+  {
+    Arrays.fill(_keys, (long) 0);
+    _containsZero = false;
+    _size = 0;
+    _filter = _filter.newFilter(_filter.getCapacity());
+  }
+
+  @Override
+  public LongIterator iterator()
+  {
+    return new AbstractLongIterator()
+    {
+      private int _next = _containsZero ? -1 : advance(0);
+
+      private int advance(int from)
+      {
+        while (from < _keys.length && _keys[from] == 0) from++;
+        return from;
+      }
+
+      public boolean hasNext()
+      {
+        return _next < _keys.length;
+      }
+
+      @Override
+      public long nextLong()
+      {
+        if (!hasNext()) throw new NoSuchElementException();
+        long key = _next < 0 ? 0 : _keys[_next];
+        _next = advance(_next + 1);
+        return key;
+      }
+    };
+  }
+}
@@ -29,9 +29,11 @@ import java.util.Iterator;
  * calculation of hash values. The underlying LongSet should not be updated
  * while this accelerator is in use.
  * 
+ * @deprecated use {@link LongBloomSet}, which needs no rebuild on changes
  * @author ymatsuda
  * 
  */
+@Deprecated
 public class LongSetAccelerator implements LongSet {
 	private final long[] _filter;
 	private final int _mask;
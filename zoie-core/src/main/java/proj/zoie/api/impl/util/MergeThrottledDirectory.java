@@ -0,0 +1,307 @@
+package proj.zoie.api.impl.util;
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import java.io.IOException;
+
+import org.apache.lucene.index.ZoieMergeScheduler;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.store.Lock;
+import org.apache.lucene.store.LockFactory;
+
+/**
+ * A {@link Directory} wrapper for an {@link org.apache.lucene.index.IndexWriter}
+ * whose files opened by a merge of the given {@link ZoieMergeScheduler} report
+ * their I/O to it, in chunks of {@link #CHUNK_SIZE} bytes, so the scheduler can
+ * throttle or pause the merge. All other I/O goes straight to the wrapped
+ * directory.
+ */
+public class MergeThrottledDirectory extends Directory
+{
+  public static final int CHUNK_SIZE = 64 * 1024;
+
+  private final Directory _dir;
+  private final ZoieMergeScheduler _scheduler;
+
+  public MergeThrottledDirectory(Directory dir, ZoieMergeScheduler scheduler)
+  {
+    _dir = dir;
+    _scheduler = scheduler;
+  }
+
+  public Directory getDelegate()
+  {
+    return _dir;
+  }
+
+  @Override
+  public String[] listAll() throws IOException
+  {
+    return _dir.listAll();
+  }
+
+  @Override
+  public boolean fileExists(String name) throws IOException
+  {
+    return _dir.fileExists(name);
+  }
+
+  @Override
+  public long fileModified(String name) throws IOException
+  {
+    return _dir.fileModified(name);
+  }
+
+  @Override
+  public void touchFile(String name) throws IOException
+  {
+    _dir.touchFile(name);
+  }
+
+  @Override
+  public void deleteFile(String name) throws IOException
+  {
+    _dir.deleteFile(name);
+  }
+
+  @Override
+  public long fileLength(String name) throws IOException
+  {
+    return _dir.fileLength(name);
+  }
+
+  @Override
+  public void sync(String name) throws IOException
+  {
+    _dir.sync(name);
+  }
+
+  @Override
+  public IndexOutput createOutput(String name) throws IOException
+  {
+    IndexOutput out = _dir.createOutput(name);
+    return _scheduler.isMergeThread() ? new ThrottledIndexOutput(out) : out;
+  }
+
+  @Override
+  public IndexInput openInput(String name) throws IOException
+  {
+    IndexInput in = _dir.openInput(name);
+    return _scheduler.isMergeThread() ? new ThrottledIndexInput(in) : in;
+  }
+
+  @Override
+  public IndexInput openInput(String name, int bufferSize) throws IOException
+  {
+    IndexInput in = _dir.openInput(name, bufferSize);
+    return _scheduler.isMergeThread() ? new ThrottledIndexInput(in) : in;
+  }
+
+  @Override
+  public Lock makeLock(String name)
+  {
+    return _dir.makeLock(name);
+  }
+
+  @Override
+  public void clearLock(String name) throws IOException
+  {
+    _dir.clearLock(name);
+  }
+
+  @Override
+  public void setLockFactory(LockFactory lockFactory)
+  {
+    _dir.setLockFactory(lockFactory);
+  }
+
+  @Override
+  public LockFactory getLockFactory()
+  {
+    return _dir.getLockFactory();
+  }
+
+  @Override
+  public String getLockID()
+  {
+    return _dir.getLockID();
+  }
+
+  @Override
+  public void close() throws IOException
+  {
+    _dir.close();
+  }
+
+  public String toString()
+  {
+    return "MergeThrottledDirectory(" + _dir + ")";
+  }
+
+  private final class ThrottledIndexOutput extends IndexOutput
+  {
+    private final IndexOutput _out;
+    private long _pending = 0L;
+
+    ThrottledIndexOutput(IndexOutput out)
+    {
+      _out = out;
+    }
+
+    private void written(int len)
+    {
+      _pending += len;
+      if (_pending >= CHUNK_SIZE)
+      {
+        _scheduler.pauseForWrite(_pending);
+        _pending = 0L;
+      }
+    }
+
+    @Override
+    public void writeByte(byte b) throws IOException
+    {
+      _out.writeByte(b);
+      written(1);
+    }
+
+    @Override
+    public void writeBytes(byte[] b, int offset, int length) throws IOException
+    {
+      _out.writeBytes(b, offset, length);
+      written(length);
+    }
+
+    @Override
+    public void flush() throws IOException
+    {
+      _out.flush();
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+      _out.close();
+      if (_pending > 0)
+      {
+        _scheduler.pauseForWrite(_pending);
+        _pending = 0L;
+      }
+    }
+
+    @Override
+    public long getFilePointer()
+    {
+      return _out.getFilePointer();
+    }
+
+    @Override
+    public void seek(long pos) throws IOException
+    {
+      _out.seek(pos);
+    }
+
+    @Override
+    public long length() throws IOException
+    {
+      return _out.length();
+    }
+
+    @Override
+    public void setLength(long length) throws IOException
+    {
+      _out.setLength(length);
+    }
+  }
+
+  private final class ThrottledIndexInput extends IndexInput
+  {
+    private IndexInput _in;
+    private long _pending = 0L;
+
+    ThrottledIndexInput(IndexInput in)
+    {
+      _in = in;
+    }
+
+    private void read(int len)
+    {
+      _pending += len;
+      if (_pending >= CHUNK_SIZE)
+      {
+        _scheduler.pauseForRead(_pending);
+        _pending = 0L;
+      }
+    }
+
+    @Override
+    public byte readByte() throws IOException
+    {
+      byte b = _in.readByte();
+      read(1);
+      return b;
+    }
+
+    @Override
+    public void readBytes(byte[] b, int offset, int len) throws IOException
+    {
+      _in.readBytes(b, offset, len);
+      read(len);
+    }
+
+    @Override
+    public void readBytes(byte[] b, int offset, int len, boolean useBuffer) throws IOException
+    {
+      _in.readBytes(b, offset, len, useBuffer);
+      read(len);
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+      _in.close();
+    }
+
+    @Override
+    public long getFilePointer()
+    {
+      return _in.getFilePointer();
+    }
+
+    @Override
+    public void seek(long pos) throws IOException
+    {
+      _in.seek(pos);
+    }
+
+    @Override
+    public long length()
+    {
+      return _in.length();
+    }
+
+    @Override
+    public Object clone()
+    {
+      ThrottledIndexInput clone = (ThrottledIndexInput) super.clone();
+      clone._in = (IndexInput) _in.clone();
+      clone._pending = 0L;
+      return clone;
+    }
+  }
+}
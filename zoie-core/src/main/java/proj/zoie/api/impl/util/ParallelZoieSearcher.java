@@ -0,0 +1,484 @@
+package proj.zoie.api.impl.util;
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiReader;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.search.FilteredQuery;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.Similarity;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.TopScoreDocCollector;
+import org.apache.lucene.search.Weight;
+import org.apache.lucene.util.ThreadInterruptedException;
+
+import proj.zoie.api.UIDDedupCollector;
+import proj.zoie.api.ZoieExecutors;
+import proj.zoie.api.ZoieIndexReader;
+
+/**
+ * Searches the readers from {@link proj.zoie.api.IndexReaderFactory#getIndexReaders()}
+ * concurrently. The segments of the readers, RAM A, RAM B and the disk segments,
+ * are split into tasks of at least {@link #getMinDocsPerTask()} docs each; the
+ * tasks run on a shared executor, the last one on the calling thread. The
+ * query is weighted once against all the readers, so the scores are the same as
+ * those of a single searcher over a {@link MultiReader} of the readers, and the
+ * doc ids of the hits are those of such a MultiReader.
+ * <br>
+ * The per task top docs are merged with {@link PriorityQueue}. A UID found in
+ * more than one reader is only returned from the first, freshest, reader.
+ * With {@link #setDedupAtQueryTime(boolean)}, every doc superseded by a fresher
+ * reader is dropped while collecting, see {@link UIDDedupCollector}, so readers
+ * whose deletes are not marked can be searched.
+ */
+public class ParallelZoieSearcher
+{
+  public static final int DEFAULT_MIN_DOCS_PER_TASK = 50000;
+
+  private static volatile ExecutorService _sharedExecutor = null;
+
+  private final ExecutorService _executor;
+  private volatile int _minDocsPerTask = DEFAULT_MIN_DOCS_PER_TASK;
+  private volatile Similarity _similarity = Similarity.getDefault();
+  private volatile boolean _dedupAtQueryTime = false;
+
+  /**
+   * Creates a searcher running on the shared executor, see {@link #getSharedExecutor()}.
+   */
+  public ParallelZoieSearcher()
+  {
+    this(getSharedExecutor());
+  }
+
+  /**
+   * @param executor the executor to run the search tasks on, preferably a
+   *          {@link proj.zoie.api.ZoieThreadPoolExecutor} so the tasks see the
+   *          caller's ZoieContext
+   */
+  public ParallelZoieSearcher(ExecutorService executor)
+  {
+    _executor = executor;
+  }
+
+  /**
+   * @return an executor with a daemon thread per available processor, shared by
+   *         all the searchers created without one
+   */
+  public static ExecutorService getSharedExecutor()
+  {
+    if (_sharedExecutor == null)
+    {
+      synchronized (ParallelZoieSearcher.class)
+      {
+        if (_sharedExecutor == null)
+        {
+          final ThreadFactory threadFactory = Executors.defaultThreadFactory();
+          _sharedExecutor = ZoieExecutors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory()
+          {
+            public Thread newThread(Runnable r)
+            {
+              Thread thread = threadFactory.newThread(r);
+              thread.setName("zoie-search-" + thread.getName());
+              thread.setDaemon(true);
+              return thread;
+            }
+          });
+        }
+      }
+    }
+    return _sharedExecutor;
+  }
+
+  public int getMinDocsPerTask()
+  {
+    return _minDocsPerTask;
+  }
+
+  /**
+   * @param minDocsPerTask the minimum number of docs searched by a task; smaller
+   *          segments are searched together
+   */
+  public void setMinDocsPerTask(int minDocsPerTask)
+  {
+    _minDocsPerTask = Math.max(1, minDocsPerTask);
+  }
+
+  public Similarity getSimilarity()
+  {
+    return _similarity;
+  }
+
+  public void setSimilarity(Similarity similarity)
+  {
+    _similarity = similarity;
+  }
+
+  public boolean isDedupAtQueryTime()
+  {
+    return _dedupAtQueryTime;
+  }
+
+  /**
+   * @param dedupAtQueryTime whether to drop the docs superseded by fresher
+   *          readers while collecting, needed for readers obtained without
+   *          marking their deletes
+   */
+  public void setDedupAtQueryTime(boolean dedupAtQueryTime)
+  {
+    _dedupAtQueryTime = dedupAtQueryTime;
+  }
+
+  public <R extends IndexReader> TopDocs search(List<ZoieIndexReader<R>> readers, Query query, int n) throws IOException
+  {
+    return search(readers, query, null, n);
+  }
+
+  /**
+   * @param readers the readers, freshest first, as returned by
+   *          {@link proj.zoie.api.IndexReaderFactory#getIndexReaders()}
+   * @return the top n hits, with doc ids of a MultiReader over the readers.
+   *         The total hits don't count the duplicates found among the top hits
+   *         of the tasks.
+   */
+  public <R extends IndexReader> TopDocs search(List<ZoieIndexReader<R>> readers, Query query, Filter filter, int n) throws IOException
+  {
+    MultiReader multiReader = new MultiReader(readers.toArray(new IndexReader[readers.size()]), false);
+    IndexSearcher searcher = new IndexSearcher(multiReader);
+    try
+    {
+      searcher.setSimilarity(_similarity);
+      if (filter != null)
+      {
+        query = new FilteredQuery(query, filter);
+      }
+      Weight weight = query.weight(searcher);
+      n = Math.max(1, Math.min(n, Math.max(1, multiReader.maxDoc())));
+
+      List<SearchTask> tasks = split(readers, weight, n);
+      List<Future<TaskHits>> futures = new ArrayList<Future<TaskHits>>(tasks.size());
+      TaskHits[] results = new TaskHits[tasks.size()];
+      for (int i = 0; i < tasks.size() - 1; ++i)
+      {
+        futures.add(_executor.submit(tasks.get(i)));
+      }
+      if (tasks.size() > 0)
+      {
+        results[tasks.size() - 1] = tasks.get(tasks.size() - 1).call();
+      }
+      for (int i = 0; i < futures.size(); ++i)
+      {
+        results[i] = getResult(futures.get(i));
+      }
+      return merge(results, n);
+    }
+    finally
+    {
+      searcher.close();
+      multiReader.close();
+    }
+  }
+
+  private static TaskHits getResult(Future<TaskHits> future) throws IOException
+  {
+    try
+    {
+      return future.get();
+    }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+      throw new ThreadInterruptedException(e);
+    }
+    catch (ExecutionException e)
+    {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) throw (IOException) cause;
+      if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+      if (cause instanceof Error) throw (Error) cause;
+      IOException ioe = new IOException(cause.getMessage());
+      ioe.initCause(cause);
+      throw ioe;
+    }
+  }
+
+  /**
+   * Splits the segments of the readers into tasks of at least minDocsPerTask docs.
+   */
+  private <R extends IndexReader> List<SearchTask> split(List<ZoieIndexReader<R>> readers, Weight weight, int n)
+  {
+    int minDocsPerTask = _minDocsPerTask;
+    List<SearchTask> tasks = new ArrayList<SearchTask>();
+    List<ZoieIndexReader<R>> dedupReaders = _dedupAtQueryTime ? readers : null;
+    SearchTask task = null;
+    int docBase = 0;
+    for (int i = 0; i < readers.size(); ++i)
+    {
+      ZoieIndexReader<R> reader = readers.get(i);
+      ZoieIndexReader<R>[] subReaders = reader.getSequentialSubReaders();
+      if (subReaders == null)
+      {
+        subReaders = newArray(reader);
+      }
+      int subDocBase = docBase;
+      for (ZoieIndexReader<R> subReader : subReaders)
+      {
+        if (task == null)
+        {
+          task = new SearchTask(weight, n, dedupReaders);
+          tasks.add(task);
+        }
+        task.add(new Leaf(subReader, subDocBase, i));
+        subDocBase += subReader.maxDoc();
+        if (task._numDocs >= minDocsPerTask)
+        {
+          task = null;
+        }
+      }
+      docBase += reader.maxDoc();
+    }
+    return tasks;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <R extends IndexReader> ZoieIndexReader<R>[] newArray(ZoieIndexReader<R> reader)
+  {
+    return new ZoieIndexReader[] { reader };
+  }
+
+  /**
+   * Merges the sorted hits of the tasks, skipping the hits of a UID that is also
+   * found in a fresher reader.
+   */
+  private static TopDocs merge(TaskHits[] results, int n)
+  {
+    int totalHits = 0;
+    int numHits = 0;
+    for (TaskHits result : results)
+    {
+      totalHits += result._totalHits;
+      numHits += result._hits.length;
+    }
+
+    // the freshest reader of every UID
+    Long2IntOpenHashMap freshest = new Long2IntOpenHashMap(numHits);
+    for (TaskHits result : results)
+    {
+      for (Hit hit : result._hits)
+      {
+        if (!freshest.containsKey(hit._uid) || freshest.get(hit._uid) > hit._readerIndex)
+        {
+          freshest.put(hit._uid, hit._readerIndex);
+        }
+      }
+    }
+
+    PriorityQueue<Cursor> queue = new PriorityQueue<Cursor>(Math.max(1, results.length), CURSOR_COMPARATOR);
+    for (TaskHits result : results)
+    {
+      if (result._hits.length > 0)
+      {
+        queue.offer(new Cursor(result._hits));
+      }
+    }
+
+    LongOpenHashSet seen = new LongOpenHashSet(Math.min(n, numHits));
+    List<ScoreDoc> scoreDocs = new ArrayList<ScoreDoc>(Math.min(n, numHits));
+    int numDups = 0;
+    while (queue.size() > 0 && scoreDocs.size() < n)
+    {
+      Cursor cursor = queue.poll();
+      Hit hit = cursor.current();
+      if (freshest.get(hit._uid) != hit._readerIndex || !seen.add(hit._uid))
+      {
+        numDups++;
+      }
+      else
+      {
+        scoreDocs.add(new ScoreDoc(hit._doc, hit._score));
+      }
+      if (cursor.next())
+      {
+        queue.offer(cursor);
+      }
+    }
+    float maxScore = scoreDocs.isEmpty() ? Float.NaN : scoreDocs.get(0).score;
+    return new TopDocs(totalHits - numDups, scoreDocs.toArray(new ScoreDoc[scoreDocs.size()]), maxScore);
+  }
+
+  private static final Comparator<Cursor> CURSOR_COMPARATOR = new Comparator<Cursor>()
+  {
+    public int compare(Cursor c1, Cursor c2)
+    {
+      Hit h1 = c1.current();
+      Hit h2 = c2.current();
+      // the best hit first
+      if (h1._score > h2._score) return -1;
+      if (h1._score < h2._score) return 1;
+      return h1._doc - h2._doc;
+    }
+  };
+
+  private static final class Leaf
+  {
+    final ZoieIndexReader<?> _reader;
+    final int _docBase;
+    final int _readerIndex;
+
+    Leaf(ZoieIndexReader<?> reader, int docBase, int readerIndex)
+    {
+      _reader = reader;
+      _docBase = docBase;
+      _readerIndex = readerIndex;
+    }
+  }
+
+  private static final class Hit
+  {
+    final int _doc;
+    final float _score;
+    final long _uid;
+    final int _readerIndex;
+
+    Hit(int doc, float score, long uid, int readerIndex)
+    {
+      _doc = doc;
+      _score = score;
+      _uid = uid;
+      _readerIndex = readerIndex;
+    }
+  }
+
+  private static final class TaskHits
+  {
+    final int _totalHits;
+    final Hit[] _hits;
+
+    TaskHits(int totalHits, Hit[] hits)
+    {
+      _totalHits = totalHits;
+      _hits = hits;
+    }
+  }
+
+  private static final class Cursor
+  {
+    private final Hit[] _hits;
+    private int _pos = 0;
+
+    Cursor(Hit[] hits)
+    {
+      _hits = hits;
+    }
+
+    Hit current()
+    {
+      return _hits[_pos];
+    }
+
+    boolean next()
+    {
+      return ++_pos < _hits.length;
+    }
+  }
+
+  private static final class SearchTask implements Callable<TaskHits>
+  {
+    private final Weight _weight;
+    private final int _n;
+    private final List<? extends ZoieIndexReader<?>> _dedupReaders;
+    private final List<Leaf> _leaves = new ArrayList<Leaf>();
+    private int _numDocs = 0;
+
+    SearchTask(Weight weight, int n, List<? extends ZoieIndexReader<?>> dedupReaders)
+    {
+      _weight = weight;
+      _n = n;
+      _dedupReaders = dedupReaders;
+    }
+
+    void add(Leaf leaf)
+    {
+      _leaves.add(leaf);
+      _numDocs += leaf._reader.maxDoc();
+    }
+
+    public TaskHits call() throws IOException
+    {
+      TopScoreDocCollector topDocsCollector = TopScoreDocCollector.create(_n, !_weight.scoresDocsOutOfOrder());
+      Collector collector = topDocsCollector;
+      if (_dedupReaders != null)
+      {
+        collector = new UIDDedupCollector(topDocsCollector, _dedupReaders);
+      }
+      for (Leaf leaf : _leaves)
+      {
+        collector.setNextReader(leaf._reader, leaf._docBase);
+        Scorer scorer = _weight.scorer(leaf._reader, !collector.acceptsDocsOutOfOrder(), true);
+        if (scorer != null)
+        {
+          scorer.score(collector);
+        }
+      }
+      TopDocs topDocs = topDocsCollector.topDocs();
+      Hit[] hits = new Hit[topDocs.scoreDocs.length];
+      for (int i = 0; i < hits.length; ++i)
+      {
+        ScoreDoc scoreDoc = topDocs.scoreDocs[i];
+        Leaf leaf = findLeaf(scoreDoc.doc);
+        hits[i] = new Hit(scoreDoc.doc, scoreDoc.score, leaf._reader.getUID(scoreDoc.doc - leaf._docBase), leaf._readerIndex);
+      }
+      return new TaskHits(topDocs.totalHits, hits);
+    }
+
+    private Leaf findLeaf(int doc)
+    {
+      int lo = 0;
+      int hi = _leaves.size() - 1;
+      while (lo < hi)
+      {
+        int mid = (lo + hi + 1) >>> 1;
+        if (_leaves.get(mid)._docBase <= doc)
+        {
+          lo = mid;
+        }
+        else
+        {
+          hi = mid - 1;
+        }
+      }
+      return _leaves.get(lo);
+    }
+  }
+}
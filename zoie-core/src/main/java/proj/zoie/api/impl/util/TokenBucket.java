@@ -0,0 +1,115 @@
+package proj.zoie.api.impl.util;
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free token bucket rate limiter: tokens are added at a steady rate up
+ * to a burst capacity, and taken one or a few at a time. The bucket is kept
+ * as the time at which it will be empty, moved forward by a compare and set
+ * for every acquisition, so that the rate is enforced per token rather than
+ * per batch and an idle period allows at most a burst.
+ * <br>
+ * {@link #tryAcquire(int)} never blocks; it returns how long to wait before
+ * the tokens are available, for the caller to wait in its own way.
+ */
+public class TokenBucket
+{
+  private static final long NANOS_PER_MINUTE = 60L * 1000L * 1000L * 1000L;
+
+  private final AtomicLong _emptyAt = new AtomicLong(System.nanoTime()); // full
+  private volatile long _nanosPerToken;
+  private volatile long _burstNanos;
+  private volatile long _tokensPerMinute;
+  private volatile long _burst;
+
+  /**
+   * @param tokensPerMinute the rate, Long.MAX_VALUE for no limit
+   * @param burst the capacity of the bucket, at least 1
+   */
+  public TokenBucket(long tokensPerMinute, long burst)
+  {
+    _burst = Math.max(1L, burst);
+    setRate(tokensPerMinute);
+  }
+
+  /**
+   * @param tokensPerMinute the rate, Long.MAX_VALUE for no limit
+   */
+  public void setRate(long tokensPerMinute)
+  {
+    _tokensPerMinute = Math.max(1L, tokensPerMinute);
+    // rates above one token per nanosecond are not limited
+    _nanosPerToken = NANOS_PER_MINUTE / _tokensPerMinute;
+    updateBurstNanos();
+  }
+
+  public long getRate()
+  {
+    return _tokensPerMinute;
+  }
+
+  /**
+   * @param burst the number of tokens that can be taken at once after an
+   *          idle period, at least 1
+   */
+  public void setBurst(long burst)
+  {
+    _burst = Math.max(1L, burst);
+    updateBurstNanos();
+  }
+
+  public long getBurst()
+  {
+    return _burst;
+  }
+
+  private void updateBurstNanos()
+  {
+    long nanosPerToken = _nanosPerToken;
+    _burstNanos = nanosPerToken == 0 ? 0 : Math.min(_burst, Long.MAX_VALUE / 4 / nanosPerToken) * nanosPerToken;
+  }
+
+  public boolean isLimited()
+  {
+    return _nanosPerToken > 0;
+  }
+
+  /**
+   * Takes the tokens if the bucket has them.
+   * @param tokens at most the burst, more are taken as the burst
+   * @return 0 if the tokens were taken, otherwise the nanoseconds to wait for
+   *         the bucket to have them
+   */
+  public long tryAcquire(int tokens)
+  {
+    final long nanosPerToken = _nanosPerToken;
+    if (nanosPerToken == 0) return 0L;
+    final long burstNanos = _burstNanos;
+    final long cost = Math.min(tokens * nanosPerToken, burstNanos);
+    while (true)
+    {
+      long now = System.nanoTime();
+      long emptyAt = _emptyAt.get();
+      // an idle bucket refills up to the burst only
+      long newEmptyAt = (emptyAt - now < 0 ? now : emptyAt) + cost;
+      long wait = newEmptyAt - now - burstNanos;
+      if (wait > 0) return wait;
+      if (_emptyAt.compareAndSet(emptyAt, newEmptyAt)) return 0L;
+    }
+  }
+}
@@ -18,10 +18,19 @@ package proj.zoie.api.indexing;
 public abstract class OptimizeScheduler {
   public enum OptimizeType
   {
-    FULL, PARTIAL, NONE
+    FULL, PARTIAL, INCREMENTAL, NONE
   };
   
   abstract public OptimizeType getScheduledOptimizeType();
+
+  /**
+   * @return the number of segments the merges of the next disk flush bring the
+   *         disk index down to when {@link OptimizeType#INCREMENTAL} is scheduled
+   */
+  public int getOptimizeTargetSegments() {
+    return 1;
+  }
+
   abstract public void finished();
   abstract public void shutdown();
 }
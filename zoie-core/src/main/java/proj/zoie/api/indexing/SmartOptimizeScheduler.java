@@ -0,0 +1,267 @@
+package proj.zoie.api.indexing;
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import org.apache.log4j.Logger;
+
+import proj.zoie.mbean.ZoieSystemAdminMBean;
+
+/**
+ * An {@link OptimizeScheduler} that decides from the health of the disk index
+ * and the observed query load when and how far to optimize, instead of
+ * optimizing at a fixed time of the day.
+ * <br>
+ * The decision is re-evaluated at most every {@link #getCheckIntervalMillis()}
+ * while idle, and before every step while optimizing:
+ * <ul>
+ * <li>nothing is done while the query load (getIndexReaders calls per second)
+ * is above {@link #getMaxLoadRatio()} of the recent peak load;</li>
+ * <li>an index with more than {@link #getMaxSegments()} segments is merged
+ * down {@link #getSegmentsPerStep()} segments at a time
+ * ({@link OptimizeType#INCREMENTAL}), one step per disk flush;</li>
+ * <li>deletes are expunged with the merges of the next disk flush
+ * ({@link OptimizeType#PARTIAL}) while the deleted docs ratio is at least
+ * {@link #getExpungeDeleteRatio()}.</li>
+ * </ul>
+ * Every step is done by the merges of a disk flush, which only take the newest
+ * segments, at most twice as many as the step removes, so the index is never
+ * rewritten as a whole and {@link #interrupt()} stops an optimize between two
+ * steps.
+ * <br>
+ * Not used unless set with {@link proj.zoie.impl.indexing.ZoieSystem#setOptimizeScheduler(OptimizeScheduler)}
+ * or enabled with {@link proj.zoie.impl.indexing.ZoieConfig#setSmartOptimize(boolean)}.
+ */
+public class SmartOptimizeScheduler extends OptimizeScheduler {
+  private static final Logger log = Logger.getLogger(SmartOptimizeScheduler.class);
+
+  private static final long DAY_IN_MILLIS = 1000L * 60L * 60L * 24L;
+
+  public static final long DEFAULT_CHECK_INTERVAL_MILLIS = 60000L;
+  public static final int DEFAULT_MAX_SEGMENTS = 20;
+  public static final int DEFAULT_SEGMENTS_PER_STEP = 4;
+  public static final float DEFAULT_EXPUNGE_DELETE_RATIO = 0.1f;
+  public static final float DEFAULT_MAX_LOAD_RATIO = 0.5f;
+
+  private final ZoieSystemAdminMBean _zoieAdmin;
+
+  private volatile boolean _enabled = true;
+  private volatile long _checkIntervalMillis = DEFAULT_CHECK_INTERVAL_MILLIS;
+  private volatile int _maxSegments = DEFAULT_MAX_SEGMENTS;
+  private volatile int _segmentsPerStep = DEFAULT_SEGMENTS_PER_STEP;
+  private volatile float _expungeDeleteRatio = DEFAULT_EXPUNGE_DELETE_RATIO;
+  private volatile float _maxLoadRatio = DEFAULT_MAX_LOAD_RATIO;
+
+  private OptimizeType _optimizeType = OptimizeType.NONE;
+  private int _targetSegments = 1;
+  private long _lastCheck = 0L;
+  private volatile boolean _interrupted = false;
+
+  private long _lastRequestCount = -1L;
+  private long _lastLoadSample = 0L;
+  private double _load = 0.0d;
+  private double _peakLoad = 0.0d;
+
+  private volatile String _lastDecision = null;
+  private volatile long _numIncrementalSteps = 0L;
+  private volatile long _numExpungeSteps = 0L;
+
+  public SmartOptimizeScheduler(ZoieSystemAdminMBean zoieAdmin) {
+    _zoieAdmin = zoieAdmin;
+  }
+
+  public synchronized OptimizeType getScheduledOptimizeType() {
+    if (!_enabled) return OptimizeType.NONE;
+    long now = System.currentTimeMillis();
+    if (_optimizeType == OptimizeType.NONE && now - _lastCheck < _checkIntervalMillis) {
+      return OptimizeType.NONE;
+    }
+    _lastCheck = now;
+    try {
+      evaluate(now);
+    } catch (Exception e) {
+      log.error("failed to check the index, not optimizing: " + e.getMessage(), e);
+      _optimizeType = OptimizeType.NONE;
+    }
+    if (_optimizeType == OptimizeType.INCREMENTAL) {
+      _numIncrementalSteps++;
+    } else if (_optimizeType == OptimizeType.PARTIAL) {
+      _numExpungeSteps++;
+    }
+    return _optimizeType;
+  }
+
+  private void evaluate(long now) throws Exception {
+    double load = sampleLoad(now);
+    int numDocs = _zoieAdmin.getDiskIndexSize();
+    int numDeleted = _zoieAdmin.getDiskIndexNumDeletedDocs();
+    if (numDocs + numDeleted <= 0) {
+      // nothing on disk yet
+      _optimizeType = OptimizeType.NONE;
+      return;
+    }
+    int numSegs = _zoieAdmin.getDiskIndexSegmentCount();
+    float delRatio = (float) numDeleted / (float) (numDocs + numDeleted);
+
+    OptimizeType type = OptimizeType.NONE;
+    String reason;
+    if (_interrupted) {
+      reason = "interrupted";
+    } else if (_peakLoad > 0.0d && load > _maxLoadRatio * _peakLoad) {
+      reason = "load too high";
+    } else if (numSegs > _maxSegments) {
+      type = OptimizeType.INCREMENTAL;
+      _targetSegments = Math.max(_maxSegments, numSegs - _segmentsPerStep);
+      reason = "merge down to " + _targetSegments + " segments";
+    } else if (delRatio >= _expungeDeleteRatio) {
+      type = OptimizeType.PARTIAL;
+      reason = "expunge deletes";
+    } else {
+      reason = "index is healthy";
+    }
+
+    if (type != _optimizeType) {
+      log.info("optimize: " + type + " (" + reason + ")");
+    }
+    _optimizeType = type;
+    _lastDecision = type + ": " + reason + ", segments: " + numSegs + ", delRatio: " + delRatio
+        + ", load: " + load + ", peakLoad: " + _peakLoad;
+    if (log.isDebugEnabled()) {
+      log.debug(_lastDecision);
+    }
+  }
+
+  /**
+   * Samples the getIndexReaders rate. The peak load decays by half every day so
+   * that it follows the daily traffic pattern.
+   */
+  private double sampleLoad(long now) {
+    long count = _zoieAdmin.getIndexReaderRequestCount();
+    if (_lastRequestCount >= 0 && now - _lastLoadSample >= 1000L) {
+      long elapsed = now - _lastLoadSample;
+      _load = (double) (count - _lastRequestCount) * 1000.0d / (double) elapsed;
+      _peakLoad = Math.max(_load, _peakLoad * Math.pow(0.5d, (double) elapsed / DAY_IN_MILLIS));
+    }
+    if (_lastRequestCount < 0 || now - _lastLoadSample >= 1000L) {
+      _lastRequestCount = count;
+      _lastLoadSample = now;
+    }
+    return _load;
+  }
+
+  public synchronized int getOptimizeTargetSegments() {
+    return _targetSegments;
+  }
+
+  public synchronized void finished() {
+    // the next flush decides whether another step is needed
+  }
+
+  /**
+   * Stops the current optimize before its next step. Optimizing resumes with
+   * {@link #resume()}.
+   */
+  public synchronized void interrupt() {
+    _interrupted = true;
+    _optimizeType = OptimizeType.NONE;
+    log.info("optimize interrupted");
+  }
+
+  public synchronized void resume() {
+    _interrupted = false;
+    _lastCheck = 0L;
+  }
+
+  public boolean isInterrupted() {
+    return _interrupted;
+  }
+
+  @Override
+  public void shutdown() {
+    interrupt();
+  }
+
+  public void setEnabled(boolean enabled) {
+    _enabled = enabled;
+  }
+
+  public boolean isEnabled() {
+    return _enabled;
+  }
+
+  public long getCheckIntervalMillis() {
+    return _checkIntervalMillis;
+  }
+
+  public void setCheckIntervalMillis(long checkIntervalMillis) {
+    _checkIntervalMillis = checkIntervalMillis;
+  }
+
+  public int getMaxSegments() {
+    return _maxSegments;
+  }
+
+  public void setMaxSegments(int maxSegments) {
+    _maxSegments = Math.max(1, maxSegments);
+  }
+
+  public int getSegmentsPerStep() {
+    return _segmentsPerStep;
+  }
+
+  public void setSegmentsPerStep(int segmentsPerStep) {
+    _segmentsPerStep = Math.max(1, segmentsPerStep);
+  }
+
+  public float getExpungeDeleteRatio() {
+    return _expungeDeleteRatio;
+  }
+
+  public void setExpungeDeleteRatio(float expungeDeleteRatio) {
+    _expungeDeleteRatio = expungeDeleteRatio;
+  }
+
+  public float getMaxLoadRatio() {
+    return _maxLoadRatio;
+  }
+
+  /**
+   * @param maxLoadRatio the fraction of the peak query load above which no
+   *          optimize is done; 1 or more to ignore the load
+   */
+  public void setMaxLoadRatio(float maxLoadRatio) {
+    _maxLoadRatio = maxLoadRatio;
+  }
+
+  public synchronized double getLoad() {
+    return _load;
+  }
+
+  public synchronized double getPeakLoad() {
+    return _peakLoad;
+  }
+
+  public String getLastDecision() {
+    return _lastDecision;
+  }
+
+  public long getNumIncrementalSteps() {
+    return _numIncrementalSteps;
+  }
+
+  public long getNumExpungeSteps() {
+    return _numExpungeSteps;
+  }
+}
@@ -19,6 +19,7 @@ public class Box<R extends IndexReader, D>
   List<ZoieSystem<R, D>> _retiree;
   List<ZoieSystem<R, D>> _actives;
   IndexReaderDecorator<R> _decorator;
+  long _generation = 0; // set by the reader manager before publishing the box
 
   /**
    * Copy the given lists to have immutable behavior.
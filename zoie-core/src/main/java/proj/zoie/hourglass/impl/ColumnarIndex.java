@@ -0,0 +1,547 @@
+package proj.zoie.hourglass.impl;
+
+import it.unimi.dsi.fastutil.longs.Long2LongOpenHashMap;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import org.apache.log4j.Logger;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.CachingTokenFilter;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.PayloadAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
+import org.apache.lucene.analysis.tokenattributes.TermAttribute;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.Fieldable;
+import org.apache.lucene.index.Payload;
+import org.apache.lucene.index.Term;
+
+import proj.zoie.api.ZoieDocValues;
+import proj.zoie.api.DataConsumer.DataEvent;
+import proj.zoie.api.indexing.ZoieIndexable;
+import proj.zoie.api.indexing.ZoieIndexable.IndexingReq;
+
+/**
+ * Append-only in-memory index of the current Hourglass period.
+ * <br>
+ * Docs get their docids in arrival order, so the postings of a term, kept in
+ * growable arrays, are sorted without any merging and recency is docid order.
+ * Values of the long fields and of the {@link ZoieDocValues} columns are kept
+ * in primitive columns by docid as the docs are added.
+ * <br>
+ * One thread adds docs, with {@link #add(Collection)}; readers see the docs
+ * added before {@link #openReader()}: the arrays only ever get appended to,
+ * and are copied when they grow, so a reader is a maxDoc and the references
+ * the index had then. An update marks the previous docs of the UID deleted.
+ * <br>
+ * The Lucene documents are kept until the index is written to a Lucene shard,
+ * see {@link #getLiveDocs()}. Fields given as token streams or readers are
+ * replaced by {@link CachingTokenFilter}s when inverted, so they can be
+ * indexed again then.
+ */
+final class ColumnarIndex
+{
+  private static final Logger log = Logger.getLogger(ColumnarIndex.class);
+  private static final int INITIAL_CAPACITY = 1024;
+
+  private final Analyzer _analyzer;
+  private final Comparator<String> _versionComparator;
+  private final ConcurrentSkipListMap<Term, Postings> _terms = new ConcurrentSkipListMap<Term, Postings>();
+  private final Set<String> _fieldNames = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+  private final String[] _longFields;
+
+  // written by the indexing thread only, read through snapshots
+  private int _maxDoc = 0;
+  private int _numDocs = 0;
+  private long[] _uids = new long[INITIAL_CAPACITY];
+  private IndexingReq[] _reqs = new IndexingReq[INITIAL_CAPACITY];
+  private long[] _deleted = new long[INITIAL_CAPACITY >> 6];
+  private boolean _deletesChanged = false;
+  private final Map<String, long[]> _longColumns = new HashMap<String, long[]>();
+  private final Map<String, byte[][]> _docValues = new HashMap<String, byte[][]>();
+  // uid -> first docid << 32 | number of docs
+  private final Long2LongOpenHashMap _uidDocs = new Long2LongOpenHashMap();
+  private long _minUID = Long.MAX_VALUE;
+  private long _maxUID = Long.MIN_VALUE;
+  private String _version = null;
+  private long _generation = 0;
+  private final Map<Term, DocTerm> _docTerms = new HashMap<Term, DocTerm>();
+  private final Map<String, Integer> _fieldPositions = new HashMap<String, Integer>();
+
+  private volatile Snapshot _snapshot;
+
+  /**
+   * @param analyzer the analyzer of the docs added without one
+   * @param longFields the fields whose indexed values are kept in long columns,
+   *          parsed as longs, null for none
+   */
+  ColumnarIndex(Analyzer analyzer, Collection<String> longFields, Comparator<String> versionComparator)
+  {
+    _analyzer = analyzer;
+    _versionComparator = versionComparator;
+    _longFields = new String[longFields == null ? 0 : longFields.size()];
+    int i = 0;
+    for (String field : longFields == null ? Collections.<String>emptyList() : longFields)
+    {
+      _longFields[i++] = field.intern(); // like the fields of the terms
+      _longColumns.put(field, new long[INITIAL_CAPACITY]);
+    }
+    _snapshot = takeSnapshot();
+  }
+
+  /**
+   * Indexes the events, in order, then publishes the new docs to the readers
+   * opened from then on.
+   */
+  void add(Collection<DataEvent<ZoieIndexable>> events) throws IOException
+  {
+    for (DataEvent<ZoieIndexable> evt : events)
+    {
+      if (evt == null) continue;
+      String version = evt.getVersion();
+      if (version != null && (_version == null || _versionComparator.compare(_version, version) < 0))
+      {
+        _version = version;
+      }
+      ZoieIndexable indexable = evt.getData();
+      if (indexable == null || indexable.isSkip()) continue;
+      long uid = indexable.getUID();
+      delete(uid);
+      if (indexable.isDeleted()) continue;
+      int first = _maxDoc;
+      for (IndexingReq req : indexable.buildIndexingReqs())
+      {
+        if (req != null && req.getDocument() != null)
+        {
+          addDocument(uid, req);
+        }
+      }
+      if (_maxDoc > first)
+      {
+        _uidDocs.put(uid, ((long) first << 32) | (_maxDoc - first));
+        if (uid < _minUID) _minUID = uid;
+        if (uid > _maxUID) _maxUID = uid;
+      }
+    }
+    _snapshot = takeSnapshot();
+  }
+
+  private void delete(long uid)
+  {
+    if (!_uidDocs.containsKey(uid)) return;
+    long docs = _uidDocs.remove(uid);
+    int first = (int) (docs >>> 32);
+    int end = first + (int) docs;
+    for (int doc = first; doc < end; ++doc)
+    {
+      _deleted[doc >> 6] |= 1L << doc;
+    }
+    _numDocs -= end - first;
+    _deletesChanged = true;
+  }
+
+  private void addDocument(long uid, IndexingReq req) throws IOException
+  {
+    int docid = _maxDoc;
+    ensureCapacity(docid + 1);
+    Document doc = req.getDocument();
+    Analyzer analyzer = req.getAnalyzer() == null ? _analyzer : req.getAnalyzer();
+    _docTerms.clear();
+    _fieldPositions.clear();
+    for (Object obj : doc.getFields())
+    {
+      Fieldable field = (Fieldable) obj;
+      String name = field.name();
+      _fieldNames.add(name);
+      if (!field.isIndexed()) continue;
+      Integer last = _fieldPositions.get(name);
+      int position = last == null ? -1 : last + analyzer.getPositionIncrementGap(name);
+      if (!field.isTokenized())
+      {
+        String value = field.stringValue();
+        if (value == null) continue;
+        addPosition(new Term(name, value), ++position, null);
+      }
+      else
+      {
+        position = invert(docid, field, analyzer, position);
+      }
+      _fieldPositions.put(name, position);
+    }
+    for (Map.Entry<Term, DocTerm> entry : _docTerms.entrySet())
+    {
+      Postings postings = _terms.get(entry.getKey());
+      if (postings == null)
+      {
+        postings = new Postings();
+        _terms.put(entry.getKey(), postings);
+      }
+      postings.add(docid, entry.getValue());
+    }
+    for (String field : _longFields)
+    {
+      // the indexed terms, stored or not; FieldCache ends up with the last one
+      String val = null;
+      for (Term term : _docTerms.keySet())
+      {
+        if (term.field() == field && (val == null || term.text().compareTo(val) > 0)) val = term.text();
+      }
+      if (val == null) continue;
+      try
+      {
+        _longColumns.get(field)[docid] = Long.parseLong(val);
+      } catch (NumberFormatException e)
+      {
+        log.warn("not a long value of " + field + " for uid " + uid + ": " + val);
+      }
+    }
+    _uids[docid] = uid;
+    _reqs[docid] = req;
+    _maxDoc = docid + 1;
+    ++_numDocs;
+  }
+
+  /**
+   * @return the position of the last token of the field
+   */
+  private int invert(int docid, Fieldable field, Analyzer analyzer, int position) throws IOException
+  {
+    TokenStream stream = field.tokenStreamValue();
+    if (stream != null || field.readerValue() != null)
+    {
+      // can only be read once
+      if (stream == null)
+      {
+        stream = analyzer.tokenStream(field.name(), field.readerValue());
+      }
+      stream.reset();
+      if (field instanceof Field)
+      {
+        CachingTokenFilter cache = new CachingTokenFilter(stream);
+        ((Field) field).setTokenStream(cache);
+        stream = cache;
+      }
+    }
+    else
+    {
+      String value = field.stringValue();
+      if (value == null) return position;
+      stream = analyzer.reusableTokenStream(field.name(), new StringReader(value));
+      stream.reset();
+    }
+    String name = field.name();
+    boolean isColumn = ZoieDocValues.COLUMN_FIELD.equals(name);
+    TermAttribute termAttr = (TermAttribute) stream.addAttribute(TermAttribute.class);
+    PositionIncrementAttribute posIncrAttr = (PositionIncrementAttribute) stream.addAttribute(PositionIncrementAttribute.class);
+    PayloadAttribute payloadAttr = stream.hasAttribute(PayloadAttribute.class) ? (PayloadAttribute) stream.getAttribute(PayloadAttribute.class) : null;
+    while (stream.incrementToken())
+    {
+      position += posIncrAttr.getPositionIncrement();
+      Payload payload = payloadAttr == null ? null : payloadAttr.getPayload();
+      byte[] bytes = (payload == null || payload.length() == 0) ? null : payload.toByteArray();
+      String text = termAttr.term();
+      addPosition(new Term(name, text), position, bytes);
+      if (isColumn && bytes != null)
+      {
+        setDocValue(text, docid, bytes);
+      }
+    }
+    stream.end();
+    return position;
+  }
+
+  private void addPosition(Term term, int position, byte[] payload)
+  {
+    DocTerm docTerm = _docTerms.get(term);
+    if (docTerm == null)
+    {
+      docTerm = new DocTerm();
+      _docTerms.put(term, docTerm);
+    }
+    docTerm.add(position, payload);
+  }
+
+  private void setDocValue(String column, int docid, byte[] value)
+  {
+    byte[][] values = _docValues.get(column);
+    if (values == null)
+    {
+      values = new byte[_uids.length][];
+      _docValues.put(column, values);
+    }
+    values[docid] = value;
+  }
+
+  private void ensureCapacity(int size)
+  {
+    if (size <= _uids.length) return;
+    int capacity = Math.max(size, _uids.length << 1);
+    _uids = Arrays.copyOf(_uids, capacity);
+    _reqs = Arrays.copyOf(_reqs, capacity);
+    _deleted = Arrays.copyOf(_deleted, (capacity + 63) >> 6);
+    for (Map.Entry<String, long[]> entry : _longColumns.entrySet())
+    {
+      entry.setValue(Arrays.copyOf(entry.getValue(), capacity));
+    }
+    for (Map.Entry<String, byte[][]> entry : _docValues.entrySet())
+    {
+      entry.setValue(Arrays.copyOf(entry.getValue(), capacity));
+    }
+  }
+
+  private Snapshot takeSnapshot()
+  {
+    Snapshot prev = _snapshot;
+    long[] deleted;
+    if (prev != null && !_deletesChanged && prev._deleted.length == _deleted.length)
+    {
+      deleted = prev._deleted;
+    }
+    else
+    {
+      // the bits of the docs of the readers must not change under them
+      deleted = _deleted.clone();
+      _deletesChanged = false;
+    }
+    return new Snapshot(_maxDoc, _numDocs, _uids, _reqs, deleted,
+        new HashMap<String, long[]>(_longColumns), new HashMap<String, byte[][]>(_docValues),
+        _minUID, _maxUID, _version, ++_generation);
+  }
+
+  /**
+   * @return a reader of the docs added so far
+   */
+  ColumnarIndexReader openReader()
+  {
+    return new ColumnarIndexReader(this, _snapshot);
+  }
+
+  /**
+   * @return the version of the last event added
+   */
+  String getVersion()
+  {
+    return _snapshot._version;
+  }
+
+  int numDocs()
+  {
+    return _snapshot._numDocs;
+  }
+
+  ConcurrentSkipListMap<Term, Postings> getTerms()
+  {
+    return _terms;
+  }
+
+  Set<String> getFieldNames()
+  {
+    return _fieldNames;
+  }
+
+  /**
+   * @return an event per UID not deleted, with the Lucene documents it was
+   *         added with, in arrival order; the index must not be added to
+   *         meanwhile
+   */
+  List<DataEvent<ZoieIndexable>> getLiveDocs()
+  {
+    Snapshot snapshot = _snapshot;
+    List<DataEvent<ZoieIndexable>> events = new ArrayList<DataEvent<ZoieIndexable>>(snapshot._numDocs);
+    int doc = 0;
+    while (doc < snapshot._maxDoc)
+    {
+      if (snapshot.isDeleted(doc))
+      {
+        ++doc;
+        continue;
+      }
+      long uid = snapshot._uids[doc];
+      int end = doc + 1;
+      while (end < snapshot._maxDoc && snapshot._uids[end] == uid && !snapshot.isDeleted(end)) ++end;
+      IndexingReq[] reqs = Arrays.copyOfRange(snapshot._reqs, doc, end);
+      events.add(new DataEvent<ZoieIndexable>(new LiveIndexable(uid, reqs), snapshot._version));
+      doc = end;
+    }
+    return events;
+  }
+
+  /**
+   * A UID and its documents, added again to a Lucene index.
+   */
+  private static final class LiveIndexable implements ZoieIndexable
+  {
+    private final long _uid;
+    private final IndexingReq[] _reqs;
+
+    LiveIndexable(long uid, IndexingReq[] reqs)
+    {
+      _uid = uid;
+      _reqs = reqs;
+    }
+
+    public long getUID()
+    {
+      return _uid;
+    }
+
+    public boolean isDeleted()
+    {
+      return false;
+    }
+
+    public boolean isSkip()
+    {
+      return false;
+    }
+
+    public IndexingReq[] buildIndexingReqs()
+    {
+      return _reqs;
+    }
+  }
+
+  /**
+   * Positions and payloads of a term in the doc being added.
+   */
+  private static final class DocTerm
+  {
+    int[] positions = new int[4];
+    byte[][] payloads = null;
+    int freq = 0;
+
+    void add(int position, byte[] payload)
+    {
+      if (freq == positions.length)
+      {
+        positions = Arrays.copyOf(positions, freq << 1);
+        if (payloads != null) payloads = Arrays.copyOf(payloads, freq << 1);
+      }
+      if (payload != null && payloads == null)
+      {
+        payloads = new byte[positions.length][];
+      }
+      positions[freq] = position;
+      if (payloads != null) payloads[freq] = payload;
+      ++freq;
+    }
+  }
+
+  /**
+   * Postings of a term: the docs in docid order, with their positions and
+   * payloads. The arrays are written before the size is, so a reader reading
+   * the size first sees all the entries up to it.
+   */
+  static final class Postings
+  {
+    volatile int[] _docs = new int[2];
+    volatile int[] _freqs = new int[2];
+    volatile int[] _posStarts = new int[2];
+    volatile int[] _positions = new int[2];
+    volatile byte[][] _payloads = null;
+    private int _posSize = 0;
+    volatile int _size = 0;
+
+    void add(int docid, DocTerm docTerm)
+    {
+      int n = _size;
+      if (n == _docs.length)
+      {
+        _docs = Arrays.copyOf(_docs, n << 1);
+        _freqs = Arrays.copyOf(_freqs, n << 1);
+        _posStarts = Arrays.copyOf(_posStarts, n << 1);
+      }
+      int freq = docTerm.freq;
+      int posSize = _posSize;
+      if (posSize + freq > _positions.length)
+      {
+        int capacity = Math.max(posSize + freq, _positions.length << 1);
+        _positions = Arrays.copyOf(_positions, capacity);
+        if (_payloads != null) _payloads = Arrays.copyOf(_payloads, capacity);
+      }
+      if (docTerm.payloads != null)
+      {
+        if (_payloads == null) _payloads = new byte[_positions.length][];
+        System.arraycopy(docTerm.payloads, 0, _payloads, posSize, freq);
+      }
+      System.arraycopy(docTerm.positions, 0, _positions, posSize, freq);
+      _docs[n] = docid;
+      _freqs[n] = freq;
+      _posStarts[n] = posSize;
+      _posSize = posSize + freq;
+      _size = n + 1;
+    }
+
+    /**
+     * @return the number of entries of the docs before maxDoc
+     */
+    int count(int maxDoc)
+    {
+      int size = _size;
+      int[] docs = _docs;
+      if (size == 0 || docs[size - 1] < maxDoc) return size;
+      int lo = 0;
+      int hi = size - 1;
+      while (lo < hi)
+      {
+        int mid = (lo + hi) >>> 1;
+        if (docs[mid] < maxDoc) lo = mid + 1;
+        else hi = mid;
+      }
+      return lo;
+    }
+  }
+
+  /**
+   * What a reader sees of the index.
+   */
+  static final class Snapshot
+  {
+    final int _maxDoc;
+    final int _numDocs;
+    final long[] _uids;
+    final IndexingReq[] _reqs;
+    final long[] _deleted;
+    final Map<String, long[]> _longColumns;
+    final Map<String, byte[][]> _docValues;
+    final long _minUID;
+    final long _maxUID;
+    final String _version;
+    final long _generation;
+
+    Snapshot(int maxDoc, int numDocs, long[] uids, IndexingReq[] reqs, long[] deleted,
+        Map<String, long[]> longColumns, Map<String, byte[][]> docValues,
+        long minUID, long maxUID, String version, long generation)
+    {
+      _maxDoc = maxDoc;
+      _numDocs = numDocs;
+      _uids = uids;
+      _reqs = reqs;
+      _deleted = deleted;
+      _longColumns = longColumns;
+      _docValues = docValues;
+      _minUID = minUID;
+      _maxUID = maxUID;
+      _version = version;
+      _generation = generation;
+    }
+
+    boolean isDeleted(int docid)
+    {
+      return (_deleted[docid >> 6] & (1L << docid)) != 0;
+    }
+  }
+}
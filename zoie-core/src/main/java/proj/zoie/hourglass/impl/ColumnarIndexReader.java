@@ -0,0 +1,404 @@
+package proj.zoie.hourglass.impl;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.FieldSelector;
+import org.apache.lucene.document.FieldSelectorResult;
+import org.apache.lucene.document.Fieldable;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermDocs;
+import org.apache.lucene.index.TermEnum;
+import org.apache.lucene.index.TermFreqVector;
+import org.apache.lucene.index.TermPositions;
+import org.apache.lucene.index.TermVectorMapper;
+import org.apache.lucene.search.Similarity;
+
+import proj.zoie.hourglass.impl.ColumnarIndex.Postings;
+import proj.zoie.hourglass.impl.ColumnarIndex.Snapshot;
+
+/**
+ * Read-only Lucene view of a {@link ColumnarIndex} as of when it was opened.
+ * <br>
+ * The index keeps no norms: {@link #norms(String)} is null, as for fields
+ * without norms, so hits are scored without length normalization. It keeps no
+ * term vectors either.
+ */
+final class ColumnarIndexReader extends IndexReader
+{
+  private final ColumnarIndex _index;
+  private final Snapshot _snapshot;
+  private final int _maxDoc;
+
+  ColumnarIndexReader(ColumnarIndex index, Snapshot snapshot)
+  {
+    _index = index;
+    _snapshot = snapshot;
+    _maxDoc = snapshot._maxDoc;
+  }
+
+  Snapshot getSnapshot()
+  {
+    return _snapshot;
+  }
+
+  @Override
+  public int maxDoc()
+  {
+    return _maxDoc;
+  }
+
+  @Override
+  public int numDocs()
+  {
+    return _snapshot._numDocs;
+  }
+
+  @Override
+  public boolean isDeleted(int n)
+  {
+    return _snapshot.isDeleted(n);
+  }
+
+  @Override
+  public boolean hasDeletions()
+  {
+    return _snapshot._numDocs < _maxDoc;
+  }
+
+  /**
+   * @return the stored fields the doc was added with
+   */
+  @Override
+  public Document document(int n, FieldSelector fieldSelector) throws IOException
+  {
+    ensureOpen();
+    if (n < 0 || n >= _maxDoc)
+    {
+      throw new IllegalArgumentException("docid " + n + " out of range [0, " + _maxDoc + ")");
+    }
+    Document doc = new Document();
+    for (Object obj : _snapshot._reqs[n].getDocument().getFields())
+    {
+      Fieldable field = (Fieldable) obj;
+      if (!field.isStored()) continue;
+      if (fieldSelector != null && fieldSelector.accept(field.name()) == FieldSelectorResult.NO_LOAD) continue;
+      doc.add(field);
+    }
+    return doc;
+  }
+
+  @Override
+  public byte[] norms(String field) throws IOException
+  {
+    return null;
+  }
+
+  @Override
+  public void norms(String field, byte[] bytes, int offset) throws IOException
+  {
+    // like a field without norms, in a MultiReader with readers that have some
+    Arrays.fill(bytes, offset, offset + _maxDoc, Similarity.encodeNorm(1.0f));
+  }
+
+  @Override
+  protected void doSetNorm(int doc, String field, byte value) throws IOException
+  {
+    throw new UnsupportedOperationException("read-only reader");
+  }
+
+  @Override
+  public TermEnum terms() throws IOException
+  {
+    ensureOpen();
+    return new ColumnarTermEnum(_index.getTerms().entrySet().iterator());
+  }
+
+  @Override
+  public TermEnum terms(Term t) throws IOException
+  {
+    ensureOpen();
+    ColumnarTermEnum termEnum = new ColumnarTermEnum(_index.getTerms().tailMap(t, true).entrySet().iterator());
+    termEnum.next(); // positioned at the first term greater or equal
+    return termEnum;
+  }
+
+  @Override
+  public int docFreq(Term t) throws IOException
+  {
+    ensureOpen();
+    Postings postings = _index.getTerms().get(t);
+    return postings == null ? 0 : postings.count(_maxDoc);
+  }
+
+  @Override
+  public TermDocs termDocs() throws IOException
+  {
+    ensureOpen();
+    return new ColumnarTermPositions();
+  }
+
+  @Override
+  public TermPositions termPositions() throws IOException
+  {
+    ensureOpen();
+    return new ColumnarTermPositions();
+  }
+
+  @Override
+  public Collection<String> getFieldNames(FieldOption fldOption)
+  {
+    ensureOpen();
+    return new HashSet<String>(_index.getFieldNames());
+  }
+
+  @Override
+  public TermFreqVector[] getTermFreqVectors(int docNumber) throws IOException
+  {
+    return null;
+  }
+
+  @Override
+  public TermFreqVector getTermFreqVector(int docNumber, String field) throws IOException
+  {
+    return null;
+  }
+
+  @Override
+  public void getTermFreqVector(int docNumber, String field, TermVectorMapper mapper) throws IOException
+  {
+    // no term vectors
+  }
+
+  @Override
+  public void getTermFreqVector(int docNumber, TermVectorMapper mapper) throws IOException
+  {
+    // no term vectors
+  }
+
+  @Override
+  protected void doDelete(int docNum) throws IOException
+  {
+    throw new UnsupportedOperationException("read-only reader");
+  }
+
+  @Override
+  protected void doUndeleteAll() throws IOException
+  {
+    throw new UnsupportedOperationException("read-only reader");
+  }
+
+  @Override
+  protected void doCommit(Map<String, String> commitUserData) throws IOException
+  {
+    // nothing to commit
+  }
+
+  @Override
+  protected void doClose() throws IOException
+  {
+    // the index is released with its ColumnarZoieSystem
+  }
+
+  /**
+   * Terms of the index, skipping the ones added after the reader was opened.
+   */
+  private final class ColumnarTermEnum extends TermEnum
+  {
+    private final Iterator<Map.Entry<Term, Postings>> _iter;
+    private Term _term = null;
+    private Postings _postings = null;
+    private int _docFreq = 0;
+
+    ColumnarTermEnum(Iterator<Map.Entry<Term, Postings>> iter)
+    {
+      _iter = iter;
+    }
+
+    @Override
+    public boolean next() throws IOException
+    {
+      while (_iter.hasNext())
+      {
+        Map.Entry<Term, Postings> entry = _iter.next();
+        int docFreq = entry.getValue().count(_maxDoc);
+        if (docFreq == 0) continue;
+        _term = entry.getKey();
+        _postings = entry.getValue();
+        _docFreq = docFreq;
+        return true;
+      }
+      _term = null;
+      _postings = null;
+      _docFreq = 0;
+      return false;
+    }
+
+    @Override
+    public Term term()
+    {
+      return _term;
+    }
+
+    @Override
+    public int docFreq()
+    {
+      return _docFreq;
+    }
+
+    Postings postings()
+    {
+      return _postings;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+    }
+  }
+
+  /**
+   * Docs of a term, skipping the deleted ones.
+   */
+  private final class ColumnarTermPositions implements TermPositions
+  {
+    private int[] _docs;
+    private int[] _freqs;
+    private int[] _posStarts;
+    private int[] _positions;
+    private byte[][] _payloads;
+    private int _count = 0;
+    private int _idx = -1;
+    private int _posIdx = 0;
+    private byte[] _payload = null;
+    private boolean _payloadAvailable = false;
+
+    private void reset(Postings postings)
+    {
+      _idx = -1;
+      if (postings == null)
+      {
+        _count = 0;
+        return;
+      }
+      _count = postings.count(_maxDoc); // reads the size first
+      _docs = postings._docs;
+      _freqs = postings._freqs;
+      _posStarts = postings._posStarts;
+      _positions = postings._positions;
+      _payloads = postings._payloads;
+    }
+
+    public void seek(Term term) throws IOException
+    {
+      reset(_index.getTerms().get(term));
+    }
+
+    public void seek(TermEnum termEnum) throws IOException
+    {
+      if (termEnum instanceof ColumnarTermEnum)
+      {
+        reset(((ColumnarTermEnum) termEnum).postings());
+      }
+      else
+      {
+        seek(termEnum.term());
+      }
+    }
+
+    public int doc()
+    {
+      return _docs[_idx];
+    }
+
+    public int freq()
+    {
+      return _freqs[_idx];
+    }
+
+    private boolean moveTo(int idx)
+    {
+      while (idx < _count && _snapshot.isDeleted(_docs[idx])) ++idx;
+      _idx = idx;
+      _posIdx = 0;
+      _payloadAvailable = false;
+      return idx < _count;
+    }
+
+    public boolean next() throws IOException
+    {
+      if (_idx >= _count) return false;
+      return moveTo(_idx + 1);
+    }
+
+    public int read(int[] docs, int[] freqs) throws IOException
+    {
+      int i = 0;
+      while (i < docs.length && next())
+      {
+        docs[i] = _docs[_idx];
+        freqs[i] = _freqs[_idx];
+        ++i;
+      }
+      return i;
+    }
+
+    public boolean skipTo(int target) throws IOException
+    {
+      if (_idx >= _count) return false;
+      // the first entry after the current one with a doc at least target
+      int lo = _idx + 1;
+      int hi = _count;
+      while (lo < hi)
+      {
+        int mid = (lo + hi) >>> 1;
+        if (_docs[mid] < target) lo = mid + 1;
+        else hi = mid;
+      }
+      return moveTo(lo);
+    }
+
+    public int nextPosition() throws IOException
+    {
+      int pos = _posStarts[_idx] + _posIdx++;
+      _payload = _payloads == null ? null : _payloads[pos];
+      _payloadAvailable = _payload != null;
+      return _positions[pos];
+    }
+
+    public int getPayloadLength()
+    {
+      return _payload == null ? 0 : _payload.length;
+    }
+
+    public byte[] getPayload(byte[] data, int offset) throws IOException
+    {
+      if (!_payloadAvailable)
+      {
+        throw new IOException("Either no payload exists at this term position or an attempt was made to load it more than once.");
+      }
+      _payloadAvailable = false;
+      if (data == null || data.length - offset < _payload.length)
+      {
+        return _payload.clone();
+      }
+      System.arraycopy(_payload, 0, data, offset, _payload.length);
+      return data;
+    }
+
+    public boolean isPayloadAvailable()
+    {
+      return _payloadAvailable;
+    }
+
+    public void close() throws IOException
+    {
+    }
+  }
+}
@@ -0,0 +1,329 @@
+package proj.zoie.hourglass.impl;
+
+import it.unimi.dsi.fastutil.ints.IntRBTreeSet;
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongSet;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermDocs;
+import org.apache.lucene.index.TermPositions;
+import org.apache.lucene.search.FieldCache;
+
+import proj.zoie.api.DocIDMapper;
+import proj.zoie.api.ZoieIndexReader;
+import proj.zoie.api.DocIDMapper.DocIDArray;
+import proj.zoie.api.impl.util.ArrayDocIdSet;
+import proj.zoie.api.indexing.IndexReaderDecorator;
+import proj.zoie.hourglass.impl.ColumnarIndex.Snapshot;
+import proj.zoie.impl.indexing.internal.ZoieSegmentTermDocs;
+import proj.zoie.impl.indexing.internal.ZoieSegmentTermPositions;
+
+/**
+ * {@link ZoieIndexReader} of a {@link ColumnarIndex}, a single segment like
+ * {@link proj.zoie.api.ZoieSegmentReader}.
+ * <br>
+ * The UIDs, the long fields and the doc value columns are read from the
+ * columns of the index, without loading anything per reader. The docs
+ * replaced by later updates of the index are deleted in the inner reader;
+ * deletes marked by fresher indexes are applied on top, as for a segment.
+ */
+public class ColumnarZoieReader<R extends IndexReader> extends ZoieIndexReader<R>
+{
+  private final Snapshot _snapshot;
+  private final R _decoratedReader;
+  private IntRBTreeSet _delDocIdSet = new IntRBTreeSet();
+  private int[] _currentDelDocIds;
+
+  ColumnarZoieReader(ColumnarIndexReader in, IndexReaderDecorator<R> decorator) throws IOException
+  {
+    super(in, decorator);
+    _snapshot = in.getSnapshot();
+    _minUID = _snapshot._minUID;
+    _maxUID = _snapshot._maxUID;
+    _docIDMapper = new ColumnarDocIDMapper();
+    _decoratedReader = (decorator == null ? null : decorator.decorate(this));
+  }
+
+  /**
+   * makes exact shallow copy for duplication. The decorated reader is also shallow copied.
+   */
+  private ColumnarZoieReader(ColumnarZoieReader<R> copyFrom) throws IOException
+  {
+    super(copyFrom.in, copyFrom._decorator);
+    _snapshot = copyFrom._snapshot;
+    _minUID = copyFrom._minUID;
+    _maxUID = copyFrom._maxUID;
+    _noDedup = copyFrom._noDedup;
+    _docIDMapper = copyFrom._docIDMapper;
+    _delDocIdSet = copyFrom._delDocIdSet;
+    _currentDelDocIds = copyFrom._currentDelDocIds;
+    if (copyFrom._decorator == null)
+    {
+      _decoratedReader = null;
+    } else
+    {
+      _decoratedReader = copyFrom._decorator.redecorate(copyFrom._decoratedReader, this, _currentDelDocIds != null && _currentDelDocIds.length > 0);
+    }
+  }
+
+  /**
+   * @return the generation of the index this reader was opened at
+   */
+  public long getGeneration()
+  {
+    return _snapshot._generation;
+  }
+
+  /**
+   * @return the version of the last event in this reader
+   */
+  public String getVersion()
+  {
+    return _snapshot._version;
+  }
+
+  @Override
+  public List<R> getDecoratedReaders() throws IOException
+  {
+    ArrayList<R> list = new ArrayList<R>(1);
+    if (_decoratedReader != null)
+    {
+      list.add(_decoratedReader);
+    }
+    return list;
+  }
+
+  @Override
+  public void markDeletes(LongSet delDocs, LongSet deletedUIDs)
+  {
+    DocIDMapper<?> idMapper = getDocIDMaper();
+    long[] uids = delDocs.toLongArray();
+    DocIDArray docidArray = DocIDArray.getDocIDArray(idMapper, uids);
+    int[] docids = docidArray.docids;
+    for (int i = 0; i < uids.length; ++i)
+    {
+      if (docids[i] != DocIDMapper.NOT_FOUND)
+      {
+        _delDocIdSet.add(docids[i]);
+        deletedUIDs.add(uids[i]);
+      }
+    }
+    docidArray.close();
+  }
+
+  @Override
+  public void commitDeletes()
+  {
+    int[] current = _currentDelDocIds;
+    if (current != null && current.length == _delDocIdSet.size()) return;
+    _currentDelDocIds = _delDocIdSet.toIntArray();
+  }
+
+  @Override
+  public void setDelDocIds()
+  {
+    _delDocIds = _currentDelDocIds;
+    if (_decorator != null && _decoratedReader != null)
+      _decorator.setDeleteSet(_decoratedReader, new ArrayDocIdSet(_currentDelDocIds));
+  }
+
+  @Override
+  protected boolean hasIndexDeletions()
+  {
+    return in.hasDeletions();
+  }
+
+  @Override
+  public boolean isDeleted(int docid)
+  {
+    if (!_noDedup)
+    {
+      int[] delSet = _delDocIds;
+      if (delSet != null && Arrays.binarySearch(delSet, docid) >= 0) return true;
+    }
+    return in.isDeleted(docid);
+  }
+
+  @Override
+  public long getUID(int docid)
+  {
+    return _snapshot._uids[docid];
+  }
+
+  @Override
+  public long getLongValue(String column, int docid, long missing) throws IOException
+  {
+    byte[] value = getColumnValue(column, docid);
+    if (value == null || value.length != 8) return missing;
+    long val = 0L;
+    for (int i = 7; i >= 0; --i)
+    {
+      val = (val << 8) | (value[i] & 0xFF);
+    }
+    return val;
+  }
+
+  @Override
+  public byte[] getBytesValue(String column, int docid) throws IOException
+  {
+    byte[] value = getColumnValue(column, docid);
+    return value == null ? null : value.clone();
+  }
+
+  private byte[] getColumnValue(String column, int docid)
+  {
+    byte[][] values = _snapshot._docValues.get(column);
+    return values == null ? null : values[docid];
+  }
+
+  /**
+   * @return the column of the field if it is one of the long fields of the
+   *         index, shared with the index and possibly longer than maxDoc
+   */
+  @Override
+  public long[] getLongFieldValues(String field) throws IOException
+  {
+    long[] values = _snapshot._longColumns.get(field);
+    return values != null ? values : FieldCache.DEFAULT.getLongs(in, field);
+  }
+
+  @Override
+  public TermDocs termDocs(Term term) throws IOException
+  {
+    ensureOpen();
+    TermDocs td = in.termDocs(term);
+    int[] delDocIds = _delDocIds;
+    if (_noDedup || td == null || delDocIds == null || delDocIds.length == 0) return td;
+    return new ZoieSegmentTermDocs(td, new ArrayDocIdSet(delDocIds));
+  }
+
+  @Override
+  public TermDocs termDocs() throws IOException
+  {
+    ensureOpen();
+    TermDocs td = in.termDocs();
+    int[] delDocIds = _delDocIds;
+    if (_noDedup || td == null || delDocIds == null || delDocIds.length == 0) return td;
+    return new ZoieSegmentTermDocs(td, new ArrayDocIdSet(delDocIds));
+  }
+
+  @Override
+  public TermPositions termPositions(Term term) throws IOException
+  {
+    ensureOpen();
+    TermPositions tp = in.termPositions(term);
+    int[] delDocIds = _delDocIds;
+    if (_noDedup || tp == null || delDocIds == null || delDocIds.length == 0) return tp;
+    return new ZoieSegmentTermPositions(tp, new ArrayDocIdSet(delDocIds));
+  }
+
+  @Override
+  public TermPositions termPositions() throws IOException
+  {
+    ensureOpen();
+    TermPositions tp = in.termPositions();
+    int[] delDocIds = _delDocIds;
+    if (_noDedup || tp == null || delDocIds == null || delDocIds.length == 0) return tp;
+    return new ZoieSegmentTermPositions(tp, new ArrayDocIdSet(delDocIds));
+  }
+
+  @Override
+  public ZoieIndexReader<R>[] getSequentialSubReaders()
+  {
+    return null;
+  }
+
+  @Override
+  protected void doClose() throws IOException
+  {
+  }
+
+  @Override
+  public ColumnarZoieReader<R> copy() throws IOException
+  {
+    return new ColumnarZoieReader<R>(this);
+  }
+
+  /**
+   * Maps the UIDs of the reader, built the first time one is looked up: the
+   * index is append-only, so the map of a reader can't be updated from the
+   * one of the previous reader.
+   */
+  private final class ColumnarDocIDMapper implements DocIDMapper<DocIDArray>
+  {
+    private volatile Long2IntOpenHashMap _map = null;
+
+    private Long2IntOpenHashMap getMap()
+    {
+      Long2IntOpenHashMap map = _map;
+      if (map == null)
+      {
+        int maxDoc = _snapshot._maxDoc;
+        map = new Long2IntOpenHashMap(_snapshot._numDocs);
+        map.defaultReturnValue(NOT_FOUND);
+        for (int docid = 0; docid < maxDoc; ++docid)
+        {
+          if (!_snapshot.isDeleted(docid))
+          {
+            map.put(_snapshot._uids[docid], docid);
+          }
+        }
+        _map = map;
+      }
+      return map;
+    }
+
+    public int getDocID(long uid)
+    {
+      return getMap().get(uid);
+    }
+
+    public int quickGetDocID(long uid)
+    {
+      return getDocID(uid);
+    }
+
+    public int getReaderIndex(long uid)
+    {
+      return getDocID(uid) == NOT_FOUND ? -1 : 0;
+    }
+
+    public ZoieIndexReader<?>[] getSubReaders()
+    {
+      return new ZoieIndexReader<?>[] { ColumnarZoieReader.this };
+    }
+
+    public int[] getStarts()
+    {
+      return new int[] { 0 };
+    }
+
+    public DocIDArray getDocIDArray(long[] uids)
+    {
+      DocIDArray ret = DocIDArray.newInstance(uids.length);
+      Long2IntOpenHashMap map = getMap();
+      for (int i = 0; i < uids.length; ++i)
+      {
+        ret.docids[i] = map.get(uids[i]);
+      }
+      return ret;
+    }
+
+    public DocIDArray getDocIDArray(int[] uids)
+    {
+      DocIDArray ret = DocIDArray.newInstance(uids.length);
+      Long2IntOpenHashMap map = getMap();
+      for (int i = 0; i < uids.length; ++i)
+      {
+        ret.docids[i] = map.get(uids[i]);
+      }
+      return ret;
+    }
+  }
+}
@@ -0,0 +1,284 @@
+package proj.zoie.hourglass.impl;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+import org.apache.lucene.index.IndexReader;
+
+import proj.zoie.api.DataConsumer;
+import proj.zoie.api.DirectoryManager;
+import proj.zoie.api.ZoieException;
+import proj.zoie.api.ZoieHealth;
+import proj.zoie.api.ZoieIndexReader;
+import proj.zoie.api.indexing.IndexReaderDecorator;
+import proj.zoie.api.indexing.ZoieIndexable;
+import proj.zoie.api.indexing.ZoieIndexableInterpreter;
+import proj.zoie.impl.indexing.WriteAheadLog;
+import proj.zoie.impl.indexing.ZoieConfig;
+import proj.zoie.impl.indexing.ZoieSystem;
+
+/**
+ * Zoie of the current period of an Hourglass that indexes into a
+ * {@link ColumnarIndex} instead of the RAM and disk indexes: the period is
+ * append-only, so its docs are searchable as soon as they are consumed without
+ * RAM segments to flush and merge into the disk index.
+ * <br>
+ * The disk index is only written once, by {@link #writeShard()}, when the
+ * period is retired or the zoie shut down. A period resumed from a disk index
+ * written before is indexed the regular way.
+ */
+public class ColumnarZoieSystem<R extends IndexReader, D> extends ZoieSystem<R, D>
+{
+  private static final Logger log = Logger.getLogger(ColumnarZoieSystem.class);
+
+  private final DirectoryManager _dirMgr;
+  private final ZoieIndexableInterpreter<D> _interpreter;
+  private final IndexReaderDecorator<R> _decorator;
+  private final ColumnarIndex _index;
+  private volatile ColumnarZoieReader<R> _currentReader = null;
+  private volatile boolean _shardWritten = false;
+  private final Object _indexLock = new Object(); // not the zoie, the consumer thread locks it
+
+  public ColumnarZoieSystem(DirectoryManager dirMgr, ZoieIndexableInterpreter<D> interpreter,
+      IndexReaderDecorator<R> decorator, ZoieConfig zoieConfig)
+  {
+    super(dirMgr, interpreter, decorator, zoieConfig);
+    _dirMgr = dirMgr;
+    _interpreter = interpreter;
+    _decorator = decorator;
+    String diskVersion = null;
+    try
+    {
+      diskVersion = dirMgr.getVersion();
+    } catch (IOException e)
+    {
+      log.error(e);
+    }
+    if (diskVersion != null)
+    {
+      log.info("resuming " + dirMgr.getPath() + " at version " + diskVersion + ", not columnar");
+      _index = null;
+      return;
+    }
+    _index = new ColumnarIndex(getAnalyzer(), zoieConfig.getRamLongFields(), zoieConfig.getVersionComparator());
+    try
+    {
+      _currentReader = new ColumnarZoieReader<R>(_index.openReader(), _decorator);
+    } catch (IOException e)
+    {
+      throw new IllegalStateException("cannot open the columnar index", e);
+    }
+    super.setDataConsumer(new ColumnarDataConsumer());
+  }
+
+  /**
+   * @return whether the docs are indexed into a columnar index, false for a
+   *         period resumed from disk
+   */
+  public boolean isColumnar()
+  {
+    return _index != null;
+  }
+
+  /**
+   * Writes the docs of the columnar index into the disk index, as a Lucene
+   * shard ready to be archived; the columnar index is still searched until the
+   * zoie is shut down. Events consumed afterwards go straight to disk.
+   */
+  public void writeShard() throws ZoieException
+  {
+    if (_index == null || _shardWritten) return;
+    long t0 = System.currentTimeMillis();
+    flushEventsToMemoryIndex(Long.MAX_VALUE);
+    int numDocs;
+    synchronized (_indexLock)
+    {
+      if (_shardWritten) return;
+      List<DataEvent<ZoieIndexable>> docs = _index.getLiveDocs();
+      int batchSize = Math.max(1, getBatchSize());
+      for (int i = 0; i < docs.size(); i += batchSize)
+      {
+        consumeToDiskIndex(docs.subList(i, Math.min(docs.size(), i + batchSize)));
+      }
+      String version = _index.getVersion();
+      if (docs.isEmpty() && version != null)
+      {
+        try
+        {
+          _dirMgr.setVersion(version);
+        } catch (IOException e)
+        {
+          throw new ZoieException(e.getMessage(), e);
+        }
+      }
+      _shardWritten = true;
+      numDocs = docs.size();
+    }
+    WriteAheadLog<D> wal = getWriteAheadLog();
+    if (wal != null)
+    {
+      // the disk loader is bypassed, it doesn't tell the log the new disk version
+      wal.truncate(getVersion());
+    }
+    log.info("wrote " + numDocs + " docs of " + _dirMgr.getPath() + " to disk in " + (System.currentTimeMillis() - t0) + "ms");
+  }
+
+  /**
+   * @return the version of the last event indexed into the columnar index
+   *         until it is written to disk, then the disk version
+   */
+  @Override
+  public String getVersion()
+  {
+    if (_index != null && !_shardWritten)
+    {
+      return _index.getVersion();
+    }
+    return super.getVersion();
+  }
+
+  @Override
+  public List<ZoieIndexReader<R>> getIndexReaders() throws IOException
+  {
+    if (_index == null) return super.getIndexReaders();
+    List<ZoieIndexReader<R>> list = new ArrayList<ZoieIndexReader<R>>(1);
+    while (true)
+    {
+      ColumnarZoieReader<R> reader = _currentReader;
+      if (reader == null) break; // shut down
+      if (reader.tryIncZoieRef())
+      {
+        list.add(reader);
+        break;
+      }
+      // released by a newer reader meanwhile
+    }
+    return list;
+  }
+
+  @Override
+  public List<ZoieIndexReader<R>> getIndexReaders(long maxAgeMillis) throws IOException
+  {
+    if (_index == null) return super.getIndexReaders(maxAgeMillis);
+    return getIndexReaders(); // never stale
+  }
+
+  @Override
+  public List<ZoieIndexReader<R>> getUnmarkedIndexReaders() throws IOException
+  {
+    if (_index == null) return super.getUnmarkedIndexReaders();
+    return getIndexReaders(); // no fresher index to mark deletes from
+  }
+
+  @Override
+  public void returnIndexReaders(List<ZoieIndexReader<R>> readers)
+  {
+    if (_index == null)
+    {
+      super.returnIndexReaders(readers);
+      return;
+    }
+    if (readers == null) return;
+    for (ZoieIndexReader<R> r : readers)
+    {
+      r.decZoieRef();
+    }
+  }
+
+  @Override
+  public void returnUnmarkedIndexReaders(List<ZoieIndexReader<R>> readers)
+  {
+    if (_index == null)
+    {
+      super.returnUnmarkedIndexReaders(readers);
+      return;
+    }
+    returnIndexReaders(readers);
+  }
+
+  @Override
+  public long getReaderGeneration()
+  {
+    if (_index == null) return super.getReaderGeneration();
+    ColumnarZoieReader<R> reader = _currentReader;
+    return reader == null ? -1L : reader.getGeneration();
+  }
+
+  @Override
+  public void shutdown()
+  {
+    if (_index != null && !alreadyShutdown())
+    {
+      try
+      {
+        writeShard();
+      } catch (ZoieException e)
+      {
+        log.error("writing " + _dirMgr.getPath() + " to disk at shutdown", e);
+      }
+    }
+    super.shutdown();
+    ColumnarZoieReader<R> reader = _currentReader;
+    _currentReader = null;
+    if (reader != null)
+    {
+      reader.decZoieRef();
+    }
+  }
+
+  /**
+   * Converts the events and adds them to the columnar index, then publishes a
+   * reader of the new docs; once the shard is written, adds them to disk.
+   */
+  private final class ColumnarDataConsumer implements DataConsumer<D>
+  {
+    public void consume(Collection<DataEvent<D>> events) throws ZoieException
+    {
+      if (events == null) return;
+      ArrayList<DataEvent<ZoieIndexable>> indexableList = new ArrayList<DataEvent<ZoieIndexable>>(events.size());
+      for (DataEvent<D> event : events)
+      {
+        try
+        {
+          ZoieIndexable indexable = _interpreter.convertAndInterpret(event.getData());
+          indexableList.add(new DataEvent<ZoieIndexable>(indexable, event.getVersion()));
+        } catch (Exception e)
+        {
+          ZoieHealth.setFatal();
+          log.error(e.getMessage(), e);
+        }
+      }
+      synchronized (_indexLock)
+      {
+        if (_shardWritten)
+        {
+          consumeToDiskIndex(indexableList);
+          return;
+        }
+        try
+        {
+          _index.add(indexableList);
+          ColumnarZoieReader<R> old = _currentReader;
+          _currentReader = new ColumnarZoieReader<R>(_index.openReader(), _decorator);
+          if (old != null)
+          {
+            old.decZoieRef();
+          }
+        } catch (IOException e)
+        {
+          ZoieHealth.setFatal();
+          log.error(e.getMessage(), e);
+          throw new ZoieException(e.getMessage(), e);
+        }
+      }
+    }
+
+    public String getVersion()
+    {
+      return _index.getVersion();
+    }
+  }
+}
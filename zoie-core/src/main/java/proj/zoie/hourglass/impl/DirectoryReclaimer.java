@@ -0,0 +1,234 @@
+package proj.zoie.hourglass.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+import org.apache.log4j.Logger;
+
+import proj.zoie.api.ZoieIndexReader;
+import proj.zoie.api.impl.util.TokenBucket;
+
+/**
+ * Deletes trimmed index directories in the background: a directory is deleted
+ * once the reader opened on it has been released by all its users, at a
+ * limited rate so that removing a large index does not starve the disk. Large
+ * files are truncated a chunk at a time before they are removed, spreading the
+ * work of freeing their blocks.
+ */
+public class DirectoryReclaimer
+{
+  public static final Logger log = Logger.getLogger(DirectoryReclaimer.class);
+  private static final int CHUNK_SIZE = 16 * 1024 * 1024;
+  private static final long POLL_INTERVAL = 1000L;
+
+  private final LinkedList<Pending> _pending = new LinkedList<Pending>(); // guarded by this
+  private final TokenBucket _limiter = new TokenBucket(Long.MAX_VALUE, CHUNK_SIZE);
+  private volatile long _maxBytesPerSecond;
+  private volatile boolean _stop = false;
+  private final Thread _thread;
+
+  /**
+   * @param maxBytesPerSecond how fast the files are deleted, Long.MAX_VALUE
+   *          for no limit
+   */
+  public DirectoryReclaimer(long maxBytesPerSecond)
+  {
+    setMaxBytesPerSecond(maxBytesPerSecond);
+    _thread = new Thread(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        reclaimLoop();
+      }
+    }, "Hourglass Directory Reclaimer");
+    _thread.setDaemon(true);
+    _thread.start();
+  }
+
+  public long getMaxBytesPerSecond()
+  {
+    return _maxBytesPerSecond;
+  }
+
+  public void setMaxBytesPerSecond(long maxBytesPerSecond)
+  {
+    _maxBytesPerSecond = maxBytesPerSecond;
+    _limiter.setRate(maxBytesPerSecond >= Long.MAX_VALUE / 60L ? Long.MAX_VALUE : maxBytesPerSecond * 60L);
+  }
+
+  /**
+   * Deletes the directory once the reader is released.
+   * @param reader the reader opened on the directory, already detached from
+   *          the hourglass, null if there is none
+   */
+  public synchronized void reclaim(File dir, ZoieIndexReader<?> reader)
+  {
+    if (_stop)
+    {
+      log.warn("reclaimer stopped, leaving " + dir);
+      return;
+    }
+    _pending.add(new Pending(dir, reader));
+    this.notifyAll();
+  }
+
+  /**
+   * @return the number of directories not deleted yet
+   */
+  public synchronized int getPendingCount()
+  {
+    return _pending.size();
+  }
+
+  /**
+   * Stops the reclaimer, the directories still in use are left on disk.
+   */
+  public void shutdown()
+  {
+    synchronized (this)
+    {
+      _stop = true;
+      this.notifyAll();
+    }
+    try
+    {
+      _thread.join(10000);
+    } catch (InterruptedException e)
+    {
+      log.warn("stopping interrupted");
+    }
+  }
+
+  private void reclaimLoop()
+  {
+    while (true)
+    {
+      File dir = null;
+      synchronized (this)
+      {
+        Iterator<Pending> iter = _pending.iterator();
+        while (iter.hasNext())
+        {
+          Pending pending = iter.next();
+          if (pending._reader == null || pending._reader.isZoieReleased())
+          {
+            iter.remove();
+            dir = pending._dir;
+            break;
+          }
+        }
+        if (dir == null)
+        {
+          if (_stop)
+          {
+            if (_pending.size() > 0)
+            {
+              log.info("leaving " + _pending.size() + " directories still in use");
+            }
+            return;
+          }
+          try
+          {
+            this.wait(POLL_INTERVAL); // released readers are not notified
+          } catch (InterruptedException e)
+          {
+            Thread.interrupted();
+          }
+          continue;
+        }
+      }
+      long t0 = System.currentTimeMillis();
+      // out of the way of the hourglass naming, like FileUtil.rmDir
+      File tobeDeleted = new File(dir.getParentFile(), dir.getName() + "-" + System.currentTimeMillis());
+      if (!dir.renameTo(tobeDeleted))
+      {
+        tobeDeleted = dir;
+      }
+      long bytes = delete(tobeDeleted);
+      log.info("reclaimed " + dir + ": " + bytes + " bytes in " + (System.currentTimeMillis() - t0) + "ms");
+    }
+  }
+
+  /**
+   * @return the number of bytes deleted
+   */
+  private long delete(File file)
+  {
+    long bytes = 0;
+    if (file.isDirectory())
+    {
+      File[] files = file.listFiles();
+      if (files != null)
+      {
+        for (File child : files)
+        {
+          bytes += delete(child);
+        }
+      }
+    } else
+    {
+      long length = file.length();
+      if (length > CHUNK_SIZE)
+      {
+        try
+        {
+          RandomAccessFile raf = new RandomAccessFile(file, "rw");
+          try
+          {
+            while (length > CHUNK_SIZE && !_stop)
+            {
+              acquire(CHUNK_SIZE);
+              length -= CHUNK_SIZE;
+              raf.setLength(length);
+              bytes += CHUNK_SIZE;
+            }
+          } finally
+          {
+            raf.close();
+          }
+        } catch (IOException e)
+        {
+          log.warn("truncating " + file, e);
+        }
+      }
+      acquire((int) Math.min(length, CHUNK_SIZE));
+      bytes += length;
+    }
+    if (!file.delete())
+    {
+      log.warn("could not delete " + file);
+    }
+    return bytes;
+  }
+
+  private void acquire(int bytes)
+  {
+    long waitNanos;
+    while (!_stop && (waitNanos = _limiter.tryAcquire(Math.max(1, bytes))) > 0)
+    {
+      try
+      {
+        Thread.sleep(waitNanos / 1000000L, (int) (waitNanos % 1000000L));
+      } catch (InterruptedException e)
+      {
+        Thread.interrupted();
+      }
+    }
+  }
+
+  private static final class Pending
+  {
+    final File _dir;
+    final ZoieIndexReader<?> _reader;
+
+    Pending(File dir, ZoieIndexReader<?> reader)
+    {
+      _dir = dir;
+      _reader = reader;
+    }
+  }
+}
@@ -13,6 +13,8 @@ public class HourGlassScheduler
   private final FREQUENCY _freq;
   private int[] _params = new int[3];
   private int _trimThreshold = Integer.MAX_VALUE;
+  private volatile long _prepareAhead = -1L; // default
+  private volatile boolean _columnarIndexing = false;
   private static ThreadLocal<SimpleDateFormat> dateFormatter = new ThreadLocal<SimpleDateFormat>()
   {
     protected SimpleDateFormat initialValue()
@@ -65,6 +67,47 @@ public class HourGlassScheduler
   {
     return _trimThreshold;
   }
+  /**
+   * @return the length of a rolling period in ms
+   */
+  public long getPeriod()
+  {
+    switch(_freq)
+    {
+    case MINUTELY:
+      return 60L * 1000L;
+    case HOURLY:
+      return 60L * 60L * 1000L;
+    default:
+      return 24L * 60L * 60L * 1000L;
+    }
+  }
+  /**
+   * @return how long, in ms, before the roll the index of the next period is
+   * created and started, by default a sixth of the period up to 5 minutes
+   */
+  public long getPrepareAhead()
+  {
+    long prepareAhead = _prepareAhead;
+    return prepareAhead >= 0 ? prepareAhead : Math.min(getPeriod() / 6, 5L * 60L * 1000L);
+  }
+  public void setPrepareAhead(long prepareAhead)
+  {
+    _prepareAhead = prepareAhead;
+  }
+  /**
+   * @return whether the index of a new period is a columnar in-memory index,
+   * written to disk only when the period is retired
+   * @see ColumnarZoieSystem
+   */
+  public boolean isColumnarIndexing()
+  {
+    return _columnarIndexing;
+  }
+  public void setColumnarIndexing(boolean columnarIndexing)
+  {
+    _columnarIndexing = columnarIndexing;
+  }
   Calendar getNextRoll()
   {
     long timenow = System.currentTimeMillis();
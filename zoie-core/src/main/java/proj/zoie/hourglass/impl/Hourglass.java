@@ -56,7 +56,6 @@ public class Hourglass<R extends IndexReader, D> implements Zoie<R, D>
     _readerMgr = new HourglassReaderManager<R, D>(this, _dirMgrFactory, _decorator, loadArchives(),zoieConfig.getVersionComparator());
     _currentVersion = _dirMgrFactory.getArchivedVersion();
     _currentZoie = _readerMgr.retireAndNew(null);
-    _currentZoie.start();
     _freshness = zoieConfig.getFreshness();
     log.info("start Hourglass at version: " + _currentVersion);
   }
@@ -86,6 +85,10 @@ public class Hourglass<R extends IndexReader, D> implements Zoie<R, D>
   }
   ZoieSystem<R, D> createZoie(DirectoryManager dirmgr)
   {
+    if (_scheduler.isColumnarIndexing())
+    {
+      return new ColumnarZoieSystem<R, D>(dirmgr, _interpreter, _decorator, _zConfig);
+    }
     return new ZoieSystem<R, D>(dirmgr, _interpreter, _decorator, _zConfig);
   }
 
@@ -97,6 +100,23 @@ public class Hourglass<R extends IndexReader, D> implements Zoie<R, D>
   {
     return _currentZoie;
   }
+  /**
+   * @return the started zoie of the next period, created ahead of the roll so
+   * that consume only switches to it, null if not prepared yet
+   * @see HourGlassScheduler#getPrepareAhead()
+   */
+  public ZoieSystem<R, D> getPreparedZoie()
+  {
+    return _readerMgr.getPreparedZoie();
+  }
+  /**
+   * @param maxBytesPerSecond how fast the directories of trimmed archives are
+   * deleted, Long.MAX_VALUE for no limit
+   */
+  public void setMaxTrimBytesPerSecond(long maxBytesPerSecond)
+  {
+    _readerMgr.getReclaimer().setMaxBytesPerSecond(maxBytesPerSecond);
+  }
   public HourglassDirectoryManagerFactory getDirMgrFactory()
   {
     return _dirMgrFactory;
@@ -114,6 +134,9 @@ public class Hourglass<R extends IndexReader, D> implements Zoie<R, D>
    * should be used in pair with returnIndexReaders(List<ZoieIndexReader<R>> readers) {@link #returnIndexReaders(List)}.
    * It is typical that we create a MultiReader from these readers. When creating MultiReader, it should be created with
    * the closeSubReaders parameter set to false in order to do reference counting correctly.
+   * <br> The list is cached and only rebuilt when the archives or the readers of a zoie change, see
+   * {@link HourglassReaderManager#isCurrent(HourglassReaderManager.ReaderList)}; getting it takes no lock,
+   * only a reference on each reader.
    * <br> If this indexing system is already shut down, then we return an empty list.
    * @see proj.zoie.hourglass.impl.Hourglass#returnIndexReaders(List)
    * @see proj.zoie.api.IndexReaderFactory#getIndexReaders()
@@ -121,79 +144,109 @@ public class Hourglass<R extends IndexReader, D> implements Zoie<R, D>
   public List<ZoieIndexReader<R>> getIndexReaders() throws IOException
   {
     long t0 = System.currentTimeMillis();
-    try
+    while (true)
     {
-      _shutdownLock.readLock().lock();
       if (_isShutdown)
       {
         log.warn("System already shut down. No search request allowed.");
         List<ZoieIndexReader<R>> list = new ArrayList<ZoieIndexReader<R>>();
         return list;// if already shutdown, return an empty list
       }
-      try
+      HourglassReaderManager.ReaderList<R> cached = _cachedReaders;
+      if (!isCurrent(cached))
+      {
+        updateCachedReaders(cached);
+        continue;
+      }
+      List<ZoieIndexReader<R>> rlist = cached.getReaders();
+      if (tryIncZoieRefs(rlist))
       {
-        cacheLock.lock();
-        if (System.currentTimeMillis() - lastupdate > _freshness)
-        {
-          updateCachedReaders();
-        }
-        List<ZoieIndexReader<R>> rlist = list;
-        for(ZoieIndexReader<R> r : rlist)
-        {
-          r.incZoieRef();
-        }
         t0 = System.currentTimeMillis() - t0;
         if (t0 > SLA)
         {
           log.warn("getIndexReaders returned in " + t0 + "ms more than " + SLA +"ms");
         }
         return rlist;
-      } finally
-      {
-        cacheLock.unlock();
       }
+      // a refresh released this list meanwhile, take the new one
     }
-    finally
+  }
+  private boolean isCurrent(HourglassReaderManager.ReaderList<R> cached)
+  {
+    if (cached == null || !_readerMgr.isCurrent(cached)) return false;
+    return !cached.hasUnknownGeneration() || System.currentTimeMillis() - cached.getTimestamp() <= _freshness;
+  }
+  private static <R extends IndexReader> boolean tryIncZoieRefs(List<ZoieIndexReader<R>> readers)
+  {
+    int i = 0;
+    for (; i < readers.size(); ++i)
     {
-      _shutdownLock.readLock().unlock();
+      if (!readers.get(i).tryIncZoieRef()) break;
+    }
+    if (i == readers.size()) return true;
+    for (int j = 0; j < i; ++j)
+    {
+      readers.get(j).decZoieRef();
     }
+    return false;
   }
   /**
-   * not thread safe. should be properly lock. Right now we have two places to use it
-   * and locked by the shutdown lock. If it gets more complicated, we should use separate
-   * lock.
+   * Rebuilds the cached readers, unless another thread already replaced the
+   * stale ones.
+   * @param stale the cached readers found stale
    * @throws IOException
    */
-  private void updateCachedReaders() throws IOException
+  private void updateCachedReaders(HourglassReaderManager.ReaderList<R> stale) throws IOException
   {
-	if (log.isDebugEnabled()){
-		log.debug("updating reader cache");
-	}
-    List<ZoieIndexReader<R>> olist = list;
-    returnIndexReaders(olist);
-    if (log.isDebugEnabled()){
-		log.debug("getting new reader from reader cache");
-	}
-    list = _readerMgr.getIndexReaders();
-    if (log.isDebugEnabled()){
-		log.debug("reader updated with size: "+list.size());
-	}
-    lastupdate = System.currentTimeMillis();
+    try
+    {
+      _shutdownLock.readLock().lock();
+      if (_isShutdown) return;
+      try
+      {
+        cacheLock.lock();
+        if (_cachedReaders != stale) return;
+        if (log.isDebugEnabled()){
+          log.debug("updating reader cache");
+        }
+        HourglassReaderManager.ReaderList<R> readers = _readerMgr.getReaderList();
+        _cachedReaders = readers;
+        if (stale != null)
+        {
+          returnIndexReaders(stale.getReaders());
+        }
+        if (log.isDebugEnabled()){
+          log.debug("reader updated with size: "+readers.getReaders().size());
+        }
+      } finally
+      {
+        cacheLock.unlock();
+      }
+    } finally
+    {
+      _shutdownLock.readLock().unlock();
+    }
   }
   /**
-   * not thread safe. should be properly lock. Right now we have two places to use it
-   * and locked by the shutdown lock. If it gets more complicated, we should use separate
-   * lock.
+   * Returns the cached readers, at shut down.
    */
   private void clearCachedReaders()
   {
-    List<ZoieIndexReader<R>> olist = list;
-    returnIndexReaders(olist);
-    list = null;
-    lastupdate = 0;
+    cacheLock.lock();
+    try
+    {
+      HourglassReaderManager.ReaderList<R> cached = _cachedReaders;
+      _cachedReaders = null;
+      if (cached != null)
+      {
+        returnIndexReaders(cached.getReaders());
+      }
+    } finally
+    {
+      cacheLock.unlock();
+    }
   }
-  private volatile long lastupdate=0;
-  private  volatile   List<ZoieIndexReader<R>> list = new ArrayList<ZoieIndexReader<R>>();
+  private volatile HourglassReaderManager.ReaderList<R> _cachedReaders = null;
   private final ReentrantLock cacheLock = new ReentrantLock();
 
   /* (non-Javadoc)
@@ -235,9 +288,8 @@ public class Hourglass<R extends IndexReader, D> implements Zoie<R, D>
           _currentZoie.consume(data);
         } else
         {
-          // new time period
+          // new time period, prepared ahead by the reader manager
           _currentZoie = _readerMgr.retireAndNew(_currentZoie);
-          _currentZoie.start();
           _currentZoie.consume(data);
         }
       } finally
@@ -39,6 +39,7 @@ public class HourglassDirectoryManagerFactory
   }
   private volatile File _location;
   private volatile DirectoryManager _currentDirMgr = null;
+  private DirectoryManager _nextDirMgr = null; // for _nextUpdateTime, once asked for
   private volatile boolean isRecentlyChanged = false;
   public static final String dateFormatString = "yyyy-MM-dd-HH-mm-ss";
   private final DIRECTORY_MODE _mode; 
@@ -71,6 +72,25 @@ public class HourglassDirectoryManagerFactory
   {
     return _currentDirMgr;
   }
+  /**
+   * @return the directory manager of the next period, which
+   * {@link #updateDirectoryManager()} switches to at the next roll
+   */
+  public synchronized DirectoryManager getNextDirectoryManager()
+  {
+    if (_nextDirMgr == null)
+    {
+      _nextDirMgr = new DefaultDirectoryManager(new File(_root, _scheduler.getFolderName(_nextUpdateTime)), _mode);
+    }
+    return _nextDirMgr;
+  }
+  /**
+   * @return the time of the next roll in ms
+   */
+  public long getNextUpdateTime()
+  {
+    return _nextUpdateTime.getTimeInMillis();
+  }
   private FSDirectory getFSDirectoryFromFile(File f) throws IOException
   {
     FSDirectory dir = null;
@@ -98,7 +118,7 @@ public class HourglassDirectoryManagerFactory
    * This method should be paired with clearRecentlyChanged() to clear the flag.
    * @see proj.zoie.hourglass.impl.HourglassDirectoryManagerFactory#clearRecentlyChanged()
    */
-  public boolean updateDirectoryManager()
+  public synchronized boolean updateDirectoryManager()
   {
     Calendar now = Calendar.getInstance();
     now.setTimeInMillis(System.currentTimeMillis());
@@ -113,7 +133,8 @@ public class HourglassDirectoryManagerFactory
     {
       log.error(e);
     }
-    _currentDirMgr = new DefaultDirectoryManager(_location, _mode);
+    _currentDirMgr = _nextDirMgr != null ? _nextDirMgr : new DefaultDirectoryManager(_location, _mode);
+    _nextDirMgr = null;
     isRecentlyChanged = true;
     setNextUpdateTime();
     return isRecentlyChanged;
@@ -179,6 +200,11 @@ public class HourglassDirectoryManagerFactory
           continue;
         }
 
+        if (isAfterCurrent(time.getTimeInMillis()))
+        {
+          log.info("getAllArchivedDirectories: skipping " + name + ", prepared for a later period");
+          continue;
+        }
         if (!file.equals(_location))
         { // don't add the current one
           try
@@ -200,6 +226,43 @@ public class HourglassDirectoryManagerFactory
     if (list.size()==0) return emptyList;
     return list;
   }
+  /**
+   * @return the index directories too old to be loaded by
+   * {@link #getAllArchivedDirectories()}, left by a previous run
+   */
+  public List<File> getExpiredDirectories()
+  {
+    List<File> list = new ArrayList<File>();
+    if (!_root.exists()) return list;
+    File[] files = _root.listFiles();
+    Arrays.sort(files);
+    Calendar now = Calendar.getInstance();
+    now.setTimeInMillis(System.currentTimeMillis());
+    Calendar threshold = _scheduler.getTrimTime(now);
+    boolean foundOldestToKeep = false;
+    for (int i = files.length - 1; i >= 0; --i)
+    {
+      File file = files[i];
+      Calendar time;
+      try
+      {
+        time = getCalendarTime(file.getName());
+      }
+      catch (ParseException e)
+      {
+        continue;
+      }
+      if (foundOldestToKeep)
+      {
+        list.add(file);
+      }
+      else if (time.before(threshold))
+      {
+        foundOldestToKeep = true;
+      }
+    }
+    return list;
+  }
   /**
    * @return the max version from all the archived index
    */
@@ -217,8 +280,8 @@ public class HourglassDirectoryManagerFactory
       try
       {
         long time = dateFormatter.get().parse(name).getTime();
-        if (!file.equals(_location))
-        { // don't count the current one
+        if (!file.equals(_location) && !isAfterCurrent(time))
+        { // don't count the current one, nor one prepared for a later period
           IndexSignature sig = getIndexSignature(file);
           if (sig!=null)
           {
@@ -243,6 +306,23 @@ public class HourglassDirectoryManagerFactory
     }
     return version;
   }
+  /**
+   * @return whether a folder of that time is of a later period than the current
+   * one: the index of the next period is created ahead of the roll, and is left
+   * empty by a process stopped before it.
+   */
+  private boolean isAfterCurrent(long time)
+  {
+    File location = _location;
+    if (location == null) return false;
+    try
+    {
+      return time > dateFormatter.get().parse(location.getName()).getTime();
+    } catch (ParseException e)
+    {
+      return false;
+    }
+  }
   public IndexSignature getIndexSignature(File file)
   {
     File directoryFile = new File(file, DirectoryManager.INDEX_DIRECTORY);
@@ -12,6 +12,8 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 
 import org.apache.log4j.Logger;
@@ -20,6 +22,7 @@ import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriter.MaxFieldLength;
 import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
 import org.apache.lucene.store.LockObtainFailedException;
 import org.apache.lucene.store.SimpleFSDirectory;
 
@@ -44,7 +47,23 @@ public class HourglassReaderManager<R extends IndexReader, D>
   private volatile boolean isShutdown = false;
   private final Thread maintenanceThread;
   private final ExecutorService retireThreadPool = Executors.newCachedThreadPool();
+  private final ScheduledExecutorService prepareThread = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+  {
+    @Override
+    public Thread newThread(Runnable r)
+    {
+      Thread thread = new Thread(r, "HourglassReaderManager Zoie Preparation Thread");
+      thread.setDaemon(true);
+      return thread;
+    }
+  });
+  // the started zoie of the next period and its directory manager, guarded by this
+  private ZoieSystem<R, D> nextZoie = null;
+  private DirectoryManager nextDirMgr = null;
+  private DirectoryManager preparingDirMgr = null;
   private final Comparator<String> _versionComparator;
+  private final DirectoryReclaimer reclaimer = new DirectoryReclaimer(DEFAULT_MAX_RECLAIM_BYTES_PER_SECOND);
+  public static final long DEFAULT_MAX_RECLAIM_BYTES_PER_SECOND = 64L * 1024L * 1024L;
   public HourglassReaderManager(final Hourglass<R, D> hourglass, HourglassDirectoryManagerFactory dirMgrFactory,
       IndexReaderDecorator<R> decorator,
       List<ZoieIndexReader<R>> initArchives,
@@ -56,6 +75,11 @@ public class HourglassReaderManager<R extends IndexReader, D>
     _versionComparator = versionComparator;
 
     box = new Box<R, D>(initArchives, Collections.EMPTY_LIST, Collections.EMPTY_LIST, _decorator);
+    // left by a previous run
+    for (File dir : _dirMgrFactory.getExpiredDirectories())
+    {
+      reclaimer.reclaim(dir, null);
+    }
     
     maintenanceThread = new Thread(new Runnable(){
       final int trimThreshold = hourglass._scheduler.getTrimThreshold();
@@ -92,6 +116,11 @@ public class HourglassReaderManager<R extends IndexReader, D>
             trim(archives);
             // swap the archive with consolidated one
             swapArchives(archives, add);
+            // the trimmed ones are deleted once their last users release them
+            for (ZoieIndexReader<R> r : archives)
+            {
+              reclaimer.reclaim(((FSDirectory) r.directory()).getFile(), r);
+            }
           } finally
           {
             hourglass._shutdownLock.readLock().unlock();
@@ -101,9 +130,9 @@ public class HourglassReaderManager<R extends IndexReader, D>
     maintenanceThread.start();
   }
   /**
-   * consolidate the archived Index to one big optimized index and put in add
-   * @param toRemove
-   * @param add
+   * Selects the archives older than the trim time, which are only detached
+   * here: their directories are deleted by the reclaimer.
+   * @param toRemove the archives, the ones to remove on return
    */
   private void trim(List<ZoieIndexReader<R>> toRemove)
   {
@@ -120,8 +149,8 @@ public class HourglassReaderManager<R extends IndexReader, D>
                   @Override
                   public int compare(ZoieIndexReader<R> r1, ZoieIndexReader<R> r2)
                   {
-                    String name1 = ((SimpleFSDirectory) r1.directory()).getFile().getName();
-                    String name2 = ((SimpleFSDirectory) r2.directory()).getFile().getName();
+                    String name1 = ((FSDirectory) r1.directory()).getFile().getName();
+                    String name2 = ((FSDirectory) r2.directory()).getFile().getName();
                     return name2.compareTo(name1);
                   }
                 });
@@ -130,15 +159,12 @@ public class HourglassReaderManager<R extends IndexReader, D>
 
     for (ZoieIndexReader<R> reader: readerArray)
     {
-      SimpleFSDirectory dir = (SimpleFSDirectory) reader.directory();
+      FSDirectory dir = (FSDirectory) reader.directory();
       String path = dir.getFile().getName();
 
       if (foundOldestToKeep)
       {
         log.info("trimming: remove " + path);
-        log.info(dir.getFile() + " -before--" + (dir.getFile().exists()?" not deleted ":" deleted"));
-        FileUtil.rmDir(dir.getFile());
-        log.info(dir.getFile() + " -after--" + (dir.getFile().exists()?" not deleted ":" deleted"));
         continue;
       }
       else
@@ -277,13 +303,51 @@ public class HourglassReaderManager<R extends IndexReader, D>
       }
     }
     Box<R, D> newbox = new Box<R, D>(archives, box._retiree, box._actives, _decorator);
+    setBox(newbox);
+  }
+  /**
+   * Publishes a new box, with the next generation.
+   */
+  private synchronized void setBox(Box<R, D> newbox)
+  {
+    newbox._generation = box._generation + 1;
     box = newbox;
   }
+  /**
+   * Switches to the zoie of the current period of the directory manager
+   * factory, the one prepared ahead of the roll if any, and retires the old one
+   * in the background.
+   * @param old the zoie of the previous period, null at start up
+   * @return the started zoie of the current period
+   */
   public synchronized ZoieSystem<R, D> retireAndNew(final ZoieSystem<R, D> old)
   {
     DirectoryManager _dirMgr = _dirMgrFactory.getDirectoryManager();
     _dirMgrFactory.clearRecentlyChanged();
-    ZoieSystem<R, D> newzoie = hg.createZoie(_dirMgr);
+    while (preparingDirMgr == _dirMgr)
+    {
+      // prepared too late, still cheaper to wait than to start another one
+      try
+      {
+        this.wait();
+      } catch (InterruptedException e)
+      {
+        log.warn(e);
+      }
+    }
+    ZoieSystem<R, D> newzoie;
+    if (nextZoie != null && nextDirMgr == _dirMgr)
+    {
+      newzoie = nextZoie;
+      log.info("switching to prepared index " + _dirMgr.getPath());
+    } else
+    {
+      discardNext();
+      newzoie = hg.createZoie(_dirMgr);
+      newzoie.start();
+    }
+    nextZoie = null;
+    nextDirMgr = null;
     List<ZoieSystem<R, D>> actives = new LinkedList<ZoieSystem<R, D>>(box._actives);
     List<ZoieSystem<R, D>> retiring = new LinkedList<ZoieSystem<R, D>>(box._retiree);
     if (old!=null)
@@ -300,9 +364,97 @@ public class HourglassReaderManager<R extends IndexReader, D>
     }
     actives.add(newzoie);
     Box<R, D> newbox = new Box<R, D>(box._archives, retiring, actives, _decorator);
-    box = newbox;
+    setBox(newbox);
+    schedulePrepare();
     return newzoie;
   }
+  /**
+   * Schedules the creation of the zoie of the next period, so that the roll
+   * does not wait for it.
+   */
+  private void schedulePrepare()
+  {
+    if (isShutdown) return;
+    long delay = _dirMgrFactory.getNextUpdateTime() - hg._scheduler.getPrepareAhead() - System.currentTimeMillis();
+    prepareThread.schedule(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        try
+        {
+          prepareNext();
+        } catch (RuntimeException e)
+        {
+          log.error("preparing the next index failed, the roll will create it", e);
+        }
+      }}, Math.max(0L, delay), TimeUnit.MILLISECONDS);
+  }
+  private void prepareNext()
+  {
+    DirectoryManager dirMgr;
+    synchronized(this)
+    {
+      // if the factory rolls to it meanwhile, retireAndNew waits for it
+      dirMgr = _dirMgrFactory.getNextDirectoryManager();
+      if (isShutdown || (nextZoie != null && nextDirMgr == dirMgr)) return;
+      preparingDirMgr = dirMgr;
+    }
+    long t0 = System.currentTimeMillis();
+    ZoieSystem<R, D> zoie = null;
+    try
+    {
+      // outside of the lock, retireAndNew does not wait for it
+      zoie = hg.createZoie(dirMgr);
+      zoie.start();
+    } finally
+    {
+      synchronized(this)
+      {
+        preparingDirMgr = null;
+        this.notifyAll();
+        if (zoie != null)
+        {
+          if (isShutdown)
+          {
+            log.info("discarding prepared index " + dirMgr.getPath());
+            zoie.shutdown();
+            dirMgr.purge();
+          } else
+          {
+            discardNext();
+            nextZoie = zoie;
+            nextDirMgr = dirMgr;
+            log.info("prepared index " + dirMgr.getPath() + " in " + (System.currentTimeMillis() - t0) + "ms");
+          }
+        }
+      }
+    }
+  }
+  /**
+   * Shuts down the prepared zoie, which has not indexed anything, and removes
+   * its directory.
+   */
+  private synchronized void discardNext()
+  {
+    if (nextZoie == null) return;
+    log.info("discarding prepared index " + nextDirMgr.getPath());
+    nextZoie.shutdown();
+    nextDirMgr.purge();
+    nextZoie = null;
+    nextDirMgr = null;
+  }
+  public DirectoryReclaimer getReclaimer()
+  {
+    return reclaimer;
+  }
+  /**
+   * @return the started zoie of the next period, null if not prepared yet
+   */
+  public synchronized ZoieSystem<R, D> getPreparedZoie()
+  {
+    return nextZoie;
+  }
   /**
    * @param zoie
    * @param reader the IndexReader opened on the index the give zoie had written to.
@@ -318,7 +470,7 @@ public class HourglassReaderManager<R extends IndexReader, D>
       _archives.add(reader);
     }
     Box<R, D> newbox = new Box<R, D>(_archives, retiring, actives, _decorator);
-    box = newbox;
+    setBox(newbox);
   }
   private synchronized void preshutdown()
   {
@@ -333,6 +485,8 @@ public class HourglassReaderManager<R extends IndexReader, D>
 		log.info("Maintenance thread interrpted");
 	}
     retireThreadPool.shutdown();
+    prepareThread.shutdownNow();
+    discardNext();
   }
   public void shutdown()
   {
@@ -353,12 +507,33 @@ public class HourglassReaderManager<R extends IndexReader, D>
     log.info("shutting down indices.");
     box.shutdown();
     log.info("shutting down indices complete.");
+    reclaimer.shutdown();
   }
   public synchronized List<ZoieIndexReader<R>> getIndexReaders() throws IOException
   {
+    return getReaderList()._readers;
+  }
+  /**
+   * @return the readers of the archives, retiring and active zoies, with
+   * their generations, see {@link #isCurrent(ReaderList)}
+   */
+  public synchronized ReaderList<R> getReaderList() throws IOException
+  {
+    Box<R, D> b = box;
+    long[] generations = new long[b._retiree.size() + b._actives.size()];
+    int i = 0;
+    // generations before the readers: at worst the list is seen as stale once more
+    for(ZoieSystem<R, D> zoie : b._retiree)
+    {
+      generations[i++] = zoie.getReaderGeneration();
+    }
+    for(ZoieSystem<R, D> zoie : b._actives)
+    {
+      generations[i++] = zoie.getReaderGeneration();
+    }
     List<ZoieIndexReader<R>> list = new ArrayList<ZoieIndexReader<R>>();
     // add the archived index readers
-    for(ZoieIndexReader<R> r : box._archives)
+    for(ZoieIndexReader<R> r : b._archives)
     {
      if (log.isDebugEnabled()){
     	log.debug("add reader from box archives");
@@ -367,7 +542,7 @@ public class HourglassReaderManager<R extends IndexReader, D>
       list.add(r);
     }
     // add the retiring index readers
-    for(ZoieSystem<R, D> zoie : box._retiree)
+    for(ZoieSystem<R, D> zoie : b._retiree)
     {
 
       if (log.isDebugEnabled()){
@@ -376,7 +551,7 @@ public class HourglassReaderManager<R extends IndexReader, D>
       list.addAll(zoie.getIndexReaders());
     }
     // add the active index readers
-    for(ZoieSystem<R, D> zoie : box._actives)
+    for(ZoieSystem<R, D> zoie : b._actives)
     {
 
       if (log.isDebugEnabled()){
@@ -388,12 +563,84 @@ public class HourglassReaderManager<R extends IndexReader, D>
     if (log.isDebugEnabled()){
    	 log.debug("returning reader of size: "+list.size());
     }
-    return list;
-  }  
+    return new ReaderList<R>(b._generation, generations, list);
+  }
+  /**
+   * @return whether the readers are still those of the current archives and
+   * zoies, as far as their reader caches can tell
+   * @see ReaderList#hasUnknownGeneration()
+   */
+  public boolean isCurrent(ReaderList<R> readers)
+  {
+    Box<R, D> b = box;
+    if (b._generation != readers._generation) return false;
+    long[] generations = readers._readerGenerations;
+    int i = 0;
+    for(ZoieSystem<R, D> zoie : b._retiree)
+    {
+      if (zoie.getReaderGeneration() != generations[i++]) return false;
+    }
+    for(ZoieSystem<R, D> zoie : b._actives)
+    {
+      if (zoie.getReaderGeneration() != generations[i++]) return false;
+    }
+    return true;
+  }
+  /**
+   * Readers of an Hourglass, with the generations of the box and of the
+   * reader caches of its zoies they were taken at.
+   */
+  public static final class ReaderList<R extends IndexReader>
+  {
+    private final long _generation;
+    private final long[] _readerGenerations;
+    private final List<ZoieIndexReader<R>> _readers;
+    private final long _timestamp = System.currentTimeMillis();
+    private final boolean _unknownGeneration;
+
+    ReaderList(long generation, long[] readerGenerations, List<ZoieIndexReader<R>> readers)
+    {
+      _generation = generation;
+      _readerGenerations = readerGenerations;
+      _readers = readers;
+      boolean unknown = false;
+      for(long readerGeneration : readerGenerations)
+      {
+        unknown |= readerGeneration < 0;
+      }
+      _unknownGeneration = unknown;
+    }
+    public List<ZoieIndexReader<R>> getReaders()
+    {
+      return _readers;
+    }
+    public long getTimestamp()
+    {
+      return _timestamp;
+    }
+    /**
+     * @return whether the reader cache of a zoie does not tell when its
+     * readers change, so the readers can only be refreshed by age
+     */
+    public boolean hasUnknownGeneration()
+    {
+      return _unknownGeneration;
+    }
+  }
   protected void retire(ZoieSystem<R, D> zoie)
   {
     long t0 = System.currentTimeMillis();
     log.info("retiring " + zoie.getAdminMBean().getIndexDir());
+    if (zoie instanceof ColumnarZoieSystem<?, ?>)
+    {
+      try
+      {
+        ((ColumnarZoieSystem<R, D>) zoie).writeShard();
+      } catch (ZoieException e)
+      {
+        log.error("retiring " + zoie.getAdminMBean().getIndexDir() + " Should investigate. But move on now.", e);
+      }
+    }
     while(true)
     {
       long flushwait = 200000L;
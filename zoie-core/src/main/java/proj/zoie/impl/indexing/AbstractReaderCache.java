@@ -11,14 +11,54 @@ public abstract class AbstractReaderCache<R extends IndexReader>
 {
   public abstract List<ZoieIndexReader<R>> getIndexReaders();
 
+  /**
+   * Returns index readers that are no older than maxAge milliseconds. A cache
+   * that can refresh on demand does so when its readers are older, otherwise the
+   * cached readers are returned.
+   * @param maxAge the maximum age of the readers in milliseconds
+   */
+  public List<ZoieIndexReader<R>> getIndexReaders(long maxAge)
+  {
+    return getIndexReaders();
+  }
+
   public abstract void returnIndexReaders(List<ZoieIndexReader<R>> readers);
 
   public abstract void refreshCache(long timeout) throws ZoieException;
 
   public abstract void start();
 
+  /**
+   * Starts the cache without a maintenance thread of its own: the cache calls
+   * wakeup when it needs maintenance and the host then calls
+   * {@link #maintainIfDue()}. Caches that don't support it start their thread.
+   * @see ZoieSystemHost
+   */
+  public void startHosted(Runnable wakeup)
+  {
+    start();
+  }
+
+  /**
+   * Does the maintenance a hosted cache needs now, without waiting.
+   * @return whether any was done
+   */
+  public boolean maintainIfDue()
+  {
+    return false;
+  }
+
   public abstract void shutdown();
 
+  /**
+   * @return a number that changes whenever the cached readers do, or -1 if the
+   *         cache can't tell
+   */
+  public long getGeneration()
+  {
+    return -1L;
+  }
+
   public abstract void setFreshness(long freshness);
 
   public abstract long getFreshness();
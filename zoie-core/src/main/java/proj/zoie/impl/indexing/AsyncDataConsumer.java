@@ -15,6 +15,7 @@ package proj.zoie.impl.indexing;
  * See the License for the specific language governing permissions and
  * limitations under the License.
  */
+import java.io.IOException;
 import java.util.Collection;
 import java.util.Comparator;
 import java.util.LinkedList;
@@ -24,6 +25,7 @@ import org.apache.log4j.Logger;
 import proj.zoie.api.DataConsumer;
 import proj.zoie.api.ZoieException;
 import proj.zoie.api.ZoieHealth;
+import proj.zoie.api.ZoieMetrics;
 
 // hao: just for debugging
 //import proj.zoie.api.DefaultZoieVersion;
@@ -50,6 +52,12 @@ public class AsyncDataConsumer<D> implements DataConsumer<D>
   private volatile String _bufferedVersion;
   private final Comparator<String> _versionComparator;
   private LinkedList<DataEvent<D>> _batch;
+  private long _batchStartNanos; // arrival of the oldest event in _batch
+  private volatile ZoieMetrics _metrics = null;
+  private volatile FreshnessTracker _freshnessTracker = null;
+  private volatile Runnable _hostWakeup = null; // set when hosted by a ZoieSystemHost
+  private volatile boolean _hostedStopped = false;
+  private volatile WriteAheadLog<D> _wal = null;
   /**
    * The 'soft' size limit of each event batch. If the events are coming in too fast and
    * it already accumulate this many, then we block the incoming events until the number of
@@ -82,6 +90,37 @@ public class AsyncDataConsumer<D> implements DataConsumer<D>
     _consumerThread.start();
   }
   
+  /**
+   * Starts without a background thread: wakeup is called whenever events need
+   * to be sent to the background DataConsumer, and the host then calls
+   * {@link #flushBufferIfAny()}.
+   * @see ZoieSystemHost
+   */
+  public void startHosted(Runnable wakeup)
+  {
+    _hostWakeup = wakeup;
+  }
+
+  protected final void wakeupHost()
+  {
+    Runnable wakeup = _hostWakeup;
+    if (wakeup != null)
+    {
+      wakeup.run();
+    }
+  }
+
+  private boolean isStarted()
+  {
+    return _consumerThread != null || _hostWakeup != null;
+  }
+
+  private boolean isConsuming()
+  {
+    if (_hostWakeup != null) return !_hostedStopped;
+    return _consumerThread != null && _consumerThread.isAlive() && !_consumerThread._stop;
+  }
+
   /**
    * Stops the background thread.
    * <br>
@@ -90,6 +129,15 @@ public class AsyncDataConsumer<D> implements DataConsumer<D>
    */
   public void stop()
   {
+    if (_hostWakeup != null)
+    {
+      synchronized(this)
+      {
+        _hostedStopped = true;
+        this.notifyAll();
+      }
+      return;
+    }
     _consumerThread.terminate();
   }
   
@@ -105,6 +153,71 @@ public class AsyncDataConsumer<D> implements DataConsumer<D>
     }
   }
   
+  /**
+   * @param wal the log the events are appended and forced to before
+   *          {@link #consume(Collection)} returns, null for none; events
+   *          without a version are then refused
+   * @see #replayWriteAheadLog(String)
+   */
+  public void setWriteAheadLog(WriteAheadLog<D> wal)
+  {
+    _wal = wal;
+  }
+
+  public WriteAheadLog<D> getWriteAheadLog()
+  {
+    return _wal;
+  }
+
+  /**
+   * Buffers the events of the write-ahead log later than the version, as
+   * {@link #consume(Collection)} would without logging them again.
+   * @param sinceVersion the version of the events already indexed, null for all
+   * @return the number of events replayed
+   */
+  protected int replayWriteAheadLog(String sinceVersion) throws ZoieException
+  {
+    WriteAheadLog<D> wal = _wal;
+    if (wal == null) return 0;
+    try
+    {
+      return wal.replay(sinceVersion, new DataConsumer<D>()
+      {
+        public void consume(Collection<DataEvent<D>> data) throws ZoieException
+        {
+          buffer(data, null);
+        }
+
+        public String getVersion()
+        {
+          return _bufferedVersion;
+        }
+      }, getBatchSize());
+    }
+    catch (IOException e)
+    {
+      throw new ZoieException("replaying write-ahead log " + wal.getDirectory() + ": " + e.getMessage(), e);
+    }
+  }
+
+  /**
+   * @param metrics the metrics to record the {@link ZoieMetrics.Stage#QUEUE_WAIT}
+   *          and {@link ZoieMetrics.Stage#EVENT_TO_SEARCHABLE} latencies to
+   */
+  public void setMetrics(ZoieMetrics metrics)
+  {
+    _metrics = metrics;
+  }
+
+  /**
+   * @param freshnessTracker the tracker to report the received and consumed
+   *          versions to
+   */
+  public void setFreshnessTracker(FreshnessTracker freshnessTracker)
+  {
+    _freshnessTracker = freshnessTracker;
+  }
+
   /**
    * Sets the size of each batch of events that it sends to background DataConsumer. <br><br>
    * The private member _batchSize is the 'soft' size limit of each event batch.
@@ -172,7 +285,7 @@ public class AsyncDataConsumer<D> implements DataConsumer<D>
    */
   public void syncWithVersion(long timeInMillis, String version) throws ZoieException
   {
-    if(_consumerThread == null) throw new ZoieException("not running");
+    if(!isStarted()) throw new ZoieException("not running");
     if (version == null)
     {
       log.info("buffered version is NULL. Nothing to flush.");
@@ -190,6 +303,7 @@ public class AsyncDataConsumer<D> implements DataConsumer<D>
           timeRemaining = timeInMillis;
         }
         this.notifyAll();
+        wakeupHost();
     	  long now1 = System.currentTimeMillis();
         if(timeInMillis<=0)
         {
@@ -224,14 +338,21 @@ public class AsyncDataConsumer<D> implements DataConsumer<D>
    * 
    */
   public void consume(Collection<DataEvent<D>> data) throws ZoieException
+  {
+    buffer(data, _wal);
+  }
+
+  private void buffer(Collection<DataEvent<D>> data, WriteAheadLog<D> wal) throws ZoieException
   {
     if (data == null || data.size() == 0) return;
     
+    String receivedVersion;
+    long walPosition = 0L;
     synchronized(this)
     {
       while(_batch.size() >= _batchSize)
       {
-        if(_consumerThread == null || !_consumerThread.isAlive() || _consumerThread._stop)
+        if(!isConsuming())
         {
           ZoieHealth.setFatal();
           throw new ZoieException("consumer thread has stopped");
@@ -239,12 +360,39 @@ public class AsyncDataConsumer<D> implements DataConsumer<D>
         try
         {
           this.notifyAll();
+          wakeupHost();
           this.wait();
         }
         catch (InterruptedException e)
         {
         }
       }
+      if (wal != null)
+      {
+        // appended in the order the events are buffered in
+        try
+        {
+          walPosition = wal.append(data);
+        }
+        catch (IllegalArgumentException e)
+        {
+          throw new ZoieException(e.getMessage(), e);
+        }
+        catch (IOException e)
+        {
+          if (wal.isClosed())
+          {
+            // shut down, the events are refused but the log is fine
+            throw new ZoieException("write-ahead log " + wal.getDirectory() + " is closed");
+          }
+          ZoieHealth.setFatal();
+          throw new ZoieException("appending to write-ahead log " + wal.getDirectory() + ": " + e.getMessage(), e);
+        }
+      }
+      if (_batch.isEmpty())
+      {
+        _batchStartNanos = System.nanoTime();
+      }
       for(DataEvent<D> event : data)
       {
         _bufferedVersion = (_bufferedVersion == null) ? event.getVersion() : (_versionComparator.compare(_bufferedVersion, event.getVersion()) < 0 ? event.getVersion() : _bufferedVersion);
@@ -254,15 +402,32 @@ public class AsyncDataConsumer<D> implements DataConsumer<D>
       {
         log.debug("consume:receiving: buffered: " + _bufferedVersion);
       }
+      receivedVersion = _bufferedVersion;
       this.notifyAll(); // wake up the thread waiting in flushBuffer()
     }
+    if (wal != null)
+    {
+      // outside of the lock, so that one force covers the events of concurrent calls
+      try
+      {
+        wal.sync(walPosition);
+      }
+      catch (IOException e)
+      {
+        ZoieHealth.setFatal();
+        throw new ZoieException("syncing write-ahead log " + wal.getDirectory() + ": " + e.getMessage(), e);
+      }
+    }
+    FreshnessTracker freshnessTracker = _freshnessTracker;
+    if (freshnessTracker != null)
+    {
+      freshnessTracker.versionReceived(receivedVersion);
+    }
+    wakeupHost();
   }
   
   protected final void flushBuffer()
   {
-    String version;
-    LinkedList<DataEvent<D>> currentBatch;
-    
     synchronized(this)
     {
       while(_batch.size() == 0)
@@ -277,8 +442,38 @@ public class AsyncDataConsumer<D> implements DataConsumer<D>
         {
         }
       }
+    }
+    consumeBatch();
+  }
+
+  /**
+   * Sends the buffered events, if any, to the background DataConsumer without
+   * waiting for events. Used by the host when started with
+   * {@link #startHosted(Runnable)}.
+   * @return whether there were events
+   */
+  public final boolean flushBufferIfAny()
+  {
+    synchronized(this)
+    {
+      if (_batch.size() == 0) return false;
+    }
+    consumeBatch();
+    return true;
+  }
+
+  private void consumeBatch()
+  {
+    String version;
+    LinkedList<DataEvent<D>> currentBatch;
+    long batchStartNanos;
+    
+    synchronized(this)
+    {
+      if (_batch.size() == 0) return;
       version = _currentVersion == null ? _bufferedVersion : ((_versionComparator.compare(_currentVersion, _bufferedVersion) < 0) ? _bufferedVersion : _currentVersion);
       currentBatch = _batch;
+      batchStartNanos = _batchStartNanos;
       _batch = new LinkedList<DataEvent<D>>();
       this.notifyAll(); // wake up the thread waiting in consume(...)
     }
@@ -287,6 +482,11 @@ public class AsyncDataConsumer<D> implements DataConsumer<D>
       log.debug("flushBuffer: pre-flush: currentVersion: " + _currentVersion + " processing version: " + version +" of size: " + currentBatch.size());
     }
     
+    ZoieMetrics metrics = _metrics;
+    if (metrics != null)
+    {
+      metrics.record(ZoieMetrics.Stage.QUEUE_WAIT, batchStartNanos);
+    }
     if(_consumer != null)
     {
       try
@@ -298,6 +498,10 @@ public class AsyncDataConsumer<D> implements DataConsumer<D>
         log.error(e.getMessage(), e);
       }
     }
+    if (metrics != null)
+    {
+      metrics.record(ZoieMetrics.Stage.EVENT_TO_SEARCHABLE, batchStartNanos);
+    }
     
     synchronized(this)
     {
@@ -308,6 +512,11 @@ public class AsyncDataConsumer<D> implements DataConsumer<D>
       }
       this.notifyAll(); // wake up the thread waiting in syncWthVersion()
     }    
+    FreshnessTracker freshnessTracker = _freshnessTracker;
+    if (freshnessTracker != null)
+    {
+      freshnessTracker.versionConsumed(version);
+    }
   }
   
   private final class ConsumerThread extends IndexingThread
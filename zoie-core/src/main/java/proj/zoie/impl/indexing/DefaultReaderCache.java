@@ -1,12 +1,11 @@
 package proj.zoie.impl.indexing;
 
 import java.io.IOException;
-import java.io.Serializable;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.log4j.Logger;
 import org.apache.lucene.index.IndexReader;
@@ -14,20 +13,37 @@ import org.apache.lucene.index.IndexReader;
 import proj.zoie.api.IndexReaderFactory;
 import proj.zoie.api.ZoieException;
 import proj.zoie.api.ZoieIndexReader;
+import proj.zoie.api.indexing.IndexingEventListener;
 
-public class DefaultReaderCache<R extends IndexReader> extends AbstractReaderCache<R>
+/**
+ * Reader cache refreshed by a maintenance thread every freshness milliseconds,
+ * on demand by {@link #getIndexReaders(long)} and {@link #refreshCache(long)},
+ * and optionally after every {@link IndexUpdatedEvent}. Concurrent refresh
+ * requests are served by the same refresh.
+ * <br>
+ * Getting and returning readers is lock-free: the cache holds one zoie
+ * reference on the cached readers, a reader list is acquired by taking a
+ * reference on each of its readers and retried on the new list if a refresh
+ * released the old one in the meantime. Returned readers are released by the
+ * maintenance thread, or by {@link #maintainIfDue()} when hosted.
+ */
+public class DefaultReaderCache<R extends IndexReader> extends AbstractReaderCache<R> implements IndexingEventListener
 {
   private static final Logger log = Logger.getLogger(DefaultReaderCache.class);
   private final Thread _maintenance;
   private volatile boolean alreadyShutdown = false;
   private volatile List<ZoieIndexReader<R>> cachedreaders = new ArrayList<ZoieIndexReader<R>>(0);
-  private volatile long cachedreaderTimestamp = 0;
-  private final ReentrantReadWriteLock cachedreadersLock = new ReentrantReadWriteLock();
-  private volatile ConcurrentLinkedQueue<List<ZoieIndexReader<R>>> returningIndexReaderQueue = new ConcurrentLinkedQueue<List<ZoieIndexReader<R>>>();
-  private final ReentrantReadWriteLock returningIndexReaderQueueLock = new ReentrantReadWriteLock();
+  private volatile long cachedreaderTimestamp = 0; // when the refresh of the cached readers started
+  private long refreshRequestTimestamp = 0; // guarded by cachemonitor
+  private final ConcurrentLinkedQueue<List<ZoieIndexReader<R>>> returningIndexReaderQueue = new ConcurrentLinkedQueue<List<ZoieIndexReader<R>>>();
   private final Object cachemonitor = new Object();
   private long _freshness = 10000L;
+  private volatile long _maxRefreshWait = 5000L;
+  private volatile boolean _refreshOnIndexUpdate = false;
+  private final AtomicLong _numRefreshes = new AtomicLong(0);
+  private final AtomicLong _generation = new AtomicLong(0);
   private final WeakReference<IndexReaderFactory<ZoieIndexReader<R>>> _readerfactory;
+  private volatile Runnable _hostWakeup = null; // set when hosted by a ZoieSystemHost
 
   public DefaultReaderCache(IndexReaderFactory<ZoieIndexReader<R>> readerfactory)
   {
@@ -39,33 +55,70 @@ public class DefaultReaderCache<R extends IndexReader> extends AbstractReaderCac
   @Override
   public List<ZoieIndexReader<R>> getIndexReaders()
   {
-    cachedreadersLock.readLock().lock();
-    List<ZoieIndexReader<R>> readers = cachedreaders;
-    for(ZoieIndexReader<R> r : readers)
+    while (true)
     {
-        r.incZoieRef();
+      List<ZoieIndexReader<R>> readers = cachedreaders;
+      int i = 0;
+      for (; i < readers.size(); ++i)
+      {
+        if (!readers.get(i).tryIncZoieRef()) break;
+      }
+      if (i == readers.size()) return readers;
+      // a refresh released this list meanwhile, take the new one
+      for (int j = 0; j < i; ++j)
+      {
+        readers.get(j).decZoieRef();
+      }
     }
-    cachedreadersLock.readLock().unlock();
-    return readers;
+  }
+
+  @Override
+  public List<ZoieIndexReader<R>> getIndexReaders(long maxAge)
+  {
+    long since = System.currentTimeMillis() - maxAge;
+    if (cachedreaderTimestamp <= since && !alreadyShutdown)
+    {
+      try
+      {
+        awaitRefresh(since, _maxRefreshWait);
+      }
+      catch (ZoieException e)
+      {
+        log.warn("no readers fresher than " + maxAge + "ms, using the cached ones: " + e.getMessage());
+      }
+    }
+    return getIndexReaders();
   }
 
   @Override
   public void returnIndexReaders(List<ZoieIndexReader<R>> readers)
   {
     if (readers == null || readers.size()==0) return;
-    returningIndexReaderQueueLock.readLock().lock();
     returningIndexReaderQueue.add(readers);
-    returningIndexReaderQueueLock.readLock().unlock();
   }
 
   public void refreshCache(long timeout) throws ZoieException
+  {
+    awaitRefresh(System.currentTimeMillis(), timeout);
+  }
+
+  /**
+   * Waits for readers whose refresh started after the given time, asking the
+   * maintenance thread for a refresh if needed.
+   */
+  private void awaitRefresh(long since, long timeout) throws ZoieException
   {
     long begintime = System.currentTimeMillis();
-    while (cachedreaderTimestamp <= begintime)
+    synchronized (cachemonitor)
     {
-      synchronized (cachemonitor)
+      while (cachedreaderTimestamp <= since)
       {
+        if (refreshRequestTimestamp < since)
+        {
+          refreshRequestTimestamp = since;
+        }
         cachemonitor.notifyAll();
+        wakeupHost();
         long elapsed = System.currentTimeMillis() - begintime;
         if (elapsed > timeout)
         {
@@ -84,6 +137,41 @@ public class DefaultReaderCache<R extends IndexReader> extends AbstractReaderCac
     }
   }
 
+  public void handleIndexingEvent(IndexingEvent evt)
+  {
+    if (_refreshOnIndexUpdate && evt instanceof IndexUpdatedEvent)
+    {
+      requestRefresh();
+    }
+  }
+
+  public void handleUpdatedDiskVersion(String version)
+  {
+    if (_refreshOnIndexUpdate)
+    {
+      requestRefresh();
+    }
+  }
+
+  private void requestRefresh()
+  {
+    synchronized (cachemonitor)
+    {
+      refreshRequestTimestamp = System.currentTimeMillis();
+      cachemonitor.notifyAll();
+    }
+    wakeupHost();
+  }
+
+  private void wakeupHost()
+  {
+    Runnable wakeup = _hostWakeup;
+    if (wakeup != null)
+    {
+      wakeup.run();
+    }
+  }
+
   @Override
   public void shutdown()
   {
@@ -97,6 +185,30 @@ public class DefaultReaderCache<R extends IndexReader> extends AbstractReaderCac
     _maintenance.start();
   }
 
+  @Override
+  public void startHosted(Runnable wakeup)
+  {
+    _hostWakeup = wakeup;
+  }
+
+  /**
+   * Refreshes the readers when the maintenance thread would: on request, or
+   * every freshness milliseconds.
+   */
+  @Override
+  public boolean maintainIfDue()
+  {
+    synchronized (cachemonitor)
+    {
+      boolean due = refreshRequestTimestamp >= cachedreaderTimestamp
+          || System.currentTimeMillis() - cachedreaderTimestamp >= _freshness
+          || (alreadyShutdown && !cachedreaders.isEmpty());
+      if (!due) return false;
+    }
+    maintain();
+    return true;
+  }
+
   @Override
   public long getFreshness()
   {
@@ -109,6 +221,50 @@ public class DefaultReaderCache<R extends IndexReader> extends AbstractReaderCac
     _freshness = freshness;
   }
 
+  /**
+   * @param maxRefreshWait how long {@link #getIndexReaders(long)} waits for a
+   *          refresh before it falls back to the cached readers
+   */
+  public void setMaxRefreshWait(long maxRefreshWait)
+  {
+    _maxRefreshWait = maxRefreshWait;
+  }
+
+  public long getMaxRefreshWait()
+  {
+    return _maxRefreshWait;
+  }
+
+  /**
+   * @param refreshOnIndexUpdate whether to refresh the readers whenever an
+   *          indexing batch is done, see {@link IndexUpdatedEvent}
+   */
+  public void setRefreshOnIndexUpdate(boolean refreshOnIndexUpdate)
+  {
+    _refreshOnIndexUpdate = refreshOnIndexUpdate;
+  }
+
+  public boolean isRefreshOnIndexUpdate()
+  {
+    return _refreshOnIndexUpdate;
+  }
+
+  public long getNumRefreshes()
+  {
+    return _numRefreshes.get();
+  }
+
+  /**
+   * @return the number of refreshes that changed the cached readers, counted
+   *         once the refreshed readers are cached; the periodic refreshes of an
+   *         idle system keep it
+   */
+  @Override
+  public long getGeneration()
+  {
+    return _generation.get();
+  }
+
   private Thread newMaintenanceThread()
   {
     return new MaintenanceThread();
@@ -128,72 +284,125 @@ public class DefaultReaderCache<R extends IndexReader> extends AbstractReaderCac
         {
           synchronized (cachemonitor)
           {
-            cachemonitor.wait(_freshness);
+            if (alreadyShutdown || refreshRequestTimestamp < cachedreaderTimestamp)
+            {
+              cachemonitor.wait(_freshness);
+            }
           }
         } catch (InterruptedException e)
         {
           Thread.interrupted(); // clear interrupted state
         }
-        List<ZoieIndexReader<R>> newreaders = null;
-        if (alreadyShutdown)
-        {
-          newreaders = new ArrayList<ZoieIndexReader<R>>();
-          // clean up and quit
-        } else
-        {
-          try
-          {
-            IndexReaderFactory<ZoieIndexReader<R>> readerfactory = _readerfactory.get();
-            if (readerfactory != null)
-            {
-              newreaders = readerfactory.getIndexReaders();
-            } else
-            {
-              newreaders = new ArrayList<ZoieIndexReader<R>>();
-            }
-          } catch (IOException e)
-          {
-            log.info("DefaultReaderCache-zoie-indexReader-maintenance", e);
-            newreaders = new ArrayList<ZoieIndexReader<R>>();
-          }
-        }
-        List<ZoieIndexReader<R>> oldreaders = cachedreaders;
-        cachedreadersLock.writeLock().lock();
-        cachedreaders = newreaders;
-        cachedreadersLock.writeLock().unlock();
-        cachedreaderTimestamp = System.currentTimeMillis();
-        synchronized (cachemonitor)
+        if (!maintain())
         {
-          cachemonitor.notifyAll();
+          log.info("ZoieSystem has been GCed. Exiting DefaultReaderCache Maintenance Thread " + this);
+          break; // if the system is GCed, we quit.
         }
-        // return the old cached reader
-        if (!oldreaders.isEmpty())
-          returnIndexReaders(oldreaders);
-        // process the returing index reader queue
-        returningIndexReaderQueueLock.writeLock().lock();
-        ConcurrentLinkedQueue<List<ZoieIndexReader<R>>> oldreturningIndexReaderQueue = returningIndexReaderQueue;
-        returningIndexReaderQueue = new ConcurrentLinkedQueue<List<ZoieIndexReader<R>>>();
-        returningIndexReaderQueueLock.writeLock().unlock();
-        for (List<ZoieIndexReader<R>> readers : oldreturningIndexReaderQueue)
+      }
+    }
+  }
+
+  /**
+   * Refreshes the cached readers and releases the returned ones.
+   * @return false once the ZoieSystem is gone
+   */
+  private boolean maintain()
+  {
+    long refreshTimestamp = System.currentTimeMillis();
+    List<ZoieIndexReader<R>> newreaders = null;
+    if (alreadyShutdown)
+    {
+      newreaders = new ArrayList<ZoieIndexReader<R>>();
+      // clean up and quit
+    } else
+    {
+      try
+      {
+        IndexReaderFactory<ZoieIndexReader<R>> readerfactory = _readerfactory.get();
+        if (readerfactory != null)
         {
-          for (ZoieIndexReader<R> r : readers)
-          {
-            r.decZoieRef();
-          }
-        }
-        if (_readerfactory.get() == null && cachedreaders.size() == 0)
+          newreaders = readerfactory.getIndexReaders();
+        } else
         {
-          log.info("ZoieSystem has been GCed. Exiting DefaultReaderCache Maintenance Thread " + this);
-          break; // if the system is GCed, we quit.
+          newreaders = new ArrayList<ZoieIndexReader<R>>();
         }
+      } catch (IOException e)
+      {
+        log.info("DefaultReaderCache-zoie-indexReader-maintenance", e);
+        newreaders = new ArrayList<ZoieIndexReader<R>>();
+      }
+    }
+    List<ZoieIndexReader<R>> oldreaders = cachedreaders;
+    boolean changed = !isSameIndex(oldreaders, newreaders);
+    cachedreaders = newreaders;
+    cachedreaderTimestamp = refreshTimestamp;
+    _numRefreshes.incrementAndGet();
+    if (changed) _generation.incrementAndGet();
+    synchronized (cachemonitor)
+    {
+      cachemonitor.notifyAll();
+    }
+    // return the old cached reader
+    if (!oldreaders.isEmpty())
+      returnIndexReaders(oldreaders);
+    // process the returing index reader queue
+    List<ZoieIndexReader<R>> readers;
+    while ((readers = returningIndexReaderQueue.poll()) != null)
+    {
+      for (ZoieIndexReader<R> r : readers)
+      {
+        r.decZoieRef();
       }
     }
+    return !(_readerfactory.get() == null && cachedreaders.size() == 0);
   }
-  public static ReaderCacheFactory FACTORY = new ReaderCacheFactory(){
 
-    @Override
-    public <R extends IndexReader> AbstractReaderCache<R> newInstance(IndexReaderFactory<ZoieIndexReader<R>> readerfactory)
+  /**
+   * @return whether the readers are copies of the same index readers with the
+   *         same deletes marked, which is what a refresh gets when nothing was
+   *         indexed meanwhile
+   */
+  private static <R extends IndexReader> boolean isSameIndex(List<ZoieIndexReader<R>> oldreaders, List<ZoieIndexReader<R>> newreaders)
+  {
+    if (oldreaders.size() != newreaders.size()) return false;
+    for (int i = 0; i < oldreaders.size(); ++i)
     {
-      return new DefaultReaderCache<R>(readerfactory);
-    }};
+      ZoieIndexReader<R> oldreader = oldreaders.get(i);
+      ZoieIndexReader<R> newreader = newreaders.get(i);
+      if (oldreader.getInnerReader() != newreader.getInnerReader()) return false;
+      ZoieIndexReader<R>[] oldsubs = oldreader.getSequentialSubReaders();
+      ZoieIndexReader<R>[] newsubs = newreader.getSequentialSubReaders();
+      if (oldsubs == null || newsubs == null)
+      {
+        if (oldsubs != newsubs || oldreader.getDelDocIds() != newreader.getDelDocIds()) return false;
+        continue;
+      }
+      if (oldsubs.length != newsubs.length) return false;
+      for (int j = 0; j < oldsubs.length; ++j)
+      {
+        // the marks are a new array whenever they change
+        if (oldsubs[j].getDelDocIds() != newsubs[j].getDelDocIds()) return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @param refreshOnIndexUpdate see {@link #setRefreshOnIndexUpdate(boolean)}
+   * @return a factory of DefaultReaderCaches
+   */
+  public static ReaderCacheFactory newFactory(final boolean refreshOnIndexUpdate)
+  {
+    return new ReaderCacheFactory(){
+
+      @Override
+      public <R extends IndexReader> AbstractReaderCache<R> newInstance(IndexReaderFactory<ZoieIndexReader<R>> readerfactory)
+      {
+        DefaultReaderCache<R> cache = new DefaultReaderCache<R>(readerfactory);
+        cache.setRefreshOnIndexUpdate(refreshOnIndexUpdate);
+        return cache;
+      }};
+  }
+
+  public static ReaderCacheFactory FACTORY = newFactory(false);
 }
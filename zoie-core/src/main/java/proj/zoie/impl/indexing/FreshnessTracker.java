@@ -0,0 +1,212 @@
+package proj.zoie.impl.indexing;
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import java.util.ArrayDeque;
+import java.util.Comparator;
+
+import proj.zoie.api.impl.util.LatencyHistogram;
+import proj.zoie.api.indexing.IndexingEventListener;
+
+/**
+ * Tracks how long the event versions take to become visible to searchers and
+ * durable on disk. Versions are timestamped when consumed, visible once the
+ * indexer consumed them (realtime indexing) or once flushed to disk otherwise,
+ * and durable once {@link #handleUpdatedDiskVersion(String)} reports a disk
+ * version at least as recent. Visibility is that of
+ * {@link proj.zoie.impl.indexing.internal.SearchIndexManager#getIndexReaders()};
+ * a reader cache adds up to its refresh interval.
+ * <br>
+ * Only the highest version of every consumed batch is timestamped, and at most
+ * {@link #MAX_PENDING} of them are waiting at a time; batches received beyond
+ * that are not tracked.
+ */
+public class FreshnessTracker implements IndexingEventListener
+{
+  public static final int MAX_PENDING = 65536;
+
+  private final Comparator<String> _versionComparator;
+  private final boolean _realtime;
+  private final ArrayDeque<Pending> _notVisible = new ArrayDeque<Pending>();
+  private final ArrayDeque<Pending> _notDurable = new ArrayDeque<Pending>();
+  private final LatencyHistogram _visibleLag = new LatencyHistogram();
+  private final LatencyHistogram _durableLag = new LatencyHistogram();
+  private volatile String _visibleVersion = null;
+  private volatile String _durableVersion = null;
+  private long _numUntracked = 0;
+
+  /**
+   * @param realtime whether the events are visible as soon as consumed by the
+   *          indexer, false if only after they are flushed to disk
+   */
+  public FreshnessTracker(Comparator<String> versionComparator, boolean realtime)
+  {
+    _versionComparator = versionComparator;
+    _realtime = realtime;
+  }
+
+  /**
+   * @param version the highest version of a batch just received
+   */
+  public synchronized void versionReceived(String version)
+  {
+    if (version == null) return;
+    if (_notVisible.size() + _notDurable.size() >= MAX_PENDING)
+    {
+      _numUntracked++;
+      return;
+    }
+    Pending last = _notVisible.peekLast();
+    if (last != null && _versionComparator.compare(last._version, version) >= 0)
+    {
+      return; // no newer version, the pending one is older anyway
+    }
+    _notVisible.addLast(new Pending(version, System.nanoTime()));
+  }
+
+  /**
+   * @param version the version the indexer has consumed up to
+   */
+  public void versionConsumed(String version)
+  {
+    if (_realtime)
+    {
+      versionVisible(version);
+    }
+  }
+
+  private synchronized void versionVisible(String version)
+  {
+    if (version == null) return;
+    _visibleVersion = version;
+    long now = System.nanoTime();
+    Pending pending;
+    while ((pending = _notVisible.peekFirst()) != null && _versionComparator.compare(pending._version, version) <= 0)
+    {
+      _notVisible.removeFirst();
+      _visibleLag.record((now - pending._received) / 1000L);
+      _notDurable.addLast(pending);
+    }
+  }
+
+  private synchronized void versionDurable(String version)
+  {
+    if (version == null) return;
+    _durableVersion = version;
+    long now = System.nanoTime();
+    Pending pending;
+    while ((pending = _notDurable.peekFirst()) != null && _versionComparator.compare(pending._version, version) <= 0)
+    {
+      _notDurable.removeFirst();
+      _durableLag.record((now - pending._received) / 1000L);
+    }
+  }
+
+  public void handleIndexingEvent(IndexingEvent evt)
+  {
+  }
+
+  public void handleUpdatedDiskVersion(String version)
+  {
+    if (!_realtime)
+    {
+      versionVisible(version);
+    }
+    versionDurable(version);
+  }
+
+  /**
+   * @return the latest version visible to searchers
+   */
+  public String getVisibleVersion()
+  {
+    return _visibleVersion;
+  }
+
+  /**
+   * @return the latest version flushed to disk
+   */
+  public String getDurableVersion()
+  {
+    return _durableVersion;
+  }
+
+  /**
+   * @return the lags, in microseconds, from receiving a version to it being
+   *         visible
+   */
+  public LatencyHistogram getVisibleLag()
+  {
+    return _visibleLag;
+  }
+
+  /**
+   * @return the lags, in microseconds, from receiving a version to it being
+   *         on disk
+   */
+  public LatencyHistogram getDurableLag()
+  {
+    return _durableLag;
+  }
+
+  /**
+   * @return for how long, in milliseconds, the oldest version received and not
+   *         visible yet has been waiting; 0 if all versions are visible. Unlike
+   *         the lag percentiles, this grows while the indexing is stuck.
+   */
+  public synchronized long getCurrentVisibleLagMillis()
+  {
+    Pending pending = _notVisible.peekFirst();
+    return pending == null ? 0L : (System.nanoTime() - pending._received) / 1000000L;
+  }
+
+  /**
+   * @return for how long, in milliseconds, the oldest version received and not
+   *         on disk yet has been waiting
+   */
+  public synchronized long getCurrentDurableLagMillis()
+  {
+    Pending pending = _notDurable.peekFirst();
+    if (pending == null) pending = _notVisible.peekFirst();
+    return pending == null ? 0L : (System.nanoTime() - pending._received) / 1000000L;
+  }
+
+  /**
+   * @return the number of batches not tracked because too many were pending
+   */
+  public synchronized long getNumUntracked()
+  {
+    return _numUntracked;
+  }
+
+  public void reset()
+  {
+    _visibleLag.reset();
+    _durableLag.reset();
+  }
+
+  private static final class Pending
+  {
+    final String _version;
+    final long _received;
+
+    Pending(String version, long received)
+    {
+      _version = version;
+      _received = received;
+    }
+  }
+}
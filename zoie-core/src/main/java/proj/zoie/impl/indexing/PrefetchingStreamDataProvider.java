@@ -0,0 +1,343 @@
+package proj.zoie.impl.indexing;
+
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import proj.zoie.api.DataConsumer.DataEvent;
+
+/**
+ * Stream provider reading its source ahead of the data thread: the source is
+ * split in partitions, each read by its own fetcher thread calling
+ * {@link #fetch(int)} into a bounded queue, so that slow reads (row decoding,
+ * file parsing, message receives) overlap with each other and with indexing.
+ * <br>
+ * {@link #next()} merges the partitions in version order, the versions of a
+ * partition being expected to increase: it returns the lowest head once each
+ * partition either has an event queued or has caught up with its source (its
+ * last fetch returned null and it is not fetching again). By default it waits for a partition being fetched
+ * as long as it takes; with {@link #setMaxMergeWait(long)}, it stops waiting
+ * after that many ms and returns the lowest head out of order, with the version
+ * of the last event returned in order, so that the version the consumer commits
+ * never gets past events still to be fetched.
+ * <br>
+ * {@link #reset()} and {@link #setStartingOffset(String)} are called while the
+ * fetchers are stopped.
+ */
+public abstract class PrefetchingStreamDataProvider<D> extends StreamDataProvider<D>
+{
+  private static final Logger log = Logger.getLogger(PrefetchingStreamDataProvider.class);
+
+  private final int _numPartitions;
+  private final int _prefetchSize;
+  private volatile long _maxMergeWait = -1L; // strict version order
+  private volatile long _idleWait = 100L;
+  private final Object _monitor = new Object();
+  private volatile List<Fetcher<D>> _fetchers = null;
+  private volatile boolean _stopping = false;
+  private String _orderedVersion = null; // of the last event returned in order, guarded by _monitor
+
+  /**
+   * @param numPartitions the number of partitions, and of fetcher threads
+   * @param prefetchSize the number of events read ahead, per partition
+   */
+  public PrefetchingStreamDataProvider(int numPartitions, int prefetchSize, Comparator<String> versionComparator)
+  {
+    super(versionComparator);
+    if (numPartitions < 1)
+      throw new IllegalArgumentException("numPartitions: " + numPartitions);
+    _numPartitions = numPartitions;
+    _prefetchSize = Math.max(1, prefetchSize);
+  }
+
+  /**
+   * Reads the next event of a partition, called by the fetcher thread of the
+   * partition only.
+   * @return the event, null if there is none for now
+   */
+  protected abstract DataEvent<D> fetch(int partition);
+
+  public int getNumPartitions()
+  {
+    return _numPartitions;
+  }
+
+  public int getPrefetchSize()
+  {
+    return _prefetchSize;
+  }
+
+  public long getMaxMergeWait()
+  {
+    return _maxMergeWait;
+  }
+
+  /**
+   * @param maxMergeWait how long, in ms, a partition being fetched can hold
+   *          back the events of the others, negative to keep the version order
+   *          whatever the wait (the default)
+   */
+  public void setMaxMergeWait(long maxMergeWait)
+  {
+    _maxMergeWait = maxMergeWait;
+  }
+
+  public long getIdleWait()
+  {
+    return _idleWait;
+  }
+
+  /**
+   * @param idleWait how long, in ms, a fetcher waits before fetching again
+   *          once its partition has caught up
+   */
+  public void setIdleWait(long idleWait)
+  {
+    _idleWait = Math.max(1L, idleWait);
+  }
+
+  /**
+   * @return the number of events read ahead in all partitions
+   */
+  public int getPrefetchedCount()
+  {
+    List<Fetcher<D>> fetchers = _fetchers;
+    if (fetchers == null) return 0;
+    int count = 0;
+    for (Fetcher<D> fetcher : fetchers)
+    {
+      count += fetcher._queue.size();
+    }
+    return count;
+  }
+
+  @Override
+  public final DataEvent<D> next()
+  {
+    List<Fetcher<D>> fetchers = _fetchers;
+    if (fetchers == null) return null;
+    long maxMergeWait = _maxMergeWait;
+    long due = maxMergeWait < 0 ? Long.MAX_VALUE : System.currentTimeMillis() + maxMergeWait;
+    synchronized (_monitor)
+    {
+      while (!_stopping)
+      {
+        long now = System.currentTimeMillis();
+        long readyAt = now;
+        boolean pending = false;
+        Fetcher<D> best = null;
+        DataEvent<D> bestHead = null;
+        for (Fetcher<D> fetcher : fetchers)
+        {
+          DataEvent<D> head = fetcher._queue.peek();
+          if (head == null)
+          {
+            if (!fetcher._idle)
+            {
+              pending = true;
+              readyAt = maxMergeWait < 0 ? Long.MAX_VALUE : Math.max(readyAt, fetcher._fetchStart + maxMergeWait);
+            }
+          } else if (bestHead == null || _versionComparator.compare(head.getVersion(), bestHead.getVersion()) < 0)
+          {
+            best = fetcher;
+            bestHead = head;
+          }
+        }
+        // only this thread takes from the queues
+        if (!pending)
+        {
+          if (best == null) return null;
+          _orderedVersion = bestHead.getVersion();
+          return best._queue.poll();
+        }
+        if (readyAt <= now || now >= due)
+        {
+          if (best == null) return null;
+          if (_orderedVersion != null)
+          {
+            // a partition being fetched may still have older events
+            DataEvent<D> event = best._queue.poll();
+            return new DataEvent<D>(event.getData(), _orderedVersion);
+          }
+          // no version to report yet, keeps waiting
+        }
+        try
+        {
+          // bounded, so that a stop is seen
+          _monitor.wait(Math.max(1L, Math.min(_idleWait, Math.min(readyAt, due) - now)));
+        } catch (InterruptedException e)
+        {
+          Thread.interrupted();
+        }
+      }
+      return null;
+    }
+  }
+
+  @Override
+  public void start()
+  {
+    if (_fetchers != null) return;
+    _stopping = false;
+    synchronized (_monitor)
+    {
+      _orderedVersion = null;
+    }
+    super.start(); // resets the partitions
+    List<Fetcher<D>> fetchers = new ArrayList<Fetcher<D>>(_numPartitions);
+    for (int i = 0; i < _numPartitions; ++i)
+    {
+      fetchers.add(new Fetcher<D>(this, i));
+    }
+    _fetchers = fetchers;
+    for (Fetcher<D> fetcher : fetchers)
+    {
+      fetcher.start();
+    }
+  }
+
+  @Override
+  public void stop()
+  {
+    _stopping = true; // lets the data thread out of next()
+    eventsChanged();
+    try
+    {
+      super.stop();
+    } finally
+    {
+      List<Fetcher<D>> fetchers = _fetchers;
+      if (fetchers != null)
+      {
+        for (Fetcher<D> fetcher : fetchers)
+        {
+          fetcher.terminate();
+        }
+        for (Fetcher<D> fetcher : fetchers)
+        {
+          try
+          {
+            fetcher.join();
+          } catch (InterruptedException e)
+          {
+            log.warn("stopping interrupted");
+          }
+        }
+        // events read ahead are dropped, the next start resets the partitions
+        _fetchers = null;
+      }
+    }
+  }
+
+  private void eventsChanged()
+  {
+    synchronized (_monitor)
+    {
+      _monitor.notifyAll();
+    }
+  }
+
+  private static final class Fetcher<D> extends Thread
+  {
+    private final PrefetchingStreamDataProvider<D> _dataProvider;
+    private final int _partition;
+    private final ArrayBlockingQueue<DataEvent<D>> _queue;
+    private volatile boolean _stop = false;
+    private volatile boolean _idle = false; // caught up, with nothing queued nor being fetched
+    private volatile long _fetchStart = System.currentTimeMillis();
+
+    Fetcher(PrefetchingStreamDataProvider<D> dataProvider, int partition)
+    {
+      super("Stream Fetcher " + partition);
+      setDaemon(true);
+      _dataProvider = dataProvider;
+      _partition = partition;
+      _queue = new ArrayBlockingQueue<DataEvent<D>>(dataProvider._prefetchSize);
+    }
+
+    @Override
+    public void run()
+    {
+      while (!_stop)
+      {
+        _fetchStart = System.currentTimeMillis();
+        if (_idle)
+        {
+          // the fetch may return older events than the heads of the others
+          _idle = false;
+          _dataProvider.eventsChanged();
+        }
+        DataEvent<D> event;
+        try
+        {
+          event = _dataProvider.fetch(_partition);
+        } catch (RuntimeException e)
+        {
+          log.error("fetching partition " + _partition, e);
+          event = null;
+        }
+        if (event == null)
+        {
+          if (_queue.isEmpty())
+          {
+            _idle = true;
+            _dataProvider.eventsChanged();
+          }
+          idle();
+          continue;
+        }
+        boolean queued = false;
+        while (!_stop && !queued)
+        {
+          try
+          {
+            queued = _queue.offer(event, 100, TimeUnit.MILLISECONDS);
+          } catch (InterruptedException e)
+          {
+            Thread.interrupted(); // the event is offered again
+          }
+        }
+        if (!queued) continue; // stopped
+        if (_queue.size() == 1) _dataProvider.eventsChanged(); // the merge may be waiting for it
+      }
+    }
+
+    private synchronized void idle()
+    {
+      if (_stop) return;
+      try
+      {
+        this.wait(_dataProvider._idleWait);
+      } catch (InterruptedException e)
+      {
+        Thread.interrupted();
+      }
+    }
+
+    private synchronized void terminate()
+    {
+      _stop = true;
+      this.notifyAll();
+    }
+  }
+}
@@ -0,0 +1,512 @@
+package proj.zoie.impl.indexing;
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import javax.management.StandardMBean;
+
+import org.apache.log4j.Logger;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.index.IndexReader;
+
+import proj.zoie.api.DataConsumer.MarkerDataEvent;
+import proj.zoie.api.DefaultDirectoryManager;
+import proj.zoie.api.DirectoryManager;
+import proj.zoie.api.Zoie;
+import proj.zoie.api.ZoieException;
+import proj.zoie.api.ZoieExecutors;
+import proj.zoie.api.ZoieHealth;
+import proj.zoie.api.ZoieIndexReader;
+import proj.zoie.api.indexing.IndexReaderDecorator;
+import proj.zoie.api.indexing.ZoieIndexable;
+import proj.zoie.api.indexing.ZoieIndexableInterpreter;
+
+/**
+ * Zoie partitioned by UID into independent {@link ZoieSystem}s, each with its
+ * own directory, consumer, loaders and disk writer, so that indexing and
+ * merges of a big index use several disks and cores.
+ * <br>
+ * The events are interpreted once by {@link #consume(Collection)} to find
+ * their UID and shard; the {@link ZoieIndexable}s are indexed by the shards.
+ * Every shard gets the version of the whole batch, through a marker event when
+ * its last event is older, so that the versions of the shards move together.
+ * <br>
+ * The readers of all shards are returned together, shard by shard, and the
+ * version of the system is the smallest version of its shards.
+ */
+public class ShardedZoieSystem<R extends IndexReader, D> implements Zoie<R, D>
+{
+  private static final Logger log = Logger.getLogger(ShardedZoieSystem.class);
+
+  public static final String SHARD_MBEAN_PREFIX = "shard";
+
+  private final List<ZoieSystem<R, ZoieIndexable>> _shards;
+  private final ZoieIndexableInterpreter<D> _interpreter;
+  private final Comparator<String> _versionComparator;
+  private final Analyzer _analyzer;
+  private final ExecutorService _executor;
+  private volatile boolean _isShutdown = false;
+
+  /**
+   * @param idxDirs the index directory of each shard
+   */
+  public ShardedZoieSystem(File[] idxDirs, ZoieIndexableInterpreter<D> interpreter,
+      IndexReaderDecorator<R> indexReaderDecorator, ZoieConfig zoieConfig)
+  {
+    this(toDirectoryManagers(idxDirs), interpreter, indexReaderDecorator, zoieConfig);
+  }
+
+  /**
+   * @param dirMgrs the directory manager of each shard
+   */
+  public ShardedZoieSystem(DirectoryManager[] dirMgrs, ZoieIndexableInterpreter<D> interpreter,
+      IndexReaderDecorator<R> indexReaderDecorator, ZoieConfig zoieConfig)
+  {
+    if (dirMgrs == null || dirMgrs.length == 0)
+    {
+      throw new IllegalArgumentException("at least one shard is needed");
+    }
+    if (interpreter == null)
+    {
+      throw new IllegalArgumentException("null interpreter");
+    }
+    _interpreter = interpreter;
+    _versionComparator = zoieConfig.getVersionComparator();
+    _analyzer = zoieConfig.getAnalyzer();
+    List<ZoieSystem<R, ZoieIndexable>> shards = new ArrayList<ZoieSystem<R, ZoieIndexable>>(dirMgrs.length);
+    ZoieIndexableInterpreter<ZoieIndexable> passThrough = new PassThroughInterpreter();
+    for (DirectoryManager dirMgr : dirMgrs)
+    {
+      shards.add(new ZoieSystem<R, ZoieIndexable>(dirMgr, passThrough, indexReaderDecorator, zoieConfig));
+    }
+    _shards = Collections.unmodifiableList(shards);
+
+    final ThreadFactory threadFactory = Executors.defaultThreadFactory();
+    _executor = ZoieExecutors.newFixedThreadPool(dirMgrs.length, new ThreadFactory()
+    {
+      public Thread newThread(Runnable r)
+      {
+        Thread thread = threadFactory.newThread(r);
+        thread.setName("zoie-shard-" + thread.getName());
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+
+  private static DirectoryManager[] toDirectoryManagers(File[] idxDirs)
+  {
+    DirectoryManager[] dirMgrs = new DirectoryManager[idxDirs.length];
+    for (int i = 0; i < idxDirs.length; ++i)
+    {
+      dirMgrs[i] = new DefaultDirectoryManager(idxDirs[i]);
+    }
+    return dirMgrs;
+  }
+
+  /**
+   * @return the shard the UID belongs to, between 0 and numShards - 1
+   */
+  public static int getShardIndex(long uid, int numShards)
+  {
+    // mix the bits, UIDs are often sequential or share their low bits
+    long h = uid * 0x9E3779B97F4A7C15L;
+    h ^= (h >>> 32);
+    return (int) ((h & 0x7fffffffL) % numShards);
+  }
+
+  public int getNumShards()
+  {
+    return _shards.size();
+  }
+
+  public ZoieSystem<R, ZoieIndexable> getShard(int i)
+  {
+    return _shards.get(i);
+  }
+
+  public List<ZoieSystem<R, ZoieIndexable>> getShards()
+  {
+    return _shards;
+  }
+
+  public Analyzer getAnalyzer()
+  {
+    return _analyzer;
+  }
+
+  public void start()
+  {
+    log.info("starting " + _shards.size() + " zoie shards...");
+    for (ZoieSystem<R, ZoieIndexable> shard : _shards)
+    {
+      shard.start();
+    }
+  }
+
+  /**
+   * Shuts the shards down in parallel.
+   */
+  public void shutdown()
+  {
+    synchronized (this)
+    {
+      if (_isShutdown)
+      {
+        log.info("system already shut down");
+        return;
+      }
+      _isShutdown = true;
+    }
+    try
+    {
+      runOnShards(new ShardTask<R>()
+      {
+        public void run(ZoieSystem<R, ZoieIndexable> shard) throws Exception
+        {
+          shard.shutdown();
+        }
+      });
+    } catch (ZoieException e)
+    {
+      log.error("shutting down the shards", e);
+    }
+    _executor.shutdown();
+    log.info("shut down complete.");
+  }
+
+  /**
+   * Routes the events to their shard by UID. Like for any
+   * {@link proj.zoie.api.DataConsumer}, the calls must not overlap.
+   */
+  public synchronized void consume(Collection<DataEvent<D>> data) throws ZoieException
+  {
+    if (data == null || data.size() == 0) return;
+    if (_isShutdown)
+    {
+      log.warn("System already shut down. Rejects indexing request.");
+      return;
+    }
+    int numShards = _shards.size();
+    List<List<DataEvent<ZoieIndexable>>> batches = new ArrayList<List<DataEvent<ZoieIndexable>>>(numShards);
+    for (int i = 0; i < numShards; ++i)
+    {
+      batches.add(new ArrayList<DataEvent<ZoieIndexable>>(data.size() / numShards + 1));
+    }
+    String version = null;
+    for (DataEvent<D> event : data)
+    {
+      if (event == null) continue;
+      String evtVersion = event.getVersion();
+      if (evtVersion != null && (version == null || _versionComparator.compare(version, evtVersion) < 0))
+      {
+        version = evtVersion;
+      }
+      if (event instanceof MarkerDataEvent) continue; // all shards get the batch version anyway
+      ZoieIndexable indexable;
+      try
+      {
+        indexable = _interpreter.convertAndInterpret(event.getData());
+      } catch (Exception e)
+      {
+        ZoieHealth.setFatal();
+        log.error(e.getMessage(), e);
+        continue;
+      }
+      if (indexable == null || indexable.isSkip()) continue;
+      int shard = getShardIndex(indexable.getUID(), numShards);
+      batches.get(shard).add(new DataEvent<ZoieIndexable>(indexable, evtVersion));
+    }
+    for (int i = 0; i < numShards; ++i)
+    {
+      List<DataEvent<ZoieIndexable>> batch = batches.get(i);
+      if (version != null && (batch.isEmpty() || !version.equals(batch.get(batch.size() - 1).getVersion())))
+      {
+        batch.add(MarkerDataEvent.<ZoieIndexable> createMarkerEvent(version));
+      }
+      if (batch.isEmpty()) continue;
+      _shards.get(i).consume(batch);
+    }
+  }
+
+  /**
+   * @return the smallest version of the shards, null if a shard has none yet
+   */
+  public String getVersion()
+  {
+    String minVersion = null;
+    for (ZoieSystem<R, ZoieIndexable> shard : _shards)
+    {
+      String version = shard.getVersion();
+      if (version == null) return null;
+      if (minVersion == null || _versionComparator.compare(version, minVersion) < 0)
+      {
+        minVersion = version;
+      }
+    }
+    return minVersion;
+  }
+
+  /**
+   * @return the smallest version consumed by the shards, null if a shard has
+   *         consumed none yet
+   */
+  public String getCurrentVersion()
+  {
+    String minVersion = null;
+    for (ZoieSystem<R, ZoieIndexable> shard : _shards)
+    {
+      String version = shard.getCurrentVersion();
+      if (version == null) return null;
+      if (minVersion == null || _versionComparator.compare(version, minVersion) < 0)
+      {
+        minVersion = version;
+      }
+    }
+    return minVersion;
+  }
+
+  /**
+   * Waits for all the shards to reach the version.
+   */
+  public void syncWithVersion(long timeInMillis, String version) throws ZoieException
+  {
+    long now = System.currentTimeMillis();
+    long deadline = timeInMillis > Long.MAX_VALUE - now ? Long.MAX_VALUE : now + timeInMillis; // e.g. Long.MAX_VALUE to wait for ever
+    for (ZoieSystem<R, ZoieIndexable> shard : _shards)
+    {
+      shard.syncWithVersion(Math.max(0L, deadline - System.currentTimeMillis()), version);
+    }
+  }
+
+  /**
+   * Flushes the shards to disk in parallel.
+   */
+  public void flushEvents(final long timeout) throws ZoieException
+  {
+    runOnShards(new ShardTask<R>()
+    {
+      public void run(ZoieSystem<R, ZoieIndexable> shard) throws Exception
+      {
+        shard.flushEvents(timeout);
+      }
+    });
+  }
+
+  /**
+   * Flushes the shards to their memory index in parallel.
+   */
+  public void flushEventsToMemoryIndex(final long timeout) throws ZoieException
+  {
+    runOnShards(new ShardTask<R>()
+    {
+      public void run(ZoieSystem<R, ZoieIndexable> shard) throws Exception
+      {
+        shard.flushEventsToMemoryIndex(timeout);
+      }
+    });
+  }
+
+  /**
+   * Optimizes the disk indexes of the shards in parallel.
+   */
+  public void optimize(final int numSegs) throws ZoieException
+  {
+    runOnShards(new ShardTask<R>()
+    {
+      public void run(ZoieSystem<R, ZoieIndexable> shard) throws Exception
+      {
+        shard.getAdminMBean().optimize(numSegs);
+      }
+    });
+  }
+
+  /**
+   * Expunges the deletes of the disk indexes of the shards in parallel.
+   */
+  public void expungeDeletes() throws ZoieException
+  {
+    runOnShards(new ShardTask<R>()
+    {
+      public void run(ZoieSystem<R, ZoieIndexable> shard) throws Exception
+      {
+        shard.getAdminMBean().expungeDeletes();
+      }
+    });
+  }
+
+  /**
+   * @return the readers of all the shards, shard by shard, to be returned by
+   *         {@link #returnIndexReaders(List)}
+   */
+  public List<ZoieIndexReader<R>> getIndexReaders() throws IOException
+  {
+    ShardReaderList<R> readers = new ShardReaderList<R>(_shards.size());
+    try
+    {
+      for (ZoieSystem<R, ZoieIndexable> shard : _shards)
+      {
+        readers.addShard(shard.getIndexReaders());
+      }
+    } catch (IOException e)
+    {
+      returnIndexReaders(readers);
+      throw e;
+    } catch (RuntimeException e)
+    {
+      returnIndexReaders(readers);
+      throw e;
+    }
+    return readers;
+  }
+
+  public void returnIndexReaders(List<ZoieIndexReader<R>> readers)
+  {
+    if (readers == null) return;
+    if (!(readers instanceof ShardReaderList<?>))
+    {
+      log.warn("returnIndexReaders: not a list from getIndexReaders, ignored");
+      return;
+    }
+    List<List<ZoieIndexReader<R>>> shardReaders = ((ShardReaderList<R>) readers)._shardReaders;
+    for (int i = 0; i < shardReaders.size(); ++i)
+    {
+      _shards.get(i).returnIndexReaders(shardReaders.get(i));
+    }
+  }
+
+  /**
+   * The MBeans of shard i are named "shard" + i + "-" + the name in the shard.
+   */
+  public String[] getStandardMBeanNames()
+  {
+    List<String> names = new ArrayList<String>();
+    for (int i = 0; i < _shards.size(); ++i)
+    {
+      for (String name : _shards.get(i).getStandardMBeanNames())
+      {
+        names.add(SHARD_MBEAN_PREFIX + i + "-" + name);
+      }
+    }
+    return names.toArray(new String[names.size()]);
+  }
+
+  public StandardMBean getStandardMBean(String name)
+  {
+    if (name == null || !name.startsWith(SHARD_MBEAN_PREFIX)) return null;
+    int sep = name.indexOf('-', SHARD_MBEAN_PREFIX.length());
+    if (sep < 0) return null;
+    try
+    {
+      int i = Integer.parseInt(name.substring(SHARD_MBEAN_PREFIX.length(), sep));
+      if (i < 0 || i >= _shards.size()) return null;
+      return _shards.get(i).getStandardMBean(name.substring(sep + 1));
+    } catch (NumberFormatException e)
+    {
+      return null;
+    }
+  }
+
+  /**
+   * Runs the task on every shard in parallel and waits for them all.
+   * @throws ZoieException the first failure, once all the tasks are done
+   */
+  private void runOnShards(final ShardTask<R> task) throws ZoieException
+  {
+    List<Future<?>> futures = new ArrayList<Future<?>>(_shards.size());
+    for (final ZoieSystem<R, ZoieIndexable> shard : _shards)
+    {
+      futures.add(_executor.submit(new Callable<Object>()
+      {
+        public Object call() throws Exception
+        {
+          task.run(shard);
+          return null;
+        }
+      }));
+    }
+    ZoieException failure = null;
+    for (int i = 0; i < futures.size(); ++i)
+    {
+      try
+      {
+        futures.get(i).get();
+      } catch (InterruptedException e)
+      {
+        Thread.currentThread().interrupt();
+        if (failure == null) failure = new ZoieException("interrupted waiting for shard " + i);
+      } catch (ExecutionException e)
+      {
+        Throwable cause = e.getCause();
+        log.error("shard " + i + ": " + cause.getMessage(), cause);
+        if (failure == null)
+        {
+          failure = (cause instanceof ZoieException) ? (ZoieException) cause : new ZoieException("shard " + i + ": " + cause.getMessage(), cause);
+        }
+      }
+    }
+    if (failure != null) throw failure;
+  }
+
+  private static interface ShardTask<R extends IndexReader>
+  {
+    void run(ZoieSystem<R, ZoieIndexable> shard) throws Exception;
+  }
+
+  /**
+   * The shards get the events already interpreted.
+   */
+  private static class PassThroughInterpreter implements ZoieIndexableInterpreter<ZoieIndexable>
+  {
+    public ZoieIndexable convertAndInterpret(ZoieIndexable src)
+    {
+      return src;
+    }
+  }
+
+  /**
+   * Readers of all the shards, keeping the list of each shard to return it.
+   */
+  private static class ShardReaderList<R extends IndexReader> extends ArrayList<ZoieIndexReader<R>>
+  {
+    private static final long serialVersionUID = 1L;
+    private final List<List<ZoieIndexReader<R>>> _shardReaders;
+
+    ShardReaderList(int numShards)
+    {
+      _shardReaders = new ArrayList<List<ZoieIndexReader<R>>>(numShards);
+    }
+
+    void addShard(List<ZoieIndexReader<R>> readers)
+    {
+      _shardReaders.add(readers);
+      addAll(readers);
+    }
+  }
+}
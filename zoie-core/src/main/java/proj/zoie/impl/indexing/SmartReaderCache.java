@@ -24,6 +24,7 @@ public class SmartReaderCache<R extends IndexReader> extends AbstractReaderCache
   private volatile long cachedreaderTimestamp = 0;
   private final Object cachemonitor = new Object();
   private long _freshness = 10000L;
+  private volatile long _maxRefreshWait = 5000L;
   private final IndexReaderFactory<ZoieIndexReader<R>> _readerfactory;
   private final HashMap<WeakReference<List<ZoieIndexReader<R>>>, List<ZoieIndexReader<R>>> readermap;
   private final ReferenceQueue<List<ZoieIndexReader<R>>> refq;
@@ -43,6 +44,22 @@ public class SmartReaderCache<R extends IndexReader> extends AbstractReaderCache
     return cachedreaders;
   }
 
+  @Override
+  public List<ZoieIndexReader<R>> getIndexReaders(long maxAge)
+  {
+    if (System.currentTimeMillis() - cachedreaderTimestamp > maxAge && !alreadyShutdown)
+    {
+      try
+      {
+        refreshCache(_maxRefreshWait);
+      } catch (ZoieException e)
+      {
+        log.warn("no readers fresher than " + maxAge + "ms, using the cached ones: " + e.getMessage());
+      }
+    }
+    return cachedreaders;
+  }
+
   @Override
   public void returnIndexReaders(List<ZoieIndexReader<R>> readers)
   {
@@ -104,6 +121,20 @@ public class SmartReaderCache<R extends IndexReader> extends AbstractReaderCache
     _freshness = freshness;
   }
 
+  /**
+   * @param maxRefreshWait how long {@link #getIndexReaders(long)} waits for a
+   *          refresh before it falls back to the cached readers
+   */
+  public void setMaxRefreshWait(long maxRefreshWait)
+  {
+    _maxRefreshWait = maxRefreshWait;
+  }
+
+  public long getMaxRefreshWait()
+  {
+    return _maxRefreshWait;
+  }
+
   private Thread newMaintenanceThread()
   {
     return new Thread("SmartReaderCache-zoie-indexReader-maintenance")
@@ -123,6 +154,7 @@ public class SmartReaderCache<R extends IndexReader> extends AbstractReaderCache
           {
             Thread.interrupted(); // clear interrupted state
           }
+          long refreshTimestamp = System.currentTimeMillis();
           List<ZoieIndexReader<R>> newreaders = null;
           if (alreadyShutdown)
           {
@@ -144,7 +176,7 @@ public class SmartReaderCache<R extends IndexReader> extends AbstractReaderCache
             WeakReference<List<ZoieIndexReader<R>>> w = new WeakReference<List<ZoieIndexReader<R>>>(cachedreaders, refq);
             readermap.put(w, newreaders); // when nobody uses cachedreaders, we will clean newreaders :)
           }
-          cachedreaderTimestamp = System.currentTimeMillis();
+          cachedreaderTimestamp = refreshTimestamp;
           synchronized (cachemonitor)
           {
             cachemonitor.notifyAll();
@@ -16,9 +16,9 @@ package proj.zoie.impl.indexing;
  * See the License for the specific language governing permissions and
  * limitations under the License.
  */
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Comparator;
-import java.util.LinkedList;
 import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.log4j.Logger;
@@ -27,8 +27,19 @@ import proj.zoie.api.DataConsumer;
 import proj.zoie.api.DataProvider;
 import proj.zoie.api.ZoieException;
 import proj.zoie.api.DataConsumer.DataEvent;
+import proj.zoie.api.impl.util.TokenBucket;
 import proj.zoie.mbean.DataProviderAdminMBean;
 
+/**
+ * Pulls the events of {@link #next()} in a thread and passes them to the
+ * consumer in batches of {@link #getBatchSize()}, or fewer when asked to sync.
+ * <br>
+ * The events can be limited to {@link #getMaxEventsPerMinute()}, with
+ * bursts of up to {@link #getMaxEventsBurst()} events after idle periods:
+ * each event waits for its token, so a throttled provider feeds its consumer
+ * at a steady pace, and batches asked for by a sync are flushed while it
+ * waits.
+ */
 public abstract class StreamDataProvider<D> implements DataProvider<D>, DataProviderAdminMBean
 {
   private static final Logger log = Logger.getLogger(StreamDataProvider.class);
@@ -36,6 +47,8 @@ public abstract class StreamDataProvider<D> implements DataProvider<D>, DataProv
   private int _batchSize;
   private DataConsumer<D> _consumer;
   private DataThread<D> _thread;
+  private final TokenBucket _limiter = new TokenBucket(Long.MAX_VALUE, 1);
+  private volatile long _maxEventsBurst = 0; // 0 for a second of events
 
   protected final Comparator<String> _versionComparator;
 
@@ -88,11 +101,33 @@ public abstract class StreamDataProvider<D> implements DataProvider<D>, DataProv
   public void setMaxEventsPerMinute(long maxEventsPerMinute)
   {
     _maxEventsPerMinute = maxEventsPerMinute;
-    DataThread<D> thread = _thread;
-    if (thread == null)
-      return;
-    thread.setMaxEventsPerMinute(_maxEventsPerMinute);
+    _limiter.setRate(maxEventsPerMinute);
+    updateBurst();
+  }
+
+  /**
+   * @return the number of events passed at once after an idle period when
+   *         the events are limited
+   */
+  public long getMaxEventsBurst()
+  {
+    return _limiter.getBurst();
+  }
 
+  /**
+   * @param maxEventsBurst the number of events passed at once after an idle
+   *          period, 0 for a second worth of {@link #getMaxEventsPerMinute()}
+   */
+  public void setMaxEventsBurst(long maxEventsBurst)
+  {
+    _maxEventsBurst = Math.max(0L, maxEventsBurst);
+    updateBurst();
+  }
+
+  private void updateBurst()
+  {
+    long burst = _maxEventsBurst;
+    _limiter.setBurst(burst > 0 ? burst : _maxEventsPerMinute / 60);
   }
 
   public String getStatus()
@@ -155,7 +190,6 @@ public abstract class StreamDataProvider<D> implements DataProvider<D>, DataProv
       reset();
 
       _thread = new DataThread<D>(this);
-      _thread.setMaxEventsPerMinute(_maxEventsPerMinute);
 
       _thread.start();
     }
@@ -173,14 +207,15 @@ public abstract class StreamDataProvider<D> implements DataProvider<D>, DataProv
 
   private static final class DataThread<D> extends Thread
   {
-    private Collection<DataEvent<D>> _batch;
+    private static final int MAX_BATCH_CAPACITY = 10000;
+    private ArrayList<DataEvent<D>> _batch;
     private String _currentVersion;
     private final StreamDataProvider<D> _dataProvider;
     private volatile boolean _paused;
     private volatile boolean _stop;
     private volatile boolean _stopped = false;
     private AtomicLong _eventCount = new AtomicLong(0);
-    private volatile long _throttle = 40000;// Long.MAX_VALUE;
+    private final TokenBucket _limiter;
     private boolean _flushing = false;
     private final Comparator<String> _versionComparator;
 
@@ -209,7 +244,8 @@ public abstract class StreamDataProvider<D> implements DataProvider<D>, DataProv
       _currentVersion = null;
       _paused = false;
       _stop = false;
-      _batch = new LinkedList<DataEvent<D>>();
+      _batch = newBatch();
+      _limiter = dataProvider._limiter;
       _versionComparator = dataProvider._versionComparator;
     }
 
@@ -243,12 +279,21 @@ public abstract class StreamDataProvider<D> implements DataProvider<D>, DataProv
       }
     }
 
+    /**
+     * @return an array-backed batch; a new one for each flush, consumers
+     *         being allowed to keep the collections they are given
+     */
+    private ArrayList<DataEvent<D>> newBatch()
+    {
+      return new ArrayList<DataEvent<D>>(Math.min(_dataProvider._batchSize, MAX_BATCH_CAPACITY));
+    }
+
     private void flush()
     {
       // FLUSH
       Collection<DataEvent<D>> tmp;
       tmp = _batch;
-      _batch = new LinkedList<DataEvent<D>>();
+      _batch = newBatch();
 
       try
       {
@@ -328,10 +373,9 @@ public abstract class StreamDataProvider<D> implements DataProvider<D>, DataProv
       String version = _currentVersion;
       while (!_stop)
       {
-        updateStats();
         synchronized (this)
         {
-          while (!_stop && (_paused || (getEventsPerMinute() > _throttle)))
+          while (!_stop && _paused)
           {
             try
             {
@@ -349,6 +393,7 @@ public abstract class StreamDataProvider<D> implements DataProvider<D>, DataProv
           DataEvent<D> data = _dataProvider.next();
           if (data != null)
           {
+            throttle(version);
             version = _versionComparator.compare(version, data.getVersion())>=0 ? version:data.getVersion();
             synchronized (this)
             {
@@ -364,6 +409,7 @@ public abstract class StreamDataProvider<D> implements DataProvider<D>, DataProv
           {
             synchronized (this)
             {
+              updateStats();
               if (_flushing && (_batch.size() > 0))
               {
                 flush();
@@ -384,6 +430,35 @@ public abstract class StreamDataProvider<D> implements DataProvider<D>, DataProv
       _stopped = true;
     }
 
+    /**
+     * Waits for the token of the next event, flushing the batch meanwhile if
+     * a sync asks for it.
+     * @param version the version of the events in the batch
+     */
+    private void throttle(String version)
+    {
+      long waitNanos;
+      while (!_stop && (waitNanos = _limiter.tryAcquire(1)) > 0)
+      {
+        synchronized (this)
+        {
+          if (_flushing && (_batch.size() > 0))
+          {
+            flush();
+            _currentVersion = version;
+            this.notifyAll();
+          }
+          try
+          {
+            this.wait(waitNanos / 1000000L, (int) (waitNanos % 1000000L));
+          } catch (InterruptedException e)
+          {
+            Thread.interrupted();
+          }
+        }
+      }
+    }
+
     private long getEventCount()
     {
       return _eventCount.get();
@@ -410,10 +485,5 @@ public abstract class StreamDataProvider<D> implements DataProvider<D>, DataProv
       return Math.max(countwindow * 60 / window, count);
     }
 
-    private void setMaxEventsPerMinute(long maxEventsPerMinute)
-    {
-      _throttle = maxEventsPerMinute;
-    }
-
   }
 }
@@ -0,0 +1,489 @@
+package proj.zoie.impl.indexing;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import org.apache.log4j.Logger;
+
+import proj.zoie.api.DataConsumer;
+import proj.zoie.api.ZoieException;
+import proj.zoie.api.DataConsumer.DataEvent;
+import proj.zoie.api.DataConsumer.MarkerDataEvent;
+import proj.zoie.api.indexing.IndexingEventListener;
+
+/**
+ * Append-only log of the events consumed by an {@link AsyncDataConsumer}, so
+ * that on restart the events not in the disk index yet are replayed from local
+ * disk instead of from the data provider.
+ * <br>
+ * The log is split into segment files of about segmentBytes. Events are written
+ * under a lock and forced to disk outside of it, one force covering all the
+ * events appended meanwhile. Once the disk index is committed at a version, the
+ * segments without later events are deleted.
+ * <br>
+ * A record is its length, the CRC32 of its content and the content: a torn
+ * record at the end of a segment, from a crash while appending, ends the
+ * replay of the segment.
+ */
+public class WriteAheadLog<D> implements IndexingEventListener
+{
+  private static final Logger log = Logger.getLogger(WriteAheadLog.class);
+
+  private static final String SEGMENT_PREFIX = "wal-";
+  private static final String SEGMENT_SUFFIX = ".log";
+  private static final int MAX_RECORD_BYTES = 64 * 1024 * 1024;
+  private static final byte DATA = 0;
+  private static final byte MARKER = 1;
+
+  /**
+   * Writes and reads the data of the events.
+   */
+  public static interface Serializer<D>
+  {
+    void write(D data, DataOutput out) throws IOException;
+
+    D read(DataInput in) throws IOException;
+  }
+
+  public static final Serializer<String> STRING_SERIALIZER = new Serializer<String>()
+  {
+    public void write(String data, DataOutput out) throws IOException
+    {
+      byte[] bytes = data.getBytes("UTF-8");
+      out.writeInt(bytes.length);
+      out.write(bytes);
+    }
+
+    public String read(DataInput in) throws IOException
+    {
+      byte[] bytes = new byte[in.readInt()];
+      in.readFully(bytes);
+      return new String(bytes, "UTF-8");
+    }
+  };
+
+  private final File _dir;
+  private final Serializer<D> _serializer;
+  private final Comparator<String> _versionComparator;
+  private final long _segmentBytes;
+  private final LinkedList<Segment> _segments = new LinkedList<Segment>(); // oldest first
+  private Segment _active; // the last segment, null once closed
+  private long _appended = 0L; // bytes appended since opened
+
+  private final Object _syncLock = new Object();
+  private long _synced = 0L; // guarded by _syncLock
+
+  /**
+   * Opens the log in the directory: the segments left there are kept for
+   * {@link #replay(String, DataConsumer, int)} and new events go to a new one.
+   *
+   * @param segmentBytes the size past which a new segment is started
+   */
+  public WriteAheadLog(File dir, Serializer<D> serializer, Comparator<String> versionComparator, long segmentBytes)
+      throws IOException
+  {
+    if (!dir.isDirectory() && !dir.mkdirs())
+    {
+      throw new IOException("cannot create write-ahead log directory " + dir);
+    }
+    _dir = dir;
+    _serializer = serializer;
+    _versionComparator = versionComparator;
+    _segmentBytes = Math.max(1L, segmentBytes);
+    long lastSeq = -1L;
+    for (Segment segment : listSegments(dir))
+    {
+      scan(segment);
+      _segments.add(segment);
+      lastSeq = segment._seq;
+    }
+    _active = newSegment(lastSeq + 1);
+    log.info("opened write-ahead log " + dir + " with " + (_segments.size() - 1) + " segments to replay");
+  }
+
+  private List<Segment> listSegments(File dir)
+  {
+    List<Segment> segments = new ArrayList<Segment>();
+    File[] files = dir.listFiles();
+    if (files == null) return segments;
+    for (File file : files)
+    {
+      String name = file.getName();
+      if (!name.startsWith(SEGMENT_PREFIX) || !name.endsWith(SEGMENT_SUFFIX)) continue;
+      try
+      {
+        long seq = Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+        segments.add(new Segment(seq, file));
+      } catch (NumberFormatException e)
+      {
+        log.warn("ignoring " + file + " in write-ahead log directory");
+      }
+    }
+    Segment[] sorted = segments.toArray(new Segment[segments.size()]);
+    Arrays.sort(sorted, new Comparator<Segment>()
+    {
+      public int compare(Segment s1, Segment s2)
+      {
+        return s1._seq < s2._seq ? -1 : (s1._seq == s2._seq ? 0 : 1);
+      }
+    });
+    return Arrays.asList(sorted);
+  }
+
+  private Segment newSegment(long seq) throws IOException
+  {
+    Segment segment = new Segment(seq, new File(_dir, SEGMENT_PREFIX + seq + SEGMENT_SUFFIX));
+    segment._raf = new RandomAccessFile(segment._file, "rw");
+    segment._raf.setLength(0L);
+    segment._channel = segment._raf.getChannel();
+    _segments.add(segment);
+    return segment;
+  }
+
+  /**
+   * Appends the events, without forcing them to disk. The events need a
+   * version: the segments are deleted, and replayed, by comparing the versions
+   * of their events with the disk index version.
+   *
+   * @return the position to pass to {@link #sync(long)}
+   * @throws IllegalArgumentException if an event has no version, nothing is
+   *           appended then
+   */
+  public synchronized long append(Collection<DataEvent<D>> events) throws IOException
+  {
+    if (_active == null) throw new IOException("write-ahead log " + _dir + " is closed");
+    for (DataEvent<D> event : events)
+    {
+      if (event.getVersion() == null) throw new IllegalArgumentException("event without a version, cannot be logged in " + _dir);
+    }
+    ByteArrayOutputStream records = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(records);
+    ByteArrayOutputStream content = new ByteArrayOutputStream();
+    DataOutputStream contentOut = new DataOutputStream(content);
+    CRC32 crc = new CRC32();
+    for (DataEvent<D> event : events)
+    {
+      content.reset();
+      String version = event.getVersion();
+      D data = event.getData();
+      contentOut.writeByte(data == null ? MARKER : DATA);
+      contentOut.writeBoolean(version != null);
+      if (version != null) contentOut.writeUTF(version);
+      if (data != null) _serializer.write(data, contentOut);
+      contentOut.flush();
+      crc.reset();
+      crc.update(content.toByteArray(), 0, content.size());
+      out.writeInt(content.size());
+      out.writeLong(crc.getValue());
+      content.writeTo(out);
+      _active.add(version);
+    }
+    out.flush();
+    ByteBuffer buf = ByteBuffer.wrap(records.toByteArray());
+    while (buf.hasRemaining())
+    {
+      _active._channel.write(buf);
+    }
+    _active._size += records.size();
+    _appended += records.size();
+    if (_active._size >= _segmentBytes)
+    {
+      roll();
+    }
+    return _appended;
+  }
+
+  /**
+   * Forces the events appended up to the position to disk, unless a force
+   * since their append already did.
+   */
+  public void sync(long position) throws IOException
+  {
+    synchronized (_syncLock)
+    {
+      if (_synced >= position) return;
+      FileChannel channel;
+      long appended;
+      synchronized (this)
+      {
+        if (_active == null) return; // forced when closed
+        channel = _active._channel;
+        appended = _appended;
+      }
+      try
+      {
+        channel.force(false);
+      } catch (ClosedChannelException e)
+      {
+        // rolled meanwhile, forced when rolled
+      }
+      _synced = appended;
+    }
+  }
+
+  private void roll() throws IOException
+  {
+    _active.close();
+    _active = newSegment(_active._seq + 1);
+  }
+
+  /**
+   * Deletes the segments whose events are all in the disk index at the given
+   * version, starting a new segment if the current one is.
+   */
+  public synchronized void truncate(String diskVersion)
+  {
+    if (diskVersion == null) return;
+    try
+    {
+      if (_active != null && _active._numEvents > 0 && isCovered(_active, diskVersion))
+      {
+        roll();
+      }
+    } catch (IOException e)
+    {
+      log.error("rolling write-ahead log " + _dir, e);
+    }
+    Iterator<Segment> iter = _segments.iterator();
+    while (iter.hasNext())
+    {
+      Segment segment = iter.next();
+      if (segment == _active || !isCovered(segment, diskVersion)) break;
+      iter.remove();
+      segment.close();
+      if (!segment._file.delete())
+      {
+        log.warn("cannot delete write-ahead log segment " + segment._file);
+      }
+    }
+  }
+
+  private boolean isCovered(Segment segment, String diskVersion)
+  {
+    // no version means no event, see append
+    return segment._maxVersion == null || _versionComparator.compare(segment._maxVersion, diskVersion) <= 0;
+  }
+
+  /**
+   * Passes the logged events later than the version to the consumer, in
+   * batches, in the order they were appended.
+   *
+   * @param sinceVersion the disk index version, null to replay all the events
+   * @return the number of events replayed
+   */
+  public int replay(String sinceVersion, DataConsumer<D> consumer, int batchSize) throws IOException, ZoieException
+  {
+    List<Segment> segments;
+    synchronized (this)
+    {
+      segments = new ArrayList<Segment>(_segments);
+    }
+    int count = 0;
+    List<DataEvent<D>> batch = new ArrayList<DataEvent<D>>(batchSize);
+    for (Segment segment : segments)
+    {
+      if (sinceVersion != null && isCovered(segment, sinceVersion)) continue;
+      DataInputStream in;
+      try
+      {
+        in = new DataInputStream(new BufferedInputStream(new FileInputStream(segment._file)));
+      } catch (FileNotFoundException e)
+      {
+        continue; // truncated meanwhile
+      }
+      try
+      {
+        DataEvent<D> event;
+        while ((event = readEvent(segment, in, true)) != null)
+        {
+          String version = event.getVersion();
+          if (sinceVersion != null && version != null && _versionComparator.compare(version, sinceVersion) <= 0) continue;
+          batch.add(event);
+          ++count;
+          if (batch.size() >= batchSize)
+          {
+            consumer.consume(batch);
+            batch = new ArrayList<DataEvent<D>>(batchSize);
+          }
+        }
+      } finally
+      {
+        in.close();
+      }
+    }
+    if (batch.size() > 0)
+    {
+      consumer.consume(batch);
+    }
+    return count;
+  }
+
+  /**
+   * Reads the versions of a segment left by a previous run.
+   */
+  private void scan(Segment segment) throws IOException
+  {
+    DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(segment._file)));
+    try
+    {
+      DataEvent<D> event;
+      while ((event = readEvent(segment, in, false)) != null)
+      {
+        segment.add(event.getVersion());
+      }
+    } finally
+    {
+      in.close();
+    }
+  }
+
+  /**
+   * @param withData whether to deserialize the data of the event
+   * @return the next event, null at the end of the segment or at a torn record
+   */
+  private DataEvent<D> readEvent(Segment segment, DataInputStream in, boolean withData) throws IOException
+  {
+    int length;
+    try
+    {
+      length = in.readInt();
+    } catch (EOFException e)
+    {
+      return null;
+    }
+    byte[] content;
+    long checksum;
+    try
+    {
+      if (length < 0 || length > MAX_RECORD_BYTES) throw new IOException("bad record length " + length);
+      checksum = in.readLong();
+      content = new byte[length];
+      in.readFully(content);
+    } catch (IOException e)
+    {
+      log.warn("torn record at the end of " + segment._file + ": " + e.getMessage());
+      return null;
+    }
+    CRC32 crc = new CRC32();
+    crc.update(content, 0, content.length);
+    if (crc.getValue() != checksum)
+    {
+      log.warn("corrupt record in " + segment._file + ", the rest of the segment is skipped");
+      return null;
+    }
+    DataInputStream record = new DataInputStream(new ByteArrayInputStream(content));
+    byte type = record.readByte();
+    String version = record.readBoolean() ? record.readUTF() : null;
+    if (type == MARKER)
+    {
+      return MarkerDataEvent.<D> createMarkerEvent(version);
+    }
+    return new DataEvent<D>(withData ? _serializer.read(record) : null, version);
+  }
+
+  /**
+   * @return the number of segments, the current one included
+   */
+  public synchronized int getSegmentCount()
+  {
+    return _segments.size();
+  }
+
+  public File getDirectory()
+  {
+    return _dir;
+  }
+
+  /**
+   * @return whether {@link #close()} was called, events are no longer appended
+   */
+  public synchronized boolean isClosed()
+  {
+    return _active == null;
+  }
+
+  /**
+   * Forces and closes the current segment; appends fail afterwards.
+   */
+  public synchronized void close()
+  {
+    if (_active == null) return;
+    _active.close();
+    _active = null;
+  }
+
+  public void handleIndexingEvent(IndexingEvent evt)
+  {
+  }
+
+  /**
+   * Truncates the log once the disk index is committed at the version.
+   */
+  public void handleUpdatedDiskVersion(String version)
+  {
+    truncate(version);
+  }
+
+  private final class Segment
+  {
+    final long _seq;
+    final File _file;
+    String _maxVersion = null; // of its events, null if none has a version
+    int _numEvents = 0;
+    long _size = 0L;
+    RandomAccessFile _raf = null; // null unless appended to
+    FileChannel _channel = null;
+
+    Segment(long seq, File file)
+    {
+      _seq = seq;
+      _file = file;
+    }
+
+    void add(String version)
+    {
+      ++_numEvents;
+      if (version != null && (_maxVersion == null || _versionComparator.compare(_maxVersion, version) < 0))
+      {
+        _maxVersion = version;
+      }
+    }
+
+    void close()
+    {
+      if (_raf == null) return;
+      try
+      {
+        _channel.force(false);
+        _raf.close();
+      } catch (IOException e)
+      {
+        log.error("closing write-ahead log segment " + _file, e);
+      }
+      _raf = null;
+      _channel = null;
+    }
+  }
+}
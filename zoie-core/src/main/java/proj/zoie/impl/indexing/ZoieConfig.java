@@ -1,5 +1,6 @@
 package proj.zoie.impl.indexing;
 
+import java.util.Collection;
 import java.util.Comparator;
 
 import org.apache.lucene.analysis.Analyzer;
@@ -54,6 +55,8 @@ public class ZoieConfig
   long _freshness = 10000;
   ReaderCacheFactory readercachefactory = null;
   RAMIndexFactory<?> ramIndexFactory = null;
+  Collection<String> ramLongFields = null;
+  boolean smartOptimize = false;
 
   /**
    * Default constructor. Set the size of batch and batch delay to default value
@@ -191,11 +194,51 @@ public class ZoieConfig
     return ramIndexFactory;
   }
 
+  /**
+   * @param ramIndexFactory the factory for the realtime RAM indexes, e.g.
+   *          {@link proj.zoie.impl.indexing.internal.DirectRAMIndexFactory} to
+   *          keep them off-heap.
+   */
   public void setRamIndexFactory(RAMIndexFactory<?> ramIndexFactory)
   {
     this.ramIndexFactory = ramIndexFactory;
   }
 
+  public Collection<String> getRamLongFields()
+  {
+    return ramLongFields;
+  }
+
+  /**
+   * @param ramLongFields the numeric fields whose per-doc values the RAM
+   *          indexes record while indexing, so that their readers get them
+   *          without walking the terms after every realtime batch. The values
+   *          are the indexed terms, a field only stored has none; a tokenized
+   *          field is left to FieldCache.
+   * @see proj.zoie.api.ZoieIndexReader#getLongFieldValues(String)
+   */
+  public void setRamLongFields(Collection<String> ramLongFields)
+  {
+    this.ramLongFields = ramLongFields;
+  }
+
+  public boolean isSmartOptimize()
+  {
+    return smartOptimize;
+  }
+
+  /**
+   * @param smartOptimize whether to optimize the disk index with a
+   *          {@link proj.zoie.api.indexing.SmartOptimizeScheduler}, driven by
+   *          the index health and the query load, instead of the daily
+   *          {@link proj.zoie.api.indexing.DefaultOptimizeScheduler}. Off by
+   *          default.
+   */
+  public void setSmartOptimize(boolean smartOptimize)
+  {
+    this.smartOptimize = smartOptimize;
+  }
+
   public static class DefaultVersionComparator implements Comparator<String>
   {
     public int compare(String s1, String s2)
@@ -20,11 +20,13 @@ import java.io.File;
 import java.io.IOException;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.WritableByteChannel;
+import java.util.Collection;
 import java.util.Comparator;
 import java.util.Date;
 import java.util.List;
 import java.util.Queue;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import javax.management.NotCompliantMBeanException;
@@ -46,6 +48,7 @@ import proj.zoie.api.Zoie;
 import proj.zoie.api.ZoieException;
 import proj.zoie.api.ZoieHealth;
 import proj.zoie.api.ZoieIndexReader;
+import proj.zoie.api.ZoieMetrics;
 import proj.zoie.api.impl.DefaultDocIDMapperFactory;
 import proj.zoie.api.impl.util.FileUtil;
 import proj.zoie.api.impl.util.SearchUtil;
@@ -53,6 +56,8 @@ import proj.zoie.api.indexing.DefaultOptimizeScheduler;
 import proj.zoie.api.indexing.IndexReaderDecorator;
 import proj.zoie.api.indexing.IndexingEventListener;
 import proj.zoie.api.indexing.OptimizeScheduler;
+import proj.zoie.api.indexing.SmartOptimizeScheduler;
+import proj.zoie.api.indexing.ZoieIndexable;
 import proj.zoie.api.indexing.ZoieIndexableInterpreter;
 import proj.zoie.impl.indexing.internal.BatchedIndexDataLoader;
 import proj.zoie.impl.indexing.internal.DefaultRAMIndexFactory;
@@ -62,6 +67,8 @@ import proj.zoie.impl.indexing.internal.RealtimeIndexDataLoader;
 import proj.zoie.impl.indexing.internal.SearchIndexManager;
 import proj.zoie.mbean.ZoieIndexingStatusAdmin;
 import proj.zoie.mbean.ZoieIndexingStatusAdminMBean;
+import proj.zoie.mbean.ZoieMetricsAdmin;
+import proj.zoie.mbean.ZoieMetricsAdminMBean;
 import proj.zoie.mbean.ZoieSystemAdminMBean;
 
 /**
@@ -77,6 +84,7 @@ extends AsyncDataConsumer<D> implements Zoie<R, D>
   private final DirectoryManager _dirMgr;
   private final boolean _realtimeIndexing;
   private final SearchIndexManager<R> _searchIdxMgr;
+  private final FreshnessTracker _freshnessTracker;
   private final ZoieIndexableInterpreter<D> _interpreter;
   private final Analyzer _analyzer;
   private final Similarity _similarity;
@@ -87,6 +95,8 @@ extends AsyncDataConsumer<D> implements Zoie<R, D>
   private volatile boolean alreadyShutdown = false;
   private final ReentrantReadWriteLock _shutdownLock = new ReentrantReadWriteLock();
   private volatile long SLA = 3; // getIndexReaders should return in 4ms or a warning is logged
+  private volatile long _mergePauseOnSLAMillis = 0; // disk merges are paused this long when the SLA is missed, 0 to never pause
+  private final AtomicLong _readerRequestCount = new AtomicLong(0);
   private final AbstractReaderCache<R> readercache;
 
   /**
@@ -148,6 +158,11 @@ extends AsyncDataConsumer<D> implements Zoie<R, D>
         .getMaxBatchSize(), zoieConfig.getReadercachefactory(),
         (RAMIndexFactory<R>)zoieConfig.getRamIndexFactory(),zoieConfig.getVersionComparator());
     readercache.setFreshness(zoieConfig.getFreshness());
+    setRAMLongFields(zoieConfig.getRamLongFields());
+    if (zoieConfig.isSmartOptimize())
+    {
+      setOptimizeScheduler(new SmartOptimizeScheduler(getAdminMBean()));
+    }
   }
 
   /**
@@ -174,6 +189,11 @@ extends AsyncDataConsumer<D> implements Zoie<R, D>
         .getMaxBatchSize(), zoieConfig.getReadercachefactory(),
         (RAMIndexFactory<R>)zoieConfig.getRamIndexFactory(),zoieConfig.getVersionComparator());
     readercache.setFreshness(zoieConfig.getFreshness());
+    setRAMLongFields(zoieConfig.getRamLongFields());
+    if (zoieConfig.isSmartOptimize())
+    {
+      setOptimizeScheduler(new SmartOptimizeScheduler(getAdminMBean()));
+    }
   }
 
   /**
@@ -424,7 +444,15 @@ extends AsyncDataConsumer<D> implements Zoie<R, D>
           _interpreter, _lsnrList);
     }
     super.setDataConsumer(_rtdc);
+    super.setMetrics(_searchIdxMgr.getMetrics());
+    _freshnessTracker = new FreshnessTracker(versionComparator, _realtimeIndexing);
+    super.setFreshnessTracker(_freshnessTracker);
+    addIndexingEventListener(_freshnessTracker);
     readercache = readercachefactory.newInstance(_searchIdxMgr);
+    if (readercache instanceof IndexingEventListener)
+    {
+      addIndexingEventListener((IndexingEventListener) readercache);
+    }
     log.info("using readerCache: " + readercache);
   }
 
@@ -440,6 +468,14 @@ extends AsyncDataConsumer<D> implements Zoie<R, D>
     return new ZoieSystem<IndexReader, D>(idxDir, interpreter, new DefaultIndexReaderDecorator(), analyzer, similarity, batchSize, batchDelay, realtime, versionComparator);
   }
   
+  /**
+   * @see SearchIndexManager#setRAMLongFields(Collection)
+   */
+  public void setRAMLongFields(Collection<String> fields)
+  {
+    _searchIdxMgr.setRAMLongFields(fields);
+  }
+
   public void setPurgeFilter(Filter purgeFilter){
 	 _diskLoader.setPurgeFilter(purgeFilter);
   }
@@ -504,10 +540,90 @@ extends AsyncDataConsumer<D> implements Zoie<R, D>
     log.info("starting zoie...");
     _rtdc.start();
     super.start();
+    recoverFromWriteAheadLog();
     readercache.start();
     log.info("zoie started...");
   }
 
+  /**
+   * Replays the events of the write-ahead log that are not in the disk index
+   * into the RAM indexes, before the readers are served. Zoies started hosted
+   * don't replay the log.
+   */
+  private void recoverFromWriteAheadLog()
+  {
+    WriteAheadLog<D> wal = getWriteAheadLog();
+    if (wal == null) return;
+    long t0 = System.currentTimeMillis();
+    String diskVersion = null;
+    try
+    {
+      diskVersion = _dirMgr.getVersion();
+      int count = replayWriteAheadLog(diskVersion);
+      if (count > 0)
+      {
+        super.flushEvents(Long.MAX_VALUE); // into the RAM indexes, the disk loader flushes them meanwhile
+      }
+      log.info("replayed " + count + " events of " + wal.getDirectory() + " since version " + diskVersion + " in " + (System.currentTimeMillis() - t0) + "ms");
+    } catch (IOException e)
+    {
+      log.error("reading the disk version to replay " + wal.getDirectory() + " from", e);
+    } catch (ZoieException e)
+    {
+      ZoieHealth.setFatal();
+      log.error("replaying " + wal.getDirectory() + " since version " + diskVersion, e);
+    }
+  }
+
+  /**
+   * Sets the log the events are appended to before {@link #consume(Collection)}
+   * returns, replayed by {@link #start()} and truncated as the events get to
+   * the disk index. It is closed at shutdown.
+   */
+  @Override
+  public void setWriteAheadLog(WriteAheadLog<D> wal)
+  {
+    WriteAheadLog<D> old = getWriteAheadLog();
+    if (old != null)
+    {
+      _lsnrList.remove(old);
+    }
+    super.setWriteAheadLog(wal);
+    if (wal != null)
+    {
+      addIndexingEventListener(wal);
+    }
+  }
+
+  /**
+   * Starts without threads of its own: wakeup is called whenever there may be
+   * events to consume, a batch to flush or readers to refresh, and the caller
+   * then runs {@link #runHostedTasks()}, one call at a time.
+   * @see ZoieSystemHost
+   */
+  public void startHosted(Runnable wakeup)
+  {
+    log.info("starting hosted zoie...");
+    _rtdc.startHosted(wakeup);
+    super.startHosted(wakeup);
+    readercache.startHosted(wakeup);
+    log.info("hosted zoie started...");
+  }
+
+  /**
+   * Does, without waiting, the work of the threads of a zoie started with
+   * {@link #startHosted(Runnable)}: consumes the buffered events, flushes the
+   * batch if due and refreshes the reader cache if due.
+   * @return whether any work was done
+   */
+  public boolean runHostedTasks()
+  {
+    boolean worked = flushBufferIfAny();
+    worked |= _rtdc.processBatchIfDue();
+    worked |= readercache.maintainIfDue();
+    return worked;
+  }
+
   public void shutdown()
   {
     try
@@ -540,6 +656,12 @@ extends AsyncDataConsumer<D> implements Zoie<R, D>
     }
     _rtdc.shutdown();
     super.stop();
+    WriteAheadLog<D> wal = getWriteAheadLog();
+    if (wal != null)
+    {
+      wal.close();
+    }
+    _searchIdxMgr.getMetrics().shutdown();
     _searchIdxMgr.close();
     log.info("zoie shutdown successfully.");
   }
@@ -603,15 +725,95 @@ extends AsyncDataConsumer<D> implements Zoie<R, D>
   public List<ZoieIndexReader<R>> getIndexReaders() throws IOException
   {
     long t0 = System.currentTimeMillis();
+    long start = System.nanoTime();
+    _readerRequestCount.incrementAndGet();
     List<ZoieIndexReader<R>> readers = readercache.getIndexReaders();
+    ZoieMetrics metrics = _searchIdxMgr.getMetrics();
+    metrics.record(ZoieMetrics.Stage.READER_ACQUIRE, start);
+    metrics.readersAcquired();
     t0 = System.currentTimeMillis() - t0;
     if (t0 > SLA)
     {
       log.warn("getIndexReaders returned in " + t0 + "ms more than " + SLA +"ms using" + readercache);
+      if (_mergePauseOnSLAMillis > 0)
+      {
+        _searchIdxMgr.getMergeScheduler().pauseMerges(_mergePauseOnSLAMillis);
+      }
     }
     return readers;
   }
 
+  /**
+   * @return a number that changes whenever the readers returned by
+   *         {@link #getIndexReaders()} do, -1 if the reader cache can't tell
+   */
+  public long getReaderGeneration()
+  {
+    return readercache.getGeneration();
+  }
+
+  /**
+   * Same as {@link #getIndexReaders()}, but the readers are no older than
+   * maxAgeMillis: if the cached readers are older, the reader cache is refreshed
+   * first. Requests that don't need fresh readers don't wait for the refresh.
+   * 
+   * @param maxAgeMillis the maximum age of the readers in milliseconds
+   */
+  public List<ZoieIndexReader<R>> getIndexReaders(long maxAgeMillis) throws IOException
+  {
+    long start = System.nanoTime();
+    _readerRequestCount.incrementAndGet();
+    List<ZoieIndexReader<R>> readers = readercache.getIndexReaders(maxAgeMillis);
+    ZoieMetrics metrics = _searchIdxMgr.getMetrics();
+    metrics.record(ZoieMetrics.Stage.READER_ACQUIRE, start);
+    metrics.readersAcquired();
+    return readers;
+  }
+
+  /**
+   * Returns the readers of the indexes themselves, bypassing the reader cache:
+   * they are neither copied nor get the deletes by fresher indexes marked on
+   * them. Docs updated or deleted since they were indexed are still visible in
+   * these readers: search them with a {@link proj.zoie.api.UIDDedupCollector}
+   * and return them with {@link #returnUnmarkedIndexReaders(List)}.
+   */
+  public List<ZoieIndexReader<R>> getUnmarkedIndexReaders() throws IOException
+  {
+    _readerRequestCount.incrementAndGet();
+    List<ZoieIndexReader<R>> readers = _searchIdxMgr.getIndexReaders(false);
+    _searchIdxMgr.getMetrics().readersAcquired();
+    return readers;
+  }
+
+  /**
+   * @param readers the readers obtained from {@link #getUnmarkedIndexReaders()}
+   */
+  public void returnUnmarkedIndexReaders(List<ZoieIndexReader<R>> readers)
+  {
+    if (readers == null) return;
+    _searchIdxMgr.getMetrics().readersReturned(); // an empty list was counted when acquired too
+    if (readers.size()==0) return;
+    _searchIdxMgr.returnIndexReaders(readers);
+  }
+
+  /**
+   * @return the latency metrics of the indexing pipeline and of
+   *         {@link #getIndexReaders()}
+   */
+  public ZoieMetrics getMetrics()
+  {
+    return _searchIdxMgr.getMetrics();
+  }
+
+  /**
+   * @return the tracker of the time it takes for event versions to be
+   *         searchable and on disk
+   */
+  public FreshnessTracker getFreshnessTracker()
+  {
+    return _freshnessTracker;
+  }
+
   public int getDiskSegmentCount() throws IOException
   {
     return _searchIdxMgr.getDiskSegmentCount();
@@ -641,7 +843,9 @@ extends AsyncDataConsumer<D> implements Zoie<R, D>
   public void returnIndexReaders(List<ZoieIndexReader<R>> readers)
   {
     long t0 = System.currentTimeMillis();
-    if (readers == null || readers.size()==0) return;
+    if (readers == null) return;
+    _searchIdxMgr.getMetrics().readersReturned(); // an empty list was counted when acquired too
+    if (readers.size()==0) return;
     readercache.returnIndexReaders(readers);
     t0 = System.currentTimeMillis() - t0;
     if (t0 > SLA)
@@ -729,6 +933,15 @@ extends AsyncDataConsumer<D> implements Zoie<R, D>
     _diskLoader.importSnapshot(channel);
   }
 
+  /**
+   * Indexes the events straight into the disk index, bypassing the RAM
+   * indexes, for subclasses that keep the recent docs in an index of their own.
+   */
+  protected void consumeToDiskIndex(Collection<DataEvent<ZoieIndexable>> events) throws ZoieException
+  {
+    _diskLoader.consume(events);
+  }
+
   public ZoieSystemAdminMBean getAdminMBean()
   {
     return new MyZoieSystemAdmin();
@@ -761,6 +974,56 @@ extends AsyncDataConsumer<D> implements Zoie<R, D>
       return ZoieSystem.this._searchIdxMgr.getDiskIndexSize();
     }
 
+    public int getDiskIndexNumDeletedDocs()
+    {
+      return ZoieSystem.this._searchIdxMgr.getDiskIndexNumDeletedDocs();
+    }
+
+    public long getIndexReaderRequestCount()
+    {
+      return ZoieSystem.this._readerRequestCount.get();
+    }
+
+    public String getVisibleVersion()
+    {
+      return _freshnessTracker.getVisibleVersion();
+    }
+
+    public long getFreshnessLagP50Millis()
+    {
+      return _freshnessTracker.getVisibleLag().snapshot().getValueAtPercentile(50) / 1000L;
+    }
+
+    public long getFreshnessLagP99Millis()
+    {
+      return _freshnessTracker.getVisibleLag().snapshot().getValueAtPercentile(99) / 1000L;
+    }
+
+    public long getFreshnessLagMaxMillis()
+    {
+      return _freshnessTracker.getVisibleLag().snapshot().getMax() / 1000L;
+    }
+
+    public long getDurabilityLagP99Millis()
+    {
+      return _freshnessTracker.getDurableLag().snapshot().getValueAtPercentile(99) / 1000L;
+    }
+
+    public long getCurrentFreshnessLagMillis()
+    {
+      return _freshnessTracker.getCurrentVisibleLagMillis();
+    }
+
+    public long getCurrentDurabilityLagMillis()
+    {
+      return _freshnessTracker.getCurrentDurableLagMillis();
+    }
+
+    public void resetFreshnessLag()
+    {
+      _freshnessTracker.reset();
+    }
+
     public long getDiskIndexSizeBytes()
     {
       return FileUtil.sizeFile(new File(getIndexDir()));
@@ -962,6 +1225,151 @@ extends AsyncDataConsumer<D> implements Zoie<R, D>
       return ZoieSystem.this.getMinUID();
     }
 
+    public boolean isDeleteAwareMerge()
+    {
+      return ZoieSystem.this._searchIdxMgr.isDeleteAwareMerge();
+    }
+
+    public void setDeleteAwareMerge(boolean deleteAwareMerge)
+    {
+      ZoieSystem.this._searchIdxMgr.setDeleteAwareMerge(deleteAwareMerge);
+    }
+
+    public float getMinMergeDeleteRatio()
+    {
+      return ZoieSystem.this._searchIdxMgr.getMinMergeDeleteRatio();
+    }
+
+    public void setMinMergeDeleteRatio(float minMergeDeleteRatio)
+    {
+      ZoieSystem.this._searchIdxMgr.setMinMergeDeleteRatio(minMergeDeleteRatio);
+    }
+
+    public long getNumMergesSelected()
+    {
+      return ZoieSystem.this._searchIdxMgr.getMergeStats().getNumMergesSelected();
+    }
+
+    public long getNumReclaimMergesSelected()
+    {
+      return ZoieSystem.this._searchIdxMgr.getMergeStats().getNumReclaimMergesSelected();
+    }
+
+    public long getMergeBytesToRewrite()
+    {
+      return ZoieSystem.this._searchIdxMgr.getMergeStats().getSelectedBytesToRewrite();
+    }
+
+    public long getMergeBytesReclaimed()
+    {
+      return ZoieSystem.this._searchIdxMgr.getMergeStats().getSelectedBytesReclaimed();
+    }
+
+    public String getLastMergeStats()
+    {
+      return ZoieSystem.this._searchIdxMgr.getMergeStats().getLastMergeSelected();
+    }
+
+    public double getMaxMergeMBPerSec()
+    {
+      return ZoieSystem.this._searchIdxMgr.getMergeScheduler().getMaxMBPerSec();
+    }
+
+    public void setMaxMergeMBPerSec(double maxMBPerSec)
+    {
+      ZoieSystem.this._searchIdxMgr.getMergeScheduler().setMaxMBPerSec(maxMBPerSec);
+    }
+
+    public double getPeakMergeMBPerSec()
+    {
+      return ZoieSystem.this._searchIdxMgr.getMergeScheduler().getPeakMBPerSec();
+    }
+
+    public void setPeakMergeMBPerSec(double peakMBPerSec)
+    {
+      ZoieSystem.this._searchIdxMgr.getMergeScheduler().setPeakMBPerSec(peakMBPerSec);
+    }
+
+    public int getMergePeakStartHour()
+    {
+      return ZoieSystem.this._searchIdxMgr.getMergeScheduler().getPeakStartHour();
+    }
+
+    public int getMergePeakEndHour()
+    {
+      return ZoieSystem.this._searchIdxMgr.getMergeScheduler().getPeakEndHour();
+    }
+
+    public void setMergePeakHours(int startHour, int endHour)
+    {
+      ZoieSystem.this._searchIdxMgr.getMergeScheduler().setPeakHours(startHour, endHour);
+    }
+
+    public long getMergePauseOnSLAMillis()
+    {
+      return ZoieSystem.this._mergePauseOnSLAMillis;
+    }
+
+    public void setMergePauseOnSLAMillis(long millis)
+    {
+      ZoieSystem.this._mergePauseOnSLAMillis = millis;
+    }
+
+    public void pauseMerges(long millis)
+    {
+      ZoieSystem.this._searchIdxMgr.getMergeScheduler().pauseMerges(millis);
+    }
+
+    public void resumeMerges()
+    {
+      ZoieSystem.this._searchIdxMgr.getMergeScheduler().resumeMerges();
+    }
+
+    public boolean isMergePaused()
+    {
+      return ZoieSystem.this._searchIdxMgr.getMergeScheduler().isMergePaused();
+    }
+
+    public long getNumMergesDone()
+    {
+      return ZoieSystem.this._searchIdxMgr.getMergeScheduler().getNumMerges();
+    }
+
+    public long getMergeBytesWritten()
+    {
+      return ZoieSystem.this._searchIdxMgr.getMergeScheduler().getBytesWritten();
+    }
+
+    public long getMergeBytesRead()
+    {
+      return ZoieSystem.this._searchIdxMgr.getMergeScheduler().getBytesRead();
+    }
+
+    public double getMergeThroughputMBPerSec()
+    {
+      return ZoieSystem.this._searchIdxMgr.getMergeScheduler().getThroughputMBPerSec();
+    }
+
+    public long getMergeThrottledMillis()
+    {
+      return ZoieSystem.this._searchIdxMgr.getMergeScheduler().getThrottledMillis();
+    }
+
+    public long getMergePausedMillis()
+    {
+      return ZoieSystem.this._searchIdxMgr.getMergeScheduler().getPausedMillis();
+    }
+
+    public int getMergeBacklog()
+    {
+      return ZoieSystem.this._searchIdxMgr.getMergeScheduler().getBacklog();
+    }
+
+    public long getMergeBacklogBytes()
+    {
+      return ZoieSystem.this._searchIdxMgr.getMergeScheduler().getBacklogBytes();
+    }
+
     public long getMaxUID() throws IOException
     {
       return ZoieSystem.this.getMaxUID();
@@ -1030,6 +1438,17 @@ extends AsyncDataConsumer<D> implements Zoie<R, D>
         return null;
       }
     }
+    if (name.equals(ZOIEMETRICS))
+    {
+      try
+      {
+        return new StandardMBean(new ZoieMetricsAdmin(getMetrics()), ZoieMetricsAdminMBean.class);
+      } catch (NotCompliantMBeanException e)
+      {
+        log.info(e);
+        return null;
+      }
+    }
     if (name.equals(ZOIESTATUS))
     {
       try
@@ -1046,10 +1465,11 @@ extends AsyncDataConsumer<D> implements Zoie<R, D>
 
   public static String ZOIEADMIN = "zoie-admin";
   public static String ZOIESTATUS = "zoie-status";
+  public static String ZOIEMETRICS = "zoie-metrics";
   @Override
   public String[] getStandardMBeanNames()
   {
-    return new String[]{ZOIEADMIN, ZOIESTATUS};
+    return new String[]{ZOIEADMIN, ZOIESTATUS, ZOIEMETRICS};
   }
 
   public void syncWithVersion(long timeInMillis, String version) throws ZoieException
@@ -0,0 +1,405 @@
+package proj.zoie.impl.indexing;
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import proj.zoie.api.ZoieExecutors;
+
+/**
+ * Runs many {@link ZoieSystem}s on a shared, bounded executor instead of the
+ * consumer, loader and reader cache maintenance threads of each system.
+ * <br>
+ * The systems are started with {@link ZoieSystem#startHosted(Runnable)}. Each
+ * one is a tenant whose work, {@link ZoieSystem#runHostedTasks()}, is queued
+ * whenever the system asks for it and every {@link #getTickMillis()} for the
+ * time based flushes and refreshes. The work of a tenant is never run by two
+ * threads at a time, and a tenant runs at most {@link #getMaxStepsPerTurn()}
+ * steps before going back to the end of the queue, so busy tenants don't
+ * starve the others.
+ * <br>
+ * Reader caches without hosted support (e.g. {@link SmartReaderCache}) still
+ * run their own thread.
+ * <br>
+ * A tenant whose work throws is failed alone, see {@link #getFailure(String)}:
+ * the error is kept and logged, the process health is left alone, and the
+ * tenant is tried again at the next tick so that it can still be flushed when
+ * removed.
+ */
+public class ZoieSystemHost
+{
+  private static final Logger log = Logger.getLogger(ZoieSystemHost.class);
+
+  public static final int DEFAULT_MAX_STEPS_PER_TURN = 4;
+  public static final long DEFAULT_TICK_MILLIS = 100L;
+
+  private final ExecutorService _executor;
+  private final boolean _ownExecutor;
+  private final ConcurrentHashMap<String, Tenant> _tenants = new ConcurrentHashMap<String, Tenant>();
+  private volatile int _maxStepsPerTurn = DEFAULT_MAX_STEPS_PER_TURN;
+  private volatile long _tickMillis = DEFAULT_TICK_MILLIS;
+  private Timer _ticker = null;
+  private TimerTask _tick = null;
+  private volatile boolean _shutdown = false;
+
+  /**
+   * @param numThreads the number of indexing threads shared by the tenants
+   */
+  public ZoieSystemHost(int numThreads)
+  {
+    final ThreadFactory threadFactory = Executors.defaultThreadFactory();
+    _executor = ZoieExecutors.newFixedThreadPool(numThreads, new ThreadFactory()
+    {
+      public Thread newThread(Runnable r)
+      {
+        Thread thread = threadFactory.newThread(r);
+        thread.setName("zoie-host-" + thread.getName());
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    _ownExecutor = true;
+  }
+
+  /**
+   * @param executor the executor to run the tenants on, shut down by the caller
+   */
+  public ZoieSystemHost(ExecutorService executor)
+  {
+    _executor = executor;
+    _ownExecutor = false;
+  }
+
+  public synchronized void start()
+  {
+    if (_ticker != null) return;
+    _ticker = new Timer("zoie-host-ticker", true);
+    scheduleTick();
+  }
+
+  private synchronized void scheduleTick()
+  {
+    if (_tick != null)
+    {
+      _tick.cancel();
+    }
+    _tick = new TimerTask()
+    {
+      @Override
+      public void run()
+      {
+        for (Tenant tenant : _tenants.values())
+        {
+          tenant.wakeup();
+        }
+      }
+    };
+    _ticker.schedule(_tick, _tickMillis, _tickMillis);
+  }
+
+  /**
+   * Starts the system on this host.
+   * @param name the name of the tenant, unique on this host
+   */
+  public void add(String name, ZoieSystem<?, ?> zoie)
+  {
+    if (_shutdown) throw new IllegalStateException("host is shut down");
+    final Tenant tenant = new Tenant(name, zoie);
+    if (_tenants.putIfAbsent(name, tenant) != null)
+    {
+      throw new IllegalArgumentException("tenant " + name + " already exists");
+    }
+    zoie.startHosted(new Runnable()
+    {
+      public void run()
+      {
+        tenant.wakeup();
+      }
+    });
+    log.info("tenant " + name + " added");
+  }
+
+  public ZoieSystem<?, ?> get(String name)
+  {
+    Tenant tenant = _tenants.get(name);
+    return tenant == null ? null : tenant._zoie;
+  }
+
+  public Collection<String> getTenantNames()
+  {
+    return new ArrayList<String>(_tenants.keySet());
+  }
+
+  /**
+   * Shuts the system of the tenant down, flushing its events, and removes it.
+   * @return the system, null if there is no such tenant
+   */
+  public ZoieSystem<?, ?> remove(String name)
+  {
+    Tenant tenant = _tenants.get(name);
+    if (tenant == null) return null;
+    // the tenant is still run while shutting down to flush its events
+    tenant._zoie.shutdown();
+    _tenants.remove(name);
+    tenant.removed();
+    log.info("tenant " + name + " removed");
+    return tenant._zoie;
+  }
+
+  /**
+   * Shuts down all the tenants, then the executor if created by the host.
+   */
+  public void shutdown()
+  {
+    List<String> names = new ArrayList<String>(_tenants.keySet());
+    for (String name : names)
+    {
+      remove(name);
+    }
+    _shutdown = true;
+    synchronized (this)
+    {
+      if (_ticker != null)
+      {
+        _ticker.cancel();
+        _ticker = null;
+        _tick = null;
+      }
+    }
+    if (_ownExecutor)
+    {
+      _executor.shutdown();
+      try
+      {
+        _executor.awaitTermination(10, TimeUnit.SECONDS);
+      }
+      catch (InterruptedException e)
+      {
+        log.warn("interrupted while shutting down", e);
+      }
+    }
+  }
+
+  public int getMaxStepsPerTurn()
+  {
+    return _maxStepsPerTurn;
+  }
+
+  /**
+   * @param maxStepsPerTurn the number of times a tenant runs its work before
+   *          letting the other tenants run
+   */
+  public void setMaxStepsPerTurn(int maxStepsPerTurn)
+  {
+    _maxStepsPerTurn = Math.max(1, maxStepsPerTurn);
+  }
+
+  public long getTickMillis()
+  {
+    return _tickMillis;
+  }
+
+  /**
+   * @param tickMillis how often every tenant is checked for time based work,
+   *          effective right away if the host is started
+   */
+  public synchronized void setTickMillis(long tickMillis)
+  {
+    _tickMillis = Math.max(1L, tickMillis);
+    if (_ticker != null)
+    {
+      scheduleTick();
+    }
+  }
+
+  /**
+   * @return the time, in milliseconds, the executor spent running the tenant
+   */
+  public long getBusyMillis(String name)
+  {
+    Tenant tenant = _tenants.get(name);
+    return tenant == null ? 0L : tenant._busyNanos.get() / 1000000L;
+  }
+
+  /**
+   * @return the last error thrown by the work of the tenant, null if none or
+   *         no such tenant
+   */
+  public Throwable getFailure(String name)
+  {
+    Tenant tenant = _tenants.get(name);
+    return tenant == null ? null : tenant._failure;
+  }
+
+  /**
+   * @return the number of times the tenant was run
+   */
+  public long getNumTurns(String name)
+  {
+    Tenant tenant = _tenants.get(name);
+    return tenant == null ? 0L : tenant._numTurns.get();
+  }
+
+  private static final int IDLE = 0;
+  private static final int QUEUED = 1;
+  private static final int RUNNING = 2;
+  private static final int RUNNING_WOKEN = 3; // woken up while running, run again
+
+  private final class Tenant implements Runnable
+  {
+    private final String _name;
+    private final ZoieSystem<?, ?> _zoie;
+    private final AtomicInteger _state = new AtomicInteger(IDLE);
+    private final AtomicLong _busyNanos = new AtomicLong(0);
+    private final AtomicLong _numTurns = new AtomicLong(0);
+    private volatile Throwable _failure = null;
+    private volatile boolean _removed = false;
+
+    Tenant(String name, ZoieSystem<?, ?> zoie)
+    {
+      _name = name;
+      _zoie = zoie;
+    }
+
+    /**
+     * Queues the work of the tenant unless queued already.
+     */
+    void wakeup()
+    {
+      if (_removed) return;
+      while (true)
+      {
+        int state = _state.get();
+        if (state == QUEUED || state == RUNNING_WOKEN) return;
+        if (state == RUNNING)
+        {
+          if (_state.compareAndSet(RUNNING, RUNNING_WOKEN)) return;
+        }
+        else if (_state.compareAndSet(IDLE, QUEUED))
+        {
+          submit();
+          return;
+        }
+      }
+    }
+
+    private void submit()
+    {
+      try
+      {
+        _executor.execute(this);
+      }
+      catch (RejectedExecutionException e)
+      {
+        _state.set(IDLE);
+        log.warn("tenant " + _name + " not run, executor is shut down");
+      }
+    }
+
+    public void run()
+    {
+      // dequeued by removed() meanwhile
+      if (!_state.compareAndSet(QUEUED, RUNNING)) return;
+      if (_removed)
+      {
+        idle();
+        return;
+      }
+      _numTurns.incrementAndGet();
+      long start = System.nanoTime();
+      try
+      {
+        int maxSteps = _maxStepsPerTurn;
+        for (int step = 0; step < maxSteps; ++step)
+        {
+          boolean worked;
+          try
+          {
+            worked = _zoie.runHostedTasks();
+          }
+          catch (Throwable t)
+          {
+            // only this tenant failed, retried at the next tick
+            _failure = t;
+            log.error("tenant " + _name + " failed", t);
+            worked = false;
+          }
+          if (!worked && _state.compareAndSet(RUNNING, IDLE)) return;
+          if (_removed)
+          {
+            _state.set(IDLE);
+            return;
+          }
+          _state.set(RUNNING); // run again
+        }
+        // out of steps, back to the end of the queue
+        _state.set(QUEUED);
+        submit();
+      }
+      finally
+      {
+        _busyNanos.addAndGet(System.nanoTime() - start);
+        synchronized (this)
+        {
+          notifyAll();
+        }
+      }
+    }
+
+    private synchronized void idle()
+    {
+      _state.set(IDLE);
+      notifyAll();
+    }
+
+    /**
+     * Stops running the tenant: a queued run is dropped, the current run is
+     * waited for.
+     */
+    synchronized void removed()
+    {
+      _removed = true;
+      long deadline = System.currentTimeMillis() + 10000L;
+      // a wakeup racing with the removal may queue it again
+      while (!_state.compareAndSet(QUEUED, IDLE) && _state.get() != IDLE && System.currentTimeMillis() < deadline)
+      {
+        try
+        {
+          wait(100);
+        }
+        catch (InterruptedException e)
+        {
+          Thread.currentThread().interrupt();
+          return;
+        }
+      }
+    }
+  }
+}
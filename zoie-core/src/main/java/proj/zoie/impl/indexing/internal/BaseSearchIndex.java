@@ -17,7 +17,6 @@ package proj.zoie.impl.indexing.internal;
  */
 import it.unimi.dsi.fastutil.ints.IntArrayList;
 import it.unimi.dsi.fastutil.ints.IntList;
-import it.unimi.dsi.fastutil.longs.LongIterator;
 import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
 import it.unimi.dsi.fastutil.longs.LongSet;
 
@@ -27,6 +26,7 @@ import java.util.List;
 import org.apache.log4j.Logger;
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.MergeScheduler;
@@ -34,8 +34,10 @@ import org.apache.lucene.search.Similarity;
 import org.apache.lucene.store.Directory;
 
 import proj.zoie.api.DocIDMapper;
+import proj.zoie.api.DocIDMapper.DocIDArray;
 import proj.zoie.api.ZoieHealth;
 import proj.zoie.api.ZoieIndexReader;
+import proj.zoie.api.ZoieSegmentReader;
 import proj.zoie.api.indexing.ZoieIndexable.IndexingReq;
 
 public abstract class BaseSearchIndex<R extends IndexReader> {
@@ -89,6 +91,18 @@ public abstract class BaseSearchIndex<R extends IndexReader> {
 
       public void updateIndex(LongSet delDocs, List<IndexingReq> insertDocs,Analyzer defaultAnalyzer,Similarity similarity)
 	      throws IOException
+	  {
+	    updateIndex(delDocs, insertDocs, null, defaultAnalyzer, similarity);
+	  }
+
+	  /**
+	   * @param uids the UID of each of the insertDocs, added to them while they
+	   *          are indexed with a reused field, or null if the docs already
+	   *          have their UID field
+	   * @see ZoieSegmentReader#getReusableUIDField(long)
+	   */
+      public void updateIndex(LongSet delDocs, List<IndexingReq> insertDocs, long[] uids, Analyzer defaultAnalyzer,Similarity similarity)
+	      throws IOException
 	  {
 	    deleteDocs(delDocs);
 		
@@ -98,15 +112,29 @@ public abstract class BaseSearchIndex<R extends IndexReader> {
 	      idxMod = openIndexWriter(defaultAnalyzer,similarity);
 	      if (idxMod != null)
 	      { 
+	        int i = 0;
 	        for (IndexingReq idxPair : insertDocs)
 	        {
 	          Analyzer analyzer = idxPair.getAnalyzer();
 	          Document doc = idxPair.getDocument();
-	          if (analyzer == null){
-	            idxMod.addDocument(doc);
+	          Field uidField = null;
+	          if (uids != null){
+	            uidField = ZoieSegmentReader.getReusableUIDField(uids[i]);
+	            doc.add(uidField);
+	          }
+	          i++;
+	          try{
+	            if (analyzer == null){
+	              idxMod.addDocument(doc);
+	            }
+	            else{
+	          	idxMod.addDocument(doc,analyzer);
+	            }
 	          }
-	          else{
-	        	idxMod.addDocument(doc,analyzer);
+	          finally{
+	            if (uidField != null){
+	              doc.getFields().remove(uidField); // the field is reused by the next doc
+	            }
 	          }
 	        }
 	      }
@@ -165,17 +193,16 @@ public abstract class BaseSearchIndex<R extends IndexReader> {
 	      {
 		    IntList delList = new IntArrayList(delDocs.size());
 	    	DocIDMapper idMapper = reader.getDocIDMaper();
-	    	LongIterator iter = delDocs.iterator();
+	    	long[] uids = delDocs.toLongArray();
+	    	DocIDArray docidArray = DocIDArray.getDocIDArray(idMapper, uids);
+	    	int[] docids = docidArray.docids;
 	        
-	    	while(iter.hasNext()){
-	    		long uid = iter.nextLong();
-	    		if (ZoieIndexReader.DELETED_UID!=uid){
-		    		int docid = idMapper.getDocID(uid);
-		    		if (docid!=DocIDMapper.NOT_FOUND){
-		    			delList.add(docid);
-		    		}
+	    	for (int i = 0; i < uids.length; ++i){
+	    		if (docids[i]!=DocIDMapper.NOT_FOUND && ZoieIndexReader.DELETED_UID!=uids[i]){
+	    			delList.add(docids[i]);
 	    		}
 	    	}
+	    	docidArray.close();
 	      delArray = delList.toIntArray();
 	      }
 	    }
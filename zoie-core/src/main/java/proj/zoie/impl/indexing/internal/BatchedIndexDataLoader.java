@@ -22,6 +22,7 @@ import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Queue;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.apache.log4j.Logger;
 import org.apache.lucene.index.IndexReader;
@@ -29,6 +30,7 @@ import org.apache.lucene.index.IndexReader;
 import proj.zoie.api.DataConsumer;
 import proj.zoie.api.ZoieException;
 import proj.zoie.api.ZoieHealth;
+import proj.zoie.api.ZoieMetrics;
 import proj.zoie.api.indexing.AbstractZoieIndexable;
 import proj.zoie.api.indexing.IndexingEventListener;
 import proj.zoie.api.indexing.IndexingEventListener.IndexingEvent;
@@ -64,6 +66,9 @@ public class BatchedIndexDataLoader<R extends IndexReader,D> implements DataCons
 	protected final SearchIndexManager<R> _idxMgr;
 	protected final ZoieIndexableInterpreter<D> _interpreter;
 	private final Queue<IndexingEventListener> _lsnrList;
+	protected volatile Runnable _hostWakeup = null; // set when hosted by a ZoieSystemHost
+	private final AtomicReference<String> _flushedVersion = new AtomicReference<String>();
+	private final Object _versionEventLock = new Object(); // fires the versions in order
 	  
 	  private static Logger log = Logger.getLogger(BatchedIndexDataLoader.class);
 	  
@@ -127,6 +132,54 @@ public class BatchedIndexDataLoader<R extends IndexReader,D> implements DataCons
 		  }
 	  }
 	  
+	  /**
+	   * Records a version flushed to disk, to be fired by
+	   * {@link #fireFlushedVersion()} once out of the monitor of the loader.
+	   */
+	  protected final void setFlushedVersion(String version)
+	  {
+	    _flushedVersion.set(version);
+	  }
+
+	  /**
+	   * Fires the last version flushed to disk, unless called with the monitor of
+	   * the loader held: the listeners, e.g. the write-ahead log deleting its
+	   * files, would hold up the indexing threads. The caller holding it fires
+	   * the version once it leaves the monitor.
+	   */
+	  protected final void fireFlushedVersion()
+	  {
+	    if (Thread.holdsLock(this)) return;
+	    synchronized (_versionEventLock)
+	    {
+	      String version = _flushedVersion.getAndSet(null);
+	      if (version != null)
+	      {
+	        fireNewVersionEvent(version);
+	      }
+	    }
+	  }
+
+	  protected final void wakeupHost()
+	  {
+	    Runnable wakeup = _hostWakeup;
+	    if (wakeup != null)
+	    {
+	      wakeup.run();
+	    }
+	  }
+
+	  protected final boolean isHosted()
+	  {
+	    return _hostWakeup != null;
+	  }
+
+	  protected final boolean isLoaderRunning()
+	  {
+	    if (isHosted()) return !_stop;
+	    return _loadMgrThread != null && _loadMgrThread.isAlive();
+	  }
+
 	  public synchronized int getMaxBatchSize()
 	  {
 	    return _maxBatchSize;
@@ -174,6 +227,7 @@ public class BatchedIndexDataLoader<R extends IndexReader,D> implements DataCons
 	  {
 	    if (events != null)
 	    {
+	      long start = System.nanoTime();
 	      ArrayList<DataEvent<ZoieIndexable>> indexableList =
 	          new ArrayList<DataEvent<ZoieIndexable>>(events.size());
 	      Iterator<DataEvent<D>> iter = events.iterator();
@@ -194,16 +248,23 @@ public class BatchedIndexDataLoader<R extends IndexReader,D> implements DataCons
 	          log.error(e.getMessage(), e);
 	        }
 	      }
+	      _idxMgr.getMetrics().record(ZoieMetrics.Stage.INTERPRET, start);
 
 	      synchronized (this) // this blocks the batch disk loader thread while indexing to RAM
 	      {
 	        while (_batchList.size() > _maxBatchSize)
 	        {
 	          // check if load manager thread is alive
-	          if(_loadMgrThread == null || !_loadMgrThread.isAlive())
+	          if(!isLoaderRunning())
 	          {
 	            throw new ZoieException("fatal: indexing thread loader manager has stopped");
 	          }
+	          if (isHosted())
+	          {
+	            // no loader thread to wait for, flush in this thread
+	            processBatch();
+	            continue;
+	          }
 	          
 	          try
 	          {
@@ -218,6 +279,8 @@ public class BatchedIndexDataLoader<R extends IndexReader,D> implements DataCons
 	        _batchList.addAll(indexableList);
 	        this.notifyAll();
 	      }
+	      fireFlushedVersion(); // of the batches flushed above
+	      wakeupHost();
 	    }
 	  }
 	  
@@ -252,6 +315,7 @@ public class BatchedIndexDataLoader<R extends IndexReader,D> implements DataCons
 	      {
 	        _flush=true;
 	        this.notifyAll();
+	        wakeupHost();
 	        long now1 = System.currentTimeMillis();
 		    
 	        if (timeOut<=0)
@@ -274,6 +338,8 @@ public class BatchedIndexDataLoader<R extends IndexReader,D> implements DataCons
 	        timeOut -= (now2 - now1);
 	      }
 	    }
+	    // the version of the last batch may still be being fired by the loader
+	    fireFlushedVersion();
 	  }
 
 	  /**
@@ -327,6 +393,7 @@ public class BatchedIndexDataLoader<R extends IndexReader,D> implements DataCons
         if (tmpList != null)
         {
           long t1=System.currentTimeMillis();
+          long start = System.nanoTime();
           int eventCount = tmpList.size();
           try
           {
@@ -340,6 +407,7 @@ public class BatchedIndexDataLoader<R extends IndexReader,D> implements DataCons
           finally
           {
             long t2=System.currentTimeMillis();
+            _idxMgr.getMetrics().record(ZoieMetrics.Stage.DISK_FLUSH, start);
             synchronized(this)
             {
               _eventCount -= eventCount;
@@ -351,13 +419,14 @@ public class BatchedIndexDataLoader<R extends IndexReader,D> implements DataCons
               try{
                 String newVersion = _idxMgr.getCurrentDiskVersion();
                 if (currentVersion != newVersion){
-                	fireNewVersionEvent(newVersion);
+                	setFlushedVersion(newVersion);
                 }
               }
               catch(IOException ioe){
             	 log.error(ioe.getMessage(),ioe); 
               }
             }
+            fireFlushedVersion();
           }
         }
         else
@@ -366,6 +435,26 @@ public class BatchedIndexDataLoader<R extends IndexReader,D> implements DataCons
         }
 	  }
 	  
+	  /**
+	   * @return whether processBatch() would flush a batch without waiting
+	   */
+	  protected synchronized boolean isBatchDue()
+	  {
+	    return _batchList.size()>0 && (_batchList.size()>=_batchSize || _stop || _flush || System.currentTimeMillis()-_lastFlushTime>=_delay);
+	  }
+
+	  /**
+	   * Flushes a batch if one is due, without waiting. Used by the host when
+	   * started with {@link #startHosted(Runnable)}.
+	   * @return whether a batch was flushed
+	   */
+	  public boolean processBatchIfDue()
+	  {
+	    if (!isBatchDue()) return false;
+	    processBatch();
+	    return true;
+	  }
+
 	  protected class LoaderThread extends IndexingThread
 	  {		  
 	    LoaderThread()
@@ -391,6 +480,16 @@ public class BatchedIndexDataLoader<R extends IndexReader,D> implements DataCons
 	    _loadMgrThread.start();
 	  }
 
+	  /**
+	   * Starts without the build-in indexing thread: wakeup is called whenever
+	   * a batch may be due, and the host then calls {@link #processBatchIfDue()}.
+	   * @see proj.zoie.impl.indexing.ZoieSystemHost
+	   */
+	  public void startHosted(Runnable wakeup)
+	  {
+	    _hostWakeup = wakeup;
+	  }
+
       /**
        * Shutdown the build-in indexing thread and wait until it dies.
        */
@@ -401,6 +500,7 @@ public class BatchedIndexDataLoader<R extends IndexReader,D> implements DataCons
 	      _stop = true;
 	      this.notifyAll();
 	    }
+	    if (isHosted()) return;
 	    try 
 	    {
 			_loadMgrThread.join();
@@ -0,0 +1,57 @@
+package proj.zoie.impl.indexing.internal;
+
+import org.apache.log4j.Logger;
+import org.apache.lucene.index.IndexReader;
+
+import proj.zoie.api.impl.util.ByteBufferSlabPool;
+import proj.zoie.api.impl.util.DirectByteBufferDirectory;
+import proj.zoie.api.indexing.IndexReaderDecorator;
+
+/**
+ * A {@link RAMIndexFactory} whose RAM indexes are stored off-heap in a
+ * {@link DirectByteBufferDirectory}. All indexes created by one factory share
+ * a {@link ByteBufferSlabPool}, so when index A/B is discarded after a disk
+ * flush its slabs are reused by the next generation instead of churning the
+ * old generation of the heap.
+ * <br>
+ * Use it through {@link proj.zoie.impl.indexing.ZoieConfig#setRamIndexFactory(RAMIndexFactory)}.
+ *
+ * @param <R>
+ */
+public class DirectRAMIndexFactory<R extends IndexReader> extends RAMIndexFactory<R>
+{
+  private static final Logger log = Logger.getLogger(DirectRAMIndexFactory.class);
+
+  private final ByteBufferSlabPool _pool;
+
+  public DirectRAMIndexFactory()
+  {
+    this(new ByteBufferSlabPool());
+  }
+
+  /**
+   * @param slabSize size in bytes of each direct buffer slab
+   * @param maxPooledBytes maximum number of idle slab bytes kept for reuse
+   */
+  public DirectRAMIndexFactory(int slabSize, long maxPooledBytes)
+  {
+    this(new ByteBufferSlabPool(slabSize, maxPooledBytes));
+  }
+
+  public DirectRAMIndexFactory(ByteBufferSlabPool pool)
+  {
+    _pool = pool;
+    log.info("using " + _pool);
+  }
+
+  public ByteBufferSlabPool getSlabPool()
+  {
+    return _pool;
+  }
+
+  @Override
+  public synchronized RAMSearchIndex<R> newInstance(String version, IndexReaderDecorator<R> decorator, SearchIndexManager<R> idxMgr)
+  {
+    return new RAMSearchIndex<R>(version, decorator, idxMgr, new DirectByteBufferDirectory(_pool), null);
+  }
+}
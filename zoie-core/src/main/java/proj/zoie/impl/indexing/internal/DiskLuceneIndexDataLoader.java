@@ -87,6 +87,7 @@ public class DiskLuceneIndexDataLoader<R extends IndexReader> extends LuceneInde
 		    _idxMgr.setDiskIndexerStatus(Status.Working);
 		    OptimizeType optType = _optScheduler.getScheduledOptimizeType();
 		    _idxMgr.setPartialExpunge(optType == OptimizeType.PARTIAL);
+		    _idxMgr.setOptimizeTargetSegments(optType == OptimizeType.INCREMENTAL ? _optScheduler.getOptimizeTargetSegments() : 0);
 		    try
 		    {
 		      super.consume(events);
@@ -95,6 +96,7 @@ public class DiskLuceneIndexDataLoader<R extends IndexReader> extends LuceneInde
 		    {
 		      _optScheduler.finished();
 		      _idxMgr.setPartialExpunge(false);
+		      _idxMgr.setOptimizeTargetSegments(0);
 		    }
 		    
 		    if(optType == OptimizeType.FULL)
@@ -133,6 +135,7 @@ public class DiskLuceneIndexDataLoader<R extends IndexReader> extends LuceneInde
           
           OptimizeType optType = _optScheduler.getScheduledOptimizeType();
           _idxMgr.setPartialExpunge(optType == OptimizeType.PARTIAL);
+          _idxMgr.setOptimizeTargetSegments(optType == OptimizeType.INCREMENTAL ? _optScheduler.getOptimizeTargetSegments() : 0);
           try
           {
             super.loadFromIndex(ramIndex);
@@ -141,6 +144,7 @@ public class DiskLuceneIndexDataLoader<R extends IndexReader> extends LuceneInde
           {
             _optScheduler.finished();
             _idxMgr.setPartialExpunge(false);
+            _idxMgr.setOptimizeTargetSegments(0);
           }
           
           if(optType == OptimizeType.FULL)
@@ -24,7 +24,7 @@ import org.apache.log4j.Logger;
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.IndexWriter;
-import org.apache.lucene.index.SerialMergeScheduler;
+import org.apache.lucene.index.ZoieMergeScheduler;
 import org.apache.lucene.index.IndexWriter.MaxFieldLength;
 import org.apache.lucene.search.Similarity;
 import org.apache.lucene.store.Directory;
@@ -34,7 +34,9 @@ import proj.zoie.api.ZoieHealth;
 import proj.zoie.api.ZoieIndexReader;
 import proj.zoie.api.impl.ZoieMergePolicy;
 import proj.zoie.api.impl.ZoieMergePolicy.MergePolicyParams;
+import proj.zoie.api.impl.ZoieMergePolicy.MergeStats;
 import proj.zoie.api.impl.util.IndexUtil;
+import proj.zoie.api.impl.util.MergeThrottledDirectory;
 import proj.zoie.api.indexing.IndexReaderDecorator;
 
 public class DiskSearchIndex<R extends IndexReader> extends BaseSearchIndex<R>{
@@ -42,6 +44,8 @@ public class DiskSearchIndex<R extends IndexReader> extends BaseSearchIndex<R>{
   private final IndexReaderDispenser<R> _dispenser;
 
   final MergePolicyParams _mergePolicyParams;
+  final MergeStats _mergeStats;
+  final ZoieMergeScheduler _diskMergeScheduler;
 
   private ZoieIndexDeletionPolicy _deletionPolicy;
 
@@ -51,8 +55,10 @@ public class DiskSearchIndex<R extends IndexReader> extends BaseSearchIndex<R>{
     super(idxMgr, true);  
     _dirMgr = dirMgr;
     _mergePolicyParams = new MergePolicyParams();
+    _mergeStats = new MergeStats();
     _dispenser = new IndexReaderDispenser<R>(_dirMgr, decorator,this);
-    _mergeScheduler = new SerialMergeScheduler();
+    _diskMergeScheduler = new ZoieMergeScheduler();
+    _mergeScheduler = _diskMergeScheduler;
     _deletionPolicy = new ZoieIndexDeletionPolicy();
   }
 
@@ -65,6 +71,14 @@ public class DiskSearchIndex<R extends IndexReader> extends BaseSearchIndex<R>{
     return _mergePolicyParams;
   }
 
+  public MergeStats getMergeStats(){
+    return _mergeStats;
+  }
+
+  public ZoieMergeScheduler getMergeScheduler(){
+    return _diskMergeScheduler;
+  }
+
   /**
    * Gets the number of docs in the current loaded index
    * @return number of docs
@@ -82,6 +96,23 @@ public class DiskSearchIndex<R extends IndexReader> extends BaseSearchIndex<R>{
     }
   }
 
+  /**
+   * Gets the number of deleted docs in the current loaded index
+   * @return number of deleted docs
+   */
+  public int getNumDeletedDocs()
+  {
+    IndexReader reader=_dispenser.getIndexReader();
+    if (reader!=null)
+    {
+      return reader.numDeletedDocs();
+    }
+    else
+    {
+      return 0;
+    }
+  }
+
   public int getSegmentCount() throws IOException{
     if (_dirMgr == null || !_dirMgr.exists()){
       return 0;
@@ -175,11 +206,13 @@ public class DiskSearchIndex<R extends IndexReader> extends BaseSearchIndex<R>{
     // create a new modifier to the index, assuming at most one instance is running at any given time
     boolean create = !IndexReader.indexExists(directory);  
     // hao: autocommit is set to false with this constructor
-    IndexWriter idxWriter = new IndexWriter(directory, analyzer, create, _deletionPolicy, MaxFieldLength.UNLIMITED);
+    // merges go through the throttled directory so that the merge scheduler can pace them
+    IndexWriter idxWriter = new IndexWriter(new MergeThrottledDirectory(directory, _diskMergeScheduler), analyzer, create, _deletionPolicy, MaxFieldLength.UNLIMITED);
     idxWriter.setMergeScheduler(_mergeScheduler);
 
     ZoieMergePolicy mergePolicy = new ZoieMergePolicy(idxWriter);
     mergePolicy.setMergePolicyParams(_mergePolicyParams);
+    mergePolicy.setMergeStats(_mergeStats);
     idxWriter.setRAMBufferSizeMB(5);
 
     idxWriter.setMergePolicy(mergePolicy);
@@ -17,6 +17,7 @@ package proj.zoie.impl.indexing.internal;
  */
 import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
 import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongIterator;
 import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
 import it.unimi.dsi.fastutil.longs.LongSet;
 
@@ -29,7 +30,6 @@ import java.util.List;
 
 import org.apache.log4j.Logger;
 import org.apache.lucene.analysis.Analyzer;
-import org.apache.lucene.document.Document;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.search.DocIdSetIterator;
 import org.apache.lucene.search.Filter;
@@ -38,7 +38,7 @@ import org.apache.lucene.search.Similarity;
 import proj.zoie.api.DataConsumer;
 import proj.zoie.api.ZoieException;
 import proj.zoie.api.ZoieHealth;
-import proj.zoie.api.ZoieSegmentReader;
+import proj.zoie.api.ZoieMetrics;
 import proj.zoie.api.indexing.ZoieIndexable;
 import proj.zoie.api.indexing.ZoieIndexable.IndexingReq;
 
@@ -148,10 +148,7 @@ public abstract class LuceneIndexDataLoader<R extends IndexReader> implements Da
 											// a delete, e.g. update with
 											// nothing
 						{
-							Document doc = req.getDocument();
-							if (doc!=null){							 
-							  ZoieSegmentReader.fillDocumentID(doc, uid);
-							}
+							// the UID field is added when the doc is written, see BaseSearchIndex.updateIndex
 							// add to the insert list
 							List<IndexingReq> docList = addList.get(uid);
 							if (docList == null) {
@@ -169,16 +166,40 @@ public abstract class LuceneIndexDataLoader<R extends IndexReader> implements Da
 			}
 
 			List<IndexingReq> docList = new ArrayList<IndexingReq>(addList.size());
-			for (List<IndexingReq> tmpList : addList.values()) {
-				docList.addAll(tmpList);
+			long[] uids = new long[addList.size()];
+			LongIterator iter = addList.keySet().iterator();
+			while (iter.hasNext()) {
+				long uid = iter.nextLong();
+				for (IndexingReq req : addList.get(uid)) {
+					if (docList.size() == uids.length) {
+						long[] newUids = new long[uids.length * 2];
+						System.arraycopy(uids, 0, newUids, 0, uids.length);
+						uids = newUids;
+					}
+					uids[docList.size()] = uid;
+					docList.add(req);
+				}
 			}
-      idx.updateIndex(delSet, docList, _analyzer,_similarity);
+      ZoieMetrics metrics = _idxMgr.getMetrics();
+      if (idx instanceof RAMSearchIndex<?>)
+      {
+        ((RAMSearchIndex<R>) idx).addFieldValues(addList);
+      }
+      long start = System.nanoTime();
+      idx.updateIndex(delSet, docList, uids, _analyzer,_similarity);
+      metrics.record(idx instanceof RAMSearchIndex<?> ? ZoieMetrics.Stage.RAM_WRITE : ZoieMetrics.Stage.DISK_WRITE, start);
       purgeDocuments();
+      start = System.nanoTime();
       propagateDeletes(delSet);
+      long deleteMarkNanos = System.nanoTime() - start;
 			synchronized(_idxMgr)
 			{
+         start = System.nanoTime();
          idx.refresh();
+         metrics.record(ZoieMetrics.Stage.READER_REOPEN, start);
+         start = System.nanoTime();
          commitPropagatedDeletes();
+         metrics.recordNanos(ZoieMetrics.Stage.DELETE_MARK, deleteMarkNanos + System.nanoTime() - start);
 			}
 		} catch (IOException ioe) {
       ZoieHealth.setFatal();
@@ -212,7 +233,9 @@ public abstract class LuceneIndexDataLoader<R extends IndexReader> implements Da
         idx.loadFromIndex(ramIndex);
         idx.clearDeletes(); // clear old deletes as deletes are written to the lucene index
         // hao: update the disk idx reader
+        long start = System.nanoTime();
         idx.refresh(); // load the index reader
+        _idxMgr.getMetrics().record(ZoieMetrics.Stage.READER_REOPEN, start);
         idx.markDeletes(ramIndex.getDelDocs()); // inherit deletes
         idx.commitDeletes();
         idx.incrementEventCount(ramIndex.getEventsHandled());
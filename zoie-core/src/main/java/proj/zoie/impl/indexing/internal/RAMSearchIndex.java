@@ -17,13 +17,20 @@ package proj.zoie.impl.indexing.internal;
  * limitations under the License.
  */
 
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
 import it.unimi.dsi.fastutil.longs.LongSet;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
 import org.apache.log4j.Logger;
 import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.document.Document;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriter.MaxFieldLength;
@@ -34,11 +41,13 @@ import org.apache.lucene.store.Directory;
 import proj.zoie.api.DocIDMapper;
 import proj.zoie.api.ZoieIndexReader;
 import proj.zoie.api.ZoieMultiReader;
+import proj.zoie.api.ZoieSegmentReader;
 import proj.zoie.api.impl.ZoieMergePolicy;
 import proj.zoie.api.impl.ZoieMergePolicy.MergePolicyParams;
 import proj.zoie.api.impl.util.FileUtil;
 import proj.zoie.api.impl.util.IndexUtil;
 import proj.zoie.api.indexing.IndexReaderDecorator;
+import proj.zoie.api.indexing.ZoieIndexable.IndexingReq;
 
 public class RAMSearchIndex<R extends IndexReader> extends BaseSearchIndex<R>
 {
@@ -50,6 +59,7 @@ public class RAMSearchIndex<R extends IndexReader> extends BaseSearchIndex<R>
   // a consistent pair of reader and deleted set
   private volatile ZoieIndexReader<R> _currentReader;
   private final MergePolicyParams _mergePolicyParams;
+  private volatile UIDFieldValueStore _fieldValues = null; // created with the first docs when there are RAM long fields
 
   public static final Logger log = Logger.getLogger(RAMSearchIndex.class);
 
@@ -138,6 +148,47 @@ public class RAMSearchIndex<R extends IndexReader> extends BaseSearchIndex<R>
     }
   }
 
+  /**
+   * Records the values of the RAM long fields of the docs about to be added.
+   * @see SearchIndexManager#setRAMLongFields(java.util.Collection)
+   */
+  void addFieldValues(Long2ObjectMap<List<IndexingReq>> docs)
+  {
+    UIDFieldValueStore fieldValues = _fieldValues;
+    if (fieldValues == null)
+    {
+      Set<String> fields = _idxMgr.getRAMLongFields();
+      if (fields.isEmpty()) return;
+      _fieldValues = fieldValues = new UIDFieldValueStore(fields);
+    }
+    LongIterator iter = docs.keySet().iterator();
+    while (iter.hasNext())
+    {
+      long uid = iter.nextLong();
+      for (IndexingReq req : docs.get(uid))
+      {
+        Document doc = req.getDocument();
+        if (doc != null)
+        {
+          fieldValues.add(uid, doc);
+        }
+      }
+    }
+  }
+
+  /**
+   * Lets the segments build their field values from the recorded ones.
+   */
+  private void setFieldValueSource(ZoieIndexReader<R> reader)
+  {
+    UIDFieldValueStore fieldValues = _fieldValues;
+    if (reader == null || fieldValues == null) return;
+    for (ZoieIndexReader<R> subReader : reader.getSequentialSubReaders())
+    {
+      ((ZoieSegmentReader<R>) subReader).setFieldValueSource(fieldValues);
+    }
+  }
+
   private ZoieIndexReader<R> openIndexReaderInternal() throws IOException
   {
     if (IndexReader.indexExists(_directory))
@@ -213,18 +264,45 @@ public class RAMSearchIndex<R extends IndexReader> extends BaseSearchIndex<R>
 
       if (_currentReader != reader)
       {
+        setFieldValueSource(reader);
         ZoieIndexReader<R> oldReader = _currentReader;
         _currentReader = reader;
+        // the segments kept by the reopen share their UID arrays, mappers and
+        // marked deletes with the old reader, only the new ones need marking
+        markDeletesOnNewSegments(reader, oldReader);
         if (oldReader != null)
           ((ZoieIndexReader) oldReader).decZoieRef();// .decRef();
       }
-      LongSet delDocs = _delDocs;
-      clearDeletes();
-      markDeletes(delDocs); // re-mark deletes
       commitDeletes();
     }
   }
 
+  /**
+   * Marks the deleted UIDs on the segments of reader that oldReader doesn't
+   * have, i.e. the ones flushed or merged since.
+   */
+  private void markDeletesOnNewSegments(ZoieIndexReader<R> reader, ZoieIndexReader<R> oldReader)
+  {
+    LongSet delDocs = _delDocs;
+    if (reader == null || delDocs.isEmpty()) return;
+    Set<String> oldSegments = new HashSet<String>();
+    if (oldReader != null)
+    {
+      for (ZoieIndexReader<R> subReader : oldReader.getSequentialSubReaders())
+      {
+        oldSegments.add(((ZoieSegmentReader<R>) subReader).getSegmentName());
+      }
+    }
+    LongSet markedUIDs = new LongOpenHashSet();
+    for (ZoieIndexReader<R> subReader : reader.getSequentialSubReaders())
+    {
+      if (!oldSegments.contains(((ZoieSegmentReader<R>) subReader).getSegmentName()))
+      {
+        subReader.markDeletes(delDocs, markedUIDs);
+      }
+    }
+  }
+
   public int getSegmentCount() throws IOException
   {
     return _directory == null ? -1 : IndexUtil.getNumSegments(_directory);
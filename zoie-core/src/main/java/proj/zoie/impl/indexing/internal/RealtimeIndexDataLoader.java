@@ -31,6 +31,7 @@ import org.apache.lucene.search.Similarity;
 import proj.zoie.api.DataConsumer;
 import proj.zoie.api.ZoieException;
 import proj.zoie.api.ZoieHealth;
+import proj.zoie.api.ZoieMetrics;
 import proj.zoie.api.indexing.IndexingEventListener;
 import proj.zoie.api.indexing.ZoieIndexable;
 import proj.zoie.api.indexing.ZoieIndexableInterpreter;
@@ -76,6 +77,7 @@ public class RealtimeIndexDataLoader<R extends IndexReader, D> extends BatchedIn
   {
     if (events != null)
     {
+      long start = System.nanoTime();
       ArrayList<DataEvent<ZoieIndexable>> indexableList =
           new ArrayList<DataEvent<ZoieIndexable>>(events.size());
       Iterator<DataEvent<D>> iter = events.iterator();
@@ -97,6 +99,7 @@ public class RealtimeIndexDataLoader<R extends IndexReader, D> extends BatchedIn
           log.error(e.getMessage(), e);
         }
       }
+      _idxMgr.getMetrics().record(ZoieMetrics.Stage.INTERPRET, start);
 
       synchronized (this) // this blocks the batch disk loader thread while indexing to RAM
       {
@@ -108,11 +111,17 @@ public class RealtimeIndexDataLoader<R extends IndexReader, D> extends BatchedIn
         while (_currentBatchSize > _maxBatchSize)
         {
           // check if load manager thread is alive
-          if(_loadMgrThread == null || !_loadMgrThread.isAlive())
+          if(!isLoaderRunning())
           {
             ZoieHealth.setFatal();
             throw new ZoieException("fatal: indexing thread loader manager has stopped");
           }
+          if (isHosted())
+          {
+            // no loader thread to wait for, flush in this thread
+            processBatch();
+            continue;
+          }
           
           this.notifyAll(); // wake up load manager thread      
           
@@ -127,6 +136,8 @@ public class RealtimeIndexDataLoader<R extends IndexReader, D> extends BatchedIn
         }
         this.notifyAll();
       }
+      fireFlushedVersion(); // of the batches flushed above
+      wakeupHost();
     }
   }
   
@@ -136,7 +147,19 @@ public class RealtimeIndexDataLoader<R extends IndexReader, D> extends BatchedIn
   }
   
   @Override
-  protected synchronized void processBatch()
+  protected synchronized boolean isBatchDue()
+  {
+    return _currentBatchSize > 0 && (_currentBatchSize >= _batchSize || _stop || _flush || System.currentTimeMillis() - _lastFlushTime >= _delay);
+  }
+
+  @Override
+  protected void processBatch()
+  {
+    flushBatch();
+    fireFlushedVersion();
+  }
+
+  private synchronized void flushBatch()
   {
     RAMSearchIndex<R> readOnlyMemIndex = null;
     long now = System.currentTimeMillis();
@@ -170,11 +193,16 @@ public class RealtimeIndexDataLoader<R extends IndexReader, D> extends BatchedIn
 
     if (eventCount > 0)
     {
+      String flushedVersion = null;
       long t1=System.currentTimeMillis();
+      long start = System.nanoTime();
       try
       {
         if(readOnlyMemIndex != null)
+        {
           _luceneDataLoader.loadFromIndex(readOnlyMemIndex);
+          flushedVersion = readOnlyMemIndex.getVersion();
+        }
       }
       catch (ZoieException e)
       {
@@ -184,6 +212,7 @@ public class RealtimeIndexDataLoader<R extends IndexReader, D> extends BatchedIn
       finally
       {
         long t2=System.currentTimeMillis();
+        _idxMgr.getMetrics().record(ZoieMetrics.Stage.DISK_FLUSH, start);
         _eventCount -= eventCount;
         int segmentCount = -1;
         String segmentInfo="";
@@ -199,6 +228,11 @@ public class RealtimeIndexDataLoader<R extends IndexReader, D> extends BatchedIn
         log.info("post-flush segment info: " + segmentInfo);
         IndexUpdatedEvent evt = new IndexUpdatedEvent(eventCount,t1,t2,_eventCount);
         fireIndexingEvent(evt);
+        if (flushedVersion != null)
+        {
+          // the disk reader only picks up the new version at its next refresh
+          setFlushedVersion(flushedVersion);
+        }
         notifyAll();
       }
     }
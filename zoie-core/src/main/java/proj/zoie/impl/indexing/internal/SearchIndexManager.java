@@ -19,17 +19,24 @@ package proj.zoie.impl.indexing.internal;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import org.apache.log4j.Logger;
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.ZoieMergeScheduler;
 
 import proj.zoie.api.DirectoryManager;
 import proj.zoie.api.DocIDMapperFactory;
 import proj.zoie.api.IndexReaderFactory;
 import proj.zoie.api.ZoieHealth;
 import proj.zoie.api.ZoieIndexReader;
+import proj.zoie.api.ZoieMetrics;
+import proj.zoie.api.impl.ZoieMergePolicy.MergeStats;
 import proj.zoie.api.indexing.IndexReaderDecorator;
 
 public class SearchIndexManager<R extends IndexReader> implements IndexReaderFactory<ZoieIndexReader<R>>
@@ -55,6 +62,8 @@ public class SearchIndexManager<R extends IndexReader> implements IndexReaderFac
 	   */
 	  private final Object _memLock = new Object();
 	  private final RAMIndexFactory<R> _ramIndexFactory;
+	  private final ZoieMetrics _metrics = new ZoieMetrics();
+	  private volatile Set<String> _ramLongFields = Collections.emptySet();
 	  
 	  /**
 	   * @param location 
@@ -169,6 +178,69 @@ public class SearchIndexManager<R extends IndexReader> implements IndexReaderFac
 	    return _diskIndex._mergePolicyParams.getPartialExpunge();
 	  }
 
+	  public void setOptimizeTargetSegments(int optimizeTargetSegments)
+	  {
+	    _diskIndex._mergePolicyParams.setOptimizeTargetSegments(optimizeTargetSegments);
+	  }
+
+	  public int getOptimizeTargetSegments()
+	  {
+	    return _diskIndex._mergePolicyParams.getOptimizeTargetSegments();
+	  }
+
+	  public void setDeleteAwareMerge(boolean deleteAwareMerge)
+	  {
+	    _diskIndex._mergePolicyParams.setDeleteAwareMerge(deleteAwareMerge);
+	  }
+
+	  public boolean isDeleteAwareMerge()
+	  {
+	    return _diskIndex._mergePolicyParams.isDeleteAwareMerge();
+	  }
+
+	  public void setMinMergeDeleteRatio(float minMergeDeleteRatio)
+	  {
+	    _diskIndex._mergePolicyParams.setMinMergeDeleteRatio(minMergeDeleteRatio);
+	  }
+
+	  public float getMinMergeDeleteRatio()
+	  {
+	    return _diskIndex._mergePolicyParams.getMinMergeDeleteRatio();
+	  }
+
+	  public MergeStats getMergeStats()
+	  {
+	    return _diskIndex._mergeStats;
+	  }
+
+	  public ZoieMergeScheduler getMergeScheduler()
+	  {
+	    return _diskIndex._diskMergeScheduler;
+	  }
+
+	  /**
+	   * @return the latency metrics of the indexing pipeline feeding these indexes
+	   */
+	  public ZoieMetrics getMetrics()
+	  {
+	    return _metrics;
+	  }
+
+	  /**
+	   * @param fields the numeric fields whose indexed values the RAM indexes
+	   *          record while indexing, for {@link ZoieIndexReader#getLongFieldValues(String)}.
+	   *          Applies to the RAM indexes getting their first docs afterwards.
+	   */
+	  public void setRAMLongFields(Collection<String> fields)
+	  {
+	    _ramLongFields = (fields == null) ? Collections.<String>emptySet() : Collections.unmodifiableSet(new HashSet<String>(fields));
+	  }
+
+	  public Set<String> getRAMLongFields()
+	  {
+	    return _ramLongFields;
+	  }
+
 	  public void setMergeFactor(int mergeFactor)
 	  {
 		  _diskIndex._mergePolicyParams.setMergeFactor(mergeFactor);
@@ -210,6 +282,20 @@ public class SearchIndexManager<R extends IndexReader> implements IndexReaderFac
 	  
 	  public List<ZoieIndexReader<R>> getIndexReaders()
 	  throws IOException
+	  {
+	    return getIndexReaders(true);
+	  }
+
+	  /**
+	   * @param markDeletes whether to apply the deletes marked by the fresher
+	   *          indexes to the readers, on copies of them. Without them, the
+	   *          readers of the indexes are returned as is, referenced but not
+	   *          copied: docs updated or deleted in a fresher index are still
+	   *          found in the older ones and have to be dropped at query time,
+	   *          see {@link proj.zoie.api.UIDDedupCollector}.
+	   */
+	  public List<ZoieIndexReader<R>> getIndexReaders(boolean markDeletes)
+	  throws IOException
 	  {
 	    ArrayList<ZoieIndexReader<R>> readers = new ArrayList<ZoieIndexReader<R>>();
 	    ZoieIndexReader<R> reader = null;
@@ -227,22 +313,18 @@ public class SearchIndexManager<R extends IndexReader> implements IndexReaderFac
 
 	        if (memIndexB != null)                           // load memory index B
 	        {
-	          reader = memIndexB.openIndexReader();
+	          reader = acquireReader(memIndexB, markDeletes);
 	          if (reader != null)
 	          {
-	            reader = reader.copy();
-	            reader.setDelDocIds();
 	            readers.add(reader);
 	          }
 	        }
 
 	        if (memIndexA != null)                           // load memory index A
 	        {
-	          reader = memIndexA.openIndexReader();
+	          reader = acquireReader(memIndexA, markDeletes);
 	          if (reader != null)
 	          {
-              reader = reader.copy();
-	            reader.setDelDocIds();
 	            readers.add(reader);
 	          }
 	        }
@@ -252,9 +334,9 @@ public class SearchIndexManager<R extends IndexReader> implements IndexReaderFac
 	          reader = mem.get_diskIndexReader();
 	          if (reader != null)
 	          {
-              reader = reader.copy();
-	            reader.setDelDocIds();
-	            readers.add(reader);
+	            // the mem holds a reference to it until swapped under _memLock
+	            reader = markDeletes ? markedCopy(reader) : referenced(reader);
+	            if (reader != null) readers.add(reader);
 	          }
 	        }
 	      }
@@ -262,6 +344,36 @@ public class SearchIndexManager<R extends IndexReader> implements IndexReaderFac
 	    return readers;
 	  }
 
+	  private static <R extends IndexReader> ZoieIndexReader<R> acquireReader(RAMSearchIndex<R> memIndex, boolean markDeletes)
+	  throws IOException
+	  {
+	    while (true)
+	    {
+	      ZoieIndexReader<R> reader = memIndex.openIndexReader();
+	      if (reader == null) return null;
+	      if (markDeletes) return markedCopy(reader);
+	      if (referenced(reader) != null) return reader;
+	      // released by a reopen meanwhile, takes the new one
+	    }
+	  }
+
+	  private static <R extends IndexReader> ZoieIndexReader<R> markedCopy(ZoieIndexReader<R> reader)
+	  throws IOException
+	  {
+	    reader = reader.copy();
+	    reader.setDelDocIds();
+	    return reader;
+	  }
+
+	  /**
+	   * @return the reader with one more reference, released by
+	   *         {@link #returnIndexReaders(List)}, null if it was released
+	   */
+	  private static <R extends IndexReader> ZoieIndexReader<R> referenced(ZoieIndexReader<R> reader)
+	  {
+	    return reader.tryIncZoieRef() ? reader : null;
+	  }
+
 	  public void returnIndexReaders(List<ZoieIndexReader<R>> readers)
 	  {
 	    for(ZoieIndexReader<R> r : readers)
@@ -375,6 +487,11 @@ public class SearchIndexManager<R extends IndexReader> implements IndexReaderFac
 	  {
 	    return _diskIndex.getNumdocs();
 	  }
+
+	  public int getDiskIndexNumDeletedDocs()
+	  {
+	    return _diskIndex.getNumDeletedDocs();
+	  }
 	  
 	  public int getRamAIndexSize()
 	  {
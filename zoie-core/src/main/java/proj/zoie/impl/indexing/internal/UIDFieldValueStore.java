@@ -0,0 +1,124 @@
+package proj.zoie.impl.indexing.internal;
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import it.unimi.dsi.fastutil.longs.Long2LongOpenHashMap;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Fieldable;
+
+import proj.zoie.api.FieldValueSource;
+import proj.zoie.api.ZoieIndexReader;
+
+/**
+ * Values of numeric fields by UID, filled as the docs are added to a RAM
+ * index. The RAM index is reopened after every realtime batch and its small
+ * segments are merged all the time; the value arrays of a new segment are
+ * then built from its UIDs instead of being rebuilt from its terms.
+ * <br>
+ * The value of a doc is its indexed term, as FieldCache would find it, whether
+ * the field is stored or not. The terms of a tokenized field are only known
+ * to the index, such a field is no longer kept and its readers go back to
+ * FieldCache.
+ */
+public class UIDFieldValueStore implements FieldValueSource
+{
+  private static final Logger log = Logger.getLogger(UIDFieldValueStore.class);
+
+  private final Map<String, Long2LongOpenHashMap> _values;
+
+  /**
+   * @param fields the fields whose values are kept, parsed as longs
+   */
+  public UIDFieldValueStore(Collection<String> fields)
+  {
+    _values = new HashMap<String, Long2LongOpenHashMap>();
+    for (String field : fields)
+    {
+      _values.put(field, new Long2LongOpenHashMap());
+    }
+  }
+
+  public synchronized boolean hasField(String field)
+  {
+    return _values.containsKey(field);
+  }
+
+  /**
+   * Records the values of the doc, the last one added for a UID wins.
+   */
+  public synchronized void add(long uid, Document doc)
+  {
+    Iterator<Map.Entry<String, Long2LongOpenHashMap>> iter = _values.entrySet().iterator();
+    while (iter.hasNext())
+    {
+      Map.Entry<String, Long2LongOpenHashMap> entry = iter.next();
+      String field = entry.getKey();
+      String val = null;
+      boolean tokenized = false;
+      for (Fieldable f : doc.getFieldables(field))
+      {
+        if (!f.isIndexed()) continue;
+        if (f.isTokenized())
+        {
+          tokenized = true;
+          break;
+        }
+        String term = f.stringValue();
+        // FieldCache ends up with the last term of the doc
+        if (term != null && (val == null || term.compareTo(val) > 0)) val = term;
+      }
+      if (tokenized)
+      {
+        log.warn(field + " is tokenized, its values are left to FieldCache");
+        iter.remove();
+        continue;
+      }
+      if (val == null)
+      {
+        entry.getValue().remove(uid);
+        continue;
+      }
+      try
+      {
+        entry.getValue().put(uid, Long.parseLong(val));
+      } catch (NumberFormatException e)
+      {
+        log.warn("not a long value of " + field + " for uid " + uid + ": " + val);
+        entry.getValue().remove(uid);
+      }
+    }
+  }
+
+  public synchronized long[] getLongValues(String field, long[] uids)
+  {
+    Long2LongOpenHashMap values = _values.get(field);
+    if (values == null) return null; // no longer kept
+    long[] result = new long[uids.length];
+    for (int i = 0; i < uids.length; ++i)
+    {
+      long uid = uids[i];
+      result[i] = (uid == ZoieIndexReader.DELETED_UID) ? 0L : values.get(uid);
+    }
+    return result;
+  }
+}
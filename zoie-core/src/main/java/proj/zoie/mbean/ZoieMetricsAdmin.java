@@ -0,0 +1,80 @@
+package proj.zoie.mbean;
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import proj.zoie.api.ZoieMetrics;
+import proj.zoie.api.ZoieMetrics.Stage;
+
+public class ZoieMetricsAdmin implements ZoieMetricsAdminMBean {
+	private final ZoieMetrics _metrics;
+	
+	public ZoieMetricsAdmin(ZoieMetrics metrics){
+		_metrics = metrics;
+	}
+	
+	public long getEventToSearchableP50Micros() {
+		return getLatencyMicros(Stage.EVENT_TO_SEARCHABLE, 50);
+	}
+
+	public long getEventToSearchableP99Micros() {
+		return getLatencyMicros(Stage.EVENT_TO_SEARCHABLE, 99);
+	}
+
+	public long getReaderAcquireP99Micros() {
+		return getLatencyMicros(Stage.READER_ACQUIRE, 99);
+	}
+
+	public long getOutstandingReaderLists() {
+		return _metrics.getOutstandingReaderLists();
+	}
+
+	public long getLatencyMicros(String stage, double percentile) {
+		return getLatencyMicros(Stage.valueOf(stage), percentile);
+	}
+
+	private long getLatencyMicros(Stage stage, double percentile) {
+		return _metrics.getHistogram(stage).snapshot().getValueAtPercentile(percentile);
+	}
+
+	public long getCount(String stage) {
+		return _metrics.getHistogram(Stage.valueOf(stage)).getCount();
+	}
+
+	public String[] getStages() {
+		Stage[] stages = Stage.values();
+		String[] names = new String[stages.length];
+		for (int i = 0; i < stages.length; ++i){
+			names[i] = stages[i].name();
+		}
+		return names;
+	}
+
+	public String getSummary() {
+		return _metrics.getReport().toString();
+	}
+
+	public boolean isEnabled() {
+		return _metrics.isEnabled();
+	}
+
+	public void setEnabled(boolean enabled) {
+		_metrics.setEnabled(enabled);
+	}
+
+	public void reset() {
+		_metrics.reset();
+	}
+}
@@ -51,6 +51,46 @@ public class ZoieSystemAdmin implements ZoieSystemAdminMBean
 		return _internalMBean.getDiskIndexSize();
 	}
 
+	public int getDiskIndexNumDeletedDocs() {
+		return _internalMBean.getDiskIndexNumDeletedDocs();
+	}
+
+	public long getIndexReaderRequestCount() {
+		return _internalMBean.getIndexReaderRequestCount();
+	}
+
+	public String getVisibleVersion() {
+		return _internalMBean.getVisibleVersion();
+	}
+
+	public long getFreshnessLagP50Millis() {
+		return _internalMBean.getFreshnessLagP50Millis();
+	}
+
+	public long getFreshnessLagP99Millis() {
+		return _internalMBean.getFreshnessLagP99Millis();
+	}
+
+	public long getFreshnessLagMaxMillis() {
+		return _internalMBean.getFreshnessLagMaxMillis();
+	}
+
+	public long getDurabilityLagP99Millis() {
+		return _internalMBean.getDurabilityLagP99Millis();
+	}
+
+	public long getCurrentFreshnessLagMillis() {
+		return _internalMBean.getCurrentFreshnessLagMillis();
+	}
+
+	public long getCurrentDurabilityLagMillis() {
+		return _internalMBean.getCurrentDurabilityLagMillis();
+	}
+
+	public void resetFreshnessLag() {
+		_internalMBean.resetFreshnessLag();
+	}
+
  	public long getDiskIndexSizeBytes()
  	{
  	  return _internalMBean.getDiskIndexSizeBytes();
@@ -213,6 +253,151 @@ public class ZoieSystemAdmin implements ZoieSystemAdminMBean
       return _internalMBean.getMaxUID();
     }
 
+    public boolean isDeleteAwareMerge()
+    {
+      return _internalMBean.isDeleteAwareMerge();
+    }
+
+    public void setDeleteAwareMerge(boolean deleteAwareMerge)
+    {
+      _internalMBean.setDeleteAwareMerge(deleteAwareMerge);
+    }
+
+    public float getMinMergeDeleteRatio()
+    {
+      return _internalMBean.getMinMergeDeleteRatio();
+    }
+
+    public void setMinMergeDeleteRatio(float minMergeDeleteRatio)
+    {
+      _internalMBean.setMinMergeDeleteRatio(minMergeDeleteRatio);
+    }
+
+    public long getNumMergesSelected()
+    {
+      return _internalMBean.getNumMergesSelected();
+    }
+
+    public long getNumReclaimMergesSelected()
+    {
+      return _internalMBean.getNumReclaimMergesSelected();
+    }
+
+    public long getMergeBytesToRewrite()
+    {
+      return _internalMBean.getMergeBytesToRewrite();
+    }
+
+    public long getMergeBytesReclaimed()
+    {
+      return _internalMBean.getMergeBytesReclaimed();
+    }
+
+    public String getLastMergeStats()
+    {
+      return _internalMBean.getLastMergeStats();
+    }
+
+    public double getMaxMergeMBPerSec()
+    {
+      return _internalMBean.getMaxMergeMBPerSec();
+    }
+
+    public void setMaxMergeMBPerSec(double maxMBPerSec)
+    {
+      _internalMBean.setMaxMergeMBPerSec(maxMBPerSec);
+    }
+
+    public double getPeakMergeMBPerSec()
+    {
+      return _internalMBean.getPeakMergeMBPerSec();
+    }
+
+    public void setPeakMergeMBPerSec(double peakMBPerSec)
+    {
+      _internalMBean.setPeakMergeMBPerSec(peakMBPerSec);
+    }
+
+    public int getMergePeakStartHour()
+    {
+      return _internalMBean.getMergePeakStartHour();
+    }
+
+    public int getMergePeakEndHour()
+    {
+      return _internalMBean.getMergePeakEndHour();
+    }
+
+    public void setMergePeakHours(int startHour, int endHour)
+    {
+      _internalMBean.setMergePeakHours(startHour, endHour);
+    }
+
+    public long getMergePauseOnSLAMillis()
+    {
+      return _internalMBean.getMergePauseOnSLAMillis();
+    }
+
+    public void setMergePauseOnSLAMillis(long millis)
+    {
+      _internalMBean.setMergePauseOnSLAMillis(millis);
+    }
+
+    public void pauseMerges(long millis)
+    {
+      _internalMBean.pauseMerges(millis);
+    }
+
+    public void resumeMerges()
+    {
+      _internalMBean.resumeMerges();
+    }
+
+    public boolean isMergePaused()
+    {
+      return _internalMBean.isMergePaused();
+    }
+
+    public long getNumMergesDone()
+    {
+      return _internalMBean.getNumMergesDone();
+    }
+
+    public long getMergeBytesWritten()
+    {
+      return _internalMBean.getMergeBytesWritten();
+    }
+
+    public long getMergeBytesRead()
+    {
+      return _internalMBean.getMergeBytesRead();
+    }
+
+    public double getMergeThroughputMBPerSec()
+    {
+      return _internalMBean.getMergeThroughputMBPerSec();
+    }
+
+    public long getMergeThrottledMillis()
+    {
+      return _internalMBean.getMergeThrottledMillis();
+    }
+
+    public long getMergePausedMillis()
+    {
+      return _internalMBean.getMergePausedMillis();
+    }
+
+    public int getMergeBacklog()
+    {
+      return _internalMBean.getMergeBacklog();
+    }
+
+    public long getMergeBacklogBytes()
+    {
+      return _internalMBean.getMergeBacklogBytes();
+    }
+
     @Override
     public long getHealth()
     {
@@ -39,10 +39,133 @@ public interface ZoieSystemAdminMBean extends ZoieAdminMBean{
 
   int getDiskIndexSize();
 
+  int getDiskIndexNumDeletedDocs();
+
+  /**
+   * @return number of getIndexReaders calls served, a measure of the query load
+   */
+  long getIndexReaderRequestCount();
+
+  /**
+   * @return the latest event version visible to searchers
+   */
+  String getVisibleVersion();
+
+  /**
+   * @return the median time, in milliseconds, from receiving an event version
+   *         to it being visible to searchers
+   */
+  long getFreshnessLagP50Millis();
+
+  long getFreshnessLagP99Millis();
+
+  long getFreshnessLagMaxMillis();
+
+  /**
+   * @return the 99th percentile time, in milliseconds, from receiving an event
+   *         version to it being flushed to disk
+   */
+  long getDurabilityLagP99Millis();
+
+  /**
+   * @return for how long the oldest event version not visible yet has been
+   *         waiting, in milliseconds; 0 if all the received versions are visible
+   */
+  long getCurrentFreshnessLagMillis();
+
+  long getCurrentDurabilityLagMillis();
+
+  void resetFreshnessLag();
+
 
   long getMinUID() throws IOException;
 
   long getMaxUID() throws IOException;
+
+  /**
+   * @return whether the disk merge policy rewrites segments to reclaim deleted docs
+   */
+  boolean isDeleteAwareMerge();
+
+  void setDeleteAwareMerge(boolean deleteAwareMerge);
+
+  /**
+   * @return the minimum ratio of deleted docs a delete-aware merge has to reclaim
+   */
+  float getMinMergeDeleteRatio();
+
+  void setMinMergeDeleteRatio(float minMergeDeleteRatio);
+
+  long getNumMergesSelected();
+
+  long getNumReclaimMergesSelected();
+
+  /**
+   * @return estimated live bytes rewritten by the merges selected on the disk index
+   */
+  long getMergeBytesToRewrite();
+
+  /**
+   * @return estimated bytes of deleted docs reclaimed by the merges selected on the disk index
+   */
+  long getMergeBytesReclaimed();
+
+  String getLastMergeStats();
+
+  /**
+   * @return disk merge read and write bandwidth cap in MB/s, 0 if unlimited
+   */
+  double getMaxMergeMBPerSec();
+
+  void setMaxMergeMBPerSec(double maxMBPerSec);
+
+  /**
+   * @return disk merge bandwidth cap in MB/s during the peak hours, 0 to use the regular cap
+   */
+  double getPeakMergeMBPerSec();
+
+  void setPeakMergeMBPerSec(double peakMBPerSec);
+
+  int getMergePeakStartHour();
+
+  int getMergePeakEndHour();
+
+  /**
+   * Sets the peak hours as [startHour, endHour) of the local day, negative hours disable them.
+   */
+  void setMergePeakHours(int startHour, int endHour);
+
+  /**
+   * @return how long disk merges are paused when getIndexReaders exceeds the SLA, 0 if they are not
+   */
+  long getMergePauseOnSLAMillis();
+
+  void setMergePauseOnSLAMillis(long millis);
+
+  void pauseMerges(long millis);
+
+  void resumeMerges();
+
+  boolean isMergePaused();
+
+  long getNumMergesDone();
+
+  long getMergeBytesWritten();
+
+  long getMergeBytesRead();
+
+  double getMergeThroughputMBPerSec();
+
+  long getMergeThrottledMillis();
+
+  long getMergePausedMillis();
+
+  /**
+   * @return number of disk merges waiting or running
+   */
+  int getMergeBacklog();
+
+  long getMergeBacklogBytes();
   
 
   
@@ -4,12 +4,18 @@
 package proj.zoie.test;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
+import java.util.Calendar;
 import java.util.List;
 
 import javax.management.MBeanServer;
@@ -23,7 +29,9 @@ import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
 import org.apache.lucene.document.Field.Index;
 import org.apache.lucene.document.Field.Store;
+import org.apache.lucene.analysis.WhitespaceAnalyzer;
 import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.MultiReader;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.search.DocIdSet;
@@ -32,6 +40,7 @@ import org.apache.lucene.search.MatchAllDocsQuery;
 import org.apache.lucene.search.Searcher;
 import org.apache.lucene.search.TermQuery;
 import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.store.SimpleFSDirectory;
 import org.junit.Test;
 
 import proj.zoie.api.ZoieException;
@@ -40,11 +49,14 @@ import proj.zoie.api.DataConsumer.DataEvent;
 import proj.zoie.api.indexing.IndexReaderDecorator;
 import proj.zoie.hourglass.api.HourglassIndexable;
 import proj.zoie.hourglass.api.HourglassIndexableInterpreter;
+import proj.zoie.hourglass.impl.ColumnarZoieSystem;
+import proj.zoie.hourglass.impl.DirectoryReclaimer;
 import proj.zoie.hourglass.impl.HourGlassScheduler;
 import proj.zoie.hourglass.impl.Hourglass;
 import proj.zoie.hourglass.impl.HourglassDirectoryManagerFactory;
 import proj.zoie.hourglass.mbean.HourglassAdmin;
 import proj.zoie.impl.indexing.MemoryStreamDataProvider;
+import proj.zoie.impl.indexing.ZoieSystem;
 import proj.zoie.impl.indexing.ZoieConfig;
 
 /**
@@ -148,6 +160,310 @@ public class HourglassTest extends ZoieTestCaseBase {
 		return;
 	}
 
+  @Test
+  public void testPreparedRoll() throws IOException, InterruptedException, ZoieException {
+		File idxDir = getIdxDir();
+		// roll in about 10s, prepare the next index 5s ahead
+		Calendar roll = Calendar.getInstance();
+		roll.add(Calendar.SECOND, 10);
+		HourGlassScheduler scheduler = new HourGlassScheduler(HourGlassScheduler.FREQUENCY.MINUTELY, "" + roll.get(Calendar.SECOND), 100);
+		scheduler.setPrepareAhead(5000);
+		HourglassDirectoryManagerFactory factory = new HourglassDirectoryManagerFactory(idxDir, scheduler);
+		ZoieConfig zConfig = new ZoieConfig();
+		zConfig.setBatchSize(3);
+		zConfig.setBatchDelay(10);
+		zConfig.setFreshness(10);
+		Hourglass<IndexReader, String> hourglass = new Hourglass<IndexReader, String>(
+				factory, new HourglassTestInterpreter(),
+				new IndexReaderDecorator<IndexReader>() {
+
+					public IndexReader decorate(
+							ZoieIndexReader<IndexReader> indexReader)
+							throws IOException {
+						return indexReader;
+					}
+
+					public IndexReader redecorate(IndexReader decorated,
+							ZoieIndexReader<IndexReader> copy,
+							boolean withDeletes) throws IOException {
+						return decorated;
+					}
+
+					public void setDeleteSet(IndexReader reader, DocIdSet docIds) {
+						// do nothing
+					}
+				}, zConfig);
+		try {
+			long nextRoll = factory.getNextUpdateTime();
+			List<DataEvent<String>> list = new ArrayList<DataEvent<String>>(1);
+			list.add(new DataEvent<String>("0", "0"));
+			hourglass.consume(list);
+			ZoieSystem<IndexReader, String> first = hourglass.getCurrentZoie();
+
+			ZoieSystem<IndexReader, String> prepared = null;
+			while (prepared == null && System.currentTimeMillis() < nextRoll) {
+				Thread.sleep(50);
+				prepared = hourglass.getPreparedZoie();
+			}
+			assertNotNull("prepared before the roll", prepared);
+			while (System.currentTimeMillis() <= nextRoll + 100) {
+				Thread.sleep(50);
+			}
+
+			list = new ArrayList<DataEvent<String>>(1);
+			list.add(new DataEvent<String>("1", "1"));
+			long t0 = System.currentTimeMillis();
+			hourglass.consume(list);
+			log.info("consumed across the roll in " + (System.currentTimeMillis() - t0) + "ms");
+			assertSame(prepared, hourglass.getCurrentZoie());
+			assertTrue(first != prepared);
+			// the one after is only prepared ahead of the following roll
+			assertNull(hourglass.getPreparedZoie());
+
+			hourglass.flushEvents(10000);
+			int numDocs = 0;
+			for (int i = 0; i < 100 && numDocs < 2; ++i) {
+				Thread.sleep(50);
+				numDocs = getTotalNumDocs(hourglass);
+			}
+			assertEquals(2, numDocs);
+		} finally {
+			hourglass.shutdown();
+		}
+	}
+
+  @Test
+  public void testIdleReaderList() throws IOException, ZoieException, InterruptedException {
+		File idxDir = getIdxDir();
+		Calendar roll = Calendar.getInstance();
+		roll.add(Calendar.HOUR_OF_DAY, 12);
+		HourglassDirectoryManagerFactory factory = new HourglassDirectoryManagerFactory(idxDir,
+				new HourGlassScheduler(HourGlassScheduler.FREQUENCY.DAILY, "00 00 " + roll.get(Calendar.HOUR_OF_DAY), 100));
+		ZoieConfig zConfig = new ZoieConfig();
+		zConfig.setBatchSize(3);
+		zConfig.setBatchDelay(10);
+		zConfig.setFreshness(20); // the readers are refreshed all the time
+		Hourglass<IndexReader, String> hourglass = new Hourglass<IndexReader, String>(
+				factory, new HourglassTestInterpreter(), new TestIndexReaderDecorator(), zConfig);
+		try {
+			List<DataEvent<String>> list = new ArrayList<DataEvent<String>>(1);
+			list.add(new DataEvent<String>("0", "0"));
+			hourglass.consume(list);
+			hourglass.flushEvents(10000);
+			Thread.sleep(200);
+
+			List<ZoieIndexReader<IndexReader>> readers1 = hourglass.getIndexReaders();
+			hourglass.returnIndexReaders(readers1);
+			Thread.sleep(300);
+			List<ZoieIndexReader<IndexReader>> readers2 = hourglass.getIndexReaders();
+			hourglass.returnIndexReaders(readers2);
+			assertSame("nothing indexed, refreshes keep the list", readers1, readers2);
+		} finally {
+			hourglass.shutdown();
+		}
+	}
+
+  @Test
+  public void testPreparedFolderNotArchived() throws IOException, ZoieException {
+		File idxDir = getIdxDir();
+		Calendar roll = Calendar.getInstance();
+		roll.add(Calendar.HOUR_OF_DAY, 12);
+		HourGlassScheduler scheduler = new HourGlassScheduler(HourGlassScheduler.FREQUENCY.DAILY, "00 00 " + roll.get(Calendar.HOUR_OF_DAY), 100);
+		HourglassDirectoryManagerFactory factory = new HourglassDirectoryManagerFactory(idxDir, scheduler);
+		// the index of the next period, prepared and then left by a crash
+		ZoieSystem<IndexReader, String> zoie = new ZoieSystem<IndexReader, String>(factory.getNextDirectoryManager(),
+				new HourglassTestInterpreter(), new TestIndexReaderDecorator(), new ZoieConfig());
+		zoie.start();
+		try {
+			List<DataEvent<String>> list = new ArrayList<DataEvent<String>>(1);
+			list.add(new DataEvent<String>("0", "5"));
+			zoie.consume(list);
+			zoie.flushEvents(10000);
+		} finally {
+			zoie.shutdown();
+		}
+		assertEquals("5", factory.getNextDirectoryManager().getVersion());
+
+		// restarted in the same period
+		factory = new HourglassDirectoryManagerFactory(idxDir, scheduler);
+		assertEquals(0, factory.getAllArchivedDirectories().size());
+		assertNull(factory.getArchivedVersion());
+		deleteDirectory(idxDir);
+	}
+
+  @Test
+  public void testReaderListGeneration() throws IOException, ZoieException {
+		File idxDir = getIdxDir();
+		// no roll nor periodic reader refresh during the test
+		Calendar roll = Calendar.getInstance();
+		roll.add(Calendar.HOUR_OF_DAY, 12);
+		HourglassDirectoryManagerFactory factory = new HourglassDirectoryManagerFactory(idxDir,
+				new HourGlassScheduler(HourGlassScheduler.FREQUENCY.DAILY, "00 00 " + roll.get(Calendar.HOUR_OF_DAY), 100));
+		ZoieConfig zConfig = new ZoieConfig();
+		zConfig.setBatchSize(3);
+		zConfig.setBatchDelay(10);
+		zConfig.setFreshness(100000);
+		Hourglass<IndexReader, String> hourglass = new Hourglass<IndexReader, String>(
+				factory, new HourglassTestInterpreter(),
+				new IndexReaderDecorator<IndexReader>() {
+
+					public IndexReader decorate(
+							ZoieIndexReader<IndexReader> indexReader)
+							throws IOException {
+						return indexReader;
+					}
+
+					public IndexReader redecorate(IndexReader decorated,
+							ZoieIndexReader<IndexReader> copy,
+							boolean withDeletes) throws IOException {
+						return decorated;
+					}
+
+					public void setDeleteSet(IndexReader reader, DocIdSet docIds) {
+						// do nothing
+					}
+				}, zConfig);
+		try {
+			List<ZoieIndexReader<IndexReader>> readers1 = hourglass.getIndexReaders();
+			List<ZoieIndexReader<IndexReader>> readers2 = hourglass.getIndexReaders();
+			assertSame("nothing changed", readers1, readers2);
+			hourglass.returnIndexReaders(readers1);
+			hourglass.returnIndexReaders(readers2);
+
+			List<DataEvent<String>> list = new ArrayList<DataEvent<String>>(1);
+			list.add(new DataEvent<String>("0", "0"));
+			hourglass.consume(list);
+			hourglass.flushEvents(10000); // refreshes the readers of the zoie
+			List<ZoieIndexReader<IndexReader>> readers3 = hourglass.getIndexReaders();
+			assertTrue("zoie readers changed", readers3 != readers1);
+			int numDocs = 0;
+			for (ZoieIndexReader<IndexReader> r : readers3) {
+				numDocs += r.numDocs();
+			}
+			assertEquals(1, numDocs);
+			List<ZoieIndexReader<IndexReader>> readers4 = hourglass.getIndexReaders();
+			assertSame(readers3, readers4);
+			hourglass.returnIndexReaders(readers3);
+			hourglass.returnIndexReaders(readers4);
+		} finally {
+			hourglass.shutdown();
+		}
+	}
+
+  @Test
+  public void testColumnarIndexing() throws IOException, ZoieException {
+		File idxDir = getIdxDir();
+		// no roll during the test
+		Calendar roll = Calendar.getInstance();
+		roll.add(Calendar.HOUR_OF_DAY, 12);
+		String schedule = "00 00 " + roll.get(Calendar.HOUR_OF_DAY);
+		HourGlassScheduler scheduler = new HourGlassScheduler(HourGlassScheduler.FREQUENCY.DAILY, schedule, 100);
+		scheduler.setColumnarIndexing(true);
+		ZoieConfig zConfig = new ZoieConfig();
+		zConfig.setBatchSize(3);
+		zConfig.setBatchDelay(10);
+		zConfig.setFreshness(100);
+		IndexReaderDecorator<IndexReader> decorator = new IndexReaderDecorator<IndexReader>() {
+
+			public IndexReader decorate(
+					ZoieIndexReader<IndexReader> indexReader)
+					throws IOException {
+				return indexReader;
+			}
+
+			public IndexReader redecorate(IndexReader decorated,
+					ZoieIndexReader<IndexReader> copy,
+					boolean withDeletes) throws IOException {
+				return decorated;
+			}
+
+			public void setDeleteSet(IndexReader reader, DocIdSet docIds) {
+				// do nothing
+			}
+		};
+		Hourglass<IndexReader, String> hourglass = new Hourglass<IndexReader, String>(
+				new HourglassDirectoryManagerFactory(idxDir, scheduler),
+				new HourglassTestInterpreter(), decorator, zConfig);
+		try {
+			assertTrue(hourglass.getCurrentZoie() instanceof ColumnarZoieSystem<?, ?>);
+			assertTrue(((ColumnarZoieSystem<IndexReader, String>) hourglass.getCurrentZoie()).isColumnar());
+			List<DataEvent<String>> list = new ArrayList<DataEvent<String>>(3);
+			for (int i = 0; i < 3; i++) {
+				list.add(new DataEvent<String>("" + i, "" + i));
+			}
+			hourglass.consume(list);
+			hourglass.flushEvents(10000);
+
+			List<ZoieIndexReader<IndexReader>> readers = hourglass.getIndexReaders();
+			try {
+				MultiReader reader = new MultiReader(readers.toArray(new IndexReader[0]), false);
+				IndexSearcher searcher = new IndexSearcher(reader);
+				assertEquals(3, searcher.search(new MatchAllDocsQuery(), 10).totalHits);
+				TopDocs hits = searcher.search(new TermQuery(new Term("contents", "1")), 10);
+				assertEquals("one hit for 1", 1, hits.totalHits);
+				assertEquals("1", searcher.doc(hits.scoreDocs[0].doc).get("contents"));
+				searcher.close();
+				reader.close();
+			} finally {
+				hourglass.returnIndexReaders(readers);
+			}
+		} finally {
+			hourglass.shutdown(); // writes the period to disk
+		}
+
+		// the period is resumed from disk, the regular way
+		scheduler = new HourGlassScheduler(HourGlassScheduler.FREQUENCY.DAILY, schedule, 100);
+		scheduler.setColumnarIndexing(true);
+		hourglass = new Hourglass<IndexReader, String>(
+				new HourglassDirectoryManagerFactory(idxDir, scheduler),
+				new HourglassTestInterpreter(), decorator, zConfig);
+		try {
+			assertFalse(((ColumnarZoieSystem<IndexReader, String>) hourglass.getCurrentZoie()).isColumnar());
+			assertEquals(3, getTotalNumDocs(hourglass));
+		} finally {
+			hourglass.shutdown();
+		}
+	}
+
+  @Test
+  public void testDirectoryReclaimer() throws IOException, InterruptedException {
+		File idxDir = getIdxDir();
+		File dir = new File(idxDir, "2000-01-01-00-00-00");
+		SimpleFSDirectory fsdir = new SimpleFSDirectory(dir);
+		IndexWriter writer = new IndexWriter(fsdir, new WhitespaceAnalyzer(), IndexWriter.MaxFieldLength.UNLIMITED);
+		Document doc = new Document();
+		doc.add(new Field("contents", "trimmed", Store.NO, Index.ANALYZED));
+		writer.addDocument(doc);
+		writer.close();
+		RandomAccessFile big = new RandomAccessFile(new File(dir, "big.bin"), "rw");
+		big.setLength(48L * 1024L * 1024L); // three chunks
+		big.close();
+
+		ZoieIndexReader<IndexReader> reader = ZoieIndexReader.open(fsdir, new TestIndexReaderDecorator());
+		reader.incZoieRef(); // a search still using it
+		DirectoryReclaimer reclaimer = new DirectoryReclaimer(32L * 1024L * 1024L);
+		try {
+			reclaimer.reclaim(dir, reader);
+			reader.decZoieRef(); // detached from the hourglass
+			Thread.sleep(1500);
+			assertTrue("still in use", dir.exists());
+			assertEquals(1, reclaimer.getPendingCount());
+
+			long t0 = System.currentTimeMillis();
+			reader.decZoieRef(); // the search is done
+			while (reclaimer.getPendingCount() > 0 || idxDir.listFiles().length > 0) {
+				assertTrue("reclaimed in time", System.currentTimeMillis() - t0 < 10000);
+				Thread.sleep(50);
+			}
+			long elapsed = System.currentTimeMillis() - t0;
+			assertFalse(dir.exists());
+			// 48MB at 32MB/s, after a burst of 16MB
+			assertTrue("reclaimed in " + elapsed + "ms", elapsed >= 700);
+		} finally {
+			reclaimer.shutdown();
+		}
+	}
+
 	private void oneTest(File idxDir, String schedule, long numTestContent)
 			throws IOException, InterruptedException {
 		HourglassDirectoryManagerFactory factory = new HourglassDirectoryManagerFactory(
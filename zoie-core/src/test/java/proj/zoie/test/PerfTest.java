@@ -3,13 +3,34 @@ package proj.zoie.test;
 import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
 import it.unimi.dsi.fastutil.ints.IntRBTreeSet;
 import it.unimi.dsi.fastutil.ints.IntSet;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
 
+import java.lang.management.ManagementFactory;
 import java.util.Arrays;
 import java.util.BitSet;
 import java.util.Random;
 
+import org.apache.lucene.analysis.WhitespaceAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.Field.Index;
+import org.apache.lucene.document.Field.Store;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriter.MaxFieldLength;
+import org.apache.lucene.store.RAMDirectory;
 import org.junit.Test;
 
+import proj.zoie.api.DocIDMapper;
+import proj.zoie.api.UIDDocIdSet;
+import proj.zoie.api.ZoieSegmentReader;
+import proj.zoie.api.impl.DefaultDocIDMapperFactory;
+import proj.zoie.api.impl.DocIDMapperImpl;
+import proj.zoie.api.impl.util.BlockedBloomFilter;
+import proj.zoie.api.impl.util.LongBloomSet;
+import proj.zoie.api.impl.util.LongSetAccelerator;
+
+import static org.junit.Assert.assertTrue;
+
 public class PerfTest {
 
 	@Test
@@ -78,4 +99,201 @@ public class PerfTest {
 		System.out.println("set4: "+(end-start)/1000000);
 	}
 
+	/**
+	 * Allocations per doc of the UID field: a new field and token stream per doc
+	 * versus the field reused by the indexing thread, alone and with the doc indexed.
+	 */
+	@Test
+	public void uidFieldAllocationTest() throws Exception {
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+			System.out.println("thread allocation counters not supported, skipped");
+			return;
+		}
+		com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) bean;
+		if (!threadBean.isThreadAllocatedMemorySupported()) {
+			System.out.println("thread allocation counters not supported, skipped");
+			return;
+		}
+		threadBean.setThreadAllocatedMemoryEnabled(true);
+		long tid = Thread.currentThread().getId();
+		int numDocs = 100000;
+		Document doc = new Document();
+		doc.add(new Field("contents", "abc", Store.NO, Index.ANALYZED));
+
+		for (int round = 0; round < 2; ++round) { // first round warms up
+			long start = threadBean.getThreadAllocatedBytes(tid);
+			for (int i = 0; i < numDocs; ++i) {
+				ZoieSegmentReader.fillDocumentID(doc, i);
+				doc.getFields().remove(doc.getFields().size() - 1);
+			}
+			long perDocOld = (threadBean.getThreadAllocatedBytes(tid) - start) / numDocs;
+
+			start = threadBean.getThreadAllocatedBytes(tid);
+			for (int i = 0; i < numDocs; ++i) {
+				Field uidField = ZoieSegmentReader.getReusableUIDField(i);
+				doc.add(uidField);
+				doc.getFields().remove(uidField);
+			}
+			long perDocReused = (threadBean.getThreadAllocatedBytes(tid) - start) / numDocs;
+
+			long[] indexed = new long[2];
+			for (int reuse = 0; reuse < 2; ++reuse) {
+				IndexWriter writer = new IndexWriter(new RAMDirectory(), new WhitespaceAnalyzer(), MaxFieldLength.UNLIMITED);
+				start = threadBean.getThreadAllocatedBytes(tid);
+				for (int i = 0; i < numDocs; ++i) {
+					if (reuse == 1) {
+						Field uidField = ZoieSegmentReader.getReusableUIDField(i);
+						doc.add(uidField);
+						writer.addDocument(doc);
+						doc.getFields().remove(uidField);
+					} else {
+						ZoieSegmentReader.fillDocumentID(doc, i);
+						writer.addDocument(doc);
+						doc.getFields().remove(doc.getFields().size() - 1);
+					}
+				}
+				indexed[reuse] = (threadBean.getThreadAllocatedBytes(tid) - start) / numDocs;
+				writer.close();
+			}
+			if (round == 1) {
+				System.out.println("uid field bytes/doc, new: " + perDocOld + ", reused: " + perDocReused);
+				System.out.println("indexed bytes/doc, new: " + indexed[0] + ", reused: " + indexed[1]);
+				assertTrue("reused uid field allocates " + perDocReused + " bytes/doc", perDocReused < perDocOld);
+			}
+		}
+	}
+
+	/**
+	 * UID filter and delete batches mapped to docids one by one into a tree
+	 * set versus in a batch, against a reader of several segments.
+	 */
+	@Test
+	public void docIDArrayBatchTest() {
+		Random rand = new Random(1234);
+		int numSegments = 4;
+		int segmentSize = 500000;
+		long[] allUids = new long[numSegments * segmentSize];
+		DocIDMapper[] mappers = new DocIDMapper[numSegments];
+		int[] starts = new int[numSegments];
+		for (int s = 0; s < numSegments; ++s) {
+			long[] uidArray = new long[segmentSize];
+			for (int i = 0; i < segmentSize; ++i) {
+				uidArray[i] = rand.nextLong() & Long.MAX_VALUE;
+				allUids[s * segmentSize + i] = uidArray[i];
+			}
+			mappers[s] = new DocIDMapperImpl(uidArray);
+			starts[s] = s * segmentSize;
+		}
+		DocIDMapper mapper = new DefaultDocIDMapperFactory.DefaultDocIDMapper(numSegments - 1, mappers, starts);
+		for (int batchSize = 1000; batchSize <= 1000000; batchSize *= 10) {
+			long[] uids = new long[batchSize];
+			for (int i = 0; i < batchSize; ++i) {
+				// half of them in the index
+				uids[i] = i % 2 == 0 ? allUids[rand.nextInt(allUids.length)] : rand.nextLong() & Long.MAX_VALUE;
+			}
+			int reps = Math.max(1, 1000000 / batchSize);
+			long single = Long.MAX_VALUE;
+			long batched = Long.MAX_VALUE;
+			for (int round = 0; round < 5; ++round) { // best of 5, the first ones warm up
+				int[] expected = null;
+				long start = System.nanoTime();
+				for (int rep = 0; rep < reps; ++rep) {
+					IntRBTreeSet idSet = new IntRBTreeSet();
+					for (long uid : uids) {
+						int docid = mapper.getDocID(uid);
+						if (docid != DocIDMapper.NOT_FOUND) {
+							idSet.add(docid);
+						}
+					}
+					expected = idSet.toIntArray();
+				}
+				single = Math.min(single, (System.nanoTime() - start) / reps);
+
+				int[] docids = null;
+				start = System.nanoTime();
+				for (int rep = 0; rep < reps; ++rep) {
+					docids = UIDDocIdSet.mapUID(uids, mapper);
+				}
+				batched = Math.min(batched, (System.nanoTime() - start) / reps);
+				assertTrue(Arrays.equals(expected, docids));
+			}
+			System.out.println("batch of " + batchSize + " uids, one by one: " + single / 1000 + "us, batched: " + batched / 1000 + "us");
+		}
+	}
+
+	/**
+	 * False positive rate and probe time of LongBloomSet and of the old
+	 * LongSetAccelerator, with a plain hash set as reference, for delete sets
+	 * probed mostly with UIDs not in them.
+	 */
+	@Test
+	@SuppressWarnings("deprecation")
+	public void bloomSetTest() {
+		Random rand = new Random(5678);
+		int numProbes = 2000000;
+		for (int setSize = 10000; setSize <= 1000000; setSize *= 3) {
+			LongOpenHashSet hashSet = new LongOpenHashSet(setSize);
+			final long[] filterPasses = new long[1];
+			LongOpenHashSet countingSet = new LongOpenHashSet(setSize) {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				public boolean contains(long k) {
+					filterPasses[0]++; // only probed when the filter passes
+					return super.contains(k);
+				}
+			};
+			LongBloomSet bloomSet = new LongBloomSet(setSize, LongBloomSet.DEFAULT_FPP);
+			BlockedBloomFilter filter = new BlockedBloomFilter(setSize, LongBloomSet.DEFAULT_FPP);
+			for (int i = 0; i < setSize; ++i) {
+				long uid = rand.nextLong();
+				hashSet.add(uid);
+				countingSet.add(uid);
+				bloomSet.add(uid);
+				filter.add(uid);
+			}
+			LongSetAccelerator accelerator = new LongSetAccelerator(countingSet);
+			long[] probes = new long[numProbes];
+			for (int i = 0; i < numProbes; ++i) {
+				probes[i] = rand.nextLong(); // all absent but for one in 2^44
+			}
+
+			filterPasses[0] = 0;
+			int bloomPasses = 0;
+			for (long probe : probes) {
+				accelerator.contains(probe);
+				if (filter.mightContain(probe)) bloomPasses++;
+			}
+			double acceleratorFpr = (double) filterPasses[0] / numProbes;
+			double bloomFpr = (double) bloomPasses / numProbes;
+
+			long hashTime = Long.MAX_VALUE;
+			long acceleratorTime = Long.MAX_VALUE;
+			long bloomTime = Long.MAX_VALUE;
+			int found = 0;
+			for (int round = 0; round < 5; ++round) { // best of 5, the first ones warm up
+				long start = System.nanoTime();
+				for (long probe : probes) {
+					if (hashSet.contains(probe)) found++;
+				}
+				hashTime = Math.min(hashTime, System.nanoTime() - start);
+				filterPasses[0] = 0;
+				start = System.nanoTime();
+				for (long probe : probes) {
+					if (accelerator.contains(probe)) found++;
+				}
+				acceleratorTime = Math.min(acceleratorTime, System.nanoTime() - start);
+				start = System.nanoTime();
+				for (long probe : probes) {
+					if (bloomSet.contains(probe)) found++;
+				}
+				bloomTime = Math.min(bloomTime, System.nanoTime() - start);
+			}
+			System.out.println("set of " + setSize + " uids (" + found + " found), ns/probe: hash set " + hashTime / numProbes
+					+ ", accelerator " + acceleratorTime / numProbes + " (fpr " + acceleratorFpr + ")"
+					+ ", bloom set " + bloomTime / numProbes + " (fpr " + bloomFpr + ", " + filter.getSizeInBytes() + " bytes)");
+			assertTrue("bloom fpr " + bloomFpr, bloomFpr < 0.02d);
+		}
+	}
 }
@@ -1,8 +1,13 @@
 package proj.zoie.test;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.longs.LongIterator;
 import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
 
 import java.io.File;
@@ -11,46 +16,94 @@ import java.io.RandomAccessFile;
 import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.ExecutorService;
 
 import org.apache.log4j.Logger;
 import org.apache.lucene.analysis.WhitespaceAnalyzer;
 import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.Field.Index;
+import org.apache.lucene.document.Field.Store;
 import org.apache.lucene.index.CorruptIndexException;
 import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.MultiReader;
+import org.apache.lucene.index.SerialMergeScheduler;
 import org.apache.lucene.index.Term;
+import org.apache.lucene.index.ZoieMergeScheduler;
 import org.apache.lucene.queryParser.ParseException;
 import org.apache.lucene.queryParser.QueryParser;
 import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.FieldCache;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.ScoreDoc;
 import org.apache.lucene.search.Searcher;
 import org.apache.lucene.search.TermQuery;
 import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.TopScoreDocCollector;
+import org.apache.lucene.store.RAMDirectory;
 import org.apache.lucene.util.Version;
 import org.junit.Test;
 
+import proj.zoie.api.DataConsumer;
 import proj.zoie.api.DefaultDirectoryManager;
 import proj.zoie.api.DirectoryManager;
 import proj.zoie.api.DocIDMapper;
 import proj.zoie.api.UIDDocIdSet;
+import proj.zoie.api.UIDDedupCollector;
+import proj.zoie.api.ZoieDocValues;
 import proj.zoie.api.ZoieException;
+import proj.zoie.api.ZoieExecutors;
+import proj.zoie.api.ZoieHealth;
 import proj.zoie.api.ZoieIndexReader;
+import proj.zoie.api.ZoieMetrics;
+import proj.zoie.api.ZoieMetricsSink;
+import proj.zoie.api.ZoieMultiReader;
+import proj.zoie.api.ZoieSegmentReader;
 import proj.zoie.api.DataConsumer.DataEvent;
 import proj.zoie.api.DocIDMapper.DocIDArray;
 
+import proj.zoie.api.impl.DefaultDocIDMapperFactory;
 import proj.zoie.api.impl.DocIDMapperImpl;
 import proj.zoie.api.impl.InRangeDocIDMapperFactory;
+import proj.zoie.api.impl.MultiRangeDocIDMapperFactory;
+import proj.zoie.api.impl.ZoieMergePolicy;
+import proj.zoie.api.impl.ZoieMergePolicy.MergePolicyParams;
+import proj.zoie.api.impl.ZoieMergePolicy.MergeStats;
+import proj.zoie.api.impl.util.BlockedBloomFilter;
+import proj.zoie.api.impl.util.IntBloomSet;
+import proj.zoie.api.impl.util.LatencyHistogram;
+import proj.zoie.api.impl.util.LongBloomSet;
+import proj.zoie.api.impl.util.MergeThrottledDirectory;
+import proj.zoie.api.impl.util.ParallelZoieSearcher;
+import proj.zoie.api.impl.util.TokenBucket;
+import proj.zoie.api.indexing.AbstractZoieIndexable;
+import proj.zoie.api.indexing.DefaultOptimizeScheduler;
+import proj.zoie.api.indexing.SmartOptimizeScheduler;
+import proj.zoie.api.indexing.ZoieIndexable;
+import proj.zoie.api.indexing.ZoieIndexable.IndexingReq;
 import proj.zoie.impl.indexing.AsyncDataConsumer;
+import proj.zoie.impl.indexing.DefaultReaderCache;
+import proj.zoie.impl.indexing.FreshnessTracker;
 import proj.zoie.impl.indexing.MemoryStreamDataProvider;
+import proj.zoie.impl.indexing.PrefetchingStreamDataProvider;
+import proj.zoie.impl.indexing.ShardedZoieSystem;
+import proj.zoie.impl.indexing.WriteAheadLog;
 import proj.zoie.impl.indexing.ZoieSystem;
+import proj.zoie.impl.indexing.ZoieSystemHost;
 import proj.zoie.impl.indexing.ZoieConfig;
+import proj.zoie.impl.indexing.internal.DirectRAMIndexFactory;
 import proj.zoie.impl.indexing.internal.IndexSignature;
+import proj.zoie.mbean.ZoieMetricsAdmin;
+import proj.zoie.mbean.ZoieSystemAdminMBean;
 import proj.zoie.test.data.DataForTests;
+import proj.zoie.test.data.DataInterpreterForTests;
 import proj.zoie.test.mock.MockDataLoader;
 
 public class ZoieTest extends ZoieTestCaseBase {
@@ -62,11 +115,20 @@ public class ZoieTest extends ZoieTestCaseBase {
 	private static int countHits(
 			ZoieSystem<IndexReader, String> idxSystem,
 			Query q) throws IOException {
+		return countHits(idxSystem, q, -1L);
+	}
+
+	/**
+	 * @param maxAge the maximum age of the readers, negative to take the cached ones
+	 */
+	private static int countHits(
+			ZoieSystem<IndexReader, String> idxSystem,
+			Query q, long maxAge) throws IOException {
 		Searcher searcher = null;
 		MultiReader reader = null;
 		List<ZoieIndexReader<IndexReader>> readers = null;
 		try {
-			readers = idxSystem.getIndexReaders();
+			readers = maxAge < 0 ? idxSystem.getIndexReaders() : idxSystem.getIndexReaders(maxAge);
 			reader = new MultiReader(readers.toArray(new IndexReader[readers
 					.size()]), false);
 
@@ -257,6 +319,783 @@ public class ZoieTest extends ZoieTestCaseBase {
 		}
 	}
 
+	@Test
+	public void testDirectRAMIndexFactory() throws ZoieException, IOException {
+		File idxDir = getIdxDir();
+		DirectRAMIndexFactory<IndexReader> ramIndexFactory = new DirectRAMIndexFactory<IndexReader>(1024, 1024 * 1024);
+		ZoieConfig zoieConfig = new ZoieConfig(ZoieConfig.DEFAULT_VERSION_COMPARATOR);
+		zoieConfig.setBatchSize(50);
+		zoieConfig.setBatchDelay(2000);
+		zoieConfig.setRamIndexFactory(ramIndexFactory);
+		ZoieSystem<IndexReader, String> idxSystem = new ZoieSystem<IndexReader, String>(
+				idxDir, new DataInterpreterForTests(2), new TestIndexReaderDecorator(), zoieConfig);
+		idxSystem.start();
+
+		MemoryStreamDataProvider<String> memoryProvider = new MemoryStreamDataProvider<String>(ZoieConfig.DEFAULT_VERSION_COMPARATOR);
+		memoryProvider.setMaxEventsPerMinute(Long.MAX_VALUE);
+		memoryProvider.setDataConsumer(idxSystem);
+		memoryProvider.start();
+
+		try {
+			int count = DataForTests.testdata.length;
+			for (int rep = 0; rep < 3; rep++) {
+				List<DataEvent<String>> list = new ArrayList<DataEvent<String>>(count);
+				for (int i = 0; i < count; ++i) {
+					list.add(new DataEvent<String>(DataForTests.testdata[i], "" + (rep * count + i)));
+				}
+				memoryProvider.addEvents(list);
+				memoryProvider.flush();
+				idxSystem.flushEventsToMemoryIndex(10000);
+
+				assertEquals(count, countHits(idxSystem, new TermQuery(new Term("contents", "zoie"))));
+				assertEquals(count / 2, countHits(idxSystem, new TermQuery(new Term("contents", "odd"))));
+
+				// flushing to disk discards the RAM index and hands its slabs back to the pool
+				idxSystem.flushEvents(10000);
+				assertEquals(count, countHits(idxSystem, new TermQuery(new Term("contents", "zoie"))));
+			}
+			assertTrue(ramIndexFactory.getSlabPool().getAllocatedBytes() > 0);
+			assertTrue(ramIndexFactory.getSlabPool().getReuseCount() > 0);
+		} finally {
+			memoryProvider.stop();
+			idxSystem.shutdown();
+			deleteDirectory(idxDir);
+		}
+	}
+
+	@Test
+	public void testReaderCacheFreshness() throws ZoieException, IOException, InterruptedException {
+		int count = DataForTests.testdata.length;
+		Query q = new TermQuery(new Term("contents", "zoie"));
+		for (int pass = 0; pass < 2; pass++) {
+			// with a freshness of a minute, only fresh reader requests or index updates refresh the readers
+			boolean refreshOnIndexUpdate = (pass == 1);
+			File idxDir = getIdxDir();
+			ZoieConfig zoieConfig = new ZoieConfig(ZoieConfig.DEFAULT_VERSION_COMPARATOR);
+			zoieConfig.setBatchSize(50);
+			zoieConfig.setBatchDelay(2000);
+			zoieConfig.setFreshness(60000);
+			zoieConfig.setReadercachefactory(DefaultReaderCache.newFactory(refreshOnIndexUpdate));
+			ZoieSystem<IndexReader, String> idxSystem = new ZoieSystem<IndexReader, String>(
+					idxDir, new DataInterpreterForTests(2), new TestIndexReaderDecorator(), zoieConfig);
+			idxSystem.start();
+
+			MemoryStreamDataProvider<String> memoryProvider = new MemoryStreamDataProvider<String>(ZoieConfig.DEFAULT_VERSION_COMPARATOR);
+			memoryProvider.setMaxEventsPerMinute(Long.MAX_VALUE);
+			memoryProvider.setDataConsumer(idxSystem);
+			memoryProvider.start();
+
+			try {
+				assertEquals(0, countHits(idxSystem, q, 0));
+				List<DataEvent<String>> list = new ArrayList<DataEvent<String>>(count);
+				for (int i = 0; i < count; ++i) {
+					list.add(new DataEvent<String>(DataForTests.testdata[i], "" + i));
+				}
+				memoryProvider.addEvents(list);
+				memoryProvider.flush();
+
+				long maxAge = refreshOnIndexUpdate ? -1L : 0L;
+				long end = System.currentTimeMillis() + 10000;
+				int hits = countHits(idxSystem, q, maxAge);
+				while (hits < count && System.currentTimeMillis() < end) {
+					Thread.sleep(20);
+					hits = countHits(idxSystem, q, maxAge);
+				}
+				assertEquals(count, hits);
+				assertEquals(count, countHits(idxSystem, q));
+			} finally {
+				memoryProvider.stop();
+				idxSystem.shutdown();
+				deleteDirectory(idxDir);
+			}
+		}
+	}
+
+	@Test
+	public void testParallelZoieSearcher() throws ZoieException, IOException {
+		File idxDir = getIdxDir();
+		ZoieSystem<IndexReader, String> idxSystem = createZoie(idxDir, true, ZoieConfig.DEFAULT_VERSION_COMPARATOR);
+		idxSystem.start();
+
+		MemoryStreamDataProvider<String> memoryProvider = new MemoryStreamDataProvider<String>(ZoieConfig.DEFAULT_VERSION_COMPARATOR);
+		memoryProvider.setMaxEventsPerMinute(Long.MAX_VALUE);
+		memoryProvider.setDataConsumer(idxSystem);
+		memoryProvider.start();
+
+		ExecutorService executor = ZoieExecutors.newFixedThreadPool(4);
+		try {
+			int count = DataForTests.testdata.length;
+			// a few disk segments, then the same UIDs updated in RAM
+			for (int rep = 0; rep < 4; rep++) {
+				List<DataEvent<String>> list = new ArrayList<DataEvent<String>>(count);
+				for (int i = 0; i < count; ++i) {
+					list.add(new DataEvent<String>(DataForTests.testdata[i], "" + (rep * count + i)));
+				}
+				memoryProvider.addEvents(list);
+				memoryProvider.flush();
+				if (rep < 3) {
+					idxSystem.flushEvents(10000);
+				} else {
+					idxSystem.flushEventsToMemoryIndex(10000);
+				}
+			}
+
+			ParallelZoieSearcher parallelSearcher = new ParallelZoieSearcher(executor);
+			Query[] queries = new Query[] { new TermQuery(new Term("contents", "zoie")), new TermQuery(new Term("contents", "odd")) };
+			for (int minDocsPerTask : new int[] { 1, ParallelZoieSearcher.DEFAULT_MIN_DOCS_PER_TASK }) {
+				parallelSearcher.setMinDocsPerTask(minDocsPerTask);
+				for (Query q : queries) {
+					List<ZoieIndexReader<IndexReader>> readers = idxSystem.getIndexReaders();
+					MultiReader reader = new MultiReader(readers.toArray(new IndexReader[readers.size()]), false);
+					IndexSearcher searcher = new IndexSearcher(reader);
+					try {
+						TopDocs expected = searcher.search(q, 10);
+						TopDocs actual = parallelSearcher.search(readers, q, 10);
+						assertEquals(expected.totalHits, actual.totalHits);
+						assertEquals(expected.scoreDocs.length, actual.scoreDocs.length);
+						for (int i = 0; i < expected.scoreDocs.length; ++i) {
+							assertEquals(expected.scoreDocs[i].doc, actual.scoreDocs[i].doc);
+							assertEquals(expected.scoreDocs[i].score, actual.scoreDocs[i].score, 0.0001f);
+						}
+					} finally {
+						searcher.close();
+						reader.close();
+						idxSystem.returnIndexReaders(readers);
+					}
+				}
+			}
+		} finally {
+			executor.shutdown();
+			memoryProvider.stop();
+			idxSystem.shutdown();
+			deleteDirectory(idxDir);
+		}
+	}
+
+	@Test
+	public void testUIDDedupCollector() throws ZoieException, IOException {
+		File idxDir = getIdxDir();
+		// "delete <n>" deletes the UID of the data ending with <n>
+		DataInterpreterForTests interpreter = new DataInterpreterForTests(2) {
+			@Override
+			public ZoieIndexable convertAndInterpret(final String src) {
+				final ZoieIndexable indexable = super.convertAndInterpret(src);
+				return new AbstractZoieIndexable() {
+					public IndexingReq[] buildIndexingReqs() {
+						return indexable.buildIndexingReqs();
+					}
+
+					public long getUID() {
+						return indexable.getUID();
+					}
+
+					public boolean isDeleted() {
+						return src.startsWith("delete ");
+					}
+				};
+			}
+		};
+		ZoieSystem<IndexReader, String> idxSystem = new ZoieSystem<IndexReader, String>(idxDir, interpreter,
+				new TestIndexReaderDecorator(), null, null, null, 50, 2000, true, ZoieConfig.DEFAULT_VERSION_COMPARATOR);
+		idxSystem.start();
+
+		MemoryStreamDataProvider<String> memoryProvider = new MemoryStreamDataProvider<String>(ZoieConfig.DEFAULT_VERSION_COMPARATOR);
+		memoryProvider.setMaxEventsPerMinute(Long.MAX_VALUE);
+		memoryProvider.setDataConsumer(idxSystem);
+		memoryProvider.start();
+
+		try {
+			int count = DataForTests.testdata.length;
+			// all the UIDs on disk, then updated in RAM
+			for (int rep = 0; rep < 2; rep++) {
+				List<DataEvent<String>> list = new ArrayList<DataEvent<String>>(count);
+				for (int i = 0; i < count; ++i) {
+					list.add(new DataEvent<String>(DataForTests.testdata[i], "" + (rep * count + i)));
+				}
+				memoryProvider.addEvents(list);
+				memoryProvider.flush();
+				if (rep == 0) {
+					idxSystem.flushEvents(10000);
+				} else {
+					idxSystem.flushEventsToMemoryIndex(10000);
+				}
+			}
+
+			Query q = new TermQuery(new Term("contents", "zoie"));
+			List<ZoieIndexReader<IndexReader>> readers = idxSystem.getUnmarkedIndexReaders();
+			MultiReader reader = new MultiReader(readers.toArray(new IndexReader[readers.size()]), false);
+			IndexSearcher searcher = new IndexSearcher(reader);
+			try {
+				TopScoreDocCollector collector = TopScoreDocCollector.create(10, true);
+				UIDDedupCollector dedupCollector = new UIDDedupCollector(collector, readers);
+				searcher.search(q, dedupCollector);
+				assertEquals(count, collector.getTotalHits());
+				assertEquals(count, dedupCollector.getNumDuplicates());
+			} finally {
+				searcher.close();
+				reader.close();
+				idxSystem.returnUnmarkedIndexReaders(readers);
+			}
+
+			// the first two UIDs deleted without a new version
+			List<DataEvent<String>> deletes = new ArrayList<DataEvent<String>>();
+			for (int i = 0; i < 2; ++i) {
+				deletes.add(new DataEvent<String>("delete " + i, "" + (2 * count + i)));
+			}
+			memoryProvider.addEvents(deletes);
+			memoryProvider.flush();
+			idxSystem.flushEventsToMemoryIndex(10000);
+
+			ParallelZoieSearcher parallelSearcher = new ParallelZoieSearcher();
+			parallelSearcher.setMinDocsPerTask(1);
+			parallelSearcher.setDedupAtQueryTime(true);
+			readers = idxSystem.getUnmarkedIndexReaders();
+			List<ZoieIndexReader<IndexReader>> readers2 = idxSystem.getUnmarkedIndexReaders();
+			try {
+				// the readers of the indexes themselves, not copies
+				for (int i = 0; i < readers.size(); ++i) {
+					assertSame(readers.get(i), readers2.get(i));
+				}
+				assertEquals(count - 2, parallelSearcher.search(readers, q, 10).totalHits);
+				TopDocs docs = parallelSearcher.search(readers, q, count);
+				for (ScoreDoc scoreDoc : docs.scoreDocs) {
+					int i = 0;
+					while (scoreDoc.doc >= readers.get(i).maxDoc()) {
+						scoreDoc.doc -= readers.get(i++).maxDoc();
+					}
+					long uid = readers.get(i).getUID(scoreDoc.doc);
+					assertTrue("deleted UID " + uid + " found", uid >= 2 + ((long) Integer.MAX_VALUE) * 2L);
+				}
+			} finally {
+				idxSystem.returnUnmarkedIndexReaders(readers2);
+				idxSystem.returnUnmarkedIndexReaders(readers);
+			}
+		} finally {
+			memoryProvider.stop();
+			idxSystem.shutdown();
+			deleteDirectory(idxDir);
+		}
+	}
+
+	@Test
+	public void testLatencyHistogram() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (long i = 1; i <= 100000; ++i) {
+			histogram.record(i);
+		}
+		LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+		assertEquals(100000, snapshot.getCount());
+		assertEquals(100000, snapshot.getMax());
+		assertEquals(50000.5d, snapshot.getMean(), 0.001d);
+		for (double percentile : new double[] { 1, 50, 90, 99, 99.9 }) {
+			long expected = (long) (percentile * 1000);
+			long actual = snapshot.getValueAtPercentile(percentile);
+			assertTrue("p" + percentile + ": " + actual, actual >= expected && actual <= expected * 1.04);
+		}
+		assertEquals(100000, snapshot.getValueAtPercentile(100));
+		histogram.record(-1);
+		histogram.record(Long.MAX_VALUE);
+		assertEquals(LatencyHistogram.MAX_VALUE, histogram.snapshot().getMax());
+		assertEquals(0, histogram.snapshot().getValueAtPercentile(0));
+		histogram.reset();
+		assertEquals(0, histogram.snapshot().getCount());
+	}
+
+	@Test
+	public void testZoieMetrics() throws ZoieException, IOException {
+		File idxDir = getIdxDir();
+		ZoieSystem<IndexReader, String> idxSystem = createZoie(idxDir, true, ZoieConfig.DEFAULT_VERSION_COMPARATOR);
+		idxSystem.start();
+
+		MemoryStreamDataProvider<String> memoryProvider = new MemoryStreamDataProvider<String>(ZoieConfig.DEFAULT_VERSION_COMPARATOR);
+		memoryProvider.setMaxEventsPerMinute(Long.MAX_VALUE);
+		memoryProvider.setDataConsumer(idxSystem);
+		memoryProvider.start();
+
+		ZoieMetrics metrics = idxSystem.getMetrics();
+		final List<ZoieMetrics.Report> reports = new ArrayList<ZoieMetrics.Report>();
+		metrics.addSink(new ZoieMetricsSink() {
+			public void report(ZoieMetrics.Report report) {
+				reports.add(report);
+			}
+		});
+		try {
+			int count = DataForTests.testdata.length;
+			List<DataEvent<String>> list = new ArrayList<DataEvent<String>>(count);
+			for (int i = 0; i < count; ++i) {
+				list.add(new DataEvent<String>(DataForTests.testdata[i], "" + i));
+			}
+			memoryProvider.addEvents(list);
+			memoryProvider.flush();
+			idxSystem.flushEvents(10000);
+
+			List<ZoieIndexReader<IndexReader>> readers = idxSystem.getIndexReaders();
+			assertEquals(1, metrics.getOutstandingReaderLists());
+			idxSystem.returnIndexReaders(readers);
+			assertEquals(0, metrics.getOutstandingReaderLists());
+			readers = idxSystem.getUnmarkedIndexReaders();
+			assertEquals(1, metrics.getOutstandingReaderLists());
+			idxSystem.returnUnmarkedIndexReaders(readers);
+			assertEquals(0, metrics.getOutstandingReaderLists());
+
+			for (ZoieMetrics.Stage stage : new ZoieMetrics.Stage[] { ZoieMetrics.Stage.QUEUE_WAIT, ZoieMetrics.Stage.INTERPRET,
+					ZoieMetrics.Stage.RAM_WRITE, ZoieMetrics.Stage.DELETE_MARK, ZoieMetrics.Stage.READER_REOPEN,
+					ZoieMetrics.Stage.DISK_FLUSH, ZoieMetrics.Stage.EVENT_TO_SEARCHABLE, ZoieMetrics.Stage.READER_ACQUIRE }) {
+				assertTrue(stage + " not recorded", metrics.getHistogram(stage).getCount() > 0);
+			}
+
+			metrics.publish();
+			assertEquals(1, reports.size());
+			assertTrue(reports.get(0).getSnapshot(ZoieMetrics.Stage.READER_ACQUIRE).getCount() > 0);
+
+			ZoieMetricsAdmin admin = new ZoieMetricsAdmin(metrics);
+			assertTrue(admin.getCount(ZoieMetrics.Stage.RAM_WRITE.name()) > 0);
+			admin.reset();
+			assertEquals(0, admin.getCount(ZoieMetrics.Stage.RAM_WRITE.name()));
+		} finally {
+			memoryProvider.stop();
+			idxSystem.shutdown();
+			deleteDirectory(idxDir);
+		}
+	}
+
+	@Test
+	public void testFreshnessTracker() throws ZoieException, IOException {
+		File idxDir = getIdxDir();
+		ZoieSystem<IndexReader, String> idxSystem = createZoie(idxDir, true, ZoieConfig.DEFAULT_VERSION_COMPARATOR);
+		idxSystem.start();
+
+		MemoryStreamDataProvider<String> memoryProvider = new MemoryStreamDataProvider<String>(ZoieConfig.DEFAULT_VERSION_COMPARATOR);
+		memoryProvider.setMaxEventsPerMinute(Long.MAX_VALUE);
+		memoryProvider.setDataConsumer(idxSystem);
+		memoryProvider.start();
+
+		FreshnessTracker tracker = idxSystem.getFreshnessTracker();
+		ZoieSystemAdminMBean admin = idxSystem.getAdminMBean();
+		try {
+			int count = DataForTests.testdata.length;
+			List<DataEvent<String>> list = new ArrayList<DataEvent<String>>(count);
+			for (int i = 0; i < count; ++i) {
+				list.add(new DataEvent<String>(DataForTests.testdata[i], "" + i));
+			}
+			String lastVersion = "" + (count - 1);
+			memoryProvider.addEvents(list);
+			memoryProvider.flush();
+			idxSystem.flushEventsToMemoryIndex(10000);
+
+			assertEquals(lastVersion, admin.getVisibleVersion());
+			assertTrue(tracker.getVisibleLag().getCount() > 0);
+			assertEquals(0, admin.getCurrentFreshnessLagMillis());
+
+			idxSystem.flushEvents(10000);
+			assertEquals(lastVersion, tracker.getDurableVersion());
+			assertTrue(tracker.getDurableLag().getCount() > 0);
+			assertEquals(0, admin.getCurrentDurabilityLagMillis());
+			assertTrue(admin.getFreshnessLagP99Millis() <= admin.getDurabilityLagP99Millis());
+		} finally {
+			memoryProvider.stop();
+			idxSystem.shutdown();
+			deleteDirectory(idxDir);
+		}
+
+		// versions are only visible once on disk without realtime indexing
+		tracker = new FreshnessTracker(ZoieConfig.DEFAULT_VERSION_COMPARATOR, false);
+		tracker.versionReceived("1");
+		tracker.versionReceived("2");
+		tracker.versionConsumed("2");
+		assertNull(tracker.getVisibleVersion());
+		assertEquals(0, tracker.getVisibleLag().getCount());
+		tracker.handleUpdatedDiskVersion("1");
+		assertEquals("1", tracker.getVisibleVersion());
+		assertEquals(1, tracker.getVisibleLag().getCount());
+		assertEquals(1, tracker.getDurableLag().getCount());
+		tracker.handleUpdatedDiskVersion("2");
+		assertEquals(2, tracker.getVisibleLag().getCount());
+		assertEquals(2, tracker.getDurableLag().getCount());
+		assertEquals(0, tracker.getCurrentVisibleLagMillis());
+	}
+
+	@Test
+	public void testZoieSystemHost() throws ZoieException, IOException {
+		int numTenants = 5;
+		ZoieSystemHost host = new ZoieSystemHost(2);
+		host.setMaxStepsPerTurn(1);
+		host.start();
+		File[] idxDirs = new File[numTenants];
+		File failingIdxDir = new File(getTmpDir(), "test-host-idx-failing");
+		List<ZoieSystem<IndexReader, String>> systems = new ArrayList<ZoieSystem<IndexReader, String>>();
+		try {
+			for (int i = 0; i < numTenants; ++i) {
+				idxDirs[i] = new File(getTmpDir(), "test-host-idx-" + i);
+				deleteDirectory(idxDirs[i]);
+				ZoieSystem<IndexReader, String> idxSystem = createZoie(idxDirs[i], true, ZoieConfig.DEFAULT_VERSION_COMPARATOR);
+				host.add("tenant" + i, idxSystem);
+				systems.add(idxSystem);
+			}
+			for (Thread thread : getAllThreads()) {
+				String name = thread.getName();
+				assertTrue("unexpected thread " + name, !name.equals("ConsumerThread") && !name.startsWith("DefaultReaderCache"));
+			}
+
+			int count = DataForTests.testdata.length;
+			for (int rep = 0; rep < 3; ++rep) {
+				for (int i = 0; i < numTenants; ++i) {
+					// tenant i gets i + 1 of the docs
+					List<DataEvent<String>> list = new ArrayList<DataEvent<String>>();
+					for (int j = 0; j <= i && j < count; ++j) {
+						list.add(new DataEvent<String>(DataForTests.testdata[j], "" + (rep * count + j)));
+					}
+					systems.get(i).consume(list);
+				}
+				for (int i = 0; i < numTenants; ++i) {
+					if (rep < 2) {
+						systems.get(i).flushEvents(10000);
+					} else {
+						systems.get(i).flushEventsToMemoryIndex(10000);
+					}
+				}
+			}
+			for (int i = 0; i < numTenants; ++i) {
+				assertEquals(Math.min(i + 1, count), countHits(systems.get(i), new TermQuery(new Term("contents", "zoie"))));
+				assertTrue(host.getNumTurns("tenant" + i) > 0);
+			}
+			assertEquals(systems.get(0), host.remove("tenant0"));
+			assertNull(host.get("tenant0"));
+			assertEquals(numTenants - 1, host.getTenantNames().size());
+
+			// a failure only fails its tenant, which is run again at the next tick
+			ZoieHealth.setOK();
+			host.setTickMillis(20);
+			deleteDirectory(failingIdxDir);
+			ZoieSystem<IndexReader, String> failingSystem = new ZoieSystem<IndexReader, String>(failingIdxDir, new DataInterpreterForTests(),
+					new TestIndexReaderDecorator(), null, null, null, 50, 2000, true, ZoieConfig.DEFAULT_VERSION_COMPARATOR) {
+				private boolean _failed = false;
+
+				@Override
+				public boolean runHostedTasks() {
+					if (!_failed) {
+						_failed = true;
+						throw new IllegalStateException("tenant failure");
+					}
+					return super.runHostedTasks();
+				}
+			};
+			host.add("failing", failingSystem);
+			List<DataEvent<String>> list = new ArrayList<DataEvent<String>>();
+			for (int j = 0; j < count; ++j) {
+				list.add(new DataEvent<String>(DataForTests.testdata[j], "" + j));
+			}
+			failingSystem.consume(list);
+			failingSystem.flushEvents(10000);
+			assertTrue(host.getFailure("failing") instanceof IllegalStateException);
+			assertNull(host.getFailure("tenant1"));
+			assertEquals(ZoieHealth.HEALTH_OK, ZoieHealth.getHealth());
+			assertEquals(count, countHits(failingSystem, new TermQuery(new Term("contents", "zoie"))));
+		} finally {
+			host.shutdown();
+			for (File idxDir : idxDirs) {
+				if (idxDir != null) deleteDirectory(idxDir);
+			}
+			deleteDirectory(failingIdxDir);
+		}
+	}
+
+	@Test
+	public void testShardedZoieSystem() throws ZoieException, IOException {
+		int numShards = 3;
+		File[] idxDirs = new File[numShards];
+		for (int i = 0; i < numShards; ++i) {
+			idxDirs[i] = new File(getTmpDir(), "test-shard-idx-" + i);
+			deleteDirectory(idxDirs[i]);
+		}
+		ZoieConfig zoieConfig = new ZoieConfig(ZoieConfig.DEFAULT_VERSION_COMPARATOR);
+		zoieConfig.setBatchSize(50);
+		zoieConfig.setBatchDelay(2000);
+		ShardedZoieSystem<IndexReader, String> sharded = new ShardedZoieSystem<IndexReader, String>(idxDirs,
+				new DataInterpreterForTests(), new TestIndexReaderDecorator(), zoieConfig);
+		sharded.start();
+		try {
+			int count = DataForTests.testdata.length;
+			for (int rep = 0; rep < 2; ++rep) {
+				// the second time the docs are updated, in the same shards
+				List<DataEvent<String>> list = new ArrayList<DataEvent<String>>();
+				for (int i = 0; i < count; ++i) {
+					list.add(new DataEvent<String>(DataForTests.testdata[i], "" + (rep * count + i)));
+				}
+				sharded.consume(list);
+				sharded.flushEvents(10000);
+			}
+			String lastVersion = "" + (2 * count - 1);
+			assertEquals(lastVersion, sharded.getVersion());
+			sharded.syncWithVersion(1000, lastVersion);
+
+			int numShardDocs = 0;
+			for (int i = 0; i < numShards; ++i) {
+				List<ZoieIndexReader<IndexReader>> readers = sharded.getShard(i).getIndexReaders();
+				try {
+					for (ZoieIndexReader<IndexReader> reader : readers) {
+						numShardDocs += reader.numDocs();
+						for (int doc = 0; doc < reader.maxDoc(); ++doc) {
+							if (reader.isDeleted(doc)) continue;
+							assertEquals(i, ShardedZoieSystem.getShardIndex(reader.getUID(doc), numShards));
+						}
+					}
+				} finally {
+					sharded.getShard(i).returnIndexReaders(readers);
+				}
+			}
+			assertEquals(count, numShardDocs);
+
+			List<ZoieIndexReader<IndexReader>> readers = sharded.getIndexReaders();
+			try {
+				MultiReader reader = new MultiReader(readers.toArray(new IndexReader[readers.size()]), false);
+				IndexSearcher searcher = new IndexSearcher(reader);
+				assertEquals(count, searcher.search(new TermQuery(new Term("contents", "zoie")), 10).totalHits);
+				searcher.close();
+			} finally {
+				sharded.returnIndexReaders(readers);
+			}
+
+			sharded.optimize(1);
+			assertEquals(numShards * sharded.getShard(0).getStandardMBeanNames().length, sharded.getStandardMBeanNames().length);
+			assertTrue(sharded.getStandardMBean("shard2-" + sharded.getShard(2).getStandardMBeanNames()[0]) != null);
+			assertNull(sharded.getStandardMBean("shard" + numShards + "-" + sharded.getShard(0).getStandardMBeanNames()[0]));
+		} finally {
+			sharded.shutdown();
+			for (File idxDir : idxDirs) {
+				deleteDirectory(idxDir);
+			}
+		}
+	}
+
+	@Test
+	public void testDocValues() throws IOException {
+		RAMDirectory dir = new RAMDirectory();
+		IndexWriter writer = new IndexWriter(dir, new WhitespaceAnalyzer(), IndexWriter.MaxFieldLength.UNLIMITED);
+		int numDocs = 30;
+		for (int i = 0; i < numDocs; ++i) {
+			Document doc = new Document();
+			doc.add(new Field("contents", "doc" + i, Store.NO, Index.ANALYZED));
+			ZoieSegmentReader.fillDocumentID(doc, 1000L + i);
+			if (i % 3 != 0) {
+				ZoieDocValues.addLong(doc, "timestamp", i * 1000000007L);
+			}
+			ZoieDocValues.addString(doc, "title", i % 2 == 0 ? "title " + i : "t\u00eftle " + i);
+			writer.addDocument(doc);
+			if (i % 10 == 9) {
+				writer.commit(); // a segment per 10 docs
+			}
+		}
+		writer.close();
+
+		for (int pass = 0; pass < 2; ++pass) {
+			ZoieMultiReader<IndexReader> reader = (ZoieMultiReader<IndexReader>) ZoieIndexReader.open(dir, new TestIndexReaderDecorator());
+			try {
+				assertEquals(pass == 0 ? 3 : 1, reader.getSequentialSubReaders().length);
+				reader.setDocIDMapper(new DefaultDocIDMapperFactory().getDocIDMapper(reader));
+				for (int docid = 0; docid < reader.maxDoc(); ++docid) {
+					int i = (int) (reader.getUID(docid) - 1000L);
+					assertEquals(i % 3 != 0 ? i * 1000000007L : -1L, reader.getLongValue("timestamp", docid, -1L));
+					assertEquals(i % 2 == 0 ? "title " + i : "t\u00eftle " + i, reader.getStringValue("title", docid));
+					assertNull(reader.getBytesValue("nosuchcolumn", docid));
+				}
+				assertEquals(7 * 1000000007L, reader.getLongValueByUID("timestamp", 1007L, -1L));
+				assertEquals("title 28", reader.getStringValueByUID("title", 1028L));
+				assertEquals(-1L, reader.getLongValueByUID("timestamp", 999L, -1L));
+				assertNull(reader.getStringValueByUID("title", 999L));
+			} finally {
+				reader.close();
+			}
+			// the values follow the docs through merges
+			writer = new IndexWriter(dir, new WhitespaceAnalyzer(), IndexWriter.MaxFieldLength.UNLIMITED);
+			writer.optimize();
+			writer.close();
+		}
+	}
+
+	@Test
+	public void testRAMLongFieldValues() throws ZoieException, IOException {
+		File idxDir = getIdxDir();
+		// "num" is indexed but not stored, "id" is stored but not indexed
+		DataInterpreterForTests interpreter = new DataInterpreterForTests(2) {
+			@Override
+			public ZoieIndexable convertAndInterpret(String src) {
+				final ZoieIndexable indexable = super.convertAndInterpret(src);
+				return new AbstractZoieIndexable() {
+					public IndexingReq[] buildIndexingReqs() {
+						IndexingReq[] reqs = indexable.buildIndexingReqs();
+						reqs[0].getDocument().add(new Field("num", String.valueOf(indexable.getUID()), Store.NO, Index.NOT_ANALYZED_NO_NORMS));
+						return reqs;
+					}
+
+					public long getUID() {
+						return indexable.getUID();
+					}
+
+					public boolean isDeleted() {
+						return false;
+					}
+				};
+			}
+		};
+		ZoieSystem<IndexReader, String> idxSystem = new ZoieSystem<IndexReader, String>(idxDir, interpreter,
+				new TestIndexReaderDecorator(), null, null, null, 50, 2000, true, ZoieConfig.DEFAULT_VERSION_COMPARATOR);
+		idxSystem.setRAMLongFields(Arrays.asList("num", "id"));
+		idxSystem.start();
+		try {
+			int count = DataForTests.testdata.length;
+			Map<Object, long[]> segmentValues = new IdentityHashMap<Object, long[]>();
+			for (int rep = 0; rep < 2; ++rep) {
+				List<DataEvent<String>> list = new ArrayList<DataEvent<String>>();
+				for (int i = 0; i < count; ++i) {
+					list.add(new DataEvent<String>(DataForTests.testdata[i], "" + (rep * count + i)));
+				}
+				idxSystem.consume(list);
+				idxSystem.flushEventsToMemoryIndex(10000);
+
+				List<ZoieIndexReader<IndexReader>> readers = idxSystem.getIndexReaders();
+				try {
+					int numDocs = 0;
+					for (ZoieIndexReader<IndexReader> reader : readers) {
+						for (ZoieIndexReader<IndexReader> subReader : reader.getSequentialSubReaders()) {
+							ZoieSegmentReader<IndexReader> segReader = (ZoieSegmentReader<IndexReader>) subReader;
+							long[] values = segReader.getLongFieldValues("num");
+							assertTrue(values == segReader.getLongFieldValues("num"));
+							long[] previous = segmentValues.put(segReader.getFieldCacheKey(), values);
+							if (previous != null) {
+								// the segment is still there, its values are not rebuilt
+								assertTrue(previous == values);
+							}
+							// the values FieldCache finds in the terms
+							long[] cached = FieldCache.DEFAULT.getLongs(segReader, "num");
+							long[] storedOnly = segReader.getLongFieldValues("id");
+							for (int doc = 0; doc < segReader.maxDoc(); ++doc) {
+								if (segReader.isDeleted(doc)) continue;
+								assertEquals(segReader.getUID(doc), values[doc]);
+								assertEquals(cached[doc], values[doc]);
+								assertEquals(0L, storedOnly[doc]);
+								numDocs++;
+							}
+						}
+					}
+					assertEquals(count, numDocs);
+				} finally {
+					idxSystem.returnIndexReaders(readers);
+				}
+			}
+		} finally {
+			idxSystem.shutdown();
+			deleteDirectory(idxDir);
+		}
+	}
+
+	@Test
+	public void testIncrementalDeleteMarks() throws IOException {
+		RAMDirectory dir = new RAMDirectory();
+		IndexWriter writer = new IndexWriter(dir, new WhitespaceAnalyzer(), IndexWriter.MaxFieldLength.UNLIMITED);
+		for (int i = 0; i < 10; ++i) {
+			Document doc = new Document();
+			ZoieSegmentReader.fillDocumentID(doc, i);
+			writer.addDocument(doc);
+		}
+		writer.close();
+		ZoieIndexReader<IndexReader> reader = ZoieIndexReader.open(dir, new TestIndexReaderDecorator());
+		try {
+			reader.setDocIDMapper(new DefaultDocIDMapperFactory().getDocIDMapper((ZoieMultiReader<IndexReader>) reader));
+			ZoieSegmentReader<IndexReader> segReader = (ZoieSegmentReader<IndexReader>) reader.getSequentialSubReaders()[0];
+			LongOpenHashSet deleted = new LongOpenHashSet();
+			LongOpenHashSet delDocs = new LongOpenHashSet();
+			delDocs.add(3L);
+			reader.markDeletes(delDocs, deleted);
+			reader.commitDeletes();
+			int[] marked = segReader.getMarkedDelDocIds();
+			assertEquals(1, marked.length);
+			// nothing new marked, the committed array is kept
+			reader.markDeletes(delDocs, deleted);
+			reader.commitDeletes();
+			assertTrue(marked == segReader.getMarkedDelDocIds());
+			delDocs.add(5L);
+			reader.markDeletes(delDocs, deleted);
+			reader.commitDeletes();
+			assertEquals(2, segReader.getMarkedDelDocIds().length);
+			assertEquals(2, deleted.size());
+		} finally {
+			reader.close();
+		}
+	}
+
+	private static Thread[] getAllThreads() {
+		ThreadGroup group = Thread.currentThread().getThreadGroup();
+		while (group.getParent() != null) {
+			group = group.getParent();
+		}
+		Thread[] threads = new Thread[group.activeCount() * 2];
+		int n = group.enumerate(threads, true);
+		Thread[] result = new Thread[n];
+		System.arraycopy(threads, 0, result, 0, n);
+		return result;
+	}
+
+	@Test
+	public void testSmartOptimizeScheduler() throws ZoieException, IOException {
+		File idxDir = getIdxDir();
+		ZoieSystem<IndexReader, String> idxSystem = createZoie(idxDir, true, ZoieConfig.DEFAULT_VERSION_COMPARATOR);
+		// opt-in only
+		assertTrue(idxSystem.getOptimizeScheduler() instanceof DefaultOptimizeScheduler);
+		SmartOptimizeScheduler optScheduler = new SmartOptimizeScheduler(idxSystem.getAdminMBean());
+		optScheduler.setCheckIntervalMillis(0);
+		optScheduler.setMaxSegments(2);
+		optScheduler.setSegmentsPerStep(1);
+		optScheduler.setMaxLoadRatio(Float.MAX_VALUE);
+		// the same UIDs are indexed over and over, leave the deletes alone
+		optScheduler.setExpungeDeleteRatio(2.0f);
+		idxSystem.setOptimizeScheduler(optScheduler);
+		idxSystem.start();
+
+		MemoryStreamDataProvider<String> memoryProvider = new MemoryStreamDataProvider<String>(ZoieConfig.DEFAULT_VERSION_COMPARATOR);
+		memoryProvider.setMaxEventsPerMinute(Long.MAX_VALUE);
+		memoryProvider.setDataConsumer(idxSystem);
+		memoryProvider.start();
+
+		try {
+			int count = DataForTests.testdata.length;
+			int rep = 0;
+			// every flush adds a segment, the scheduler merges them back one step at a time
+			for (; rep < 6; rep++) {
+				List<DataEvent<String>> list = new ArrayList<DataEvent<String>>(count);
+				for (int i = 0; i < count; ++i) {
+					list.add(new DataEvent<String>(DataForTests.testdata[i], "" + (rep * count + i)));
+				}
+				memoryProvider.addEvents(list);
+				memoryProvider.flush();
+				idxSystem.flushEvents(10000);
+				// a flush may add two segments before the next step merges them
+				assertTrue("segments: " + idxSystem.getDiskSegmentCount(), idxSystem.getDiskSegmentCount() <= 4);
+			}
+			assertTrue(optScheduler.getNumIncrementalSteps() > 0);
+			assertEquals(count, countHits(idxSystem, new TermQuery(new Term("contents", "zoie"))));
+
+			// no more merging once interrupted
+			optScheduler.interrupt();
+			int numSegs = idxSystem.getDiskSegmentCount();
+			for (int i = 0; i < 2; i++, rep++) {
+				List<DataEvent<String>> list = new ArrayList<DataEvent<String>>(count);
+				for (int j = 0; j < count; ++j) {
+					list.add(new DataEvent<String>(DataForTests.testdata[j], "" + (rep * count + j)));
+				}
+				memoryProvider.addEvents(list);
+				memoryProvider.flush();
+				idxSystem.flushEvents(10000);
+			}
+			assertTrue("segments: " + idxSystem.getDiskSegmentCount(), idxSystem.getDiskSegmentCount() >= numSegs + 2);
+			assertEquals(count, countHits(idxSystem, new TermQuery(new Term("contents", "zoie"))));
+		} finally {
+			memoryProvider.stop();
+			idxSystem.shutdown();
+			deleteDirectory(idxDir);
+		}
+	}
+
 	// hao: test for new zoieVersion
 	@Test
 	public void testRealtime() throws ZoieException {
@@ -407,6 +1246,221 @@ public class ZoieTest extends ZoieTestCaseBase {
 		}
 	}
 
+	@Test
+	public void testStreamDataProviderThrottle() throws ZoieException {
+		TokenBucket bucket = new TokenBucket(60000, 10); // one token per ms
+		for (int i = 0; i < 10; ++i) {
+			assertEquals(0L, bucket.tryAcquire(1));
+		}
+		long wait = bucket.tryAcquire(1);
+		assertTrue("wait " + wait, wait > 0 && wait <= 1000000L);
+		assertEquals(0L, new TokenBucket(Long.MAX_VALUE, 1).tryAcquire(1000));
+
+		MockDataLoader<Integer> consumer = new MockDataLoader<Integer>();
+		consumer.setDelay(0);
+		MemoryStreamDataProvider<Integer> memoryProvider = new MemoryStreamDataProvider<Integer>(ZoieConfig.DEFAULT_VERSION_COMPARATOR);
+		memoryProvider.setBatchSize(1000);
+		memoryProvider.setMaxEventsPerMinute(1200); // 20 per second
+		memoryProvider.setMaxEventsBurst(10);
+		memoryProvider.setDataConsumer(consumer);
+		memoryProvider.start();
+		try {
+			int count = 50;
+			List<DataEvent<Integer>> list = new ArrayList<DataEvent<Integer>>(count);
+			for (int i = 0; i < count; ++i) {
+				list.add(new DataEvent<Integer>(i, "" + i));
+			}
+			long start = System.currentTimeMillis();
+			memoryProvider.addEvents(list);
+			// the first ones come as a burst, the sync gets them while the rest waits
+			memoryProvider.syncWthVersion(10000, "5");
+			assertTrue(consumer.getCount() < count);
+			memoryProvider.syncWthVersion(10000, "" + (count - 1));
+			long elapsed = System.currentTimeMillis() - start;
+			assertEquals(count, consumer.getCount());
+			// 40 events past the burst at 20 per second
+			assertTrue("took " + elapsed + "ms", elapsed >= 1500 && elapsed < 8000);
+		} finally {
+			memoryProvider.stop();
+		}
+	}
+
+	@Test
+	public void testPrefetchingStreamDataProvider() throws ZoieException {
+		final int numPartitions = 3;
+		final int count = 300;
+		PrefetchingStreamDataProvider<Integer> provider = new PrefetchingStreamDataProvider<Integer>(numPartitions, 10, ZoieConfig.DEFAULT_VERSION_COMPARATOR) {
+			private final int[] _next = new int[numPartitions];
+
+			@Override
+			protected DataEvent<Integer> fetch(int partition) {
+				// partition p has the versions p + 1, p + 1 + numPartitions...
+				int version = _next[partition] * numPartitions + partition + 1;
+				if (version > count) return null;
+				_next[partition]++;
+				try {
+					Thread.sleep(1); // a slow source
+				} catch (InterruptedException e) {
+				}
+				return new DataEvent<Integer>(version, String.valueOf(version));
+			}
+
+			@Override
+			public void reset() {
+				Arrays.fill(_next, 0);
+			}
+
+			@Override
+			public void setStartingOffset(String version) {
+			}
+		};
+		final List<String> versions = new ArrayList<String>();
+		provider.setDataConsumer(new DataConsumer<Integer>() {
+			public void consume(Collection<DataEvent<Integer>> data) {
+				for (DataEvent<Integer> event : data) {
+					versions.add(event.getVersion());
+				}
+			}
+
+			public String getVersion() {
+				return null;
+			}
+		});
+		provider.setBatchSize(20);
+		long start = System.currentTimeMillis();
+		provider.start();
+		try {
+			provider.syncWithVersion(20000, String.valueOf(count));
+			log.info("prefetched " + count + " events from " + numPartitions + " partitions in " + (System.currentTimeMillis() - start) + "ms");
+			assertEquals(count, versions.size());
+			for (int i = 0; i < count; ++i) {
+				assertEquals("event " + i, String.valueOf(i + 1), versions.get(i));
+			}
+		} finally {
+			provider.stop();
+		}
+		assertEquals(0, provider.getPrefetchedCount());
+	}
+
+	@Test
+	public void testPrefetchingMaxMergeWait() throws ZoieException {
+		// partition 0 is slow to fetch its second event, 3
+		PrefetchingStreamDataProvider<Integer> provider = new PrefetchingStreamDataProvider<Integer>(2, 10, ZoieConfig.DEFAULT_VERSION_COMPARATOR) {
+			private final int[][] _events = new int[][] { { 1, 3 }, { 2, 4, 6 } };
+			private final int[] _next = new int[2];
+
+			@Override
+			protected DataEvent<Integer> fetch(int partition) {
+				if (_next[partition] >= _events[partition].length) return null;
+				int version = _events[partition][_next[partition]++];
+				if (version == 3) {
+					try {
+						Thread.sleep(500);
+					} catch (InterruptedException e) {
+					}
+				}
+				return new DataEvent<Integer>(version, String.valueOf(version));
+			}
+
+			@Override
+			public void reset() {
+				Arrays.fill(_next, 0);
+			}
+
+			@Override
+			public void setStartingOffset(String version) {
+			}
+		};
+		final List<Integer> data = new ArrayList<Integer>();
+		final List<String> versions = new ArrayList<String>();
+		provider.setDataConsumer(new DataConsumer<Integer>() {
+			public void consume(Collection<DataEvent<Integer>> events) {
+				for (DataEvent<Integer> event : events) {
+					data.add(event.getData());
+					versions.add(event.getVersion());
+				}
+			}
+
+			public String getVersion() {
+				return null;
+			}
+		});
+		provider.setBatchSize(1);
+		provider.setMaxMergeWait(50);
+		provider.start();
+		try {
+			provider.syncWithVersion(20000, "3");
+			assertEquals(Arrays.asList(1, 2, 4, 6, 3), data);
+			// the events passing 3 keep the version of the last one in order
+			assertEquals(Arrays.asList("1", "1", "1", "1", "3"), versions);
+		} finally {
+			provider.stop();
+		}
+	}
+
+	@Test
+	public void testPrefetchingIdlePartition() throws ZoieException, InterruptedException {
+		// both partitions caught up, then partition 0 is slow to fetch its new event 1
+		final boolean[] published = new boolean[1];
+		final boolean[] fetching = new boolean[1];
+		PrefetchingStreamDataProvider<Integer> provider = new PrefetchingStreamDataProvider<Integer>(2, 10, ZoieConfig.DEFAULT_VERSION_COMPARATOR) {
+			private final int[] _next = new int[2];
+
+			@Override
+			protected DataEvent<Integer> fetch(int partition) {
+				synchronized (published) {
+					if (!published[0] || _next[partition] > 0) return null;
+					if (partition == 1 && !fetching[0]) return null;
+					fetching[0] = true;
+				}
+				_next[partition]++;
+				int version = partition + 1;
+				if (version == 1) {
+					try {
+						Thread.sleep(500);
+					} catch (InterruptedException e) {
+					}
+				}
+				return new DataEvent<Integer>(version, String.valueOf(version));
+			}
+
+			@Override
+			public void reset() {
+				Arrays.fill(_next, 0);
+			}
+
+			@Override
+			public void setStartingOffset(String version) {
+			}
+		};
+		final List<Integer> data = new ArrayList<Integer>();
+		provider.setDataConsumer(new DataConsumer<Integer>() {
+			public void consume(Collection<DataEvent<Integer>> events) {
+				for (DataEvent<Integer> event : events) {
+					data.add(event.getData());
+				}
+			}
+
+			public String getVersion() {
+				return null;
+			}
+		});
+		provider.setBatchSize(1);
+		provider.setIdleWait(10);
+		provider.start();
+		try {
+			Thread.sleep(100); // both partitions go idle
+			synchronized (published) {
+				published[0] = true;
+			}
+			provider.syncWithVersion(20000, "2");
+			// 2 is held back while partition 0 is fetching
+			assertEquals(Arrays.asList(1, 2), data);
+		} finally {
+			provider.stop();
+		}
+	}
+
 	@Test
 	public void testAsyncDataConsumer() throws ZoieException {
 		final long[] delays = { 0L, 10L, 100L, 1000L };
@@ -1004,6 +2058,130 @@ public class ZoieTest extends ZoieTestCaseBase {
 		assertTrue(numDiskIdx > 0);
 	}
 
+	@Test
+	public void testMultiRangeDocIDMapperFactory() throws IOException {
+		RAMDirectory dir = new RAMDirectory();
+		IndexWriter writer = new IndexWriter(dir, new WhitespaceAnalyzer(), IndexWriter.MaxFieldLength.UNLIMITED);
+		LongOpenHashSet uids = new LongOpenHashSet();
+		// a dense segment per shard, every other uid
+		for (long shard = 1; shard <= 2; ++shard) {
+			for (int i = 0; i < 6000; i += 2) {
+				uids.add((shard << 40) | i);
+			}
+			addDocs(writer, uids);
+		}
+		// a sparse segment: uids in the range of shard 1 plus outliers
+		for (int i = 1; i < 200; i += 2) {
+			uids.add((1L << 40) | i);
+		}
+		for (int i = 0; i < 50; ++i) {
+			uids.add(7777777L * i + 5);
+		}
+		addDocs(writer, uids);
+		writer.close();
+
+		ZoieMultiReader<IndexReader> reader = (ZoieMultiReader<IndexReader>) ZoieIndexReader.open(dir, new TestIndexReaderDecorator());
+		try {
+			assertEquals(3, reader.getSequentialSubReaders().length);
+			MultiRangeDocIDMapperFactory.DocIDMapperGlobal mapper = (MultiRangeDocIDMapperFactory.DocIDMapperGlobal) new MultiRangeDocIDMapperFactory(0.25d, 0).getDocIDMapper(reader);
+			assertEquals(2, mapper.getPagedDocIDs().getNumRanges());
+			assertEquals(50, mapper.getPagedDocIDs().getNumOutliers());
+			checkDocIDMapper(reader, mapper);
+
+			mapper = (MultiRangeDocIDMapperFactory.DocIDMapperGlobal) new MultiRangeDocIDMapperFactory(new long[] { 2L << 40, 1L << 40 }, new int[] { 1 << 20, 100 }, 0).getDocIDMapper(reader);
+			assertEquals(2, mapper.getPagedDocIDs().getNumRanges());
+			assertEquals(50 + 3000, mapper.getPagedDocIDs().getNumOutliers());
+			checkDocIDMapper(reader, mapper);
+		} finally {
+			reader.close();
+		}
+	}
+
+	private static void addDocs(IndexWriter writer, LongOpenHashSet uids) throws IOException {
+		for (long uid : uids) {
+			Document doc = new Document();
+			ZoieSegmentReader.fillDocumentID(doc, uid);
+			writer.addDocument(doc);
+		}
+		writer.commit();
+		uids.clear();
+	}
+
+	private static void checkDocIDMapper(ZoieMultiReader<IndexReader> reader, DocIDMapper<?> mapper) {
+		reader.setDocIDMapper(mapper);
+		ZoieIndexReader<?>[] subreaders = mapper.getSubReaders();
+		int[] starts = mapper.getStarts();
+		for (int docid = 0; docid < reader.maxDoc(); ++docid) {
+			long uid = reader.getUID(docid);
+			assertEquals(docid, mapper.getDocID(uid));
+			int idx = mapper.getReaderIndex(uid);
+			assertEquals(docid - starts[idx], subreaders[idx].getDocIDMaper().getDocID(uid));
+			for (int i = 0; i < subreaders.length; ++i) {
+				if (i != idx) {
+					assertEquals(DocIDMapper.NOT_FOUND, subreaders[i].getDocIDMaper().getDocID(uid));
+				}
+			}
+		}
+		assertEquals(DocIDMapper.NOT_FOUND, mapper.getDocID(1L << 40 | 201));
+		assertEquals(DocIDMapper.NOT_FOUND, mapper.getDocID(3L << 40));
+		assertEquals(DocIDMapper.NOT_FOUND, mapper.getDocID(6));
+		assertEquals(-1, mapper.getReaderIndex(6));
+	}
+
+	@Test
+	public void testBloomSets() {
+		Random rand = new Random(4321);
+		LongOpenHashSet expected = new LongOpenHashSet();
+		LongBloomSet longSet = new LongBloomSet(8, 0.01d); // grows while adding
+		IntBloomSet intSet = new IntBloomSet(8, 0.01d);
+		long[] special = new long[] { 0L, Long.MIN_VALUE, Long.MAX_VALUE, -1L };
+		for (long key : special) {
+			assertTrue(longSet.add(key));
+			intSet.add((int) key); // (int) Long.MIN_VALUE is 0
+			expected.add(key);
+		}
+		for (int i = 0; i < 20000; ++i) {
+			long key = rand.nextLong();
+			assertEquals(expected.add(key), longSet.add(key));
+			intSet.add((int) key);
+		}
+		assertFalse(longSet.add(0L));
+		assertFalse(intSet.add(0));
+		assertEquals(expected.size(), longSet.size());
+		LongIterator iter = expected.iterator();
+		while (iter.hasNext()) {
+			long key = iter.nextLong();
+			assertTrue(longSet.contains(key));
+			assertTrue(intSet.contains((int) key));
+		}
+		LongOpenHashSet iterated = new LongOpenHashSet();
+		iter = longSet.iterator();
+		while (iter.hasNext()) {
+			assertTrue(iterated.add(iter.nextLong()));
+		}
+		assertEquals(expected, iterated);
+		for (int i = 0; i < 10000; ++i) {
+			long key = rand.nextLong();
+			assertEquals(expected.contains(key), longSet.contains(key));
+		}
+
+		// the false positive rate stays near the one asked for
+		BlockedBloomFilter filter = new BlockedBloomFilter(100000, 0.01d);
+		for (int i = 0; i < 100000; ++i) {
+			filter.add(i);
+		}
+		int falsePositives = 0;
+		for (int i = 100000; i < 200000; ++i) {
+			if (filter.mightContain(i)) falsePositives++;
+		}
+		assertTrue("false positives: " + falsePositives, falsePositives < 2000);
+
+		longSet.clear();
+		assertEquals(0, longSet.size());
+		assertFalse(longSet.contains(0L));
+		assertFalse(longSet.iterator().hasNext());
+	}
+
 	@Test
 	public void testDocIDMapper() {
 		long[] uidList = new long[500000];
@@ -1152,6 +2330,76 @@ public class ZoieTest extends ZoieTestCaseBase {
 		}
 	}
 
+	@Test
+	public void testWriteAheadLogRecovery() throws ZoieException, IOException {
+		File idxDir = getIdxDir();
+		File walDir = new File(getTmpDir(), "zoie_wal");
+		deleteDirectory(walDir);
+
+		// logged by a zoie that crashed before flushing them to disk
+		WriteAheadLog<String> wal = new WriteAheadLog<String>(walDir,
+				WriteAheadLog.STRING_SERIALIZER, ZoieConfig.DEFAULT_VERSION_COMPARATOR, 256);
+		List<DataEvent<String>> list = new ArrayList<DataEvent<String>>(
+				DataForTests.testdata.length);
+		for (int i = 0; i < DataForTests.testdata.length; ++i) {
+			list.add(new DataEvent<String>(DataForTests.testdata[i], "" + i));
+		}
+		wal.sync(wal.append(list));
+		assertTrue("rolled to a new segment", wal.getSegmentCount() > 1);
+		// could not be told apart from the disk index
+		List<DataEvent<String>> unversioned = new ArrayList<DataEvent<String>>(1);
+		unversioned.add(new DataEvent<String>("zoie unversioned", null));
+		try {
+			wal.append(unversioned);
+			fail("event without a version logged");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		wal.close();
+
+		wal = new WriteAheadLog<String>(walDir,
+				WriteAheadLog.STRING_SERIALIZER, ZoieConfig.DEFAULT_VERSION_COMPARATOR, 256);
+		ZoieSystem<IndexReader, String> idxSystem = createZoie(idxDir, true,
+				ZoieConfig.DEFAULT_VERSION_COMPARATOR);
+		idxSystem.setWriteAheadLog(wal);
+		idxSystem.start();
+		try {
+			// replayed into the RAM indexes before start returns
+			assertEquals(DataForTests.testdata.length,
+					countHits(idxSystem, new TermQuery(new Term("contents", "zoie")), 0L));
+
+			idxSystem.flushEvents(100000);
+			assertEquals("" + (DataForTests.testdata.length - 1),
+					new DefaultDirectoryManager(idxDir).getVersion());
+			assertEquals("truncated once on disk", 1, wal.getSegmentCount());
+
+			// new events are logged again
+			list = new ArrayList<DataEvent<String>>(1);
+			list.add(new DataEvent<String>("zoie logged " + DataForTests.testdata.length, "" + DataForTests.testdata.length));
+			idxSystem.consume(list);
+			idxSystem.flushEvents(100000);
+			assertEquals(DataForTests.testdata.length + 1,
+					countHits(idxSystem, new TermQuery(new Term("contents", "zoie")), 0L));
+			assertEquals("truncated again", 1, wal.getSegmentCount());
+
+			// refused once shut down, which is not an I/O failure
+			idxSystem.shutdown();
+			assertTrue(wal.isClosed());
+			ZoieHealth.setOK();
+			try {
+				idxSystem.consume(list);
+				fail("consumed after shutdown");
+			} catch (ZoieException e) {
+				// expected
+			}
+			assertEquals(ZoieHealth.HEALTH_OK, ZoieHealth.getHealth());
+		} finally {
+			idxSystem.shutdown();
+			deleteDirectory(idxDir);
+			deleteDirectory(walDir);
+		}
+	}
+
 	@Test
 	public void testUIDDocIdSet() throws IOException {
 		LongOpenHashSet uidset = new LongOpenHashSet();
@@ -1210,4 +2458,136 @@ public class ZoieTest extends ZoieTestCaseBase {
 		assertTrue("wrong result from mix of next and skip",
 				Arrays.equals(answer, intList.toIntArray()));
 	}
+
+	@Test
+	public void testDeleteAwareMergePolicy() throws IOException {
+		checkDeleteAwareMergePolicy(2);
+		// no small segment among the three: the large ones are still looked at
+		checkDeleteAwareMergePolicy(ZoieMergePolicy.DEFAULT_NUM_LARGE_SEGMENTS);
+	}
+
+	private void checkDeleteAwareMergePolicy(int numLargeSegments) throws IOException {
+		RAMDirectory dir = new RAMDirectory();
+		IndexWriter writer = new IndexWriter(dir, new WhitespaceAnalyzer(), true, IndexWriter.MaxFieldLength.UNLIMITED);
+		writer.setMergeScheduler(new SerialMergeScheduler());
+		ZoieMergePolicy mergePolicy = new ZoieMergePolicy(writer);
+		MergePolicyParams params = new MergePolicyParams();
+		params.setNumLargeSegments(numLargeSegments);
+		params.setDeleteAwareMerge(true);
+		params.setMinMergeDeleteRatio(0.2f);
+		mergePolicy.setMergePolicyParams(params);
+		MergeStats stats = new MergeStats();
+		mergePolicy.setMergeStats(stats);
+		writer.setMergePolicy(mergePolicy);
+
+		// two large segments and a small one
+		int[] segSizes = new int[] { 100, 100, 10 };
+		int id = 0;
+		for (int segSize : segSizes) {
+			for (int i = 0; i < segSize; ++i, ++id) {
+				Document doc = new Document();
+				doc.add(new Field("id", String.valueOf(id), Store.NO, Index.NOT_ANALYZED_NO_NORMS));
+				doc.add(new Field("contents", "zoie " + (id % 2 == 0 ? "even" : "odd"), Store.YES, Index.ANALYZED));
+				writer.addDocument(doc);
+			}
+			writer.commit();
+		}
+		assertEquals(0, stats.getNumReclaimMergesSelected());
+
+		// 10% deleted in the first segment is below the threshold
+		for (int i = 0; i < 10; ++i) {
+			writer.deleteDocuments(new Term("id", String.valueOf(i)));
+		}
+		writer.commit();
+		// a commit with only deletes does not look for merges
+		writer.maybeMerge();
+		assertEquals(0, stats.getNumReclaimMergesSelected());
+
+		// 40% deleted is worth a rewrite
+		for (int i = 10; i < 40; ++i) {
+			writer.deleteDocuments(new Term("id", String.valueOf(i)));
+		}
+		writer.commit();
+		writer.maybeMerge();
+		assertEquals(1, stats.getNumReclaimMergesSelected());
+		assertTrue(stats.getSelectedBytesReclaimed() > 0);
+		assertTrue(stats.getSelectedBytesToRewrite() > stats.getSelectedBytesReclaimed());
+		writer.close();
+
+		IndexReader reader = IndexReader.open(dir, true);
+		try {
+			assertEquals(0, reader.numDeletedDocs());
+			assertEquals(170, reader.numDocs());
+		} finally {
+			reader.close();
+		}
+	}
+
+	@Test
+	public void testMergeScheduler() throws IOException {
+		ZoieMergeScheduler scheduler = new ZoieMergeScheduler();
+		RAMDirectory ramDir = new RAMDirectory();
+		IndexWriter writer = new IndexWriter(new MergeThrottledDirectory(ramDir, scheduler), new WhitespaceAnalyzer(), true, IndexWriter.MaxFieldLength.UNLIMITED);
+		writer.setMergeScheduler(scheduler);
+
+		for (int seg = 0; seg < 4; ++seg) {
+			for (int i = 0; i < 2000; ++i) {
+				Document doc = new Document();
+				doc.add(new Field("contents", "zoie merge " + seg + " " + i, Store.YES, Index.ANALYZED));
+				writer.addDocument(doc);
+			}
+			writer.commit();
+		}
+
+		// not throttled
+		writer.optimize(2);
+		assertTrue(scheduler.getNumMerges() > 0);
+		assertTrue(scheduler.getBytesWritten() > 0);
+		assertTrue(scheduler.getBytesRead() > 0);
+		assertEquals(0, scheduler.getThrottledMillis());
+		assertEquals(0, scheduler.getBacklog());
+
+		// reading and writing the index at twice its size per second takes about 1s, plus a 300ms pause
+		long bytesWritten = scheduler.getBytesWritten();
+		long size = ramDir.sizeInBytes();
+		scheduler.setMaxMBPerSec((double) size / (1024 * 1024) * 2);
+		scheduler.pauseMerges(300);
+		assertTrue(scheduler.isMergePaused());
+		long start = System.currentTimeMillis();
+		writer.optimize();
+		long took = System.currentTimeMillis() - start;
+		assertTrue(scheduler.getBytesWritten() > bytesWritten);
+		assertTrue("throttled " + scheduler.getThrottledMillis(), scheduler.getThrottledMillis() > 0);
+		assertTrue("paused " + scheduler.getPausedMillis(), scheduler.getPausedMillis() >= 250);
+		assertTrue("took " + took, took >= 500);
+
+		// the merges run for a flush share one pause budget
+		scheduler.setMaxMBPerSec(0);
+		for (int seg = 0; seg < 4; ++seg) {
+			for (int i = 0; i < 100; ++i) {
+				Document doc = new Document();
+				doc.add(new Field("contents", "zoie pause " + seg + " " + i, Store.YES, Index.ANALYZED));
+				writer.addDocument(doc);
+			}
+			writer.commit();
+		}
+		writer.setMergeFactor(2); // two merges of two segments
+		scheduler.setMaxPausePerFlushMillis(200);
+		long pausedMillis = scheduler.getPausedMillis();
+		long numMerges = scheduler.getNumMerges();
+		scheduler.pauseMerges(10000);
+		writer.maybeMerge();
+		scheduler.resumeMerges();
+		assertTrue("merges " + (scheduler.getNumMerges() - numMerges), scheduler.getNumMerges() - numMerges >= 2);
+		pausedMillis = scheduler.getPausedMillis() - pausedMillis;
+		assertTrue("paused " + pausedMillis, pausedMillis >= 150 && pausedMillis < 400);
+		writer.close();
+
+		IndexReader reader = IndexReader.open(ramDir, true);
+		try {
+			assertEquals(8400, reader.numDocs());
+		} finally {
+			reader.close();
+		}
+	}
 }
@@ -16,11 +16,9 @@ import org.apache.lucene.document.Fieldable;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.MultiReader;
 import org.apache.lucene.queryParser.QueryParser;
-import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.MatchAllDocsQuery;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.ScoreDoc;
-import org.apache.lucene.search.Searcher;
 import org.apache.lucene.search.TopDocs;
 import org.apache.lucene.search.highlight.Highlighter;
 import org.apache.lucene.search.highlight.QueryScorer;
@@ -31,6 +29,7 @@ import org.apache.lucene.util.Version;
 import proj.zoie.api.IndexReaderFactory;
 import proj.zoie.api.ZoieException;
 import proj.zoie.api.ZoieIndexReader;
+import proj.zoie.api.impl.util.ParallelZoieSearcher;
 import proj.zoie.service.api.SearchHit;
 import proj.zoie.service.api.SearchRequest;
 import proj.zoie.service.api.SearchResult;
@@ -42,6 +41,8 @@ public class ExampleZoieSearchServiceImpl<R extends IndexReader> implements Zoie
 	
 	private IndexReaderFactory<ZoieIndexReader<R>> _idxReaderFactory;
 	
+	private final ParallelZoieSearcher _searcher = new ParallelZoieSearcher();
+	
 	public ExampleZoieSearchServiceImpl(IndexReaderFactory<ZoieIndexReader<R>> idxReaderFactory){
 		_idxReaderFactory=idxReaderFactory;
 	}
@@ -73,7 +74,6 @@ public class ExampleZoieSearchServiceImpl<R extends IndexReader> implements Zoie
 		List<ZoieIndexReader<R>> readers=null;
 
 		MultiReader multiReader=null;
-		Searcher searcher = null;
 		try
 		{
 			Query q=null;
@@ -87,10 +87,9 @@ public class ExampleZoieSearchServiceImpl<R extends IndexReader> implements Zoie
 			}
 			readers=_idxReaderFactory.getIndexReaders();
 			multiReader=new MultiReader(readers.toArray(new IndexReader[readers.size()]), false);
-			searcher=new IndexSearcher(multiReader);
 			
 			long start=System.currentTimeMillis();
-			TopDocs docs=searcher.search(q, null, 10);
+			TopDocs docs=_searcher.search(readers, q, 10);
 			long end=System.currentTimeMillis();
 			
 			result.setTime(end-start);
@@ -132,23 +131,13 @@ public class ExampleZoieSearchServiceImpl<R extends IndexReader> implements Zoie
 		finally
 		{
 			try{
-			  if (searcher!=null)
-			  {
-				try {
-					searcher.close();
-				} catch (IOException e) {
-					log.error(e.getMessage(),e);
-				}
-				finally{
-				    if (multiReader!=null){
-				      try{
-				        multiReader.close();
-				      }
-				      catch(IOException e){
-				        log.error(e.getMessage(),e);
-				      }
-				    }
-				}
+			  if (multiReader!=null){
+			    try{
+			      multiReader.close();
+			    }
+			    catch(IOException e){
+			      log.error(e.getMessage(),e);
+			    }
 			  }
 			}
 			finally{